@@ -0,0 +1,99 @@
+package com.hihi.xml;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+//Converts a batch of documents on a shared ForkJoinPool, splitting it in halves until each part is no larger than the
+//threshold, and returns the values in the same order as the documents. Batches no larger than the threshold are
+//converted on the calling thread. Each conversion runs on a single thread, so generated code keeps using the parser
+//state that thread owns or borrows
+public final class XmlBatch {
+
+    public static final int DEFAULT_THRESHOLD = 64;
+
+    public interface Converter<T, R> {
+        R convert(T xml);
+    }
+
+    private XmlBatch() {
+    }
+
+    public static <T, R> List<R> convert(List<? extends T> documents, int threshold, Converter<? super T, ? extends R> converter) {
+        final Object[] values = new Object[documents.size()];
+        convert(documents, values, threshold, converter);
+        @SuppressWarnings("unchecked")
+        final List<R> list = (List<R>) (List<?>) Arrays.asList(values);
+        return list;
+    }
+
+    public static <T, R> R[] convert(T[] documents, R[] values, int threshold, Converter<? super T, ? extends R> converter) {
+        if(values.length != documents.length) {
+            final String msg = String.format("Got %d values for %d documents", values.length, documents.length);
+            throw new IllegalArgumentException(msg);
+        }
+        convert(Arrays.asList(documents), values, threshold, converter);
+        return values;
+    }
+
+    private static <T> void convert(List<? extends T> documents, Object[] values, int threshold, Converter<? super T, ?> converter) {
+        if(threshold < 1) {
+            throw new IllegalArgumentException(String.format("Threshold must be positive, was %d", threshold));
+        }
+        //Each document is looked up by index, which would make a batch from a LinkedList quadratic
+        final List<? extends T> indexed = documents instanceof RandomAccess ? documents : new ArrayList<T>(documents);
+        final Task<T> task = new Task<T>(indexed, values, 0, values.length, threshold, converter);
+        if(values.length <= threshold || ForkJoinTask.inForkJoinPool()) {
+            task.invoke();
+        } else {
+            Pool.INSTANCE.invoke(task);
+        }
+    }
+
+    //Created on first use, so classes that never convert a batch never start any threads
+    private static final class Pool {
+        static final ForkJoinPool INSTANCE = new ForkJoinPool();
+    }
+
+    private static final class Task<T> extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<? extends T> documents;
+        private final Object[] values;
+        private final int start;
+        private final int end;
+        private final int threshold;
+        private final Converter<? super T, ?> converter;
+
+        Task(List<? extends T> documents, Object[] values, int start, int end, int threshold, Converter<? super T, ?> converter) {
+            this.documents = documents;
+            this.values = values;
+            this.start = start;
+            this.end = end;
+            this.threshold = threshold;
+            this.converter = converter;
+        }
+
+        @Override
+        protected void compute() {
+            if(end - start <= threshold) {
+                for(int i = start; i < end; i++) {
+                    values[i] = converter.convert(documents.get(i));
+                }
+                return;
+            }
+            final int middle = (start + end) >>> 1;
+            invokeAll(
+                    new Task<T>(documents, values, start, middle, threshold, converter),
+                    new Task<T>(documents, values, middle, end, threshold, converter)
+            );
+        }
+
+    }
+
+}
@@ -0,0 +1,65 @@
+package com.hihi.xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+//Used by generated classes to read files and buffers in place, rather than copying them onto the heap first
+public final class XmlBuffers {
+
+    private XmlBuffers() {
+    }
+
+    //The mapping stays valid after the channel is closed, and is released when the buffer is garbage collected
+    public static MappedByteBuffer map(Path path) throws IOException {
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close();
+        }
+    }
+
+    //Streams the bytes between the position and limit of the buffer, without moving either of them
+    public static InputStream inputStream(ByteBuffer buffer) {
+        return new ByteBufferInputStream(buffer.duplicate());
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if(length == 0) {
+                return 0;
+            }
+            if(!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+    }
+
+}
@@ -0,0 +1,609 @@
+package com.hihi.xml;
+
+import org.xml.sax.InputSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+//Minimal pull reader over UTF-8 encoded XML, used by classes generated with the BYTES engine. It reports start tags,
+//end tags and runs of text, and only decodes names, attributes and text when asked to. DOCTYPE declarations,
+//comments and processing instructions are skipped, and CDATA sections are read as part of the surrounding text
+public final class XmlByteReader {
+
+    public static final int START_ELEMENT = 1;
+    public static final int END_ELEMENT = 2;
+    public static final int TEXT = 3;
+    public static final int END_DOCUMENT = 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] COMMENT_START = bytes("<!--");
+    private static final byte[] COMMENT_END = bytes("-->");
+    private static final byte[] CDATA_START = bytes("<![CDATA[");
+    private static final byte[] CDATA_END = bytes("]]>");
+    private static final byte[] PI_START = bytes("<?");
+    private static final byte[] PI_END = bytes("?>");
+    private static final byte[] DECLARATION_START = bytes("<?xml");
+    private static final byte[] ENCODING = bytes("encoding");
+
+    public static byte[] bytes(String name) {
+        return name.getBytes(UTF_8);
+    }
+
+    //Reads the rest of the stream into a single buffer that the reader then walks in place, so the whole document is
+    //held in memory, which is why Engine.AUTO reads streams with STAX instead. The stream is not closed
+    public static XmlByteReader of(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        int length = 0;
+        int read;
+        while((read = in.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+            if(length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+        return new XmlByteReader(buffer, 0, length);
+    }
+
+    //Encodes each piece read straight into the buffer the reader walks, without collecting the characters first.
+    //Unpaired surrogates become '?', as they do in String.getBytes
+    public static XmlByteReader of(Reader in) throws IOException {
+        final CharsetEncoder encoder = UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final CharBuffer chars = CharBuffer.allocate(4096);
+        ByteBuffer bytes = ByteBuffer.allocate(8192);
+        boolean end = false;
+        while(!end) {
+            end = in.read(chars) == -1;
+            chars.flip();
+            while(encoder.encode(chars, bytes, end).isOverflow()) {
+                bytes = grow(bytes);
+            }
+            chars.compact();
+        }
+        while(encoder.flush(bytes).isOverflow()) {
+            bytes = grow(bytes);
+        }
+        bytes.flip();
+        return new XmlByteReader(bytes, false);
+    }
+
+    private static ByteBuffer grow(ByteBuffer bytes) {
+        bytes.flip();
+        return ByteBuffer.allocate(bytes.capacity() * 2).put(bytes);
+    }
+
+    //Characters were already decoded, so an encoding in the XML declaration no longer applies to them
+    public static XmlByteReader of(String xml) {
+        final byte[] bytes = bytes(xml);
+        return new XmlByteReader(ByteBuffer.wrap(bytes), false);
+    }
+
+    //Prefers the character stream, then the byte stream, then the system id, which is the order SAX parsers use
+    public static XmlByteReader of(InputSource source) throws IOException {
+        if(source.getCharacterStream() != null) {
+            return of(source.getCharacterStream());
+        }
+        if(source.getEncoding() != null && !Charset.forName(source.getEncoding()).equals(UTF_8)) {
+            throw new IllegalArgumentException(String.format("Unsupported encoding '%s'", source.getEncoding()));
+        }
+        if(source.getByteStream() != null) {
+            return of(source.getByteStream());
+        }
+        if(source.getSystemId() == null) {
+            throw new IllegalArgumentException("InputSource has no character stream, byte stream or system id");
+        }
+        final InputStream in = new URL(source.getSystemId()).openStream();
+        try {
+            return of(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final int limit;
+    private final boolean encoded;
+    private int position;
+    private boolean stackless;
+
+    private int nameStart;
+    private int nameEnd;
+    private int attributesStart;
+    private int attributesEnd;
+    private int textStart;
+    private int textEnd;
+    private boolean emptyElement;
+    private boolean pendingEnd;
+    private int depth;
+    private boolean rootSeen;
+    //The start and end offsets of the name of each open element, by depth
+    private int[] open = new int[32];
+    private final AsciiText asciiText = new AsciiText();
+
+    public XmlByteReader(byte[] buffer) {
+        this(buffer, 0, buffer.length);
+    }
+
+    public XmlByteReader(byte[] buffer, int offset, int length) {
+        this(ByteBuffer.wrap(buffer, offset, length));
+    }
+
+    //Reads the bytes between the position and limit of the buffer in place, without moving either of them
+    public XmlByteReader(ByteBuffer buffer) {
+        this(buffer, true);
+    }
+
+    private XmlByteReader(ByteBuffer buffer, boolean encoded) {
+        this.buffer = buffer;
+        this.limit = buffer.limit();
+        this.encoded = encoded;
+        this.position = hasByteOrderMark(buffer, buffer.position(), limit) ? buffer.position() + 3 : buffer.position();
+    }
+
+    //Fails on documents with stackless XmlFailures instead of IllegalArgumentExceptions, for classes with a
+    //"tryFromXml" factory
+    public XmlByteReader withoutStackTraces() {
+        stackless = true;
+        return this;
+    }
+
+    //Only UTF-8 is read, so a document declaring any other encoding is rejected rather than read as the wrong text.
+    //Done when next() reaches the declaration, so the failure is thrown the same way as any other
+    private void checkEncoding() {
+        if(!startsWith(DECLARATION_START) || !isWhitespace((byte) at(position + DECLARATION_START.length))) {
+            return;
+        }
+        final int end = indexOf(PI_END, position);
+        int i = skipWhitespace(position + DECLARATION_START.length, end);
+        while(i < end) {
+            final int start = i;
+            while(i < end && !isWhitespace(buffer.get(i)) && buffer.get(i) != '=') i++;
+            final int nameEnd = i;
+            i = skipWhitespace(i, end);
+            if(i >= end || buffer.get(i) != '=') throw malformed(i);
+            i = skipWhitespace(i + 1, end);
+            final byte quote = (byte) at(i);
+            if(quote != '"' && quote != '\'') throw malformed(i);
+            final int valueEnd = indexOf(quote, i + 1);
+            if(valueEnd >= end) throw malformed(i);
+            if(regionEquals(start, nameEnd, ENCODING)) {
+                final String encoding = string(i + 1, valueEnd - i - 1);
+                if(!Charset.isSupported(encoding) || !Charset.forName(encoding).equals(UTF_8)) {
+                    throw failure(String.format("Unsupported encoding '%s'", encoding));
+                }
+                return;
+            }
+            i = skipWhitespace(valueEnd + 1, end);
+        }
+    }
+
+    //The number of bytes in the document, including any byte order mark
+    public int length() {
+        return limit - buffer.position();
+    }
+
+    public int next() {
+        if(pendingEnd) {
+            pendingEnd = false;
+            depth--;
+            return END_ELEMENT;
+        }
+
+        while(position < limit) {
+            if(buffer.get(position) != '<' || startsWith(CDATA_START)) {
+                readText();
+                if(depth > 0) return TEXT;
+                if(!isWhitespace(textStart, textEnd)) throw malformed(textStart);
+            } else if(startsWith(COMMENT_START)) {
+                position = indexOf(COMMENT_END, position + COMMENT_START.length) + COMMENT_END.length;
+            } else if(startsWith(PI_START)) {
+                if(encoded && startsWith(DECLARATION_START)) {
+                    checkEncoding();
+                }
+                position = indexOf(PI_END, position + PI_START.length) + PI_END.length;
+            } else if(at(position + 1) == '!') {
+                skipDeclaration();
+            } else if(at(position + 1) == '/') {
+                position += 2;
+                readName();
+                position = indexOf('>', position) + 1;
+                closeElement();
+                return END_ELEMENT;
+            } else {
+                if(depth == 0 && rootSeen) throw malformed(position);
+                position += 1;
+                readName();
+                attributesStart = position;
+                skipTag();
+                attributesEnd = emptyElement ? position - 2 : position - 1;
+                pendingEnd = emptyElement;
+                openElement();
+                rootSeen = true;
+                return START_ELEMENT;
+            }
+        }
+        if(depth != 0 || !rootSeen) throw malformed(position);
+        return END_DOCUMENT;
+    }
+
+    //Whether the name of the current start or end tag is exactly the given UTF-8 bytes
+    public boolean nameEquals(byte[] name) {
+        return regionEquals(nameStart, nameEnd, name);
+    }
+
+    public String name() {
+        return string(nameStart, nameEnd - nameStart);
+    }
+
+    //The decoded value of an attribute of the current start tag, or null if it is not present
+    public String attribute(byte[] name) {
+        int i = attributesStart;
+        while(i < attributesEnd) {
+            i = skipWhitespace(i, attributesEnd);
+            if(i >= attributesEnd) break;
+
+            final int start = i;
+            while(i < attributesEnd && !isWhitespace(buffer.get(i)) && buffer.get(i) != '=') i++;
+            final int end = i;
+            i = skipWhitespace(i, attributesEnd);
+            if(i >= attributesEnd || buffer.get(i) != '=') throw malformed(i);
+            i = skipWhitespace(i + 1, attributesEnd);
+            if(i >= attributesEnd) throw malformed(i);
+
+            final byte quote = buffer.get(i);
+            if(quote != '"' && quote != '\'') throw malformed(i);
+            final int valueStart = i + 1;
+            final int valueEnd = indexOf(quote, valueStart);
+            if(valueEnd >= attributesEnd) throw malformed(valueStart);
+            if(regionEquals(start, end, name)) {
+                return decode(valueStart, valueEnd, true);
+            }
+            i = valueEnd + 1;
+        }
+        return null;
+    }
+
+    //The decoded content of the current run of text
+    public String text() {
+        return decode(textStart, textEnd, false);
+    }
+
+    //The current run of text as characters, read in place when it is plain ASCII and so needs no decoding. Only valid
+    //until the reader moves on
+    public CharSequence textChars() {
+        for(int i = textStart; i < textEnd; i++) {
+            final byte b = buffer.get(i);
+            if(b < 0 || b == '&' || b == '<' || b == '\r') {
+                return text();
+            }
+        }
+        return asciiText.set(textStart, textEnd);
+    }
+
+    //Moves past the end tag that closes the current start tag, without decoding anything inside it. Names are still
+    //matched, so a skipped element is no less well-formed than one that is read
+    public void skipElement() {
+        if(pendingEnd) {
+            pendingEnd = false;
+            depth--;
+            return;
+        }
+
+        final int outside = depth - 1;
+        while(depth > outside) {
+            position = indexOf('<', position);
+            if(startsWith(COMMENT_START)) {
+                position = indexOf(COMMENT_END, position + COMMENT_START.length) + COMMENT_END.length;
+            } else if(startsWith(CDATA_START)) {
+                position = indexOf(CDATA_END, position + CDATA_START.length) + CDATA_END.length;
+            } else if(startsWith(PI_START)) {
+                position = indexOf(PI_END, position + PI_START.length) + PI_END.length;
+            } else if(at(position + 1) == '/') {
+                position += 2;
+                readName();
+                position = indexOf('>', position) + 1;
+                closeElement();
+            } else {
+                position += 1;
+                readName();
+                skipTag();
+                if(!emptyElement) openElement();
+            }
+        }
+    }
+
+    private void openElement() {
+        if(2 * depth + 2 > open.length) {
+            open = Arrays.copyOf(open, open.length * 2);
+        }
+        open[2 * depth] = nameStart;
+        open[2 * depth + 1] = nameEnd;
+        depth++;
+    }
+
+    //An end tag must name the element it closes
+    private void closeElement() {
+        if(--depth < 0 || !regionEquals(nameStart, nameEnd, open[2 * depth], open[2 * depth + 1])) {
+            throw malformed(nameStart);
+        }
+    }
+
+    private void readText() {
+        textStart = position;
+        while(position < limit) {
+            if(startsWith(CDATA_START)) {
+                position = indexOf(CDATA_END, position + CDATA_START.length) + CDATA_END.length;
+            } else if(buffer.get(position) == '<') {
+                break;
+            } else {
+                position++;
+            }
+        }
+        textEnd = position;
+    }
+
+    private void readName() {
+        nameStart = position;
+        while(position < limit) {
+            final byte b = buffer.get(position);
+            if(isWhitespace(b) || b == '>' || b == '/') break;
+            position++;
+        }
+        nameEnd = position;
+        if(nameStart == nameEnd) throw malformed(position);
+    }
+
+    //Moves past the '>' of the current tag, stepping over quoted attribute values
+    private void skipTag() {
+        while(position < limit) {
+            final byte b = buffer.get(position);
+            if(b == '"' || b == '\'') {
+                position = indexOf(b, position + 1) + 1;
+            } else if(b == '>') {
+                emptyElement = buffer.get(position - 1) == '/';
+                position++;
+                return;
+            } else {
+                position++;
+            }
+        }
+        throw malformed(position);
+    }
+
+    //DOCTYPE and other <! declarations, including an internal subset in square brackets
+    private void skipDeclaration() {
+        int brackets = 0;
+        position += 2;
+        while(position < limit) {
+            final byte b = buffer.get(position++);
+            if(b == '"' || b == '\'') {
+                position = indexOf(b, position) + 1;
+            } else if(b == '[') {
+                brackets++;
+            } else if(b == ']') {
+                brackets--;
+            } else if(b == '>' && brackets == 0) {
+                return;
+            }
+        }
+        throw malformed(position);
+    }
+
+    private String decode(int start, int end, boolean attribute) {
+        int i = start;
+        while(i < end) {
+            final byte b = buffer.get(i);
+            if(b == '&' || b == '<' || b == '\r' || (attribute && (b == '\n' || b == '\t'))) break;
+            i++;
+        }
+        if(i == end) {
+            return string(start, end - start);
+        }
+
+        final StringBuilder builder = new StringBuilder(end - start);
+        builder.append(string(start, i - start));
+        int run = i;
+        while(i < end) {
+            final byte b = buffer.get(i);
+            if(b == '&') {
+                builder.append(string(run, i - run));
+                final int semicolon = indexOf((byte) ';', i);
+                if(semicolon >= end) throw malformed(i);
+                appendEntity(builder, i + 1, semicolon);
+                i = run = semicolon + 1;
+            } else if(b == '<') {
+                builder.append(string(run, i - run));
+                final int cdataEnd = indexOf(CDATA_END, i + CDATA_START.length);
+                builder.append(string(i + CDATA_START.length, cdataEnd - i - CDATA_START.length));
+                i = run = cdataEnd + CDATA_END.length;
+            } else if(b == '\r') {
+                builder.append(string(run, i - run));
+                builder.append(attribute ? ' ' : '\n');
+                i += i + 1 < end && buffer.get(i + 1) == '\n' ? 2 : 1;
+                run = i;
+            } else if(attribute && (b == '\n' || b == '\t')) {
+                builder.append(string(run, i - run));
+                builder.append(' ');
+                i = run = i + 1;
+            } else {
+                i++;
+            }
+        }
+        builder.append(string(run, end - run));
+        return builder.toString();
+    }
+
+    private void appendEntity(StringBuilder builder, int start, int end) {
+        final String entity = string(start, end - start);
+        if(entity.equals("lt")) {
+            builder.append('<');
+        } else if(entity.equals("gt")) {
+            builder.append('>');
+        } else if(entity.equals("amp")) {
+            builder.append('&');
+        } else if(entity.equals("quot")) {
+            builder.append('"');
+        } else if(entity.equals("apos")) {
+            builder.append('\'');
+        } else if(entity.startsWith("#") && codePoint(entity) != -1) {
+            builder.appendCodePoint(codePoint(entity));
+        } else {
+            throw failure(String.format("Unknown entity '&%s;' at offset %d", entity, start - 1));
+        }
+    }
+
+    //The code point of a character reference, or -1 if it is not a valid one. Parsed by hand so a bad one fails like
+    //any other malformed text, rather than with a NumberFormatException
+    private static int codePoint(String entity) {
+        final boolean hex = entity.startsWith("#x");
+        final int radix = hex ? 16 : 10;
+        final int start = hex ? 2 : 1;
+        if(start == entity.length()) {
+            return -1;
+        }
+        int codePoint = 0;
+        for(int i = start; i < entity.length(); i++) {
+            final int digit = Character.digit(entity.charAt(i), radix);
+            if(digit == -1) {
+                return -1;
+            }
+            codePoint = codePoint * radix + digit;
+            if(codePoint > Character.MAX_CODE_POINT) {
+                return -1;
+            }
+        }
+        return codePoint;
+    }
+
+    private boolean regionEquals(int start, int end, byte[] name) {
+        if(end - start != name.length) return false;
+        for(int i = 0; i < name.length; i++) {
+            if(buffer.get(start + i) != name[i]) return false;
+        }
+        return true;
+    }
+
+    private boolean regionEquals(int start, int end, int otherStart, int otherEnd) {
+        if(end - start != otherEnd - otherStart) return false;
+        for(int i = 0; i < end - start; i++) {
+            if(buffer.get(start + i) != buffer.get(otherStart + i)) return false;
+        }
+        return true;
+    }
+
+    private boolean startsWith(byte[] prefix) {
+        if(position + prefix.length > limit) return false;
+        for(int i = 0; i < prefix.length; i++) {
+            if(buffer.get(position + i) != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private int indexOf(int b, int from) {
+        for(int i = from; i < limit; i++) {
+            if(buffer.get(i) == b) return i;
+        }
+        throw malformed(from);
+    }
+
+    private int indexOf(byte[] sequence, int from) {
+        outer:
+        for(int i = from; i <= limit - sequence.length; i++) {
+            for(int j = 0; j < sequence.length; j++) {
+                if(buffer.get(i + j) != sequence[j]) continue outer;
+            }
+            return i;
+        }
+        throw malformed(from);
+    }
+
+    private boolean isWhitespace(int start, int end) {
+        for(int i = start; i < end; i++) {
+            if(!isWhitespace(buffer.get(i))) return false;
+        }
+        return true;
+    }
+
+    private int skipWhitespace(int from, int end) {
+        while(from < end && isWhitespace(buffer.get(from))) from++;
+        return from;
+    }
+
+    private int at(int index) {
+        return index < limit ? buffer.get(index) : -1;
+    }
+
+    private String string(int offset, int length) {
+        if(buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + offset, length, UTF_8);
+        }
+        final byte[] bytes = new byte[length];
+        for(int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    private static boolean hasByteOrderMark(ByteBuffer buffer, int offset, int limit) {
+        return limit - offset >= 3
+                && buffer.get(offset) == (byte) 0xEF
+                && buffer.get(offset + 1) == (byte) 0xBB
+                && buffer.get(offset + 2) == (byte) 0xBF;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\t' || b == '\r';
+    }
+
+    private RuntimeException malformed(int offset) {
+        return failure(String.format("Malformed XML at offset %d", offset));
+    }
+
+    private RuntimeException failure(String message) {
+        return stackless ? XmlFailure.malformed(message) : new IllegalArgumentException(message);
+    }
+
+    private final class AsciiText implements CharSequence {
+
+        private int start;
+        private int end;
+
+        AsciiText set(int start, int end) {
+            this.start = start;
+            this.end = end;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) buffer.get(start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return string(this.start + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return string(start, end - start);
+        }
+
+    }
+
+}
@@ -0,0 +1,152 @@
+package com.hihi.xml;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//The values read from the most recently used documents, keyed by a 64 bit hash of their content. Values are immutable,
+//so one is handed out as often as the same document comes in again. The content of each document is kept with its
+//value and compared on every hit, so documents whose hashes collide are read again rather than mistaken for each other.
+//The cache's lock is held to look up or change entries and counters. Contents are compared and copied outside it, as
+//the content kept for an entry never changes, and no document is ever read holding it
+public final class XmlCache<T> {
+
+    public static final int DEFAULT_SIZE = 256;
+
+    private static final long SEED = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    private final int size;
+    private final LinkedHashMap<Long, Cached<T>> entries;
+    private long hits;
+    private long misses;
+    private long collisions;
+    private long evictions;
+
+    public XmlCache(int size) {
+        if(size < 1) {
+            throw new IllegalArgumentException(String.format("Size must be positive, was %d", size));
+        }
+        this.size = size;
+        //Iterated in access order, so the eldest entry is the least recently used
+        this.entries = new LinkedHashMap<Long, Cached<T>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Cached<T>> eldest) {
+                if(size() <= XmlCache.this.size) {
+                    return false;
+                }
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    //FNV-1a over the characters, as the String is only ever compared with other Strings
+    public static long hash(String xml) {
+        long hash = SEED;
+        for(int i = 0; i < xml.length(); i++) {
+            hash = (hash ^ xml.charAt(i)) * PRIME;
+        }
+        return hash;
+    }
+
+    //FNV-1a over the bytes between the position and limit of the buffer, eight at a time, without moving either
+    public static long hash(ByteBuffer xml) {
+        final int limit = xml.limit();
+        long hash = SEED ^ (limit - xml.position());
+        int i = xml.position();
+        for(; i + 8 <= limit; i += 8) {
+            hash = (hash ^ xml.getLong(i)) * PRIME;
+            hash ^= hash >>> 32;
+        }
+        for(; i < limit; i++) {
+            hash = (hash ^ xml.get(i)) * PRIME;
+        }
+        return hash;
+    }
+
+    public T get(long hash, String xml) {
+        final Cached<T> entry = entry(hash);
+        return hit(entry, entry != null && xml.equals(entry.content));
+    }
+
+    public T get(long hash, ByteBuffer xml) {
+        final Cached<T> entry = entry(hash);
+        return hit(entry, entry != null && entry.content instanceof byte[] && xml.equals(ByteBuffer.wrap((byte[]) entry.content)));
+    }
+
+    //Also marks the entry as the most recently used
+    private synchronized Cached<T> entry(long hash) {
+        return entries.get(hash);
+    }
+
+    private synchronized T hit(Cached<T> entry, boolean matches) {
+        if(matches) {
+            hits++;
+            return entry.value;
+        }
+        misses++;
+        if(entry != null) {
+            collisions++;
+        }
+        return null;
+    }
+
+    //A document that collided replaces the one it collided with, as it is the more recently used
+    public synchronized void put(long hash, String xml, T value) {
+        entries.put(hash, new Cached<>(xml, value));
+    }
+
+    //The bytes are copied, since the buffer may be reused for another document once read
+    public void put(long hash, ByteBuffer xml, T value) {
+        final byte[] content = new byte[xml.remaining()];
+        xml.duplicate().get(content);
+        synchronized(this) {
+            entries.put(hash, new Cached<>(content, value));
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    //Misses where a different document with the same hash was cached
+    public synchronized long collisions() {
+        return collisions;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("XmlCache{size=%d/%d, hits=%d, misses=%d, collisions=%d, evictions=%d}",
+                entries.size(), size, hits, misses, collisions, evictions);
+    }
+
+    private static final class Cached<T> {
+
+        private final Object content;
+        private final T value;
+
+        private Cached(Object content, T value) {
+            this.content = content;
+            this.value = value;
+        }
+
+    }
+
+}
@@ -0,0 +1,44 @@
+package com.hihi.xml;
+
+//A reusable view of part of a character array, so text a parser holds in its own buffer can be read by XmlNumbers
+//without copying it into a String first. Only valid until the parser moves on
+public final class XmlChars implements CharSequence {
+
+    private char[] chars;
+    private int start;
+    private int length;
+
+    public XmlChars set(char[] chars, int start, int length) {
+        this.chars = chars;
+        this.start = start;
+        this.length = length;
+        return this;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if(index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+        return chars[start + index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if(start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException(String.format("%d, %d", start, end));
+        }
+        return new String(chars, this.start + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, start, length);
+    }
+
+}
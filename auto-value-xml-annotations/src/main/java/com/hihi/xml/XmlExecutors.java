@@ -0,0 +1,42 @@
+package com.hihi.xml;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//The Executor generated asynchronous factories run on when not given one. Where the runtime has virtual threads that
+//is a new virtual thread per task, looked up reflectively since this library targets Java 7, and otherwise a cached
+//pool of daemon threads
+public final class XmlExecutors {
+
+    private XmlExecutors() {
+    }
+
+    public static Executor defaultExecutor() {
+        return Default.INSTANCE;
+    }
+
+    //Created on first use, so classes that never parse asynchronously never start any threads
+    private static final class Default {
+        static final Executor INSTANCE = newDefaultExecutor();
+    }
+
+    private static Executor newDefaultExecutor() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // No virtual threads, or only as a disabled preview
+        }
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "xml-async-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+}
@@ -0,0 +1,58 @@
+package com.hihi.xml;
+
+//Thrown by generated code for classes with a "tryFromXml" factory, when a property that can not be null has nothing at
+//its path or has text its type can not be read from, or in place of the RuntimeException a document the parser failed
+//on is otherwise wrapped in. Bad documents can arrive in bursts, so no stack trace is filled in and the message is only
+//formatted when asked for
+public final class XmlFailure extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String property;
+    private final String path;
+
+    private XmlFailure(String message, String property, String path, Exception cause) {
+        super(message, cause, false, false);
+        this.property = property;
+        this.path = path;
+    }
+
+    public static XmlFailure missing(String property, String path) {
+        return new XmlFailure(null, property, path, null);
+    }
+
+    //The exception the conversion threw is kept as the cause, such as a NumberFormatException
+    public static XmlFailure invalid(String property, String path, Exception cause) {
+        return new XmlFailure(null, property, path, cause);
+    }
+
+    //The parser's own exception is kept as the cause, with the only stack trace
+    public static XmlFailure malformed(Exception cause) {
+        return new XmlFailure(null, null, null, cause);
+    }
+
+    //For XmlByteReader, which has no exception of its own to keep
+    public static XmlFailure malformed(String message) {
+        return new XmlFailure(message, null, null, null);
+    }
+
+    //The property with nothing or nothing valid at its path, or null for a malformed document
+    public String property() {
+        return property;
+    }
+
+    public String path() {
+        return path;
+    }
+
+    @Override
+    public String getMessage() {
+        if(property == null) {
+            return getCause() == null ? super.getMessage() : String.valueOf(getCause());
+        }
+        return getCause() == null
+                ? String.format("No value for property '%s' at '%s'", property, path)
+                : String.format("Invalid value for property '%s' at '%s': %s", property, path, getCause().getMessage());
+    }
+
+}
@@ -0,0 +1,39 @@
+package com.hihi.xml;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.SOURCE;
+
+//Configures the JAXP factory a class parses with, once when the generated class is loaded. Without it the JDK's own
+//defaults apply, which read DOCTYPEs and fetch external DTDs. Only the DOM and STAX engines have a factory to
+//configure: coalescing, whitespace and comments only change what the DOM engine reads, since STAX always coalesces and
+//never reports comments to the paths it matches
+@Retention(SOURCE)
+@Target({TYPE})
+public @interface XmlFeatures {
+    //Fails any document with a DOCTYPE, so no DTD is read and no entity declared
+    boolean disallowDoctype() default true;
+
+    //Whether the external DTD a DOCTYPE refers to is fetched, when DOCTYPEs are allowed at all. When it is not,
+    //external entities the DOCTYPE declares are not fetched either
+    boolean loadExternalDtd() default false;
+
+    //Joins CDATA sections to the text around them
+    boolean coalescing() default false;
+
+    //Drops whitespace between elements, where a DTD declares they only contain elements
+    boolean ignoreWhitespace() default false;
+
+    boolean ignoreComments() default false;
+
+    //Limits on entity expansions, nesting of elements and the size of a document in bytes, or chars when given as
+    //characters. 0 leaves the JDK's own limit, and no limit on size. The first two are the JDK's own properties, which
+    //a factory that does not know them fails on, naming the setting, when the generated class is loaded
+    int maxEntityExpansions() default 0;
+
+    int maxElementDepth() default 0;
+
+    long maxDocumentSize() default 0;
+}
@@ -0,0 +1,168 @@
+package com.hihi.xml;
+
+import org.xml.sax.InputSource;
+
+import java.io.FilterInputStream;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.URL;
+
+import javax.xml.transform.stream.StreamSource;
+
+//Caps the size of the documents generated code parses, for classes with a maxDocumentSize in their @XmlFeatures. Bytes
+//or chars are counted as the parser reads them, and reading past the limit fails with an IOException, which the parser
+//reports like any other failure to read
+public final class XmlLimits {
+
+    private XmlLimits() {
+    }
+
+    //A source given only as a system id is opened here, so it is counted too, and closed once read to the end
+    public static InputSource limit(InputSource source, long maxSize) throws IOException {
+        final InputSource limited = new InputSource(source.getSystemId());
+        limited.setPublicId(source.getPublicId());
+        limited.setEncoding(source.getEncoding());
+        if(source.getCharacterStream() != null) {
+            limited.setCharacterStream(limit(source.getCharacterStream(), maxSize));
+        } else if(source.getByteStream() != null) {
+            limited.setByteStream(limit(source.getByteStream(), maxSize));
+        } else {
+            limited.setByteStream(new LimitedInputStream(open(source.getSystemId()), maxSize, true));
+        }
+        return limited;
+    }
+
+    public static StreamSource limit(StreamSource source, long maxSize) throws IOException {
+        final StreamSource limited = new StreamSource(source.getSystemId());
+        limited.setPublicId(source.getPublicId());
+        if(source.getReader() != null) {
+            limited.setReader(limit(source.getReader(), maxSize));
+        } else if(source.getInputStream() != null) {
+            limited.setInputStream(limit(source.getInputStream(), maxSize));
+        } else {
+            limited.setInputStream(new LimitedInputStream(open(source.getSystemId()), maxSize, true));
+        }
+        return limited;
+    }
+
+    public static InputStream limit(InputStream in, long maxSize) {
+        return new LimitedInputStream(in, maxSize, false);
+    }
+
+    public static Reader limit(Reader in, long maxSize) {
+        return new LimitedReader(in, maxSize);
+    }
+
+    private static InputStream open(String systemId) throws IOException {
+        if(systemId == null) {
+            throw new IllegalArgumentException("Source has no character stream, byte stream or system id");
+        }
+        return new URL(systemId).openStream();
+    }
+
+    private static IOException tooLarge(long maxSize, String unit) {
+        return new IOException(String.format("Document is larger than %d %s", maxSize, unit));
+    }
+
+    private static final class LimitedInputStream extends FilterInputStream {
+
+        private final long maxSize;
+        private final boolean closeAtEnd;
+        private long size;
+
+        LimitedInputStream(InputStream in, long maxSize, boolean closeAtEnd) {
+            super(in);
+            this.maxSize = maxSize;
+            this.closeAtEnd = closeAtEnd;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            count(b == -1 ? -1 : 1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int read = super.read(b, off, len);
+            count(read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void count(long read) throws IOException {
+            if(read == -1 && closeAtEnd) {
+                close();
+            }
+            size += Math.max(read, 0);
+            if(size > maxSize) {
+                throw tooLarge(maxSize, "bytes");
+            }
+        }
+
+    }
+
+    private static final class LimitedReader extends FilterReader {
+
+        private final long maxSize;
+        private long size;
+
+        LimitedReader(Reader in, long maxSize) {
+            super(in);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int c = super.read();
+            if(c != -1) {
+                count(1);
+            }
+            return c;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            final int read = super.read(cbuf, off, len);
+            if(read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void count(long read) throws IOException {
+            size += read;
+            if(size > maxSize) {
+                throw tooLarge(maxSize, "chars");
+            }
+        }
+
+    }
+
+}
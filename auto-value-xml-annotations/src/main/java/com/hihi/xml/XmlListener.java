@@ -0,0 +1,25 @@
+package com.hihi.xml;
+
+//Told how long each step of reading a value took, by classes that name an implementation in
+//@XmlParser(listener = ...). Classes that do not have no calls generated at all. Every class creates its own instance
+//with the public no argument constructor, and calls it on whichever thread is parsing, so implementations must be
+//thread safe and return quickly. On Java 11 and later an implementation can commit each call as a Flight Recorder event
+public interface XmlListener {
+
+    //Reading the document, which builds the whole tree for the DOM engine and finds every value for the streaming
+    //engines. The size is the document's length in bytes when it was given as a ByteBuffer or a file, or read whole by
+    //the BYTES engine, in chars when it was given as a String to the DOM or STAX engine, and -1 when it is not known,
+    //as for streams and each record
+    void documentRead(Class<?> type, long size, long nanos);
+
+    //Finding and converting the value of one property. For the streaming engines the value was already found while
+    //reading the document, so this is only the conversion
+    void propertyRead(Class<?> type, String property, long nanos);
+
+    //The whole value, from the first step to the last. Records report each value they read
+    void parsed(Class<?> type, long nanos);
+
+    //Any exception reading a value, after which it is rethrown
+    void failed(Class<?> type, RuntimeException cause);
+
+}
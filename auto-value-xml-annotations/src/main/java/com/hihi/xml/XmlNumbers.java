@@ -0,0 +1,243 @@
+package com.hihi.xml;
+
+//Parses numbers and booleans the way Integer.parseInt, Double.parseDouble and Boolean.parseBoolean do, but straight
+//from the characters a parser already holds and ignoring surrounding XML whitespace. Plain decimal text is read in
+//place; anything else, including text that does not parse, is handed to the JDK method for the same result or exception
+public final class XmlNumbers {
+
+    //Stands in for the text of a value that was decoded while reading, so the value is no longer null
+    public static final String DECODED = "";
+
+    private static final long FALLBACK = Long.MIN_VALUE;
+
+    //Every power of ten up to these is exact, so one multiplication or division by it is correctly rounded
+    private static final double[] DOUBLE_POWERS = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final float[] FLOAT_POWERS = {
+            1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f
+    };
+
+    private XmlNumbers() {
+    }
+
+    public static int parseInt(CharSequence text) {
+        checkNotNull(text);
+        final int start = start(text);
+        final int end = end(text, start);
+        final long value = integer(text, start, end, 9);
+        return value != FALLBACK ? (int) value : Integer.parseInt(fallback(text, start, end));
+    }
+
+    public static long parseLong(CharSequence text) {
+        checkNotNull(text);
+        final int start = start(text);
+        final int end = end(text, start);
+        final long value = integer(text, start, end, 18);
+        return value != FALLBACK ? value : Long.parseLong(fallback(text, start, end));
+    }
+
+    public static short parseShort(CharSequence text) {
+        checkNotNull(text);
+        final int start = start(text);
+        final int end = end(text, start);
+        final long value = integer(text, start, end, 9);
+        return value != FALLBACK && value >= Short.MIN_VALUE && value <= Short.MAX_VALUE
+                ? (short) value
+                : Short.parseShort(fallback(text, start, end));
+    }
+
+    public static double parseDouble(CharSequence text) {
+        checkNotNull(text);
+        final int start = start(text);
+        final int end = end(text, start);
+        final double value = decimal(text, start, end, false);
+        return value == value ? value : Double.parseDouble(fallback(text, start, end));
+    }
+
+    public static float parseFloat(CharSequence text) {
+        checkNotNull(text);
+        final int start = start(text);
+        final int end = end(text, start);
+        final double value = decimal(text, start, end, true);
+        return value == value ? (float) value : Float.parseFloat(fallback(text, start, end));
+    }
+
+    public static boolean parseBoolean(CharSequence text) {
+        if(text == null) {
+            return false;
+        }
+        final int start = start(text);
+        final int end = end(text, start);
+        return end - start == 4
+                && (text.charAt(start) | 0x20) == 't'
+                && (text.charAt(start + 1) | 0x20) == 'r'
+                && (text.charAt(start + 2) | 0x20) == 'u'
+                && (text.charAt(start + 3) | 0x20) == 'e';
+    }
+
+    //A value decoded while reading, which fails like the parse methods do when nothing matched its path
+    public static long decoded(String found, long value) {
+        checkNotNull(found);
+        return value;
+    }
+
+    public static double decoded(String found, double value) {
+        checkNotNull(found);
+        return value;
+    }
+
+    //An optional sign and at most maxDigits digits, so the value can not overflow
+    private static long integer(CharSequence text, int start, int end, int maxDigits) {
+        int i = start;
+        boolean negative = false;
+        if(i < end && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+            negative = text.charAt(i) == '-';
+            i++;
+        }
+        if(i == end || end - i > maxDigits) {
+            return FALLBACK;
+        }
+
+        long value = 0;
+        for(; i < end; i++) {
+            final char c = text.charAt(i);
+            if(c < '0' || c > '9') {
+                return FALLBACK;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    //Decimal text whose digits fit exactly in the mantissa and whose power of ten is exact, or NaN for anything else
+    private static double decimal(CharSequence text, int start, int end, boolean isFloat) {
+        final int maxDigits = isFloat ? 7 : 15;
+        final int maxPower = isFloat ? FLOAT_POWERS.length - 1 : DOUBLE_POWERS.length - 1;
+
+        int i = start;
+        boolean negative = false;
+        if(i < end && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+            negative = text.charAt(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean any = false;
+        boolean fraction = false;
+        for(; i < end; i++) {
+            final char c = text.charAt(i);
+            if(c == '.' && !fraction) {
+                fraction = true;
+                continue;
+            }
+            if(c < '0' || c > '9') {
+                break;
+            }
+            any = true;
+            if(fraction) {
+                scale--;
+            }
+            if(mantissa == 0 && c == '0') {
+                continue;
+            }
+            if(++digits > maxDigits) {
+                return Double.NaN;
+            }
+            mantissa = mantissa * 10 + (c - '0');
+        }
+        if(!any) {
+            return Double.NaN;
+        }
+
+        if(i < end && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if(i < end && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+                negativeExponent = text.charAt(i) == '-';
+                i++;
+            }
+            int exponent = 0;
+            boolean anyExponent = false;
+            for(; i < end; i++) {
+                final char c = text.charAt(i);
+                if(c < '0' || c > '9') {
+                    break;
+                }
+                anyExponent = true;
+                if(exponent < 1000) {
+                    exponent = exponent * 10 + (c - '0');
+                }
+            }
+            if(!anyExponent) {
+                return Double.NaN;
+            }
+            scale += negativeExponent ? -exponent : exponent;
+        }
+        if(i != end) {
+            return Double.NaN;
+        }
+
+        if(mantissa == 0) {
+            return negative ? -0.0 : 0.0;
+        }
+        if(scale < -maxPower || scale > maxPower) {
+            return Double.NaN;
+        }
+
+        final double value;
+        if(isFloat) {
+            value = scale >= 0 ? (float) mantissa * FLOAT_POWERS[scale] : (float) mantissa / FLOAT_POWERS[-scale];
+        } else {
+            value = scale >= 0 ? mantissa * DOUBLE_POWERS[scale] : mantissa / DOUBLE_POWERS[-scale];
+        }
+        return negative ? -value : value;
+    }
+
+    private static String fallback(CharSequence text, int start, int end) {
+        return text.subSequence(start, end).toString();
+    }
+
+    private static int start(CharSequence text) {
+        int start = 0;
+        while(start < text.length() && isWhitespace(text.charAt(start))) start++;
+        return start;
+    }
+
+    private static int end(CharSequence text, int start) {
+        int end = text.length();
+        while(end > start && isWhitespace(text.charAt(end - 1))) end--;
+        return end;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r';
+    }
+
+    private static void checkNotNull(CharSequence text) {
+        if(text == null) {
+            throw new Missing();
+        }
+    }
+
+    //What Integer.parseInt throws for null, without a stack trace, as a value missing from bad documents can fail many
+    //times over. Text that does not parse fails in the JDK method it is handed to
+    private static final class Missing extends NumberFormatException {
+
+        private static final long serialVersionUID = 1L;
+
+        Missing() {
+            super("null");
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+
+    }
+
+}
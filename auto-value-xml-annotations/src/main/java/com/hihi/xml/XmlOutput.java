@@ -0,0 +1,283 @@
+package com.hihi.xml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+//Where generated writeXml methods write a value to. The markup that never changes is written as Fragments, encoded
+//once when the generated class is loaded, and only the values are escaped and encoded as they are written. Integers
+//are written digit by digit without a String in between. Output is buffered until flush, which writes it through
+public abstract class XmlOutput {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 8192;
+    private static final Fragment TRUE = fragment("true");
+    private static final Fragment FALSE = fragment("false");
+
+    //Markup encoded both ways, so the same constant serves a stream and a writer
+    public static final class Fragment {
+
+        private final byte[] bytes;
+        private final char[] chars;
+
+        private Fragment(String markup) {
+            this.bytes = markup.getBytes(UTF_8);
+            this.chars = markup.toCharArray();
+        }
+
+    }
+
+    public static Fragment fragment(String markup) {
+        return new Fragment(markup);
+    }
+
+    public static XmlOutput of(OutputStream out) {
+        return new Bytes(out);
+    }
+
+    public static XmlOutput of(Writer out) {
+        return new Chars(out);
+    }
+
+    private final byte[] digits = new byte[20];
+
+    private XmlOutput() {
+    }
+
+    public abstract void write(Fragment fragment) throws IOException;
+
+    public void text(String text) throws IOException {
+        escape(text, false);
+    }
+
+    public void attribute(String text) throws IOException {
+        escape(text, true);
+    }
+
+    public void number(int value) throws IOException {
+        number((long) value);
+    }
+
+    public void number(long value) throws IOException {
+        int start = digits.length;
+        //Digits are taken from the negative value, which also holds Long.MIN_VALUE
+        long remaining = value < 0 ? value : -value;
+        do {
+            digits[--start] = (byte) ('0' - remaining % 10);
+            remaining /= 10;
+        } while(remaining != 0);
+        if(value < 0) {
+            digits[--start] = '-';
+        }
+        ascii(digits, start, digits.length);
+    }
+
+    //The shortest text that reads back as the same value, which the JDK only writes as a String
+    public void number(double value) throws IOException {
+        text(Double.toString(value));
+    }
+
+    public void number(float value) throws IOException {
+        text(Float.toString(value));
+    }
+
+    public void bool(boolean value) throws IOException {
+        write(value ? TRUE : FALSE);
+    }
+
+    public abstract void flush() throws IOException;
+
+    abstract void ascii(byte[] ascii, int start, int end) throws IOException;
+
+    abstract void escape(String text, boolean attribute) throws IOException;
+
+    //The reference a character is written as, or null when it is written as it is. Line breaks and tabs in attributes
+    //would be read back as spaces, and a carriage return anywhere as a line feed
+    static String reference(char c, boolean attribute) {
+        switch(c) {
+            case '&':
+                return "&amp;";
+            case '<':
+                return "&lt;";
+            case '>':
+                return "&gt;";
+            case '"':
+                return attribute ? "&quot;" : null;
+            case '\n':
+                return attribute ? "&#10;" : null;
+            case '\t':
+                return attribute ? "&#9;" : null;
+            case '\r':
+                return "&#13;";
+            default:
+                if(c < ' ' || c >= '\uFFFE') {
+                    throw unwritable(c);
+                }
+                return null;
+        }
+    }
+
+    //Control characters, unpaired surrogates and the two non-characters are not allowed in XML, not even as references
+    static IllegalArgumentException unwritable(char c) {
+        return new IllegalArgumentException(String.format("Character 0x%x can not be written to XML", (int) c));
+    }
+
+    private static final class Bytes extends XmlOutput {
+
+        private final OutputStream out;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position;
+
+        private Bytes(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(Fragment fragment) throws IOException {
+            put(fragment.bytes, 0, fragment.bytes.length);
+        }
+
+        @Override
+        void ascii(byte[] ascii, int start, int end) throws IOException {
+            put(ascii, start, end - start);
+        }
+
+        private void put(byte[] bytes, int start, int length) throws IOException {
+            if(length > buffer.length - position) {
+                drain();
+                if(length > buffer.length) {
+                    out.write(bytes, start, length);
+                    return;
+                }
+            }
+            System.arraycopy(bytes, start, buffer, position, length);
+            position += length;
+        }
+
+        //Encoded straight into the buffer, which always has room for the longest reference
+        @Override
+        void escape(String text, boolean attribute) throws IOException {
+            final int length = text.length();
+            for(int i = 0; i < length; i++) {
+                if(buffer.length - position < 8) {
+                    drain();
+                }
+                final char c = text.charAt(i);
+                if(c < 0x80) {
+                    final String reference = reference(c, attribute);
+                    if(reference == null) {
+                        buffer[position++] = (byte) c;
+                    } else {
+                        for(int j = 0; j < reference.length(); j++) {
+                            buffer[position++] = (byte) reference.charAt(j);
+                        }
+                    }
+                } else if(c < 0x800) {
+                    buffer[position++] = (byte) (0xc0 | c >> 6);
+                    buffer[position++] = (byte) (0x80 | c & 0x3f);
+                } else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    final int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                    buffer[position++] = (byte) (0xf0 | codePoint >> 18);
+                    buffer[position++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                    buffer[position++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                    buffer[position++] = (byte) (0x80 | codePoint & 0x3f);
+                } else if(Character.isSurrogate(c) || c >= '\uFFFE') {
+                    throw unwritable(c);
+                } else {
+                    buffer[position++] = (byte) (0xe0 | c >> 12);
+                    buffer[position++] = (byte) (0x80 | c >> 6 & 0x3f);
+                    buffer[position++] = (byte) (0x80 | c & 0x3f);
+                }
+            }
+        }
+
+        private void drain() throws IOException {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            drain();
+            out.flush();
+        }
+
+    }
+
+    private static final class Chars extends XmlOutput {
+
+        private final Writer out;
+        private final char[] buffer = new char[BUFFER_SIZE];
+        private int position;
+
+        private Chars(Writer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(Fragment fragment) throws IOException {
+            put(fragment.chars, 0, fragment.chars.length);
+        }
+
+        @Override
+        void ascii(byte[] ascii, int start, int end) throws IOException {
+            if(end - start > buffer.length - position) {
+                drain();
+            }
+            for(int i = start; i < end; i++) {
+                buffer[position++] = (char) ascii[i];
+            }
+        }
+
+        private void put(char[] chars, int start, int length) throws IOException {
+            if(length > buffer.length - position) {
+                drain();
+                if(length > buffer.length) {
+                    out.write(chars, start, length);
+                    return;
+                }
+            }
+            System.arraycopy(chars, start, buffer, position, length);
+            position += length;
+        }
+
+        @Override
+        void escape(String text, boolean attribute) throws IOException {
+            final int length = text.length();
+            for(int i = 0; i < length; i++) {
+                if(buffer.length - position < 8) {
+                    drain();
+                }
+                final char c = text.charAt(i);
+                if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    buffer[position++] = c;
+                    buffer[position++] = text.charAt(++i);
+                } else if(Character.isSurrogate(c)) {
+                    throw unwritable(c);
+                } else {
+                    final String reference = reference(c, attribute);
+                    if(reference == null) {
+                        buffer[position++] = c;
+                    } else {
+                        reference.getChars(0, reference.length(), buffer, position);
+                        position += reference.length();
+                    }
+                }
+            }
+        }
+
+        private void drain() throws IOException {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            drain();
+            out.flush();
+        }
+
+    }
+
+}
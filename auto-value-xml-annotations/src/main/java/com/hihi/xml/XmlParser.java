@@ -0,0 +1,45 @@
+package com.hihi.xml;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.SOURCE;
+
+@Retention(SOURCE)
+@Target({TYPE})
+public @interface XmlParser {
+    //When false, parsers are shared through a lock free pool instead of being cached per thread. Prefer the pool when
+    //parsing mostly on virtual threads, which would otherwise each build their own parser. Classes with a
+    //"fromXmlAsync" factory use the pool unless this is set, and are warned about when it is set to true
+    boolean threadLocal() default true;
+
+    Engine engine() default Engine.DOM;
+
+    //Batches with more documents than this are split across a ForkJoinPool by the List and array factories, while
+    //smaller ones are converted on the calling thread
+    int batchThreshold() default XmlBatch.DEFAULT_THRESHOLD;
+
+    //How many documents the "fromXmlCached" factories keep the values of, evicting the least recently used
+    int cacheSize() default XmlCache.DEFAULT_SIZE;
+
+    //The XmlListener told how long reading each value takes. The interface itself means none, and generates nothing
+    Class<? extends XmlListener> listener() default XmlListener.class;
+
+    enum Engine {
+        //Builds a W3C document and evaluates each path with javax.xml.xpath
+        DOM,
+        //Reads the document once with javax.xml.stream, without building a tree, and stops as soon as every
+        //property has been found. Only simple absolute paths made of element steps ending in text() or an
+        //attribute are supported, and CDATA sections are read as part of the surrounding text
+        STAX,
+        //Same paths and behaviour as STAX, but matched by generated code directly over the UTF-8 bytes of the
+        //document with XmlByteReader, without any JAXP parser. Only UTF-8 documents are supported, and an
+        //InputStream, Reader or InputSource is read into memory whole before anything is matched
+        BYTES,
+        //Picks one of the above when the class is compiled: DOM when any path needs XPath, a property is a nested
+        //value or a factory takes a Node, BYTES when every factory takes a String, which it encodes as UTF-8
+        //itself, and STAX otherwise
+        AUTO
+    }
+}
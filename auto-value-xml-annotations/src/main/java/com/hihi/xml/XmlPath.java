@@ -10,4 +10,12 @@ import static java.lang.annotation.RetentionPolicy.SOURCE;
 @Target({METHOD})
 public @interface XmlPath {
     String value();
+
+    //A java.time.format.DateTimeFormatter pattern to read Instant, LocalDate and OffsetDateTime properties with. When
+    //empty they are read as ISO-8601, the way their own parse methods read them
+    String format() default "";
+
+    //Keeps one copy of each distinct value among those read recently, through XmlStrings, for String properties with
+    //few distinct values, like a breed or a color, in values that are held onto
+    boolean intern() default false;
 }
@@ -0,0 +1,17 @@
+package com.hihi.xml;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.SOURCE;
+
+//Names the repeated element each value is read from, e.g. "/pets/item". Every @XmlPath of the class is then relative to
+//that element, e.g. "name/text()" or "@id", and a static "fromXml" factory returning an Iterator of the class gets a
+//createIteratorFromXml overload that reads one record at a time. Needs the STAX or BYTES engine, and the STAX engine
+//for an Iterator over an InputStream, Reader or InputSource, which the BYTES engine would read into memory whole first
+@Retention(SOURCE)
+@Target({TYPE})
+public @interface XmlRecord {
+    String value();
+}
@@ -0,0 +1,102 @@
+package com.hihi.xml;
+
+import java.util.Arrays;
+
+//What a generated "tryCreateFromXml" returns: the value read, or why none could be. A failure names the property and
+//path when one had nothing to read or text it could not be read from, and otherwise just gives the message of what
+//failed, such as the parser's
+public final class XmlResult<T> {
+
+    private final T value;
+    private final String property;
+    private final String path;
+    private final String message;
+
+    private XmlResult(T value, String property, String path, String message) {
+        this.value = value;
+        this.property = property;
+        this.path = path;
+        this.message = message;
+    }
+
+    public static <T> XmlResult<T> of(T value) {
+        if(value == null) {
+            throw new NullPointerException("value");
+        }
+        return new XmlResult<>(value, null, null, null);
+    }
+
+    public static <T> XmlResult<T> failure(String property, String path, String message) {
+        return new XmlResult<>(null, property, path, message);
+    }
+
+    //Generated code for these classes throws an XmlFailure for a document that fails to parse, and any other code wraps
+    //checked exceptions from parsing in a RuntimeException, whose cause says more
+    public static <T> XmlResult<T> failure(RuntimeException e) {
+        if(e instanceof XmlFailure) {
+            final XmlFailure failure = (XmlFailure) e;
+            return failure(failure.property(), failure.path(), failure.getMessage());
+        }
+        final Throwable cause = e.getCause() != null && e.getClass() == RuntimeException.class ? e.getCause() : e;
+        return failure(null, null, String.valueOf(cause));
+    }
+
+    public boolean isValue() {
+        return value != null;
+    }
+
+    public T value() {
+        if(value == null) {
+            throw new IllegalStateException(message);
+        }
+        return value;
+    }
+
+    public T valueOr(T other) {
+        return value != null ? value : other;
+    }
+
+    //The property with nothing or nothing valid at its path, or null
+    public String property() {
+        return property;
+    }
+
+    public String path() {
+        return path;
+    }
+
+    //Why no value was read, or null for a value
+    public String message() {
+        return message;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(o == this) {
+            return true;
+        }
+        if(!(o instanceof XmlResult)) {
+            return false;
+        }
+        final XmlResult<?> that = (XmlResult<?>) o;
+        return equal(value, that.value)
+                && equal(property, that.property)
+                && equal(path, that.path)
+                && equal(message, that.message);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(new Object[] {value, property, path, message});
+    }
+
+    @Override
+    public String toString() {
+        return value != null ? "XmlResult{value=" + value + "}" : "XmlResult{failure=" + message + "}";
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+}
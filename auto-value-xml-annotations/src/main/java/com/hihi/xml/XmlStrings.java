@@ -0,0 +1,32 @@
+package com.hihi.xml;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+//A small table of recently read Strings shared by all generated classes, so a property with few distinct values keeps
+//one copy of each rather than one per value read. Each String has a single slot chosen by its hash and replaces what
+//was there, so the table never grows and needs no lock. A value pushed out is only kept by the values already holding
+//it, and the next one read is stored again. Unlike String.intern nothing is kept forever
+public final class XmlStrings {
+
+    private static final int SIZE = 4096;
+    private static final AtomicReferenceArray<String> TABLE = new AtomicReferenceArray<>(SIZE);
+
+    private XmlStrings() {
+    }
+
+    public static String intern(String text) {
+        if(text == null) {
+            return null;
+        }
+        final int hash = text.hashCode();
+        final int index = (hash ^ (hash >>> 16)) & (SIZE - 1);
+        final String interned = TABLE.get(index);
+        if(text.equals(interned)) {
+            return interned;
+        }
+        //Strings are immutable, so a thread seeing this late only stores its own copy again
+        TABLE.lazySet(index, text);
+        return text;
+    }
+
+}
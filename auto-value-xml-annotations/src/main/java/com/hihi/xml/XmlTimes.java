@@ -0,0 +1,116 @@
+package com.hihi.xml;
+
+//Reads the ISO-8601 dates and instants generated code would otherwise hand to LocalDate.parse and Instant.parse, which
+//go through a general purpose formatter. Only the plain forms "2024-01-31" and "2024-01-31T12:30:00.250Z" are read
+//here; anything else returns FALLBACK for the JDK method to parse or reject. This library targets Java 7, so results
+//are epoch days and seconds for generated code to turn into java.time values
+public final class XmlTimes {
+
+    public static final long FALLBACK = Long.MIN_VALUE;
+
+    private static final long DAYS_0000_TO_1970 = 719528;
+    private static final long SECONDS_PER_DAY = 86400;
+
+    private XmlTimes() {
+    }
+
+    //Days since 1970-01-01 for text like "2024-01-31"
+    public static long isoDate(CharSequence text) {
+        if(text == null || text.length() != 10) {
+            return FALLBACK;
+        }
+        return epochDay(text);
+    }
+
+    //Seconds since 1970-01-01T00:00:00Z for text like "2024-01-31T12:30:00Z", with an optional fraction of a second
+    public static long isoInstantSeconds(CharSequence text) {
+        if(text == null || !isInstant(text)) {
+            return FALLBACK;
+        }
+        final long day = epochDay(text);
+        final int hour = digits(text, 11, 2);
+        final int minute = digits(text, 14, 2);
+        final int second = digits(text, 17, 2);
+        if(day == FALLBACK || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            return FALLBACK;
+        }
+        return day * SECONDS_PER_DAY + hour * 3600 + minute * 60 + second;
+    }
+
+    //The fraction of a second as nanoseconds, for text isoInstantSeconds has already read
+    public static int isoInstantNanos(CharSequence text) {
+        int nanos = 0;
+        int scale = 100000000;
+        for(int i = 20; i < text.length() - 1; i++) {
+            nanos += (text.charAt(i) - '0') * scale;
+            scale /= 10;
+        }
+        return nanos;
+    }
+
+    private static boolean isInstant(CharSequence text) {
+        final int length = text.length();
+        if(length < 20 || length == 21 || length > 30
+                || text.charAt(10) != 'T' || text.charAt(13) != ':' || text.charAt(16) != ':'
+                || text.charAt(length - 1) != 'Z') {
+            return false;
+        }
+        if(length == 20) {
+            return true;
+        }
+        return text.charAt(19) == '.' && digits(text, 20, length - 21) >= 0;
+    }
+
+    //The same arithmetic as LocalDate.toEpochDay, for years 0000 to 9999
+    private static long epochDay(CharSequence text) {
+        if(text.charAt(4) != '-' || text.charAt(7) != '-') {
+            return FALLBACK;
+        }
+        final int year = digits(text, 0, 4);
+        final int month = digits(text, 5, 2);
+        final int day = digits(text, 8, 2);
+        if(year < 0 || month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month)) {
+            return FALLBACK;
+        }
+
+        long total = 365L * year + (year + 3) / 4 - (year + 99) / 100 + (year + 399) / 400;
+        total += (367 * month - 362) / 12;
+        total += day - 1;
+        if(month > 2) {
+            total -= isLeapYear(year) ? 1 : 2;
+        }
+        return total - DAYS_0000_TO_1970;
+    }
+
+    private static int lengthOfMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return isLeapYear(year) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    private static boolean isLeapYear(int year) {
+        return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+    }
+
+    //The value of count ASCII digits from start, or -1 if any of them is not one
+    private static int digits(CharSequence text, int start, int count) {
+        int value = 0;
+        for(int i = start; i < start + count; i++) {
+            final char c = text.charAt(i);
+            if(c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,84 @@
+package com.hihi.processor;
+
+import com.google.auto.value.extension.AutoValueExtension.Context;
+import com.google.common.collect.ImmutableSet;
+import com.hihi.xml.XmlExecutors;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
+import com.squareup.javapoet.TypeName;
+import com.squareup.javapoet.TypeSpec;
+
+import java.util.concurrent.Executor;
+
+import static com.hihi.processor.XmlInput.FROM_XML_METHOD_NAME_GENERATED;
+import static com.hihi.processor.XmlInput.FROM_XML_PARAMETER_NAME;
+import static javax.lang.model.element.Modifier.FINAL;
+import static javax.lang.model.element.Modifier.PUBLIC;
+import static javax.lang.model.element.Modifier.STATIC;
+
+//Static "fromXmlAsync" factories returning a CompletableFuture of the value class, for any of the XmlInput types and
+//optionally an Executor. Each declared input gets a createFromXmlAsync pair running the matching createFromXml
+//overload as one task. CompletableFuture is only referenced by name, so only classes declaring one need Java 8
+final class AsyncFactory {
+
+    static final String FROM_XML_ASYNC_METHOD_NAME = "fromXmlAsync";
+    static final String FROM_XML_ASYNC_METHOD_NAME_GENERATED = "createFromXmlAsync";
+
+    private static final ClassName CN_COMPLETABLE_FUTURE = ClassName.get("java.util.concurrent", "CompletableFuture");
+    private static final ClassName CN_SUPPLIER = ClassName.get("java.util.function", "Supplier");
+    private static final ClassName CN_EXECUTOR = ClassName.get(Executor.class);
+    private static final String EXECUTOR_PARAMETER_NAME = "executor";
+
+    private AsyncFactory() {
+    }
+
+    static ImmutableSet<XmlInput> declaredBy(StaticFactories valueClass) {
+        final TypeName returnType = future(valueClass.type());
+        final ImmutableSet.Builder<XmlInput> inputs = ImmutableSet.builder();
+        for(XmlInput input : XmlInput.values()) {
+            if(valueClass.declares(FROM_XML_ASYNC_METHOD_NAME, returnType, input.type)
+                    || valueClass.declares(FROM_XML_ASYNC_METHOD_NAME, returnType, input.type, CN_EXECUTOR)) {
+                inputs.add(input);
+            }
+        }
+        return inputs.build();
+    }
+
+    private static TypeName future(ClassName value) {
+        return ParameterizedTypeName.get(CN_COMPLETABLE_FUTURE, value);
+    }
+
+    static MethodSpec createFromXmlAsync(Context context, XmlInput input) {
+        return MethodSpec.methodBuilder(FROM_XML_ASYNC_METHOD_NAME_GENERATED)
+                .addModifiers(STATIC)
+                .returns(future(ClassName.get(context.autoValueClass())))
+                .addParameter(input.type, FROM_XML_PARAMETER_NAME)
+                .addStatement("return $L($L, $T.defaultExecutor())",
+                        FROM_XML_ASYNC_METHOD_NAME_GENERATED, FROM_XML_PARAMETER_NAME, XmlExecutors.class)
+                .build();
+    }
+
+    //The task only calls createFromXml, which already acquires its own parser state without taking any lock
+    static MethodSpec createFromXmlAsyncOnExecutor(Context context, XmlInput input) {
+        final ClassName value = ClassName.get(context.autoValueClass());
+        final TypeSpec task = TypeSpec.anonymousClassBuilder("")
+                .addSuperinterface(ParameterizedTypeName.get(CN_SUPPLIER, value))
+                .addMethod(MethodSpec.methodBuilder("get")
+                        .addAnnotation(Override.class)
+                        .addModifiers(PUBLIC)
+                        .returns(value)
+                        .addStatement("return $L($L)", FROM_XML_METHOD_NAME_GENERATED, FROM_XML_PARAMETER_NAME)
+                        .build())
+                .build();
+        return MethodSpec.methodBuilder(FROM_XML_ASYNC_METHOD_NAME_GENERATED)
+                .addModifiers(STATIC)
+                .returns(future(value))
+                .addParameter(ParameterSpec.builder(input.type, FROM_XML_PARAMETER_NAME, FINAL).build())
+                .addParameter(CN_EXECUTOR, EXECUTOR_PARAMETER_NAME)
+                .addStatement("return $T.supplyAsync($L, $L)", CN_COMPLETABLE_FUTURE, task, EXECUTOR_PARAMETER_NAME)
+                .build();
+    }
+
+}
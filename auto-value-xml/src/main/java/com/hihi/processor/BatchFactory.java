@@ -0,0 +1,87 @@
+package com.hihi.processor;
+
+import com.google.auto.value.extension.AutoValueExtension.Context;
+import com.google.common.collect.ImmutableSet;
+import com.hihi.xml.XmlBatch;
+import com.squareup.javapoet.ArrayTypeName;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
+import com.squareup.javapoet.TypeName;
+import com.squareup.javapoet.TypeSpec;
+
+import java.util.List;
+
+import static com.hihi.processor.XmlInput.FROM_XML_METHOD_NAME;
+import static com.hihi.processor.XmlInput.FROM_XML_METHOD_NAME_GENERATED;
+import static com.hihi.processor.XmlInput.FROM_XML_PARAMETER_NAME;
+import static javax.lang.model.element.Modifier.FINAL;
+import static javax.lang.model.element.Modifier.PRIVATE;
+import static javax.lang.model.element.Modifier.PUBLIC;
+import static javax.lang.model.element.Modifier.STATIC;
+
+//Static "fromXml" factories converting a whole batch of String documents, as a List or an array. Each gets a
+//createFromXml overload that hands the batch to XmlBatch, which calls the String overload once per document
+enum BatchFactory {
+
+    LIST,
+    ARRAY;
+
+    private static final ClassName CN_LIST = ClassName.get(List.class);
+    private static final ClassName CN_STRING = ClassName.get(String.class);
+    private static final ClassName CN_XML_BATCH = ClassName.get(XmlBatch.class);
+    private static final ClassName CN_CONVERTER = CN_XML_BATCH.nestedClass("Converter");
+    private static final String CONVERTER_FIELD_NAME = "BATCH_CONVERTER";
+    private static final String CONVERT_METHOD_NAME = "convert";
+
+    static ImmutableSet<BatchFactory> declaredBy(StaticFactories valueClass) {
+        final ImmutableSet.Builder<BatchFactory> batches = ImmutableSet.builder();
+        for(BatchFactory batch : values()) {
+            if(valueClass.declares(FROM_XML_METHOD_NAME, batch.type(valueClass.type()), batch.type(CN_STRING))) {
+                batches.add(batch);
+            }
+        }
+        return batches.build();
+    }
+
+    private TypeName type(ClassName element) {
+        return this == LIST ? ParameterizedTypeName.get(CN_LIST, element) : ArrayTypeName.of(element);
+    }
+
+    //Shared by every batch factory of the class, converting one document with the String overload
+    static FieldSpec converterField(Context context) {
+        final ClassName value = ClassName.get(context.autoValueClass());
+        final TypeName type = ParameterizedTypeName.get(CN_CONVERTER, CN_STRING, value);
+        final TypeSpec converter = TypeSpec.anonymousClassBuilder("")
+                .addSuperinterface(type)
+                .addMethod(MethodSpec.methodBuilder(CONVERT_METHOD_NAME)
+                        .addAnnotation(Override.class)
+                        .addModifiers(PUBLIC)
+                        .returns(value)
+                        .addParameter(CN_STRING, FROM_XML_PARAMETER_NAME)
+                        .addStatement("return $L($L)", FROM_XML_METHOD_NAME_GENERATED, FROM_XML_PARAMETER_NAME)
+                        .build())
+                .build();
+        return FieldSpec.builder(type, CONVERTER_FIELD_NAME, PRIVATE, STATIC, FINAL)
+                .initializer("$L", converter)
+                .build();
+    }
+
+    MethodSpec createFromXml(Context context, int threshold) {
+        final ClassName value = ClassName.get(context.autoValueClass());
+        final MethodSpec.Builder method = MethodSpec.methodBuilder(FROM_XML_METHOD_NAME_GENERATED)
+                .addModifiers(STATIC)
+                .returns(type(value))
+                .addParameter(type(CN_STRING), FROM_XML_PARAMETER_NAME);
+        if(this == LIST) {
+            method.addStatement("return $T.$L($L, $L, $L)", CN_XML_BATCH, CONVERT_METHOD_NAME,
+                    FROM_XML_PARAMETER_NAME, threshold, CONVERTER_FIELD_NAME);
+        } else {
+            method.addStatement("return $T.$L($L, new $T[$L.length], $L, $L)", CN_XML_BATCH, CONVERT_METHOD_NAME,
+                    FROM_XML_PARAMETER_NAME, value, FROM_XML_PARAMETER_NAME, threshold, CONVERTER_FIELD_NAME);
+        }
+        return method.build();
+    }
+
+}
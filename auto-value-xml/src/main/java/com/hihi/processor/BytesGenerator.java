@@ -0,0 +1,335 @@
+package com.hihi.processor;
+
+import com.google.auto.value.extension.AutoValueExtension.Context;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.hihi.xml.XmlByteReader;
+import com.squareup.javapoet.ArrayTypeName;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.TypeSpec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static com.gabrielittner.auto.value.util.AutoValueUtil.getFinalClassClassName;
+import static javax.lang.model.element.Modifier.FINAL;
+import static javax.lang.model.element.Modifier.PRIVATE;
+import static javax.lang.model.element.Modifier.STATIC;
+
+//Generates a matcher over the PathTree of a value class that walks raw UTF-8 bytes with XmlByteReader. Element and
+//attribute names are encoded once into static byte arrays, and subtrees no path enters are skipped without decoding
+final class BytesGenerator {
+
+    static final Class<?> STATIC_IMPORTS = XmlByteReader.class;
+    static final String[] STATIC_IMPORT_NAMES = {"START_ELEMENT", "END_ELEMENT", "TEXT", "END_DOCUMENT"};
+
+    private static final ClassName CN_STRING = ClassName.get(String.class);
+    private static final ClassName CN_XML_BYTE_READER = ClassName.get(XmlByteReader.class);
+
+    private static final ArrayTypeName CN_BYTE_ARRAY = ArrayTypeName.of(byte.class);
+    private static final ArrayTypeName CN_STRING_ARRAY = ArrayTypeName.of(String.class);
+    private static final ArrayTypeName CN_INT_ARRAY = ArrayTypeName.of(int.class);
+
+    private static final String PARENT_STEPS_FIELD_NAME = "PARENT_STEPS";
+    private static final String STEP_FIELD_PREFIX = "STEP_";
+    private static final String ATTRIBUTE_FIELD_PREFIX = "ATTRIBUTE_";
+    private static final String READ_VALUES_METHOD_NAME = "readValues";
+    private static final String CREATE_FROM_BYTE_READER_METHOD_NAME = "createFromByteReader";
+
+    private final Context context;
+    private final ImmutableList<ValueProperty> properties;
+    private final PathTree tree;
+    private final DecodedValues decoded;
+    private final ClassName recordIterator;
+    private final ListenerCalls listener;
+    private final TryFactory checks;
+
+    BytesGenerator(Context context, String className, ImmutableList<ValueProperty> properties, Optional<String> record,
+                   ListenerCalls listener, TryFactory checks) {
+        this.context = context;
+        this.properties = properties;
+        this.tree = PathTree.from(properties, record);
+        this.decoded = new DecodedValues(properties, tree, checks);
+        this.recordIterator = ClassName.get(context.packageName(), className).nestedClass(RecordIterator.CLASS_NAME);
+        this.listener = listener;
+        this.checks = checks;
+    }
+
+    void addTo(TypeSpec.Builder subclass, ImmutableSet<XmlInput> inputs, ImmutableSet<XmlInput> iterated) {
+        subclass.addField(parentStepsField());
+
+        for(PathTree.Step step : tree.steps()) {
+            if(step.name != null) {
+                subclass.addField(nameField(STEP_FIELD_PREFIX + step.id, step.name));
+            }
+            for(Map.Entry<Integer, String> attribute : step.attributes.entrySet()) {
+                subclass.addField(nameField(ATTRIBUTE_FIELD_PREFIX + attribute.getKey(), attribute.getValue()));
+            }
+        }
+
+        if(tree.record().isPresent()) {
+            for(XmlInput input : iterated) {
+                subclass.addMethod(createFromXmlMethod(input.createIteratorFromXml(context), input, "new $T($L)"));
+            }
+            for(XmlInput input : inputs) {
+                subclass.addMethod(createFromXmlMethod(input.createFromXml(context), input, "new $T($L).next()"));
+            }
+            subclass.addType(recordIteratorType());
+        } else {
+            for(XmlInput input : inputs) {
+                subclass.addMethod(createFromXmlMethod(input.createFromXml(context), input, "$L($L)"));
+            }
+            subclass.addMethod(createFromByteReaderMethod())
+                    .addMethod(readValuesMethod());
+        }
+    }
+
+    private FieldSpec nameField(String field, String name) {
+        return FieldSpec.builder(CN_BYTE_ARRAY, field, PRIVATE, STATIC, FINAL)
+                .initializer("$T.bytes($S)", CN_XML_BYTE_READER, name)
+                .build();
+    }
+
+    private FieldSpec parentStepsField() {
+        final CodeBlock.Builder parents = CodeBlock.builder().add("{");
+        for(int i = 0; i < tree.steps().size(); i++) {
+            parents.add(i == 0 ? "$L" : ", $L", tree.steps().get(i).parent);
+        }
+        return FieldSpec.builder(CN_INT_ARRAY, PARENT_STEPS_FIELD_NAME, PRIVATE, STATIC, FINAL)
+                .initializer(parents.add("}").build())
+                .build();
+    }
+
+    //Strings are encoded once, ignoring any encoding they declare as the DOM engine does, and buffers are walked in
+    //place. Streams are read into a single buffer first, since the reader needs the whole document. The format takes
+    //either the record iterator class or the method to call first
+    private MethodSpec createFromXmlMethod(MethodSpec.Builder createFromXmlMethod, XmlInput input, String format) {
+        final Object target = tree.record().isPresent() ? recordIterator : CREATE_FROM_BYTE_READER_METHOD_NAME;
+        final CodeBlock reader;
+        switch(input) {
+            case BYTE_BUFFER:
+            case PATH:
+                reader = checks.byteReader(CodeBlock.of("new $T($L)", CN_XML_BYTE_READER, input.buffer()));
+                break;
+            default:
+                reader = checks.byteReader(CodeBlock.of("$T.of(xml)", CN_XML_BYTE_READER));
+        }
+        XmlInput.addReturn(createFromXmlMethod,
+                CodeBlock.of(format, target, reader),
+                input != XmlInput.STRING && input != XmlInput.BYTE_BUFFER);
+        return createFromXmlMethod.build();
+    }
+
+    private MethodSpec createFromByteReaderMethod() {
+        final MethodSpec.Builder createFromXmlMethod = MethodSpec.methodBuilder(CREATE_FROM_BYTE_READER_METHOD_NAME)
+                .addModifiers(PRIVATE, STATIC)
+                .returns(getFinalClassClassName(context))
+                .addParameter(CN_XML_BYTE_READER, "reader");
+
+        listener.beginTry(createFromXmlMethod);
+        listener.start(createFromXmlMethod);
+        decoded.addArrays(createFromXmlMethod);
+        createFromXmlMethod.addStatement("final $T values = $L(reader$L)", CN_STRING_ARRAY, READ_VALUES_METHOD_NAME, decoded.arguments());
+        listener.documentRead(createFromXmlMethod, CodeBlock.of("reader.length()"));
+
+        createFromXmlMethod.addCode("\n \n");
+
+        addValues(createFromXmlMethod);
+        listener.endTry(createFromXmlMethod);
+
+        return createFromXmlMethod.build();
+    }
+
+    private void addValues(MethodSpec.Builder method) {
+        final String[] names = new String[properties.size()];
+        for(int i = 0; i < properties.size(); i++) {
+            names[i] = properties.get(i).humanName();
+            checks.checkValue(method, properties.get(i), "values[" + i + "]");
+            method.addCode(decoded.extractValue(i));
+            listener.propertyRead(method, properties.get(i));
+        }
+
+        method.addCode("\n \n");
+
+        listener.addReturn(method, names);
+    }
+
+    //Keeps the reader and the step it is on between records, so only one record is decoded at a time
+    private TypeSpec recordIteratorType() {
+        final MethodSpec constructor = MethodSpec.constructorBuilder()
+                .addParameter(CN_XML_BYTE_READER, "reader")
+                .addStatement("this.reader = reader")
+                .build();
+
+        final MethodSpec.Builder readRecord = MethodSpec.methodBuilder(RecordIterator.READ_RECORD_METHOD_NAME)
+                .addModifiers(PRIVATE)
+                .returns(getFinalClassClassName(context));
+        listener.beginTry(readRecord);
+        listener.start(readRecord);
+        readRecord.addStatement("final $T values = $L()", CN_STRING_ARRAY, READ_VALUES_METHOD_NAME)
+                .beginControlFlow("if (values == null)")
+                .addStatement("return null")
+                .endControlFlow();
+        listener.documentRead(readRecord, CodeBlock.of("-1L"));
+
+        readRecord.addCode("\n \n");
+
+        addValues(readRecord);
+        listener.endTry(readRecord);
+
+        final List<FieldSpec> fields = new ArrayList<>();
+        fields.add(FieldSpec.builder(CN_XML_BYTE_READER, "reader", PRIVATE, FINAL).build());
+        fields.add(FieldSpec.builder(int.class, "step", PRIVATE).build());
+        fields.addAll(decoded.fields());
+
+        return RecordIterator.builder(context, fields.toArray(new FieldSpec[fields.size()]))
+                .addMethod(constructor)
+                .addMethod(readRecord.build())
+                .addMethod(readValuesMethod())
+                .build();
+    }
+
+    //Reads until every path has matched once, which mirrors XPath returning the first match in document order. With a
+    //record this is done once per record element instead, returning null when there are no records left
+    private MethodSpec readValuesMethod() {
+        final Optional<PathTree.Step> record = tree.record();
+        final MethodSpec.Builder readValues = MethodSpec.methodBuilder(READ_VALUES_METHOD_NAME)
+                .addModifiers(PRIVATE)
+                .returns(CN_STRING_ARRAY);
+
+        if(record.isPresent()) {
+            readValues.addStatement("$T values = null", CN_STRING_ARRAY);
+            readValues.addStatement("int remaining = 0");
+            readValues.beginControlFlow("while (true)");
+        } else {
+            readValues.addModifiers(STATIC).addParameter(CN_XML_BYTE_READER, "reader");
+            decoded.addParameters(readValues);
+            readValues.addStatement("final $T values = new $T[$L]", CN_STRING_ARRAY, CN_STRING, properties.size());
+            readValues.addStatement("int remaining = $L", properties.size());
+            readValues.addStatement("int step = 0");
+            readValues.beginControlFlow("while (remaining > 0)");
+        }
+
+        readValues.beginControlFlow("switch (reader.next())");
+
+        readValues.addCode(eventCase("case START_ELEMENT:\n", startElement()));
+
+        if(tree.hasText()) {
+            readValues.addCode(eventCase("case TEXT:\n", text()));
+        }
+
+        readValues.addCode(eventCase("case END_ELEMENT:\n", endElement()));
+        readValues.addCode("case END_DOCUMENT:\n").addCode(CodeBlock.builder()
+                .indent()
+                .addStatement(record.isPresent() ? "return null" : "return values")
+                .unindent()
+                .build());
+
+        readValues.endControlFlow();
+        readValues.endControlFlow();
+
+        if(!record.isPresent()) {
+            readValues.addStatement("return values");
+        }
+
+        return readValues.build();
+    }
+
+    private CodeBlock eventCase(String label, CodeBlock body) {
+        return CodeBlock.builder()
+                .add(label)
+                .indent()
+                .add(body)
+                .addStatement("break")
+                .unindent()
+                .build();
+    }
+
+    private CodeBlock endElement() {
+        if(!tree.record().isPresent()) {
+            return CodeBlock.of("step = $L[step];\n", PARENT_STEPS_FIELD_NAME);
+        }
+        return CodeBlock.builder()
+                .beginControlFlow("if (step == $L)", tree.record().get().id)
+                .addStatement("step = $L[step]", PARENT_STEPS_FIELD_NAME)
+                .addStatement("return values")
+                .endControlFlow()
+                .addStatement("step = $L[step]", PARENT_STEPS_FIELD_NAME)
+                .build();
+    }
+
+    private CodeBlock startElement() {
+        final CodeBlock.Builder code = CodeBlock.builder();
+
+        //Once a record has every value, the rest of it is skipped
+        if(tree.record().isPresent()) {
+            code.beginControlFlow("if (remaining == 0 && step >= $L)", tree.record().get().id);
+            code.addStatement("reader.skipElement()");
+            code.addStatement("break");
+            code.endControlFlow();
+        }
+
+        code.beginControlFlow("switch (step)");
+        for(PathTree.Step step : tree.steps()) {
+            if(step.children.isEmpty()) continue;
+
+            code.add("case $L:\n", step.id).indent();
+            boolean first = true;
+            for(PathTree.Step child : step.children.values()) {
+                code.beginControlFlow(first ? "if (reader.nameEquals($L))" : "else if (reader.nameEquals($L))",
+                        STEP_FIELD_PREFIX + child.id);
+                code.addStatement("step = $L", child.id);
+                if(tree.record().isPresent() && tree.record().get() == child) {
+                    code.addStatement("values = new $T[$L]", CN_STRING, properties.size());
+                    code.addStatement("remaining = $L", properties.size());
+                }
+                for(Map.Entry<Integer, String> attribute : child.attributes.entrySet()) {
+                    code.beginControlFlow("if (values[$1L] == null && (values[$1L] = reader.attribute($2L)) != null)",
+                            attribute.getKey(),
+                            ATTRIBUTE_FIELD_PREFIX + attribute.getKey());
+                    code.addStatement("remaining--");
+                    code.endControlFlow();
+                }
+                code.unindent().add("} ");
+                first = false;
+            }
+            code.add("else {\n").indent();
+            code.addStatement("reader.skipElement()");
+            code.unindent().add("}\n");
+            code.addStatement("break").unindent();
+        }
+        code.add("default:\n").indent();
+        code.addStatement("reader.skipElement()").unindent();
+        code.endControlFlow();
+        return code.build();
+    }
+
+    private CodeBlock text() {
+        final CodeBlock.Builder code = CodeBlock.builder();
+        code.beginControlFlow("switch (step)");
+        for(PathTree.Step step : tree.steps()) {
+            if(step.texts.isEmpty()) continue;
+
+            code.add("case $L:\n", step.id).indent();
+            for(Integer index : step.texts) {
+                code.beginControlFlow("if (values[$L] == null)", index);
+                if(decoded.isDecoded(index)) {
+                    code.add(decoded.decode(index, CodeBlock.of("reader.textChars()")));
+                } else {
+                    code.addStatement("values[$L] = reader.text()", index);
+                }
+                code.addStatement("remaining--");
+                code.endControlFlow();
+            }
+            code.addStatement("break").unindent();
+        }
+        code.endControlFlow();
+        return code.build();
+    }
+
+}
@@ -0,0 +1,81 @@
+package com.hihi.processor;
+
+import com.google.auto.value.extension.AutoValueExtension.Context;
+import com.google.common.collect.ImmutableSet;
+import com.hihi.xml.XmlCache;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
+import com.squareup.javapoet.TypeName;
+
+import static com.hihi.processor.XmlInput.FROM_XML_METHOD_NAME_GENERATED;
+import static com.hihi.processor.XmlInput.FROM_XML_PARAMETER_NAME;
+import static javax.lang.model.element.Modifier.FINAL;
+import static javax.lang.model.element.Modifier.PRIVATE;
+import static javax.lang.model.element.Modifier.STATIC;
+
+//Static "fromXmlCached" factories for String and ByteBuffer documents, whose whole content is at hand to hash without
+//reading it. Each declared input gets a createFromXmlCached overload that looks the document up in the class's XmlCache
+//and only calls the matching createFromXml on a miss. xmlCache() returns the cache, for its statistics
+final class CachedFactory {
+
+    static final String FROM_XML_CACHED_METHOD_NAME = "fromXmlCached";
+    static final String FROM_XML_CACHED_METHOD_NAME_GENERATED = "createFromXmlCached";
+    static final ImmutableSet<XmlInput> INPUTS = ImmutableSet.of(XmlInput.STRING, XmlInput.BYTE_BUFFER);
+
+    private static final ClassName CN_XML_CACHE = ClassName.get(XmlCache.class);
+    private static final String CACHE_FIELD_NAME = "XML_CACHE";
+    private static final String CACHE_METHOD_NAME = "xmlCache";
+
+    private CachedFactory() {
+    }
+
+    static ImmutableSet<XmlInput> declaredBy(StaticFactories valueClass) {
+        final ImmutableSet.Builder<XmlInput> inputs = ImmutableSet.builder();
+        for(XmlInput input : XmlInput.values()) {
+            if(valueClass.declares(FROM_XML_CACHED_METHOD_NAME, valueClass.type(), input.type)) {
+                inputs.add(input);
+            }
+        }
+        return inputs.build();
+    }
+
+    private static TypeName cache(Context context) {
+        return ParameterizedTypeName.get(CN_XML_CACHE, ClassName.get(context.autoValueClass()));
+    }
+
+    //Shared by every cached factory of the class
+    static FieldSpec cacheField(Context context, int size) {
+        return FieldSpec.builder(cache(context), CACHE_FIELD_NAME, PRIVATE, STATIC, FINAL)
+                .initializer("new $T<>($L)", CN_XML_CACHE, size)
+                .build();
+    }
+
+    static MethodSpec cacheMethod(Context context) {
+        return MethodSpec.methodBuilder(CACHE_METHOD_NAME)
+                .addModifiers(STATIC)
+                .returns(cache(context))
+                .addStatement("return $L", CACHE_FIELD_NAME)
+                .build();
+    }
+
+    //Documents are read outside the cache's lock, so two threads given the same new document may both read it
+    static MethodSpec createFromXmlCached(Context context, XmlInput input) {
+        final ClassName value = ClassName.get(context.autoValueClass());
+        return MethodSpec.methodBuilder(FROM_XML_CACHED_METHOD_NAME_GENERATED)
+                .addModifiers(STATIC)
+                .returns(value)
+                .addParameter(input.type, FROM_XML_PARAMETER_NAME)
+                .addStatement("final long hash = $T.hash($L)", CN_XML_CACHE, FROM_XML_PARAMETER_NAME)
+                .addStatement("final $T cached = $L.get(hash, $L)", value, CACHE_FIELD_NAME, FROM_XML_PARAMETER_NAME)
+                .beginControlFlow("if (cached != null)")
+                .addStatement("return cached")
+                .endControlFlow()
+                .addStatement("final $T read = $L($L)", value, FROM_XML_METHOD_NAME_GENERATED, FROM_XML_PARAMETER_NAME)
+                .addStatement("$L.put(hash, $L, read)", CACHE_FIELD_NAME, FROM_XML_PARAMETER_NAME)
+                .addStatement("return read")
+                .build();
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.hihi.processor;
+
+import com.google.common.collect.ImmutableList;
+import com.hihi.xml.XmlNumbers;
+import com.squareup.javapoet.ArrayTypeName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.MethodSpec;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static javax.lang.model.element.Modifier.FINAL;
+import static javax.lang.model.element.Modifier.PRIVATE;
+
+//Numbers and booleans read from text are decoded by the streaming engines as soon as the text is read, straight from
+//the parser's own characters, into a long[] or double[] indexed like the String[] of values. Attributes are already
+//Strings, so they are parsed afterwards like before
+final class DecodedValues {
+
+    static final String NUMBERS = "numbers";
+    static final String DECIMALS = "decimals";
+
+    private static final ArrayTypeName CN_LONG_ARRAY = ArrayTypeName.of(long.class);
+    private static final ArrayTypeName CN_DOUBLE_ARRAY = ArrayTypeName.of(double.class);
+
+    private final ImmutableList<ValueProperty> properties;
+    private final TryFactory checks;
+    private final boolean[] decoded;
+    private final boolean hasNumbers;
+    private final boolean hasDecimals;
+
+    DecodedValues(ImmutableList<ValueProperty> properties, PathTree tree, TryFactory checks) {
+        this.properties = properties;
+        this.checks = checks;
+        this.decoded = new boolean[properties.size()];
+        boolean hasNumbers = false;
+        boolean hasDecimals = false;
+        for(int i = 0; i < properties.size(); i++) {
+            decoded[i] = properties.get(i).isNumeric() && tree.isText(i);
+            hasNumbers |= decoded[i] && !properties.get(i).isDecimal();
+            hasDecimals |= decoded[i] && properties.get(i).isDecimal();
+        }
+        this.hasNumbers = hasNumbers;
+        this.hasDecimals = hasDecimals;
+    }
+
+    boolean any() {
+        return hasNumbers || hasDecimals;
+    }
+
+    boolean isDecoded(int index) {
+        return decoded[index];
+    }
+
+    //Allocated once per document, or once per iterator when reading records
+    void addArrays(MethodSpec.Builder method) {
+        if(hasNumbers) {
+            method.addStatement("final $T $L = new $T[$L]", CN_LONG_ARRAY, NUMBERS, long.class, properties.size());
+        }
+        if(hasDecimals) {
+            method.addStatement("final $T $L = new $T[$L]", CN_DOUBLE_ARRAY, DECIMALS, double.class, properties.size());
+        }
+    }
+
+    List<FieldSpec> fields() {
+        final List<FieldSpec> fields = new ArrayList<>();
+        if(hasNumbers) {
+            fields.add(FieldSpec.builder(CN_LONG_ARRAY, NUMBERS, PRIVATE, FINAL)
+                    .initializer("new $T[$L]", long.class, properties.size())
+                    .build());
+        }
+        if(hasDecimals) {
+            fields.add(FieldSpec.builder(CN_DOUBLE_ARRAY, DECIMALS, PRIVATE, FINAL)
+                    .initializer("new $T[$L]", double.class, properties.size())
+                    .build());
+        }
+        return fields;
+    }
+
+    void addParameters(MethodSpec.Builder method) {
+        if(hasNumbers) {
+            method.addParameter(CN_LONG_ARRAY, NUMBERS);
+        }
+        if(hasDecimals) {
+            method.addParameter(CN_DOUBLE_ARRAY, DECIMALS);
+        }
+    }
+
+    //The arguments matching addParameters, each preceded by a comma
+    String arguments() {
+        return (hasNumbers ? ", " + NUMBERS : "") + (hasDecimals ? ", " + DECIMALS : "");
+    }
+
+    //Decodes the text, then marks the value as found so later matches are ignored
+    CodeBlock decode(int index, CodeBlock text) {
+        return CodeBlock.builder()
+                .add(checks.convert(properties.get(index), properties.get(index).decodeText(index, text)))
+                .addStatement("values[$L] = $T.DECODED", index, XmlNumbers.class)
+                .build();
+    }
+
+    CodeBlock extractValue(int index) {
+        if(decoded[index]) {
+            return CodeBlock.builder().addStatement(properties.get(index).extractDecoded(index)).build();
+        }
+        final String value = "values[" + index + "]";
+        return checks.declare(properties.get(index), properties.get(index).value(value, value));
+    }
+
+}
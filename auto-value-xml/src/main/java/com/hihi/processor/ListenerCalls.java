@@ -0,0 +1,181 @@
+package com.hihi.processor;
+
+import com.google.auto.value.extension.AutoValueExtension.Context;
+import com.google.common.base.Optional;
+import com.hihi.xml.XmlListener;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.TypeName;
+import com.squareup.javapoet.TypeSpec;
+import com.squareup.javapoet.TypeVariableName;
+
+import java.nio.file.Files;
+
+import static com.gabrielittner.auto.value.util.AutoValueUtil.getFinalClassClassName;
+import static com.gabrielittner.auto.value.util.AutoValueUtil.newFinalClassConstructorCall;
+import static com.hihi.processor.XmlInput.FROM_XML_PARAMETER_NAME;
+import static javax.lang.model.element.Modifier.FINAL;
+import static javax.lang.model.element.Modifier.PRIVATE;
+import static javax.lang.model.element.Modifier.STATIC;
+
+//The calls to the XmlListener a class names in its @XmlParser, timing each step of reading a value. Every method adds
+//nothing at all for classes without one, so the engines can call them unconditionally
+final class ListenerCalls {
+
+    private static final ClassName CN_XML_LISTENER = ClassName.get(XmlListener.class);
+    private static final String LISTENER_FIELD_NAME = "LISTENER";
+    private static final String DOCUMENT_READ_METHOD_NAME = "documentRead";
+    private static final String PROPERTY_READ_METHOD_NAME = "propertyRead";
+    private static final String PARSED_METHOD_NAME = "parsed";
+    private static final String FAILED_METHOD_NAME = "failed";
+
+    static ListenerCalls from(Context context, ParserConfig config) {
+        return new ListenerCalls(context, config.listener());
+    }
+
+    private final Context context;
+    private final Optional<TypeName> listener;
+
+    private ListenerCalls(Context context, Optional<TypeName> listener) {
+        this.context = context;
+        this.listener = listener;
+    }
+
+    void addTo(TypeSpec.Builder subclass) {
+        if(!listener.isPresent()) {
+            return;
+        }
+        final ClassName valueClass = ClassName.get(context.autoValueClass());
+        final TypeVariableName t = TypeVariableName.get("T");
+
+        subclass.addField(FieldSpec.builder(CN_XML_LISTENER, LISTENER_FIELD_NAME, PRIVATE, STATIC, FINAL)
+                .initializer("new $T()", listener.get())
+                .build());
+        subclass.addMethod(MethodSpec.methodBuilder(DOCUMENT_READ_METHOD_NAME)
+                .addModifiers(PRIVATE, STATIC)
+                .returns(long.class)
+                .addParameter(long.class, "size")
+                .addParameter(long.class, "start")
+                .addStatement("final long now = $T.nanoTime()", System.class)
+                .addStatement("$L.$L($T.class, size, now - start)", LISTENER_FIELD_NAME, DOCUMENT_READ_METHOD_NAME, valueClass)
+                .addStatement("return now")
+                .build());
+        subclass.addMethod(MethodSpec.methodBuilder(PROPERTY_READ_METHOD_NAME)
+                .addModifiers(PRIVATE, STATIC)
+                .returns(long.class)
+                .addParameter(String.class, "property")
+                .addParameter(long.class, "start")
+                .addStatement("final long now = $T.nanoTime()", System.class)
+                .addStatement("$L.$L($T.class, property, now - start)", LISTENER_FIELD_NAME, PROPERTY_READ_METHOD_NAME, valueClass)
+                .addStatement("return now")
+                .build());
+        subclass.addMethod(MethodSpec.methodBuilder(PARSED_METHOD_NAME)
+                .addModifiers(PRIVATE, STATIC)
+                .addTypeVariable(t)
+                .returns(t)
+                .addParameter(t, "value")
+                .addParameter(long.class, "start")
+                .addStatement("$L.$L($T.class, $T.nanoTime() - start)", LISTENER_FIELD_NAME, PARSED_METHOD_NAME, valueClass, System.class)
+                .addStatement("return value")
+                .build());
+        subclass.addMethod(MethodSpec.methodBuilder(FAILED_METHOD_NAME)
+                .addModifiers(PRIVATE, STATIC)
+                .returns(RuntimeException.class)
+                .addParameter(RuntimeException.class, "cause")
+                .addStatement("$L.$L($T.class, cause)", LISTENER_FIELD_NAME, FAILED_METHOD_NAME, valueClass)
+                .addStatement("return cause")
+                .build());
+    }
+
+    //Declares the time every later step is measured from
+    void start(MethodSpec.Builder method) {
+        if(listener.isPresent()) {
+            method.addStatement("final long start = $T.nanoTime()", System.class);
+            method.addStatement("long time = start");
+        }
+    }
+
+    boolean isPresent() {
+        return listener.isPresent();
+    }
+
+    //The size of a document that is known before reading it: the length of a String in chars, and the bytes left in a
+    //ByteBuffer or in a file. With a listener, the method reading the whole document takes it as its "size" parameter
+    CodeBlock size(XmlInput input) {
+        switch(input) {
+            case STRING:
+                return CodeBlock.of("$L.length()", FROM_XML_PARAMETER_NAME);
+            case BYTE_BUFFER:
+                return CodeBlock.of("$L.remaining()", FROM_XML_PARAMETER_NAME);
+            case PATH:
+                return CodeBlock.of("$T.size($L)", Files.class, FROM_XML_PARAMETER_NAME);
+            default:
+                return CodeBlock.of("-1L");
+        }
+    }
+
+    void addSizeParameter(MethodSpec.Builder method) {
+        if(listener.isPresent()) {
+            method.addParameter(long.class, "size");
+        }
+    }
+
+    void documentRead(MethodSpec.Builder method, CodeBlock size) {
+        if(listener.isPresent()) {
+            method.addStatement("time = $L($L, time)", DOCUMENT_READ_METHOD_NAME, size);
+        }
+    }
+
+    void propertyRead(MethodSpec.Builder method, ValueProperty property) {
+        if(listener.isPresent()) {
+            method.addStatement("time = $L($S, time)", PROPERTY_READ_METHOD_NAME, property.humanName());
+        }
+    }
+
+    //Returns the value built from the given properties, telling the listener how long it took in total
+    void addReturn(MethodSpec.Builder method, String[] names) {
+        if(!listener.isPresent()) {
+            method.addCode("return ").addCode(newFinalClassConstructorCall(context, names));
+            return;
+        }
+        final CodeBlock.Builder value = CodeBlock.builder().add("new $T", getFinalClassClassName(context));
+        if(!context.autoValueClass().getTypeParameters().isEmpty()) {
+            value.add("<>");
+        }
+        value.add("(");
+        for(int i = 0; i < names.length; i++) {
+            value.add(i == 0 ? "$N" : ", $N", names[i]);
+        }
+        method.addStatement("return $L($L, start)", PARSED_METHOD_NAME, value.add(")").build());
+    }
+
+    //The exception to throw from a catch block, handed to the listener first
+    CodeBlock failed(CodeBlock exception) {
+        return listener.isPresent() ? CodeBlock.of("$L($L)", FAILED_METHOD_NAME, exception) : exception;
+    }
+
+    //Adds a catch block for any other RuntimeException to a try block that is still open
+    void catchFailures(MethodSpec.Builder method) {
+        if(listener.isPresent()) {
+            method.nextControlFlow("catch ($T e)", RuntimeException.class);
+            method.addStatement("throw $L(e)", FAILED_METHOD_NAME);
+        }
+    }
+
+    //Opens a try block around a method that has none of its own, closed by endTry
+    void beginTry(MethodSpec.Builder method) {
+        if(listener.isPresent()) {
+            method.beginControlFlow("try");
+        }
+    }
+
+    void endTry(MethodSpec.Builder method) {
+        if(listener.isPresent()) {
+            catchFailures(method);
+            method.endControlFlow();
+        }
+    }
+
+}
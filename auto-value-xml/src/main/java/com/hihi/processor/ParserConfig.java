@@ -0,0 +1,122 @@
+package com.hihi.processor;
+
+import com.google.auto.common.AnnotationMirrors;
+import com.google.auto.common.MoreElements;
+import com.google.auto.value.extension.AutoValueExtension;
+import com.google.common.base.Optional;
+import com.hihi.xml.XmlBatch;
+import com.hihi.xml.XmlCache;
+import com.hihi.xml.XmlListener;
+import com.hihi.xml.XmlParser;
+import com.hihi.xml.XmlRecord;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.TypeName;
+
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeMirror;
+
+final class ParserConfig {
+
+    //Classes with an async factory default to the pool, as each of their documents is read on a new virtual thread by
+    //default, which would otherwise build a parser and compile every path for just that document
+    static ParserConfig from(AutoValueExtension.Context context, boolean async) {
+        final TypeElement valueClass = context.autoValueClass();
+        final Optional<AnnotationMirror> parser = MoreElements.getAnnotationMirror(valueClass, XmlParser.class);
+        final Optional<AnnotationMirror> record = MoreElements.getAnnotationMirror(valueClass, XmlRecord.class);
+        final Optional<String> recordPath = record.isPresent()
+                ? Optional.of(stringValue(record.get(), "value"))
+                : Optional.<String>absent();
+        if(!parser.isPresent()) {
+            return new ParserConfig(!async, XmlParser.Engine.DOM, XmlBatch.DEFAULT_THRESHOLD, XmlCache.DEFAULT_SIZE, Optional.<TypeName>absent(), recordPath);
+        }
+        return new ParserConfig(
+                isSet(parser.get(), "threadLocal") ? booleanValue(parser.get(), "threadLocal") : !async,
+                enumValue(parser.get(), "engine", XmlParser.Engine.class),
+                intValue(parser.get(), "batchThreshold"),
+                intValue(parser.get(), "cacheSize"),
+                listener(parser.get()),
+                recordPath
+        );
+    }
+
+    private static boolean isSet(AnnotationMirror mirror, String name) {
+        for(ExecutableElement element : mirror.getElementValues().keySet()) {
+            if(element.getSimpleName().contentEquals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String stringValue(AnnotationMirror mirror, String name) {
+        return (String) AnnotationMirrors.getAnnotationValue(mirror, name).getValue();
+    }
+
+    private static boolean booleanValue(AnnotationMirror mirror, String name) {
+        return (Boolean) AnnotationMirrors.getAnnotationValue(mirror, name).getValue();
+    }
+
+    private static int intValue(AnnotationMirror mirror, String name) {
+        return (Integer) AnnotationMirrors.getAnnotationValue(mirror, name).getValue();
+    }
+
+    //A class javac could not find comes through as a String, and javac already reports it
+    private static Optional<TypeName> listener(AnnotationMirror mirror) {
+        final Object value = AnnotationMirrors.getAnnotationValue(mirror, "listener").getValue();
+        if(!(value instanceof TypeMirror)) {
+            return Optional.absent();
+        }
+        final TypeName listener = TypeName.get((TypeMirror) value);
+        return listener.equals(ClassName.get(XmlListener.class)) ? Optional.<TypeName>absent() : Optional.of(listener);
+    }
+
+    private static <E extends Enum<E>> E enumValue(AnnotationMirror mirror, String name, Class<E> type) {
+        final VariableElement value = (VariableElement) AnnotationMirrors.getAnnotationValue(mirror, name).getValue();
+        return Enum.valueOf(type, value.getSimpleName().toString());
+    }
+
+    private final boolean threadLocal;
+    private final XmlParser.Engine engine;
+    private final int batchThreshold;
+    private final int cacheSize;
+    private final Optional<TypeName> listener;
+    private final Optional<String> record;
+
+    private ParserConfig(boolean threadLocal, XmlParser.Engine engine, int batchThreshold, int cacheSize, Optional<TypeName> listener,
+                         Optional<String> record) {
+        this.threadLocal = threadLocal;
+        this.engine = engine;
+        this.batchThreshold = batchThreshold;
+        this.cacheSize = cacheSize;
+        this.listener = listener;
+        this.record = record;
+    }
+
+    boolean threadLocal() {
+        return threadLocal;
+    }
+
+    XmlParser.Engine engine() {
+        return engine;
+    }
+
+    int batchThreshold() {
+        return batchThreshold;
+    }
+
+    int cacheSize() {
+        return cacheSize;
+    }
+
+    Optional<TypeName> listener() {
+        return listener;
+    }
+
+    Optional<String> record() {
+        return record;
+    }
+
+}
@@ -0,0 +1,211 @@
+package com.hihi.processor;
+
+import com.google.auto.common.AnnotationMirrors;
+import com.google.auto.common.MoreElements;
+import com.google.auto.value.extension.AutoValueExtension.Context;
+import com.google.common.base.Optional;
+import com.hihi.xml.XmlFeatures;
+import com.hihi.xml.XmlLimits;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.TypeSpec;
+
+import javax.lang.model.element.AnnotationMirror;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+
+import static javax.lang.model.element.Modifier.PRIVATE;
+import static javax.lang.model.element.Modifier.STATIC;
+
+//The settings a class's @XmlFeatures gives the JAXP factory it parses with, applied once where the static factory is
+//created. Every method adds nothing at all for classes without one, which keep the JDK's defaults
+final class ParserFeatures {
+
+    private static final ClassName CN_DOCUMENT_BUILDER_FACTORY = ClassName.get(DocumentBuilderFactory.class);
+    private static final ClassName CN_PARSER_CONFIGURATION_EXCEPTION = ClassName.get(ParserConfigurationException.class);
+    private static final ClassName CN_XML_INPUT_FACTORY = ClassName.get(XMLInputFactory.class);
+    private static final ClassName CN_XML_STREAM_CONSTANTS = ClassName.get(XMLStreamConstants.class);
+    private static final ClassName CN_XML_STREAM_EXCEPTION = ClassName.get(XMLStreamException.class);
+    private static final ClassName CN_XML_LIMITS = ClassName.get(XmlLimits.class);
+    private static final String NEW_DOCUMENT_BUILDER_FACTORY_METHOD_NAME = "newDocumentBuilderFactory";
+
+    //Xerces features and the JDK's own properties, which are what DocumentBuilderFactory and XMLInputFactory provide
+    private static final String DISALLOW_DOCTYPE_FEATURE = "http://apache.org/xml/features/disallow-doctype-decl";
+    private static final String LOAD_EXTERNAL_DTD_FEATURE = "http://apache.org/xml/features/nonvalidating/load-external-dtd";
+    private static final String EXTERNAL_GENERAL_ENTITIES_FEATURE = "http://xml.org/sax/features/external-general-entities";
+    private static final String EXTERNAL_PARAMETER_ENTITIES_FEATURE = "http://xml.org/sax/features/external-parameter-entities";
+    private static final String IGNORE_EXTERNAL_DTD_PROPERTY = "http://java.sun.com/xml/stream/properties/ignore-external-dtd";
+    private static final String ENTITY_EXPANSION_LIMIT_PROPERTY = "http://www.oracle.com/xml/jaxp/properties/entityExpansionLimit";
+    private static final String MAX_ELEMENT_DEPTH_PROPERTY = "http://www.oracle.com/xml/jaxp/properties/maxElementDepth";
+
+    static ParserFeatures from(Context context) {
+        final Optional<AnnotationMirror> features = MoreElements.getAnnotationMirror(context.autoValueClass(), XmlFeatures.class);
+        if(!features.isPresent()) {
+            return new ParserFeatures(false, false, false, false, false, false, 0, 0, 0);
+        }
+        return new ParserFeatures(
+                true,
+                booleanValue(features.get(), "disallowDoctype"),
+                booleanValue(features.get(), "loadExternalDtd"),
+                booleanValue(features.get(), "coalescing"),
+                booleanValue(features.get(), "ignoreWhitespace"),
+                booleanValue(features.get(), "ignoreComments"),
+                limit(features.get(), "maxEntityExpansions"),
+                limit(features.get(), "maxElementDepth"),
+                limit(features.get(), "maxDocumentSize")
+        );
+    }
+
+    private static boolean booleanValue(AnnotationMirror mirror, String name) {
+        return (Boolean) AnnotationMirrors.getAnnotationValue(mirror, name).getValue();
+    }
+
+    private static long limit(AnnotationMirror mirror, String name) {
+        final long limit = ((Number) AnnotationMirrors.getAnnotationValue(mirror, name).getValue()).longValue();
+        if(limit < 0) {
+            throw new IllegalArgumentException(String.format("%s must not be negative, was %d", name, limit));
+        }
+        return limit;
+    }
+
+    private final boolean present;
+    private final boolean disallowDoctype;
+    private final boolean loadExternalDtd;
+    private final boolean coalescing;
+    private final boolean ignoreWhitespace;
+    private final boolean ignoreComments;
+    private final long maxEntityExpansions;
+    private final long maxElementDepth;
+    private final long maxDocumentSize;
+
+    private ParserFeatures(boolean present, boolean disallowDoctype, boolean loadExternalDtd, boolean coalescing,
+                           boolean ignoreWhitespace, boolean ignoreComments, long maxEntityExpansions,
+                           long maxElementDepth, long maxDocumentSize) {
+        this.present = present;
+        this.disallowDoctype = disallowDoctype;
+        this.loadExternalDtd = loadExternalDtd;
+        this.coalescing = coalescing;
+        this.ignoreWhitespace = ignoreWhitespace;
+        this.ignoreComments = ignoreComments;
+        this.maxEntityExpansions = maxEntityExpansions;
+        this.maxElementDepth = maxElementDepth;
+        this.maxDocumentSize = maxDocumentSize;
+    }
+
+    boolean isPresent() {
+        return present;
+    }
+
+    boolean limitsSize() {
+        return maxDocumentSize > 0;
+    }
+
+    //What the DOM engine's static DocumentBuilderFactory is initialized with
+    CodeBlock documentBuilderFactory() {
+        return present
+                ? CodeBlock.of("$L()", NEW_DOCUMENT_BUILDER_FACTORY_METHOD_NAME)
+                : CodeBlock.of("$T.newInstance()", CN_DOCUMENT_BUILDER_FACTORY);
+    }
+
+    void addTo(TypeSpec.Builder subclass) {
+        if(!present) {
+            return;
+        }
+        final MethodSpec.Builder method = MethodSpec.methodBuilder(NEW_DOCUMENT_BUILDER_FACTORY_METHOD_NAME)
+                .addModifiers(PRIVATE, STATIC)
+                .returns(CN_DOCUMENT_BUILDER_FACTORY)
+                .addStatement("final $1T factory = $1T.newInstance()", CN_DOCUMENT_BUILDER_FACTORY);
+        if(disallowDoctype) {
+            addFeature(method, DISALLOW_DOCTYPE_FEATURE, true, "disallowDoctype = true");
+        } else if(!loadExternalDtd) {
+            //Entities declared in the document's own DTD can still point outside it
+            addFeature(method, LOAD_EXTERNAL_DTD_FEATURE, false, "loadExternalDtd = false");
+            addFeature(method, EXTERNAL_GENERAL_ENTITIES_FEATURE, false, "loadExternalDtd = false");
+            addFeature(method, EXTERNAL_PARAMETER_ENTITIES_FEATURE, false, "loadExternalDtd = false");
+        }
+        if(coalescing) {
+            method.addStatement("factory.setCoalescing(true)");
+        }
+        if(ignoreWhitespace) {
+            method.addStatement("factory.setIgnoringElementContentWhitespace(true)");
+        }
+        if(ignoreComments) {
+            method.addStatement("factory.setIgnoringComments(true)");
+        }
+        addLimits(method, "setAttribute", "attribute");
+        subclass.addMethod(method.addStatement("return factory").build());
+    }
+
+    //Only features the JDK's factory does not already default to are set, as each one is particular to Xerces. Another
+    //factory that is asked for one it does not know fails naming the setting, rather than parsing with it ignored
+    private static void addFeature(MethodSpec.Builder method, String feature, boolean value, String setting) {
+        final String msg = String.format("%%s does not support feature '%s', which @XmlFeatures(%s) needs", feature, setting);
+        method.beginControlFlow("try")
+                .addStatement("factory.setFeature($S, $L)", feature, value)
+                .nextControlFlow("catch ($T e)", CN_PARSER_CONFIGURATION_EXCEPTION)
+                .addStatement("final $T msg = $T.format($S, factory.getClass().getName())", String.class, String.class, msg)
+                .addStatement("throw new $T(msg, e)", RuntimeException.class)
+                .endControlFlow();
+    }
+
+    //Without DTD support the reader still reports a DOCTYPE, which rejectDoctype then fails on
+    void configure(MethodSpec.Builder xmlInputFactory) {
+        if(!present) {
+            return;
+        }
+        if(disallowDoctype) {
+            xmlInputFactory.addStatement("factory.setProperty($T.SUPPORT_DTD, false)", CN_XML_INPUT_FACTORY);
+        } else if(!loadExternalDtd) {
+            addSetting(xmlInputFactory, "setProperty", "property", IGNORE_EXTERNAL_DTD_PROPERTY, "true", "loadExternalDtd = false");
+            xmlInputFactory.addStatement("factory.setProperty($T.IS_SUPPORTING_EXTERNAL_ENTITIES, false)", CN_XML_INPUT_FACTORY);
+        }
+        addLimits(xmlInputFactory, "setProperty", "property");
+    }
+
+    private void addLimits(MethodSpec.Builder method, String setter, String kind) {
+        if(maxEntityExpansions > 0) {
+            addSetting(method, setter, kind, ENTITY_EXPANSION_LIMIT_PROPERTY, CodeBlock.of("$S", String.valueOf(maxEntityExpansions)),
+                    "maxEntityExpansions = " + maxEntityExpansions);
+        }
+        if(maxElementDepth > 0) {
+            addSetting(method, setter, kind, MAX_ELEMENT_DEPTH_PROPERTY, CodeBlock.of("$S", String.valueOf(maxElementDepth)),
+                    "maxElementDepth = " + maxElementDepth);
+        }
+    }
+
+    //The JDK's own properties, guarded like addFeature. Both setAttribute and setProperty throw an
+    //IllegalArgumentException for a name the factory does not know
+    private static void addSetting(MethodSpec.Builder method, String setter, String kind, String name, Object value,
+                                   String setting) {
+        final String msg = String.format("%%s does not support %s '%s', which @XmlFeatures(%s) needs", kind, name, setting);
+        method.beginControlFlow("try")
+                .addStatement("factory.$L($S, $L)", setter, name, value)
+                .nextControlFlow("catch ($T e)", IllegalArgumentException.class)
+                .addStatement("final $T msg = $T.format($S, factory.getClass().getName())", String.class, String.class, msg)
+                .addStatement("throw new $T(msg, e)", RuntimeException.class)
+                .endControlFlow();
+    }
+
+    //A case for the switch over the events of the STAX engine
+    CodeBlock rejectDoctype() {
+        if(!present || !disallowDoctype) {
+            return CodeBlock.of("");
+        }
+        return CodeBlock.builder()
+                .add("case $T.DTD:\n", CN_XML_STREAM_CONSTANTS)
+                .indent()
+                .addStatement("throw new $T($S, reader.getLocation())", CN_XML_STREAM_EXCEPTION, "DOCTYPE is disallowed")
+                .unindent()
+                .build();
+    }
+
+    //The source a parser reads, counted when the class limits the size of a document
+    CodeBlock limit(String source) {
+        return limitsSize() ? CodeBlock.of("$T.limit($L, $LL)", CN_XML_LIMITS, source, maxDocumentSize) : CodeBlock.of("$L", source);
+    }
+
+}
@@ -0,0 +1,170 @@
+package com.hihi.processor;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.hihi.xml.XmlParser;
+
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+//Classifies every path of a value class, to pick the cheapest engine that can read it for Engine.AUTO and to estimate
+//what reading one value costs
+final class PathAnalysis {
+
+    //Reading a small document once, relative to the BYTES engine. Roughly what the benchmark module measures for the
+    //example Pet at 1 KB
+    private static final int DOM_DOCUMENT_COST = 700;
+    private static final int STAX_DOCUMENT_COST = 18;
+    private static final int BYTES_DOCUMENT_COST = 1;
+
+    //Inputs the BYTES engine is picked for: Strings, which it encodes as UTF-8 itself in one copy. Streams and Readers
+    //stay on STAX, which reads them a piece at a time where the BYTES engine would read all of it into memory first
+    private static final ImmutableSet<XmlInput> BYTES_INPUTS = ImmutableSet.of(XmlInput.STRING);
+
+    static PathAnalysis from(ImmutableList<ValueProperty> properties, Optional<String> record, ImmutableSet<XmlInput> inputs,
+                             boolean lazy, boolean features) {
+        final ImmutableList.Builder<PathKind> kinds = ImmutableList.builder();
+        for(ValueProperty property : properties) {
+            kinds.add(PathKind.of(property.valueTagName()));
+        }
+        return new PathAnalysis(properties, record, inputs, lazy, features, kinds.build());
+    }
+
+    private final ImmutableList<ValueProperty> properties;
+    private final Optional<String> record;
+    private final ImmutableSet<XmlInput> inputs;
+    private final boolean lazy;
+    private final boolean features;
+    private final ImmutableList<PathKind> kinds;
+
+    private PathAnalysis(ImmutableList<ValueProperty> properties, Optional<String> record, ImmutableSet<XmlInput> inputs,
+                         boolean lazy, boolean features, ImmutableList<PathKind> kinds) {
+        this.properties = properties;
+        this.record = record;
+        this.inputs = inputs;
+        this.lazy = lazy;
+        this.features = features;
+        this.kinds = kinds;
+    }
+
+    //The cheapest engine able to read every path and input of the class
+    XmlParser.Engine engine() {
+        if(domReason().isPresent()) {
+            return XmlParser.Engine.DOM;
+        }
+        return !features && BYTES_INPUTS.containsAll(inputs) ? XmlParser.Engine.BYTES : XmlParser.Engine.STAX;
+    }
+
+    String reason() {
+        final Optional<String> dom = domReason();
+        if(dom.isPresent()) {
+            return dom.get();
+        }
+        if(features) {
+            return "@XmlFeatures configures a JAXP parser";
+        }
+        for(XmlInput input : inputs) {
+            if(XmlInput.STREAMED.contains(input)) {
+                return String.format("the %s factory is read a piece at a time", input.type.simpleName());
+            }
+            if(!BYTES_INPUTS.contains(input)) {
+                return String.format("the %s factory may not be given UTF-8", input.type.simpleName());
+            }
+        }
+        return "every path is simple and every input is a String";
+    }
+
+    private Optional<String> domReason() {
+        if(lazy) {
+            return Optional.of("lazy factories keep the parsed document");
+        }
+        for(XmlInput input : inputs) {
+            if(input.needsDom()) {
+                return Optional.of(String.format("the %s factory needs a built document", input.type.simpleName()));
+            }
+        }
+        for(int i = 0; i < properties.size(); i++) {
+            final ValueProperty property = properties.get(i);
+            if(property.isNested()) {
+                return Optional.of(String.format("property '%s' is a nested value", property.humanName()));
+            }
+            if(property.isNodeSet()) {
+                return Optional.of(String.format("property '%s' reads a node set", property.humanName()));
+            }
+            final String path = record.isPresent()
+                    ? record.get() + "/" + property.valueTagName()
+                    : property.valueTagName();
+            if(!SimplePath.parse(path).isPresent()) {
+                return Optional.of(String.format(
+                        "path '%s' for property '%s' (%s) needs XPath",
+                        property.valueTagName(),
+                        property.humanName(),
+                        kinds.get(i).name().toLowerCase(Locale.ROOT)
+                ));
+            }
+        }
+        return Optional.absent();
+    }
+
+    //Steps times the weight of their kind for the DOM engine, which evaluates each distinct path separately. The
+    //streaming engines match every path during the one pass they make, so each step costs the same
+    int cost(int index, XmlParser.Engine engine) {
+        final int steps = PathKind.steps(properties.get(index).valueTagName());
+        return engine == XmlParser.Engine.DOM ? steps * kinds.get(index).weight : steps;
+    }
+
+    int cost(XmlParser.Engine engine) {
+        int cost;
+        switch(engine) {
+            case DOM:
+                cost = DOM_DOCUMENT_COST;
+                break;
+            case STAX:
+                cost = STAX_DOCUMENT_COST;
+                break;
+            default:
+                cost = BYTES_DOCUMENT_COST;
+        }
+        final Set<String> paths = new HashSet<>();
+        for(int i = 0; i < properties.size(); i++) {
+            if(paths.add(properties.get(i).valueTagName())) {
+                cost += cost(i, engine);
+            }
+        }
+        return cost;
+    }
+
+    //Plain text, one line per property, so it diffs well between builds
+    String report(String valueClass, XmlParser.Engine configured, XmlParser.Engine engine) {
+        final StringBuilder report = new StringBuilder()
+                .append("Value class: ").append(valueClass).append('\n')
+                .append("Engine: ").append(engine);
+        if(configured == XmlParser.Engine.AUTO) {
+            report.append(" (AUTO, ").append(reason()).append(')');
+        }
+        report.append('\n');
+        report.append("Estimated cost per value, where 1 is the BYTES engine reading a small document:\n");
+        //The streaming engines are left out when they could not read the class at all
+        final Set<XmlParser.Engine> engines = domReason().isPresent()
+                ? EnumSet.of(XmlParser.Engine.DOM)
+                : EnumSet.of(XmlParser.Engine.DOM, XmlParser.Engine.STAX, XmlParser.Engine.BYTES);
+        for(XmlParser.Engine each : engines) {
+            report.append(String.format("  %-5s %d%s\n", each, cost(each), each == engine ? " *" : ""));
+        }
+        report.append(String.format("\n%-24s %-9s %5s %4s  %s\n", "Property", "Kind", "Steps", "Cost", "Path"));
+        for(int i = 0; i < properties.size(); i++) {
+            final ValueProperty property = properties.get(i);
+            report.append(String.format("%-24s %-9s %5d %4d  %s\n",
+                    property.humanName(),
+                    kinds.get(i),
+                    PathKind.steps(property.valueTagName()),
+                    cost(i, engine),
+                    property.valueTagName()));
+        }
+        return report.toString();
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.hihi.processor;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+//What the most expensive part of an @XmlPath expression is, from cheapest to dearest. The weight is how much more
+//than a plain step each step of such a path is estimated to cost the DOM engine
+enum PathKind {
+
+    //Element steps only, e.g. "/pets/item/name"
+    CHILD(1),
+    //Element steps ending in an attribute, e.g. "/pets/item/@id"
+    ATTRIBUTE(1),
+    //Element steps ending in text(), e.g. "/pets/item/name/text()"
+    TEXT(1),
+    //A step filtered by a predicate, e.g. "/pets/item[2]/name/text()"
+    PREDICATE(2),
+    //A call to an XPath function, e.g. "normalize-space(/pets/item/name)"
+    FUNCTION(3),
+    //A step on another axis, a wildcard or a union, e.g. "//name/text()", which can visit the whole document
+    AXIS(10);
+
+    private static final Pattern FUNCTION_CALL = Pattern.compile("([A-Za-z_][A-Za-z0-9_.\\-]*)\\s*\\(");
+    private static final String TEXT_STEP = "text()";
+
+    final int weight;
+
+    PathKind(int weight) {
+        this.weight = weight;
+    }
+
+    static PathKind of(String path) {
+        if(path.contains("//") || path.contains("::") || path.contains("..") || path.contains("*")
+                || path.contains("|") || path.startsWith(".")) {
+            return AXIS;
+        }
+        final Matcher function = FUNCTION_CALL.matcher(path);
+        while(function.find()) {
+            if(!(function.group(1).equals("text") && path.startsWith(TEXT_STEP, function.start()))) {
+                return FUNCTION;
+            }
+        }
+        if(path.contains("[")) {
+            return PREDICATE;
+        }
+
+        final String last = path.substring(path.lastIndexOf('/') + 1);
+        if(last.startsWith("@")) {
+            return ATTRIBUTE;
+        }
+        return last.equals(TEXT_STEP) ? TEXT : CHILD;
+    }
+
+    //Location steps in the path, counting the attribute or text() at the end
+    static int steps(String path) {
+        int steps = 0;
+        for(String step : path.split("/")) {
+            if(!step.isEmpty()) steps++;
+        }
+        return Math.max(steps, 1);
+    }
+
+}
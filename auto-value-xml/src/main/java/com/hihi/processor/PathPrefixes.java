@@ -0,0 +1,138 @@
+package com.hihi.processor;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//Factors the element steps absolute paths share into a context node that is found once per document, and reads each
+//path once however many properties declare it. Only paths made of plain element steps, ending in an element, text() or
+//an attribute, are factored, as the first match under the first context node is then always the first match in the
+//document, and any other path is left to be evaluated as written. A node set is every match in the document, not just
+//those under the first context node, so it is never factored, nor shares a variable with a property read from one node
+final class PathPrefixes {
+
+    private static final String TEXT = "text()";
+    private static final String NODE_SET_KEY = "nodes ";
+
+    static PathPrefixes from(List<ValueProperty> properties) {
+        final int[] firstIndex = new int[properties.size()];
+        final Map<String, Integer> seen = new HashMap<>();
+        final Map<String, List<Integer>> roots = new LinkedHashMap<>();
+
+        for(int i = 0; i < properties.size(); i++) {
+            final ValueProperty property = properties.get(i);
+            final String path = property.valueTagName();
+            final String key = property.isNodeSet() ? NODE_SET_KEY + path : path;
+            final Integer first = seen.get(key);
+            firstIndex[i] = first == null ? i : first;
+            if(first != null) {
+                continue;
+            }
+            seen.put(key, i);
+
+            final String[] steps = property.isNodeSet() ? null : steps(path);
+            if(steps != null) {
+                if(!roots.containsKey(steps[0])) {
+                    roots.put(steps[0], new ArrayList<Integer>());
+                }
+                roots.get(steps[0]).add(i);
+            }
+        }
+
+        final ImmutableList.Builder<String> contexts = ImmutableList.builder();
+        final int[] contextIndex = new int[properties.size()];
+        final String[] relative = new String[properties.size()];
+        Arrays.fill(contextIndex, -1);
+
+        int context = 0;
+        for(List<Integer> group : roots.values()) {
+            if(group.size() < 2) {
+                continue;
+            }
+            final String[] first = steps(properties.get(group.get(0)).valueTagName());
+            int shared = first.length - 1;
+            for(int i : group) {
+                final String[] steps = steps(properties.get(i).valueTagName());
+                shared = Math.min(shared, steps.length - 1);
+                for(int step = 0; step < shared; step++) {
+                    if(!steps[step].equals(first[step])) {
+                        shared = step;
+                    }
+                }
+            }
+
+            contexts.add("/" + Joiner.on('/').join(Arrays.copyOf(first, shared)));
+            for(int i : group) {
+                final String[] steps = steps(properties.get(i).valueTagName());
+                contextIndex[i] = context;
+                relative[i] = Joiner.on('/').join(Arrays.copyOfRange(steps, shared, steps.length));
+            }
+            context++;
+        }
+
+        return new PathPrefixes(contexts.build(), firstIndex, contextIndex, relative);
+    }
+
+    private static String[] steps(String path) {
+        if(!path.startsWith("/")) {
+            return null;
+        }
+        final String[] steps = path.substring(1).split("/", -1);
+        if(steps.length < 2) {
+            return null;
+        }
+        for(int i = 0; i < steps.length - 1; i++) {
+            if(!SimplePath.NAME.matcher(steps[i]).matches()) {
+                return null;
+            }
+        }
+        final String last = steps[steps.length - 1];
+        final boolean isAttribute = last.startsWith("@") && SimplePath.NAME.matcher(last.substring(1)).matches();
+        if(!last.equals(TEXT) && !isAttribute && !SimplePath.NAME.matcher(last).matches()) {
+            return null;
+        }
+        return steps;
+    }
+
+    private final ImmutableList<String> contexts;
+    private final int[] firstIndex;
+    private final int[] contextIndex;
+    private final String[] relative;
+
+    private PathPrefixes(ImmutableList<String> contexts, int[] firstIndex, int[] contextIndex, String[] relative) {
+        this.contexts = contexts;
+        this.firstIndex = firstIndex;
+        this.contextIndex = contextIndex;
+        this.relative = relative;
+    }
+
+    //The shared prefixes, each found once per document
+    ImmutableList<String> contexts() {
+        return contexts;
+    }
+
+    //The property that first declared the same path, which is the property itself unless its path is a duplicate
+    int firstIndex(int property) {
+        return firstIndex[property];
+    }
+
+    boolean isDuplicate(int property) {
+        return firstIndex[property] != property;
+    }
+
+    //The context the property is read relative to, or -1 if its path is evaluated as written
+    int contextIndex(int property) {
+        return contextIndex[property];
+    }
+
+    String relative(int property) {
+        return relative[property];
+    }
+
+}
@@ -0,0 +1,114 @@
+package com.hihi.processor;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//Every simple path of a value class merged into one tree of element steps. Streaming engines only need to track
+//which step they are on, and can ignore any subtree that no path walks into
+final class PathTree {
+
+    static void checkPaths(ImmutableList<ValueProperty> properties, Optional<String> record, String engine) {
+        if(record.isPresent() && !SimplePath.parse(record.get() + "/text()").isPresent()) {
+            throw new IllegalArgumentException(String.format("Invalid record path '%s'", record.get()));
+        }
+        for(ValueProperty property : properties) {
+            if(!SimplePath.parse(path(property, record)).isPresent()) {
+                final String msg = String.format(
+                        "Path '%s' for property '%s' can not be read by the %s engine",
+                        property.valueTagName(),
+                        property.humanName(),
+                        engine
+                );
+                throw new IllegalArgumentException(msg);
+            }
+        }
+    }
+
+    //The record steps are added first, so every step above the record has a lower id and every step below a higher one
+    static PathTree from(ImmutableList<ValueProperty> properties, Optional<String> record) {
+        final PathTree tree = new PathTree();
+        if(record.isPresent()) {
+            tree.record = tree.add(SimplePath.parse(record.get() + "/text()").get().elements());
+        }
+        for(int i = 0; i < properties.size(); i++) {
+            final SimplePath path = SimplePath.parse(path(properties.get(i), record)).get();
+            final Step step = tree.add(path.elements());
+            if(path.isAttribute()) {
+                step.attributes.put(i, path.attribute());
+            } else {
+                step.texts.add(i);
+            }
+        }
+        return tree;
+    }
+
+    static String path(ValueProperty property, Optional<String> record) {
+        return record.isPresent() ? record.get() + "/" + property.valueTagName() : property.valueTagName();
+    }
+
+    private final List<Step> steps = new ArrayList<>();
+    private Step record;
+
+    private PathTree() {
+        steps.add(new Step(0, -1, null));
+    }
+
+    private Step add(List<String> elements) {
+        Step step = steps.get(0);
+        for(String element : elements) {
+            Step child = step.children.get(element);
+            if(child == null) {
+                child = new Step(steps.size(), step.id, element);
+                steps.add(child);
+                step.children.put(element, child);
+            }
+            step = child;
+        }
+        return step;
+    }
+
+    List<Step> steps() {
+        return steps;
+    }
+
+    //The step of the repeated record element, if the value class has one
+    Optional<Step> record() {
+        return Optional.fromNullable(record);
+    }
+
+    //Whether the property is read from text rather than an attribute
+    boolean isText(int index) {
+        for(Step step : steps) {
+            if(step.texts.contains(index)) return true;
+        }
+        return false;
+    }
+
+    boolean hasText() {
+        for(Step step : steps) {
+            if(!step.texts.isEmpty()) return true;
+        }
+        return false;
+    }
+
+    static final class Step {
+        final int id;
+        final int parent;
+        final String name;
+        final Map<String, Step> children = new LinkedHashMap<>();
+        final Map<Integer, String> attributes = new LinkedHashMap<>();
+        final List<Integer> texts = new ArrayList<>();
+
+        private Step(int id, int parent, String name) {
+            this.id = id;
+            this.parent = parent;
+            this.name = name;
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+package com.hihi.processor;
+
+import com.google.auto.value.extension.AutoValueExtension.Context;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
+import com.squareup.javapoet.TypeSpec;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static com.gabrielittner.auto.value.util.AutoValueUtil.getFinalClassClassName;
+import static javax.lang.model.element.Modifier.FINAL;
+import static javax.lang.model.element.Modifier.PRIVATE;
+import static javax.lang.model.element.Modifier.PUBLIC;
+import static javax.lang.model.element.Modifier.STATIC;
+
+//The Iterator half of the record iterator the streaming engines generate for an @XmlRecord. Each engine adds its
+//reader, a constructor and a readRecord() method that returns the next record, or null once there are none left
+final class RecordIterator {
+
+    static final String CLASS_NAME = "RecordIterator";
+    static final String READ_RECORD_METHOD_NAME = "readRecord";
+
+    private RecordIterator() {
+    }
+
+    static TypeSpec.Builder builder(Context context, FieldSpec... readerFields) {
+        final ClassName finalClass = getFinalClassClassName(context);
+
+        final MethodSpec hasNext = MethodSpec.methodBuilder("hasNext")
+                .addAnnotation(Override.class)
+                .addModifiers(PUBLIC)
+                .returns(boolean.class)
+                .beginControlFlow("if (next == null && !done)")
+                .addStatement("next = $L()", READ_RECORD_METHOD_NAME)
+                .addStatement("done = next == null")
+                .endControlFlow()
+                .addStatement("return next != null")
+                .build();
+
+        final MethodSpec next = MethodSpec.methodBuilder("next")
+                .addAnnotation(Override.class)
+                .addModifiers(PUBLIC)
+                .returns(finalClass)
+                .beginControlFlow("if (!hasNext())")
+                .addStatement("throw new $T()", NoSuchElementException.class)
+                .endControlFlow()
+                .addStatement("final $T record = next", finalClass)
+                .addStatement("next = null")
+                .addStatement("return record")
+                .build();
+
+        final MethodSpec remove = MethodSpec.methodBuilder("remove")
+                .addAnnotation(Override.class)
+                .addModifiers(PUBLIC)
+                .addStatement("throw new $T()", UnsupportedOperationException.class)
+                .build();
+
+        return TypeSpec.classBuilder(CLASS_NAME)
+                .addModifiers(PRIVATE, STATIC, FINAL)
+                .addSuperinterface(ParameterizedTypeName.get(ClassName.get(Iterator.class),
+                        ClassName.get(context.autoValueClass())))
+                .addFields(Arrays.asList(readerFields))
+                .addField(boolean.class, "done", PRIVATE)
+                .addField(finalClass, "next", PRIVATE)
+                .addMethod(hasNext)
+                .addMethod(next)
+                .addMethod(remove);
+    }
+
+}
@@ -0,0 +1,61 @@
+package com.hihi.processor;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+
+import java.util.regex.Pattern;
+
+//An absolute path made only of element steps, ending in either text() or an attribute, e.g. "/pets/item/@id"
+final class SimplePath {
+
+    static final Pattern NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_.\\-]*");
+    private static final String TEXT = "text()";
+
+    static Optional<SimplePath> parse(String path) {
+        if(!path.startsWith("/")) {
+            return Optional.absent();
+        }
+
+        final String[] steps = path.substring(1).split("/", -1);
+        if(steps.length < 2) {
+            return Optional.absent();
+        }
+
+        final ImmutableList.Builder<String> elements = ImmutableList.builder();
+        for(int i = 0; i < steps.length - 1; i++) {
+            if(!NAME.matcher(steps[i]).matches()) {
+                return Optional.absent();
+            }
+            elements.add(steps[i]);
+        }
+
+        final String last = steps[steps.length - 1];
+        if(last.equals(TEXT)) {
+            return Optional.of(new SimplePath(elements.build(), null));
+        } else if(last.startsWith("@") && NAME.matcher(last.substring(1)).matches()) {
+            return Optional.of(new SimplePath(elements.build(), last.substring(1)));
+        }
+        return Optional.absent();
+    }
+
+    private final ImmutableList<String> elements;
+    private final String attribute;
+
+    private SimplePath(ImmutableList<String> elements, String attribute) {
+        this.elements = elements;
+        this.attribute = attribute;
+    }
+
+    ImmutableList<String> elements() {
+        return elements;
+    }
+
+    boolean isAttribute() {
+        return attribute != null;
+    }
+
+    String attribute() {
+        return attribute;
+    }
+
+}
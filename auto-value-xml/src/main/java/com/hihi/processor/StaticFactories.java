@@ -0,0 +1,66 @@
+package com.hihi.processor;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.TypeName;
+
+import java.util.List;
+
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.util.ElementFilter;
+
+import static javax.lang.model.element.Modifier.STATIC;
+
+//The static "fromXml", "fromXmlAsync", "fromXmlLazy", "fromXmlCached", "tryFromXml" and "writeXml" methods of a class,
+//found in one pass over its members. Matching every possible factory signature with getMatchingStaticMethod instead
+//converted each member to TypeNames again, around thirty times per class, which added up in builds with thousands of
+//value classes
+final class StaticFactories {
+
+    private static final ImmutableSet<String> NAMES =
+            ImmutableSet.of(XmlInput.FROM_XML_METHOD_NAME, AsyncFactory.FROM_XML_ASYNC_METHOD_NAME,
+                    XmlInput.FROM_XML_LAZY_METHOD_NAME, CachedFactory.FROM_XML_CACHED_METHOD_NAME,
+                    TryFactory.TRY_FROM_XML_METHOD_NAME, WriterGenerator.WRITE_XML_METHOD_NAME);
+
+    static StaticFactories of(TypeElement type) {
+        final ImmutableSet.Builder<List<Object>> signatures = ImmutableSet.builder();
+        for(ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+            final String name = method.getSimpleName().toString();
+            if(!method.getModifiers().contains(STATIC) || !NAMES.contains(name)) {
+                continue;
+            }
+            final ImmutableList.Builder<Object> signature = ImmutableList.builder()
+                    .add(name)
+                    .add(TypeName.get(method.getReturnType()));
+            for(VariableElement parameter : method.getParameters()) {
+                signature.add(TypeName.get(parameter.asType()));
+            }
+            signatures.add(signature.build());
+        }
+        return new StaticFactories(ClassName.get(type), signatures.build());
+    }
+
+    private final ClassName type;
+    private final ImmutableSet<List<Object>> signatures;
+
+    private StaticFactories(ClassName type, ImmutableSet<List<Object>> signatures) {
+        this.type = type;
+        this.signatures = signatures;
+    }
+
+    ClassName type() {
+        return type;
+    }
+
+    boolean declares(String name, TypeName returnType, TypeName... parameters) {
+        return !signatures.isEmpty() && signatures.contains(ImmutableList.builder()
+                .add(name)
+                .add(returnType)
+                .add((Object[]) parameters)
+                .build());
+    }
+
+}
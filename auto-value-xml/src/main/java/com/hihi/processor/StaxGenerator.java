@@ -0,0 +1,421 @@
+package com.hihi.processor;
+
+import com.google.auto.value.extension.AutoValueExtension.Context;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.hihi.xml.XmlBuffers;
+import com.hihi.xml.XmlChars;
+import com.squareup.javapoet.ArrayTypeName;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.TypeSpec;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.stream.StreamSource;
+
+import static com.gabrielittner.auto.value.util.AutoValueUtil.getFinalClassClassName;
+import static javax.lang.model.element.Modifier.FINAL;
+import static javax.lang.model.element.Modifier.PRIVATE;
+import static javax.lang.model.element.Modifier.STATIC;
+
+//Generates a single pass javax.xml.stream reader over the PathTree of a value class
+final class StaxGenerator {
+
+    static final Class<?> STATIC_IMPORTS = XMLStreamConstants.class;
+    static final String[] STATIC_IMPORT_NAMES = {"START_ELEMENT", "END_ELEMENT", "CHARACTERS", "CDATA", "SPACE"};
+
+    private static final ClassName CN_STRING = ClassName.get(String.class);
+    private static final ClassName CN_STRING_READER = ClassName.get(StringReader.class);
+    private static final ClassName CN_STREAM_SOURCE = ClassName.get(StreamSource.class);
+    private static final ClassName CN_XML_BUFFERS = ClassName.get(XmlBuffers.class);
+    private static final ClassName CN_XML_CHARS = ClassName.get(XmlChars.class);
+    private static final ClassName CN_XML_INPUT_FACTORY = ClassName.get(XMLInputFactory.class);
+    private static final ClassName CN_XML_STREAM_READER = ClassName.get(XMLStreamReader.class);
+    private static final ClassName CN_XML_STREAM_EXCEPTION = ClassName.get(XMLStreamException.class);
+
+    private static final ArrayTypeName CN_STRING_ARRAY = ArrayTypeName.of(String.class);
+    private static final ArrayTypeName CN_INT_ARRAY = ArrayTypeName.of(int.class);
+
+    private static final String XML_INPUT_FACTORY_FIELD_NAME = "XML_INPUT_FACTORY";
+    private static final String NEW_XML_INPUT_FACTORY_METHOD_NAME = "newXmlInputFactory";
+    private static final String PARENT_STEPS_FIELD_NAME = "PARENT_STEPS";
+    private static final String READ_VALUES_METHOD_NAME = "readValues";
+    private static final String CREATE_FROM_SOURCE_METHOD_NAME = "createFromSource";
+
+    private final Context context;
+    private final ImmutableList<ValueProperty> properties;
+    private final PathTree tree;
+    private final DecodedValues decoded;
+    private final ClassName recordIterator;
+    private final ListenerCalls listener;
+    private final TryFactory checks;
+    private final ParserFeatures features;
+
+    StaxGenerator(Context context, String className, ImmutableList<ValueProperty> properties, Optional<String> record,
+                  ListenerCalls listener, TryFactory checks, ParserFeatures features) {
+        this.context = context;
+        this.properties = properties;
+        this.tree = PathTree.from(properties, record);
+        this.decoded = new DecodedValues(properties, tree, checks);
+        this.recordIterator = ClassName.get(context.packageName(), className).nestedClass(RecordIterator.CLASS_NAME);
+        this.listener = listener;
+        this.checks = checks;
+        this.features = features;
+    }
+
+    void addTo(TypeSpec.Builder subclass, ImmutableSet<XmlInput> inputs, ImmutableSet<XmlInput> iterated) {
+        subclass.addField(xmlInputFactoryField())
+                .addField(parentStepsField());
+
+        if(tree.record().isPresent()) {
+            for(XmlInput input : iterated) {
+                subclass.addMethod(createFromXmlMethod(input.createIteratorFromXml(context), input, "new $T($L)", false));
+            }
+            for(XmlInput input : inputs) {
+                subclass.addMethod(createFromXmlMethod(input.createFromXml(context), input, "new $T($L).next()", false));
+            }
+            subclass.addMethod(newXmlInputFactoryMethod())
+                    .addType(recordIteratorType());
+        } else {
+            for(XmlInput input : inputs) {
+                subclass.addMethod(listener.isPresent()
+                        ? createFromXmlMethod(input.createFromXml(context), input, "$L($L, $L)", true)
+                        : createFromXmlMethod(input.createFromXml(context), input, "$L($L)", false));
+            }
+            subclass.addMethod(createFromSourceMethod())
+                    .addMethod(readValuesMethod())
+                    .addMethod(newXmlInputFactoryMethod());
+        }
+    }
+
+    private FieldSpec xmlInputFactoryField() {
+        return FieldSpec.builder(CN_XML_INPUT_FACTORY, XML_INPUT_FACTORY_FIELD_NAME, PRIVATE, STATIC, FINAL)
+                .initializer("$L()", NEW_XML_INPUT_FACTORY_METHOD_NAME)
+                .build();
+    }
+
+    private FieldSpec parentStepsField() {
+        final CodeBlock.Builder parents = CodeBlock.builder().add("{");
+        for(int i = 0; i < tree.steps().size(); i++) {
+            parents.add(i == 0 ? "$L" : ", $L", tree.steps().get(i).parent);
+        }
+        return FieldSpec.builder(CN_INT_ARRAY, PARENT_STEPS_FIELD_NAME, PRIVATE, STATIC, FINAL)
+                .initializer(parents.add("}").build())
+                .build();
+    }
+
+    //Coalescing keeps each run of text in one event, and namespaces are left unresolved to match the DOM engine
+    private MethodSpec newXmlInputFactoryMethod() {
+        final MethodSpec.Builder method = MethodSpec.methodBuilder(NEW_XML_INPUT_FACTORY_METHOD_NAME)
+                .addModifiers(PRIVATE, STATIC)
+                .returns(CN_XML_INPUT_FACTORY)
+                .addStatement("final $1T factory = $1T.newInstance()", CN_XML_INPUT_FACTORY)
+                .addStatement("factory.setProperty($T.IS_COALESCING, true)", CN_XML_INPUT_FACTORY)
+                .addStatement("factory.setProperty($T.IS_NAMESPACE_AWARE, false)", CN_XML_INPUT_FACTORY);
+        features.configure(method);
+        return method.addStatement("return factory").build();
+    }
+
+    //Every input is wrapped in a StreamSource, so the stream reader pulls straight from what the caller passed in.
+    //The format hands that source on, and takes either the record iterator class or the method to call first. A sized
+    //format also takes the size of the document, for the listener
+    private MethodSpec createFromXmlMethod(MethodSpec.Builder createFromXmlMethod, XmlInput input, String format, boolean sized) {
+        final Object target = tree.record().isPresent() ? recordIterator : CREATE_FROM_SOURCE_METHOD_NAME;
+        switch(input) {
+            case STRING:
+                createFromXmlMethod.addStatement("return $L", read(format, target,
+                        CodeBlock.of("new $T(new $T(xml))", CN_STREAM_SOURCE, CN_STRING_READER), input, sized));
+                break;
+            case INPUT_SOURCE:
+                createFromXmlMethod.addStatement("final $1T source = new $1T(xml.getSystemId())", CN_STREAM_SOURCE);
+                createFromXmlMethod.addStatement("source.setInputStream(xml.getByteStream())");
+                createFromXmlMethod.addStatement("source.setReader(xml.getCharacterStream())");
+                createFromXmlMethod.addStatement("return $L", read(format, target, "source", input, sized));
+                break;
+            case BYTE_BUFFER:
+            case PATH:
+                XmlInput.addReturn(createFromXmlMethod,
+                        read(format, target, CodeBlock.of("new $T($T.inputStream($L))",
+                                CN_STREAM_SOURCE,
+                                CN_XML_BUFFERS,
+                                input.buffer()), input, sized),
+                        input == XmlInput.PATH);
+                break;
+            default:
+                createFromXmlMethod.addStatement("return $L", read(format, target,
+                        CodeBlock.of("new $T(xml)", CN_STREAM_SOURCE), input, sized));
+        }
+        return createFromXmlMethod.build();
+    }
+
+    private CodeBlock read(String format, Object target, Object source, XmlInput input, boolean sized) {
+        return sized ? CodeBlock.of(format, target, source, listener.size(input)) : CodeBlock.of(format, target, source);
+    }
+
+    private MethodSpec createFromSourceMethod() {
+        final MethodSpec.Builder createFromXmlMethod = MethodSpec.methodBuilder(CREATE_FROM_SOURCE_METHOD_NAME)
+                .addModifiers(PRIVATE, STATIC)
+                .returns(getFinalClassClassName(context))
+                .addParameter(CN_STREAM_SOURCE, "source");
+        listener.addSizeParameter(createFromXmlMethod);
+
+        createFromXmlMethod.addStatement("$T reader = null", CN_XML_STREAM_READER);
+        createFromXmlMethod.beginControlFlow("try");
+        listener.start(createFromXmlMethod);
+        createFromXmlMethod.addStatement("reader = $L.createXMLStreamReader($L)", XML_INPUT_FACTORY_FIELD_NAME, features.limit("source"));
+        decoded.addArrays(createFromXmlMethod);
+        createFromXmlMethod.addStatement("final $T values = $L(reader$L)", CN_STRING_ARRAY, READ_VALUES_METHOD_NAME, decoded.arguments());
+        listener.documentRead(createFromXmlMethod, CodeBlock.of("size"));
+
+        createFromXmlMethod.addCode("\n \n");
+
+        addValues(createFromXmlMethod);
+
+        createFromXmlMethod.nextControlFlow("$L", streamExceptions());
+        createFromXmlMethod.addStatement("throw $L", listener.failed(checks.parseFailure("e")));
+        listener.catchFailures(createFromXmlMethod);
+        createFromXmlMethod.nextControlFlow("finally");
+        createFromXmlMethod.beginControlFlow("if (reader != null)");
+        createFromXmlMethod.beginControlFlow("try");
+        createFromXmlMethod.addStatement("reader.close()");
+        createFromXmlMethod.nextControlFlow("catch ($T e)", Exception.class);
+        createFromXmlMethod.addComment("Ignore");
+        createFromXmlMethod.endControlFlow();
+        createFromXmlMethod.endControlFlow();
+        createFromXmlMethod.endControlFlow();
+
+        return createFromXmlMethod.build();
+    }
+
+    private void addValues(MethodSpec.Builder method) {
+        final String[] names = new String[properties.size()];
+        for(int i = 0; i < properties.size(); i++) {
+            names[i] = properties.get(i).humanName();
+            checks.checkValue(method, properties.get(i), "values[" + i + "]");
+            method.addCode(decoded.extractValue(i));
+            listener.propertyRead(method, properties.get(i));
+        }
+
+        method.addCode("\n \n");
+
+        listener.addReturn(method, names);
+    }
+
+    //Keeps the stream reader and the step it is on between records, so only one record is held in memory at a time
+    private TypeSpec recordIteratorType() {
+        final MethodSpec constructor = MethodSpec.constructorBuilder()
+                .addParameter(CN_STREAM_SOURCE, "source")
+                .beginControlFlow("try")
+                .addStatement("reader = $L.createXMLStreamReader($L)", XML_INPUT_FACTORY_FIELD_NAME, features.limit("source"))
+                .nextControlFlow("$L", streamExceptions())
+                .addStatement("throw $L", checks.parseFailure("e"))
+                .endControlFlow()
+                .build();
+
+        final MethodSpec.Builder readRecord = MethodSpec.methodBuilder(RecordIterator.READ_RECORD_METHOD_NAME)
+                .addModifiers(PRIVATE)
+                .returns(getFinalClassClassName(context))
+                .beginControlFlow("try");
+        listener.start(readRecord);
+        readRecord.addStatement("final $T values = $L()", CN_STRING_ARRAY, READ_VALUES_METHOD_NAME)
+                .beginControlFlow("if (values == null)")
+                .addStatement("reader.close()")
+                .addStatement("return null")
+                .endControlFlow();
+        listener.documentRead(readRecord, CodeBlock.of("-1L"));
+
+        readRecord.addCode("\n \n");
+
+        addValues(readRecord);
+
+        readRecord.nextControlFlow("catch ($T e)", CN_XML_STREAM_EXCEPTION)
+                .addStatement("throw $L", listener.failed(checks.parseFailure("e")));
+        listener.catchFailures(readRecord);
+        readRecord.endControlFlow();
+
+        final List<FieldSpec> fields = new ArrayList<>();
+        fields.add(FieldSpec.builder(CN_XML_STREAM_READER, "reader", PRIVATE, FINAL).build());
+        fields.add(FieldSpec.builder(int.class, "step", PRIVATE).build());
+        fields.add(FieldSpec.builder(int.class, "skip", PRIVATE).build());
+        fields.addAll(decoded.fields());
+        if(decoded.any()) {
+            fields.add(FieldSpec.builder(CN_XML_CHARS, "chars", PRIVATE, FINAL)
+                    .initializer("new $T()", CN_XML_CHARS)
+                    .build());
+        }
+
+        return RecordIterator.builder(context, fields.toArray(new FieldSpec[fields.size()]))
+                .addMethod(constructor)
+                .addMethod(readRecord.build())
+                .addMethod(readValuesMethod())
+                .build();
+    }
+
+    //Reads until every path has matched once, which mirrors XPath returning the first match in document order. With a
+    //record this is done once per record element instead, returning null when there are no records left
+    private MethodSpec readValuesMethod() {
+        final Optional<PathTree.Step> record = tree.record();
+        final MethodSpec.Builder readValues = MethodSpec.methodBuilder(READ_VALUES_METHOD_NAME)
+                .addModifiers(PRIVATE)
+                .returns(CN_STRING_ARRAY)
+                .addException(CN_XML_STREAM_EXCEPTION);
+
+        if(record.isPresent()) {
+            readValues.addStatement("$T values = null", CN_STRING_ARRAY);
+            readValues.addStatement("int remaining = 0");
+            readValues.beginControlFlow("while (reader.hasNext())");
+        } else {
+            readValues.addModifiers(STATIC).addParameter(CN_XML_STREAM_READER, "reader");
+            decoded.addParameters(readValues);
+            if(decoded.any()) {
+                readValues.addStatement("final $1T chars = new $1T()", CN_XML_CHARS);
+            }
+            readValues.addStatement("final $T values = new $T[$L]", CN_STRING_ARRAY, CN_STRING, properties.size());
+            readValues.addStatement("int remaining = $L", properties.size());
+            readValues.addStatement("int step = 0");
+            readValues.addStatement("int skip = 0");
+            readValues.beginControlFlow("while (remaining > 0 && reader.hasNext())");
+        }
+
+        readValues.beginControlFlow("switch (reader.next())");
+
+        readValues.addCode(eventCase("case START_ELEMENT:\n", startElement()));
+
+        if(tree.hasText()) {
+            readValues.addCode(eventCase("case CHARACTERS:\ncase CDATA:\ncase SPACE:\n", characters()));
+        }
+
+        readValues.addCode(eventCase("case END_ELEMENT:\n", endElement()));
+
+        readValues.addCode(features.rejectDoctype());
+
+        readValues.endControlFlow();
+        readValues.endControlFlow();
+
+        readValues.addStatement(record.isPresent() ? "return null" : "return values");
+
+        return readValues.build();
+    }
+
+    //Limiting the size of a document opens an InputSource given only as a system id before the stream reader does
+    private CodeBlock streamExceptions() {
+        return features.limitsSize()
+                ? CodeBlock.of("catch ($T | $T e)", CN_XML_STREAM_EXCEPTION, IOException.class)
+                : CodeBlock.of("catch ($T e)", CN_XML_STREAM_EXCEPTION);
+    }
+
+    private CodeBlock eventCase(String label, CodeBlock body) {
+        return CodeBlock.builder()
+                .add(label)
+                .indent()
+                .add(body)
+                .addStatement("break")
+                .unindent()
+                .build();
+    }
+
+    private CodeBlock endElement() {
+        final CodeBlock.Builder code = CodeBlock.builder()
+                .beginControlFlow("if (skip > 0)")
+                .addStatement("skip--");
+        if(tree.record().isPresent()) {
+            code.nextControlFlow("else if (step == $L)", tree.record().get().id)
+                    .addStatement("step = $L[step]", PARENT_STEPS_FIELD_NAME)
+                    .addStatement("return values");
+        }
+        return code.nextControlFlow("else")
+                .addStatement("step = $L[step]", PARENT_STEPS_FIELD_NAME)
+                .endControlFlow()
+                .build();
+    }
+
+    private CodeBlock startElement() {
+        final CodeBlock.Builder code = CodeBlock.builder();
+        code.beginControlFlow("if (skip > 0)");
+        code.addStatement("skip++");
+        code.addStatement("break");
+        code.endControlFlow();
+
+        //Once a record has every value, the rest of it is skipped
+        if(tree.record().isPresent()) {
+            code.beginControlFlow("if (remaining == 0 && step >= $L)", tree.record().get().id);
+            code.addStatement("skip = 1");
+            code.addStatement("break");
+            code.endControlFlow();
+        }
+
+        code.beginControlFlow("switch (step)");
+        for(PathTree.Step step : tree.steps()) {
+            if(step.children.isEmpty()) continue;
+
+            code.add("case $L:\n", step.id).indent();
+            boolean first = true;
+            for(PathTree.Step child : step.children.values()) {
+                code.beginControlFlow(first ? "if ($S.equals(reader.getLocalName()))" : "else if ($S.equals(reader.getLocalName()))", child.name);
+                code.addStatement("step = $L", child.id);
+                if(tree.record().isPresent() && tree.record().get() == child) {
+                    code.addStatement("values = new $T[$L]", CN_STRING, properties.size());
+                    code.addStatement("remaining = $L", properties.size());
+                }
+                for(Map.Entry<Integer, String> attribute : child.attributes.entrySet()) {
+                    code.beginControlFlow("if (values[$1L] == null && (values[$1L] = reader.getAttributeValue(null, $2S)) != null)",
+                            attribute.getKey(),
+                            attribute.getValue());
+                    code.addStatement("remaining--");
+                    code.endControlFlow();
+                }
+                code.unindent().add("} ");
+                first = false;
+            }
+            code.add("else {\n").indent();
+            code.addStatement("skip = 1");
+            code.unindent().add("}\n");
+            code.addStatement("break").unindent();
+        }
+        code.add("default:\n").indent();
+        code.addStatement("skip = 1").unindent();
+        code.endControlFlow();
+        return code.build();
+    }
+
+    private CodeBlock characters() {
+        final CodeBlock.Builder code = CodeBlock.builder();
+        code.beginControlFlow("if (skip > 0)");
+        code.addStatement("break");
+        code.endControlFlow();
+
+        code.beginControlFlow("switch (step)");
+        for(PathTree.Step step : tree.steps()) {
+            if(step.texts.isEmpty()) continue;
+
+            code.add("case $L:\n", step.id).indent();
+            for(Integer index : step.texts) {
+                code.beginControlFlow("if (values[$L] == null)", index);
+                if(decoded.isDecoded(index)) {
+                    code.add(decoded.decode(index, CodeBlock.of(
+                            "chars.set(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength())")));
+                } else {
+                    code.addStatement("values[$L] = reader.getText()", index);
+                }
+                code.addStatement("remaining--");
+                code.endControlFlow();
+            }
+            code.addStatement("break").unindent();
+        }
+        code.endControlFlow();
+        return code.build();
+    }
+
+}
@@ -0,0 +1,126 @@
+package com.hihi.processor;
+
+import com.google.auto.value.extension.AutoValueExtension.Context;
+import com.google.common.collect.ImmutableSet;
+import com.hihi.xml.XmlFailure;
+import com.hihi.xml.XmlResult;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
+import com.squareup.javapoet.TypeName;
+
+import static com.hihi.processor.XmlInput.FROM_XML_METHOD_NAME_GENERATED;
+import static com.hihi.processor.XmlInput.FROM_XML_PARAMETER_NAME;
+import static javax.lang.model.element.Modifier.STATIC;
+
+//Static "tryFromXml" factories returning an XmlResult of the value class, for any of the XmlInput types. Each declared
+//input gets a tryCreateFromXml overload calling the matching createFromXml, which for these classes checks every
+//property that can not be null and fails with a stackless XmlFailure naming it, before anything dereferences it. Text
+//a property can not be read from, and a document the parser fails on, are thrown as stackless XmlFailures too
+final class TryFactory {
+
+    static final String TRY_FROM_XML_METHOD_NAME = "tryFromXml";
+    static final String TRY_FROM_XML_METHOD_NAME_GENERATED = "tryCreateFromXml";
+
+    private static final ClassName CN_XML_RESULT = ClassName.get(XmlResult.class);
+    private static final ClassName CN_XML_FAILURE = ClassName.get(XmlFailure.class);
+
+    static TryFactory from(ImmutableSet<XmlInput> inputs) {
+        return new TryFactory(!inputs.isEmpty());
+    }
+
+    static ImmutableSet<XmlInput> declaredBy(StaticFactories valueClass) {
+        final TypeName returnType = ParameterizedTypeName.get(CN_XML_RESULT, valueClass.type());
+        final ImmutableSet.Builder<XmlInput> inputs = ImmutableSet.builder();
+        for(XmlInput input : XmlInput.values()) {
+            if(valueClass.declares(TRY_FROM_XML_METHOD_NAME, returnType, input.type)) {
+                inputs.add(input);
+            }
+        }
+        return inputs.build();
+    }
+
+    static MethodSpec tryCreateFromXml(Context context, XmlInput input) {
+        final ClassName value = ClassName.get(context.autoValueClass());
+        return MethodSpec.methodBuilder(TRY_FROM_XML_METHOD_NAME_GENERATED)
+                .addModifiers(STATIC)
+                .returns(ParameterizedTypeName.get(CN_XML_RESULT, value))
+                .addParameter(input.type, FROM_XML_PARAMETER_NAME)
+                .beginControlFlow("try")
+                .addStatement("return $T.<$T>of($L($L))", CN_XML_RESULT, value, FROM_XML_METHOD_NAME_GENERATED, FROM_XML_PARAMETER_NAME)
+                .nextControlFlow("catch ($T e)", RuntimeException.class)
+                .addStatement("return $T.failure(e)", CN_XML_RESULT)
+                .endControlFlow()
+                .build();
+    }
+
+    private final boolean checked;
+
+    private TryFactory(boolean checked) {
+        this.checked = checked;
+    }
+
+    //What a document the parser failed on is thrown as: for these classes a stackless XmlFailure, as tryCreateFromXml
+    //only keeps its message, and otherwise a RuntimeException with the parser's exception as its cause
+    CodeBlock parseFailure(String exception) {
+        return checked
+                ? CodeBlock.of("$T.malformed($L)", CN_XML_FAILURE, exception)
+                : CodeBlock.of("new $T($L)", RuntimeException.class, exception);
+    }
+
+    //A value read from its text. For these classes a conversion that fails, on a number that does not parse or a date
+    //in the wrong format, is thrown as a stackless XmlFailure naming the property and its path, with what the
+    //conversion threw as its cause
+    CodeBlock declare(ValueProperty property, CodeBlock value) {
+        if(!checked || !property.converts()) {
+            return CodeBlock.builder()
+                    .addStatement("final $T $N = $L", property.type(), property.humanName(), value)
+                    .build();
+        }
+        return CodeBlock.builder()
+                .addStatement("final $T $N", property.type(), property.humanName())
+                .add(convert(property, CodeBlock.of("$N = $L", property.humanName(), value)))
+                .build();
+    }
+
+    //A statement converting text of the property, caught the same way as in declare
+    CodeBlock convert(ValueProperty property, CodeBlock statement) {
+        if(!checked || !property.converts()) {
+            return CodeBlock.builder().addStatement("$L", statement).build();
+        }
+        return CodeBlock.builder()
+                .beginControlFlow("try")
+                .addStatement("$L", statement)
+                .nextControlFlow("catch ($T e)", RuntimeException.class)
+                .addStatement("throw $T.invalid($S, $S, e)", CN_XML_FAILURE, property.humanName(), property.valueTagName())
+                .endControlFlow()
+                .build();
+    }
+
+    //The BYTES engine's reader, which for these classes fails on a document with a stackless XmlFailure of its own
+    CodeBlock byteReader(CodeBlock reader) {
+        return checked ? CodeBlock.of("$L.withoutStackTraces()", reader) : reader;
+    }
+
+    //The DOM engine reads the value of every node it found
+    void checkNode(MethodSpec.Builder method, ValueProperty property, String node) {
+        if(checked && !property.nullable()) {
+            addCheck(method, property, node);
+        }
+    }
+
+    //The streaming engines leave the value of a path that matched nothing null, booleans included
+    void checkValue(MethodSpec.Builder method, ValueProperty property, String value) {
+        if(checked && !property.nullable()) {
+            addCheck(method, property, value);
+        }
+    }
+
+    private void addCheck(MethodSpec.Builder method, ValueProperty property, String found) {
+        method.beginControlFlow("if ($L == null)", found)
+                .addStatement("throw $T.missing($S, $S)", CN_XML_FAILURE, property.humanName(), property.valueTagName())
+                .endControlFlow();
+    }
+
+}
@@ -0,0 +1,217 @@
+package com.hihi.processor;
+
+import com.google.auto.common.MoreElements;
+import com.google.auto.common.MoreTypes;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.hihi.xml.XmlTimes;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.TypeName;
+import com.squareup.javapoet.TypeSpec;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+
+import static javax.lang.model.element.Modifier.FINAL;
+import static javax.lang.model.element.Modifier.PRIVATE;
+import static javax.lang.model.element.Modifier.STATIC;
+
+//Reads text into the types XmlNumbers has no parse method for: enums and java.time values. An enum is matched by a
+//generated switch, which javac compiles to a lookup on the text's hash rather than the reflection behind valueOf. A
+//date or time with a format gets one static DateTimeFormatter per pattern, and without one plain ISO-8601 dates and
+//instants are read by XmlTimes. java.time is only referenced by name, so only classes using it need Java 8
+final class ValueCodec {
+
+    static final ClassName CN_INSTANT = ClassName.get("java.time", "Instant");
+    static final ClassName CN_LOCAL_DATE = ClassName.get("java.time", "LocalDate");
+    static final ClassName CN_OFFSET_DATE_TIME = ClassName.get("java.time", "OffsetDateTime");
+    private static final ClassName CN_ZONE_OFFSET = ClassName.get("java.time", "ZoneOffset");
+    private static final ClassName CN_DATE_TIME_FORMATTER = ClassName.get("java.time.format", "DateTimeFormatter");
+    private static final ClassName CN_XML_TIMES = ClassName.get(XmlTimes.class);
+    private static final ImmutableSet<TypeName> TIME_TYPES = ImmutableSet.<TypeName>of(CN_INSTANT, CN_LOCAL_DATE, CN_OFFSET_DATE_TIME);
+
+    private static final String TEXT_PARAMETER_NAME = "text";
+    private static final String FORMATTER_FIELD_NAME = "FORMATTER";
+
+    //Properties of the same type and format share one codec, keyed by codecs, so each class gets one member for it
+    static Optional<ValueCodec> from(ExecutableElement element, String humanName, String format, Map<String, ValueCodec> codecs) {
+        final TypeName type = TypeName.get(element.getReturnType());
+        final boolean isEnum = isEnum(element.getReturnType());
+        if(!isEnum && !TIME_TYPES.contains(type)) {
+            if(!format.isEmpty()) {
+                final String msg = String.format(
+                        "Format '%s' for property '%s' needs an Instant, LocalDate or OffsetDateTime",
+                        format,
+                        humanName
+                );
+                throw new IllegalArgumentException(msg);
+            }
+            return Optional.absent();
+        }
+        if(isEnum && !format.isEmpty()) {
+            final String msg = String.format("Format '%s' for property '%s' can not apply to an enum", format, humanName);
+            throw new IllegalArgumentException(msg);
+        }
+        final String key = type + " " + format;
+        if(codecs.containsKey(key)) {
+            return Optional.of(codecs.get(key));
+        }
+
+        final ValueCodec codec;
+        if(isEnum) {
+            codec = new ValueCodec(type, format, constants(element.getReturnType()), name(codecs, "parse" + ((ClassName) type).simpleName()));
+        } else if(!format.isEmpty()) {
+            checkFormat(format, humanName);
+            codec = new ValueCodec(type, format, ImmutableList.<String>of(), name(codecs, FORMATTER_FIELD_NAME));
+        } else if(type.equals(CN_OFFSET_DATE_TIME)) {
+            //OffsetDateTime.parse already uses a formatter the JDK keeps, so there is nothing to add
+            codec = new ValueCodec(type, format, ImmutableList.<String>of(), null);
+        } else {
+            codec = new ValueCodec(type, format, ImmutableList.<String>of(), name(codecs, "parse" + ((ClassName) type).simpleName()));
+        }
+        codecs.put(key, codec);
+        return Optional.of(codec);
+    }
+
+    private static boolean isEnum(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED && MoreTypes.asElement(type).getKind() == ElementKind.ENUM;
+    }
+
+    private static ImmutableList<String> constants(TypeMirror type) {
+        final ImmutableList.Builder<String> constants = ImmutableList.builder();
+        for(Element element : MoreElements.asType(MoreTypes.asElement(type)).getEnclosedElements()) {
+            if(element.getKind() == ElementKind.ENUM_CONSTANT) {
+                constants.add(element.getSimpleName().toString());
+            }
+        }
+        return constants.build();
+    }
+
+    //Enums from different classes can share a simple name
+    private static String name(Map<String, ValueCodec> codecs, String wanted) {
+        String name = wanted;
+        for(int i = 2; isTaken(codecs, name); i++) {
+            name = wanted + i;
+        }
+        return name;
+    }
+
+    private static boolean isTaken(Map<String, ValueCodec> codecs, String name) {
+        for(ValueCodec codec : codecs.values()) {
+            if(name.equals(codec.name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //Looked up reflectively since the processor targets Java 7, where the generated code could not use java.time anyway
+    private static void checkFormat(String format, String humanName) {
+        try {
+            Class.forName("java.time.format.DateTimeFormatter").getMethod("ofPattern", String.class).invoke(null, format);
+        } catch (InvocationTargetException e) {
+            final String msg = String.format("Invalid format '%s' for property '%s'", format, humanName);
+            throw new IllegalArgumentException(msg, e.getCause());
+        } catch (ReflectiveOperationException e) {
+            // No java.time to check with
+        }
+    }
+
+    static void addTo(TypeSpec.Builder subclass, Iterable<ValueProperty> properties) {
+        final Set<ValueCodec> codecs = new LinkedHashSet<>();
+        for(ValueProperty property : properties) {
+            codecs.addAll(property.codec().asSet());
+        }
+        for(ValueCodec codec : codecs) {
+            codec.addTo(subclass);
+        }
+    }
+
+    private final TypeName type;
+    private final String format;
+    private final ImmutableList<String> constants;
+    private final String name;
+
+    private ValueCodec(TypeName type, String format, ImmutableList<String> constants, String name) {
+        this.type = type;
+        this.format = format;
+        this.constants = constants;
+        this.name = name;
+    }
+
+    //The value read from text, a String expression that is never null here
+    CodeBlock decode(String text) {
+        if(!format.isEmpty()) {
+            return type.equals(CN_INSTANT)
+                    ? CodeBlock.of("$T.from($L.parse($L))", type, name, text)
+                    : CodeBlock.of("$T.parse($L, $L)", type, text, name);
+        }
+        if(name == null) {
+            return CodeBlock.of("$T.parse($L)", type, text);
+        }
+        return CodeBlock.of("$L($L)", name, text);
+    }
+
+    //The text decode reads value back from, a non-null expression of the codec's type
+    CodeBlock encode(String value) {
+        if(!TIME_TYPES.contains(type)) {
+            return CodeBlock.of("$L.name()", value);
+        }
+        return format.isEmpty() ? CodeBlock.of("$L.toString()", value) : CodeBlock.of("$L.format($L)", name, value);
+    }
+
+    private void addTo(TypeSpec.Builder subclass) {
+        if(name == null) {
+            return;
+        }
+        if(!format.isEmpty()) {
+            subclass.addField(formatterField());
+            return;
+        }
+        final MethodSpec.Builder method = MethodSpec.methodBuilder(name)
+                .addModifiers(PRIVATE, STATIC)
+                .returns(type)
+                .addParameter(String.class, TEXT_PARAMETER_NAME);
+        if(type.equals(CN_LOCAL_DATE)) {
+            method.addStatement("final long day = $T.isoDate($L)", CN_XML_TIMES, TEXT_PARAMETER_NAME)
+                    .addStatement("return day == $T.FALLBACK ? $T.parse($L) : $T.ofEpochDay(day)",
+                            CN_XML_TIMES, type, TEXT_PARAMETER_NAME, type);
+        } else if(type.equals(CN_INSTANT)) {
+            method.addStatement("final long seconds = $T.isoInstantSeconds($L)", CN_XML_TIMES, TEXT_PARAMETER_NAME)
+                    .addStatement("return seconds == $T.FALLBACK ? $T.parse($L) : $T.ofEpochSecond(seconds, $T.isoInstantNanos($L))",
+                            CN_XML_TIMES, type, TEXT_PARAMETER_NAME, type, CN_XML_TIMES, TEXT_PARAMETER_NAME);
+        } else {
+            method.beginControlFlow("switch ($L)", TEXT_PARAMETER_NAME);
+            for(String constant : constants) {
+                method.addCode("case $S:\n$>return $T.$L;\n$<", constant, type, constant);
+            }
+            method.endControlFlow()
+                    .addStatement("throw new $T($S + $L)", IllegalArgumentException.class, "No enum constant " + type + ".", TEXT_PARAMETER_NAME);
+        }
+        subclass.addMethod(method.build());
+    }
+
+    //A pattern without an offset reads an Instant as UTC, since it has no zone of its own
+    private FieldSpec formatterField() {
+        final CodeBlock.Builder initializer = CodeBlock.builder().add("$T.ofPattern($S)", CN_DATE_TIME_FORMATTER, format);
+        if(type.equals(CN_INSTANT)) {
+            initializer.add(".withZone($T.UTC)", CN_ZONE_OFFSET);
+        }
+        return FieldSpec.builder(CN_DATE_TIME_FORMATTER, name, PRIVATE, STATIC, FINAL)
+                .initializer(initializer.build())
+                .build();
+    }
+
+}
@@ -1,19 +1,32 @@
 package com.hihi.processor;
 
-import com.gabrielittner.auto.value.util.ElementUtil;
 import com.gabrielittner.auto.value.util.Property;
+import com.google.auto.common.AnnotationMirrors;
+import com.google.auto.common.MoreElements;
 import com.google.auto.value.extension.AutoValueExtension;
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.hihi.xml.XmlNumbers;
 import com.hihi.xml.XmlPath;
+import com.hihi.xml.XmlStrings;
+import com.squareup.javapoet.ArrayTypeName;
 import com.squareup.javapoet.ClassName;
 import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.ParameterizedTypeName;
 import com.squareup.javapoet.TypeName;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.lang.model.element.AnnotationMirror;
 import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
 
 import static com.squareup.javapoet.TypeName.BOOLEAN;
 import static com.squareup.javapoet.TypeName.DOUBLE;
@@ -26,108 +39,282 @@ final class ValueProperty extends Property {
 
     static ImmutableList<ValueProperty> from(AutoValueExtension.Context context) {
         final ImmutableList.Builder<ValueProperty> values = ImmutableList.builder();
+        final Map<String, ValueCodec> codecs = new HashMap<>();
         for(Map.Entry<String, ExecutableElement> entry : context.properties().entrySet()) {
-            values.add(new ValueProperty(entry.getKey(), entry.getValue()));
+            values.add(new ValueProperty(entry.getKey(), entry.getValue(), codecs));
         }
         return values.build();
     }
 
-    private static final List<TypeName> SUPPORTED_TYPES =
-            Arrays.asList(
-                    TypeName.get(String.class),
+    //Boxed types are compared against constants, since box() builds a new ClassName on every call
+    private static final ClassName CN_STRING = ClassName.get(String.class);
+    private static final ClassName CN_BOOLEAN = ClassName.get(Boolean.class);
+    private static final ClassName CN_DOUBLE = ClassName.get(Double.class);
+    private static final ClassName CN_FLOAT = ClassName.get(Float.class);
+    private static final ClassName CN_INTEGER = ClassName.get(Integer.class);
+    private static final ClassName CN_LONG = ClassName.get(Long.class);
+    private static final ClassName CN_SHORT = ClassName.get(Short.class);
+    private static final ClassName CN_XML_NUMBERS = ClassName.get(XmlNumbers.class);
+    private static final ClassName CN_XML_STRINGS = ClassName.get(XmlStrings.class);
+    private static final ClassName CN_ARRAYS = ClassName.get(Arrays.class);
+    private static final ClassName CN_COLLECTIONS = ClassName.get(Collections.class);
+    //Only referenced by name, so the generated code needs Guava just for classes declaring one
+    private static final ClassName CN_IMMUTABLE_LIST = ClassName.get("com.google.common.collect", "ImmutableList");
+    private static final TypeName INT_ARRAY = ArrayTypeName.of(INT);
+    private static final TypeName LONG_ARRAY = ArrayTypeName.of(LONG);
+    private static final TypeName DOUBLE_ARRAY = ArrayTypeName.of(DOUBLE);
+    private static final TypeName STRING_LIST = ParameterizedTypeName.get(ClassName.get(List.class), CN_STRING);
+    private static final TypeName STRING_IMMUTABLE_LIST = ParameterizedTypeName.get(CN_IMMUTABLE_LIST, CN_STRING);
+
+    private static final ImmutableSet<TypeName> SUPPORTED_TYPES =
+            ImmutableSet.of(
+                    CN_STRING,
                     DOUBLE,
-                    DOUBLE.box(),
+                    CN_DOUBLE,
                     FLOAT,
-                    FLOAT.box(),
+                    CN_FLOAT,
                     INT,
-                    INT.box(),
+                    CN_INTEGER,
                     LONG,
-                    LONG.box(),
+                    CN_LONG,
                     SHORT,
-                    SHORT.box(),
+                    CN_SHORT,
                     BOOLEAN,
-                    BOOLEAN.box()
+                    CN_BOOLEAN
             );
 
-    private static final ClassName CN_INTEGER = ClassName.get(Integer.class);
-    private static final ClassName CN_BOOLEAN = ClassName.get(Boolean.class);
-    private static final ClassName CN_DOUBLE = ClassName.get(Double.class);
-    private static final ClassName CN_FLOAT = ClassName.get(Float.class);
-    private static final ClassName CN_LONG = ClassName.get(Long.class);
-    private static final ClassName CN_SHORT = ClassName.get(Short.class);
+    //Read from every node the path selects rather than the first
+    private static final ImmutableSet<TypeName> NODE_SET_TYPES =
+            ImmutableSet.of(
+                    INT_ARRAY,
+                    LONG_ARRAY,
+                    DOUBLE_ARRAY,
+                    STRING_LIST,
+                    STRING_IMMUTABLE_LIST
+            );
 
     private final String valueTagName;
+    private final boolean isNested;
+    private final boolean isNodeSet;
     private final boolean isSupportedType;
+    private final Optional<ValueCodec> codec;
+    private final boolean intern;
 
-    private ValueProperty(String humanName, ExecutableElement element) {
+    private ValueProperty(String humanName, ExecutableElement element, Map<String, ValueCodec> codecs) {
         super(humanName, element);
-        valueTagName = (String) ElementUtil.getAnnotationValue(element, XmlPath.class, "value");
-        isSupportedType = SUPPORTED_TYPES.contains(type());
+        final Optional<AnnotationMirror> path = MoreElements.getAnnotationMirror(element, XmlPath.class);
+        valueTagName = path.isPresent() ? (String) annotationValue(path.get(), "value") : null;
+        codec = ValueCodec.from(element, humanName, path.isPresent() ? (String) annotationValue(path.get(), "format") : "", codecs);
+        isNested = !SUPPORTED_TYPES.contains(type()) && !codec.isPresent() && declaresNodeFactory(element.getReturnType());
+        isNodeSet = NODE_SET_TYPES.contains(type());
+        isSupportedType = SUPPORTED_TYPES.contains(type()) || codec.isPresent() || isNested || isNodeSet;
+        intern = path.isPresent() && (Boolean) annotationValue(path.get(), "intern");
+        if(intern && !typeIs(CN_STRING) && !typeIs(STRING_LIST) && !typeIs(STRING_IMMUTABLE_LIST)) {
+            final String msg = String.format("Interned property '%s' needs a String or a list of them, was '%s'", humanName, type());
+            throw new IllegalArgumentException(msg);
+        }
+    }
+
+    //The mirror of @XmlPath is only looked up once per property, and every value read from it
+    private static Object annotationValue(AnnotationMirror path, String name) {
+        return AnnotationMirrors.getAnnotationValue(path, name).getValue();
+    }
+
+    //A type with its own static "fromXml(Node)" factory is read from the node the path selects, in the same document
+    private static boolean declaresNodeFactory(TypeMirror type) {
+        if(type.getKind() != TypeKind.DECLARED) {
+            return false;
+        }
+        final StaticFactories factories = StaticFactories.of(MoreElements.asType(((DeclaredType) type).asElement()));
+        return factories.declares(XmlInput.FROM_XML_METHOD_NAME, factories.type(), XmlInput.NODE.type);
     }
 
     boolean isSupportedType() {
         return isSupportedType;
     }
 
+    boolean isNested() {
+        return isNested;
+    }
+
+    boolean isNodeSet() {
+        return isNodeSet;
+    }
+
+    //Enums and java.time values, read by a member the codec adds to the generated class
+    Optional<ValueCodec> codec() {
+        return codec;
+    }
+
+    //Numbers and booleans, which the streaming engines decode as soon as they read the text
+    boolean isNumeric() {
+        return isSupportedType && !isNested && !isNodeSet && !codec.isPresent() && !typeIs(CN_STRING);
+    }
+
+    //Whether reading the text can fail, as numbers, enums and dates can. Strings and booleans read any text, and a
+    //nested value fails on its own
+    boolean converts() {
+        if(isNested) {
+            return false;
+        }
+        if(isNodeSet) {
+            return !component().equals(CN_STRING);
+        }
+        return codec.isPresent() || !typeIs(CN_STRING) && !typeIs(BOOLEAN) && !typeIs(CN_BOOLEAN);
+    }
+
+    //Stored in a double[] once decoded rather than a long[]
+    boolean isDecimal() {
+        return typeIs(DOUBLE) || typeIs(CN_DOUBLE) || typeIs(FLOAT) || typeIs(CN_FLOAT);
+    }
+
+    //Decodes text into numbers[index] or decimals[index], with 1 or 0 standing for a boolean
+    CodeBlock decodeText(int index, CodeBlock text) {
+        final TypeName type = type().isBoxedPrimitive() ? type().unbox() : type();
+        if(type.equals(BOOLEAN)) {
+            return CodeBlock.of("numbers[$L] = $T.parseBoolean($L) ? 1 : 0", index, CN_XML_NUMBERS, text);
+        }
+        return CodeBlock.of("$L[$L] = $T.parse$L($L)", isDecimal() ? "decimals" : "numbers", index, CN_XML_NUMBERS, parseSuffix(type), text);
+    }
+
+    //Reads a value decodeText stored, where values[index] is only null if nothing matched the path
+    CodeBlock extractDecoded(int index) {
+        final String found = "values[" + index + "]";
+        final String array = (isDecimal() ? "decimals[" : "numbers[") + index + "]";
+        final TypeName type = type().isBoxedPrimitive() ? type().unbox() : type();
+        final String cast = type.equals(LONG) || type.equals(DOUBLE) ? "" : "(" + type + ") ";
+
+        if(type.equals(BOOLEAN)) {
+            return nullable()
+                    ? CodeBlock.of("final $T $N = $L == null ? null : $L != 0", type(), humanName(), found, array)
+                    : CodeBlock.of("final $T $N = $L != null && $L != 0", type(), humanName(), found, array);
+        } else if(nullable() && type().isBoxedPrimitive()) {
+            return CodeBlock.of("final $T $N = $L == null ? null : $L$L", type(), humanName(), found, cast, array);
+        } else {
+            return CodeBlock.of("final $T $N = $L$T.decoded($L, $L)", type(), humanName(), cast, CN_XML_NUMBERS, found, array);
+        }
+    }
+
+    private static String parseSuffix(TypeName type) {
+        if(type.equals(INT)) return "Int";
+        if(type.equals(LONG)) return "Long";
+        if(type.equals(SHORT)) return "Short";
+        if(type.equals(DOUBLE)) return "Double";
+        if(type.equals(FLOAT)) return "Float";
+        throw new AssertionError(String.format("type '%s' is not decoded", type));
+    }
+
     String valueTagName() {
         return valueTagName == null ? humanName() : valueTagName;
     }
 
-    CodeBlock extractTagValueMethod(int index) {
-        if(!isSupportedType) return null;
+    //The value read from the Node node<index>
+    CodeBlock tagValue(int index) {
+        final String node = "node" + index;
+        return value(node, node + ".getNodeValue()");
+    }
+
+    //The type of each value of a node set
+    TypeName component() {
+        return typeIs(INT_ARRAY) ? INT : typeIs(LONG_ARRAY) ? LONG : typeIs(DOUBLE_ARRAY) ? DOUBLE : CN_STRING;
+    }
+
+    //Fills an array sized from the NodeList nodes<nodes> once, so numbers are parsed straight into it without boxing.
+    //Strings are wrapped rather than copied into a list, and an empty node set is an empty array or list
+    CodeBlock extractNodeSet(int nodes, int index, TryFactory checks) {
+        final String list = "nodes" + nodes;
+        final String item = "item" + index;
+        final TypeName component = component();
+        final String array = component.equals(CN_STRING) ? "texts" + index : humanName();
+        final CodeBlock text = CodeBlock.of("$L.item($L).getNodeValue()", list, item);
+
+        final CodeBlock.Builder block = CodeBlock.builder()
+                .addStatement("final $T[] $N = new $T[$L.getLength()]", component, array, component, list)
+                .beginControlFlow("for (int $L = 0; $L < $N.length; $L++)", item, item, array, item);
+        if(component.equals(CN_STRING)) {
+            block.addStatement("$N[$L] = $L", array, item, text(text));
+        } else {
+            block.add(checks.convert(this, CodeBlock.of("$N[$L] = $T.parse$L($L)", array, item, CN_XML_NUMBERS, parseSuffix(component), text)));
+        }
+        block.endControlFlow();
+        if(typeIs(STRING_LIST)) {
+            block.addStatement("final $T $N = $T.unmodifiableList($T.asList($N))", type(), humanName(), CN_COLLECTIONS, CN_ARRAYS, array);
+        } else if(typeIs(STRING_IMMUTABLE_LIST)) {
+            block.addStatement("final $T $N = $T.copyOf($N)", type(), humanName(), CN_IMMUTABLE_LIST, array);
+        }
+        return block.build();
+    }
+
+    //source is the variable that is null when nothing matched the path, value the expression for the matched text
+    CodeBlock value(String source, String value) {
+        if(isNested) {
+            return nullable()
+                    ? CodeBlock.of("$1L == null ? null : $2T.$3L($1L)", source, type(), XmlInput.FROM_XML_METHOD_NAME)
+                    : CodeBlock.of("$T.$L($L)", type(), XmlInput.FROM_XML_METHOD_NAME, source);
+        }
+
+        if(codec.isPresent()) {
+            return nullable()
+                    ? CodeBlock.of("$L == null ? null : $L", source, codec.get().decode(value))
+                    : codec.get().decode(value);
+        }
 
         if(typeIs(BOOLEAN)) {
-            return primitiveNode(CN_BOOLEAN, index);
+            return primitiveNode(CN_BOOLEAN, value);
         } else if(typeIs(DOUBLE)) {
-            return primitiveNode(CN_DOUBLE, index);
+            return primitiveNode(CN_DOUBLE, value);
         } else if(typeIs(FLOAT)) {
-            return primitiveNode(CN_FLOAT, index);
+            return primitiveNode(CN_FLOAT, value);
         } else if(typeIs(INT)) {
-            return CodeBlock.of("final $1T $2N = $3T.parseInt(node$4L.getNodeValue())", type(), humanName(), CN_INTEGER, index);
+            return CodeBlock.of("$T.parseInt($L)", CN_XML_NUMBERS, value);
         } else if(typeIs(LONG)) {
-            return primitiveNode(CN_LONG, index);
+            return primitiveNode(CN_LONG, value);
         } else if(typeIs(SHORT)) {
-            return primitiveNode(CN_SHORT, index);
-        } else if (typeIs(INT.box())) {
+            return primitiveNode(CN_SHORT, value);
+        } else if (typeIs(CN_INTEGER)) {
             if(nullable()) {
-                return CodeBlock.of("final $1T $2N = node$3L == null ? null : $1T.parseInt(node$3L.getNodeValue())", type(), humanName(), index);
+                return CodeBlock.of("$L == null ? null : $T.parseInt($L)", source, CN_XML_NUMBERS, value);
             } else {
-                return CodeBlock.of("final $1T $2N = $1T.parseInt(node$3L.getNodeValue())", type(), humanName(), index);
+                return CodeBlock.of("$T.parseInt($L)", CN_XML_NUMBERS, value);
             }
-        } else if (typeIs(BOOLEAN.box())) {
-            return boxedNode(CN_BOOLEAN, index);
-        } else if (typeIs(DOUBLE.box())) {
-            return boxedNode(CN_DOUBLE, index);
-        } else if (typeIs(FLOAT.box())) {
-            return boxedNode(CN_FLOAT, index);
-        } else if (typeIs(LONG.box())) {
-            return boxedNode(CN_LONG, index);
-        } else if (typeIs(SHORT.box())) {
-            return boxedNode(CN_SHORT, index);
-        } else if(typeIs(TypeName.get(String.class))) {
+        } else if (typeIs(CN_BOOLEAN)) {
+            return boxedNode(CN_BOOLEAN, source, value);
+        } else if (typeIs(CN_DOUBLE)) {
+            return boxedNode(CN_DOUBLE, source, value);
+        } else if (typeIs(CN_FLOAT)) {
+            return boxedNode(CN_FLOAT, source, value);
+        } else if (typeIs(CN_LONG)) {
+            return boxedNode(CN_LONG, source, value);
+        } else if (typeIs(CN_SHORT)) {
+            return boxedNode(CN_SHORT, source, value);
+        } else if(typeIs(CN_STRING)) {
             if (nullable()) {
-                return CodeBlock.of("final $1T $2N = node$3L == null ? null : node$3L.getNodeValue()", type(), humanName(), index);
+                return CodeBlock.of("$L == null ? null : $L", source, text(CodeBlock.of("$L", value)));
             } else {
-                return CodeBlock.of("final $T $N = node$L.getNodeValue()", type(), humanName(), index);
+                return text(CodeBlock.of("$L", value));
             }
         }
 
         throw new AssertionError(String.format("supportedType is true but type '%s' isn't handled", type()));
     }
 
-    private CodeBlock nullableBoxedNode(ClassName cn, int index) {
-        return CodeBlock.of("final $1T $2N = node$4L == null ? null : $3T.parse$3T(node$4L.getNodeValue())", type(), humanName(), cn, index);
+    private CodeBlock text(CodeBlock value) {
+        return intern ? CodeBlock.of("$T.intern($L)", CN_XML_STRINGS, value) : value;
+    }
+
+    private CodeBlock nullableBoxedNode(ClassName cn, String source, String value) {
+        return CodeBlock.of("$L == null ? null : $T.parse$L($L)", source, CN_XML_NUMBERS, cn.simpleName(), value);
     }
 
-    private CodeBlock primitiveNode(ClassName cn, int index) {
-        return CodeBlock.of("final $1T $2N = $3T.parse$3T(node$4L.getNodeValue())", type(), humanName(), cn, index);
+    private CodeBlock primitiveNode(ClassName cn, String value) {
+        return CodeBlock.of("$T.parse$L($L)", CN_XML_NUMBERS, cn.simpleName(), value);
     }
 
-    private CodeBlock boxedNode(ClassName cn, int index) {
+    private CodeBlock boxedNode(ClassName cn, String source, String value) {
         if(nullable()) {
-            return nullableBoxedNode(cn, index);
+            return nullableBoxedNode(cn, source, value);
         } else {
-            return primitiveNode(cn, index);
+            return primitiveNode(cn, value);
         }
     }
 
@@ -0,0 +1,245 @@
+package com.hihi.processor;
+
+import com.google.auto.value.extension.AutoValueExtension.Context;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.hihi.processor.PathTree.Step;
+import com.hihi.xml.XmlOutput;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.TypeName;
+import com.squareup.javapoet.TypeSpec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static javax.lang.model.element.Modifier.FINAL;
+import static javax.lang.model.element.Modifier.PRIVATE;
+import static javax.lang.model.element.Modifier.STATIC;
+
+//Static "writeXml" methods taking the value class and an OutputStream or a Writer, which write a value as the document
+//its paths read it from. Every path is merged into one tree of elements, and the markup between two values is written
+//as one Fragment, encoded once in a static field of the generated class. A node set repeats its last element per value
+final class WriterGenerator {
+
+    static final String WRITE_XML_METHOD_NAME = "writeXml";
+    static final String WRITE_XML_METHOD_NAME_GENERATED = "writeToXml";
+
+    private static final ImmutableSet<TypeName> OUTPUTS =
+            ImmutableSet.<TypeName>of(ClassName.get(OutputStream.class), ClassName.get(Writer.class));
+    private static final ClassName CN_STRING = ClassName.get(String.class);
+    private static final ClassName CN_XML_OUTPUT = ClassName.get(XmlOutput.class);
+    private static final ClassName CN_FRAGMENT = CN_XML_OUTPUT.nestedClass("Fragment");
+    private static final String VALUE_PARAMETER_NAME = "value";
+    private static final String OUTPUT_PARAMETER_NAME = "xml";
+    private static final String FRAGMENT_FIELD_NAME = "FRAGMENT";
+
+    static ImmutableSet<TypeName> declaredBy(StaticFactories valueClass) {
+        final ImmutableSet.Builder<TypeName> outputs = ImmutableSet.builder();
+        for(TypeName output : OUTPUTS) {
+            if(valueClass.declares(WRITE_XML_METHOD_NAME, TypeName.VOID, valueClass.type(), output)) {
+                outputs.add(output);
+            }
+        }
+        return outputs.build();
+    }
+
+    private final Context context;
+    private final ImmutableList<ValueProperty> properties;
+    private final Optional<String> record;
+    //Field names by the markup they hold, so markup that repeats is only encoded once
+    private final Map<String, String> fragments = new LinkedHashMap<>();
+    private final StringBuilder markup = new StringBuilder();
+
+    WriterGenerator(Context context, ImmutableList<ValueProperty> properties, Optional<String> record) {
+        this.context = context;
+        this.properties = properties;
+        this.record = record;
+    }
+
+    void addTo(TypeSpec.Builder subclass, ImmutableSet<TypeName> outputs) {
+        checkPaths();
+        final PathTree tree = PathTree.from(properties, record);
+        final Map<String, Step> roots = tree.steps().get(0).children;
+        if(roots.size() != 1) {
+            final String msg = String.format(
+                    "Paths written to one document must start at the same element, not at each of %s",
+                    roots.keySet()
+            );
+            throw new IllegalArgumentException(msg);
+        }
+
+        final CodeBlock.Builder body = CodeBlock.builder();
+        write(body, roots.values().iterator().next());
+        flush(body);
+        for(Map.Entry<String, String> fragment : fragments.entrySet()) {
+            subclass.addField(FieldSpec.builder(CN_FRAGMENT, fragment.getValue(), PRIVATE, STATIC, FINAL)
+                    .initializer("$T.fragment($S)", CN_XML_OUTPUT, fragment.getKey())
+                    .build());
+        }
+
+        final ClassName value = ClassName.get(context.autoValueClass());
+        for(TypeName output : outputs) {
+            subclass.addMethod(MethodSpec.methodBuilder(WRITE_XML_METHOD_NAME_GENERATED)
+                    .addModifiers(STATIC)
+                    .addParameter(value, VALUE_PARAMETER_NAME)
+                    .addParameter(output, OUTPUT_PARAMETER_NAME)
+                    .beginControlFlow("try")
+                    .addStatement("$L($L, $T.of($L))", WRITE_XML_METHOD_NAME_GENERATED, VALUE_PARAMETER_NAME, CN_XML_OUTPUT, OUTPUT_PARAMETER_NAME)
+                    .nextControlFlow("catch ($T e)", IOException.class)
+                    .addStatement("throw new $T(e)", RuntimeException.class)
+                    .endControlFlow()
+                    .build());
+        }
+        subclass.addMethod(MethodSpec.methodBuilder(WRITE_XML_METHOD_NAME_GENERATED)
+                .addModifiers(PRIVATE, STATIC)
+                .addParameter(value, VALUE_PARAMETER_NAME)
+                .addParameter(CN_XML_OUTPUT, "out")
+                .addException(IOException.class)
+                .addCode(body.build())
+                .addStatement("out.flush()")
+                .build());
+    }
+
+    private void checkPaths() {
+        for(ValueProperty property : properties) {
+            if(property.isNested()) {
+                final String msg = String.format("Nested value for property '%s' can not be written", property.humanName());
+                throw new IllegalArgumentException(msg);
+            }
+            if(!SimplePath.parse(PathTree.path(property, record)).isPresent()) {
+                final String msg = String.format(
+                        "Path '%s' for property '%s' can not be written",
+                        property.valueTagName(),
+                        property.humanName()
+                );
+                throw new IllegalArgumentException(msg);
+            }
+        }
+    }
+
+    //Only the first property read from an attribute or text is written, as every other one reads the same value back
+    private void write(CodeBlock.Builder body, Step step) {
+        final Optional<Integer> nodeSet = nodeSet(step);
+        if(nodeSet.isPresent()) {
+            writeNodeSet(body, step, nodeSet.get());
+            return;
+        }
+        markup.append('<').append(step.name);
+        final Set<String> attributes = new HashSet<>();
+        for(Map.Entry<Integer, String> attribute : step.attributes.entrySet()) {
+            if(attributes.add(attribute.getValue())) {
+                writeValue(body, properties.get(attribute.getKey()), true, " " + attribute.getValue() + "=\"", "\"");
+            }
+        }
+        markup.append('>');
+        if(!step.texts.isEmpty()) {
+            writeValue(body, properties.get(step.texts.get(0)), false, "", "");
+        }
+        for(Step child : step.children.values()) {
+            write(body, child);
+        }
+        markup.append("</").append(step.name).append('>');
+    }
+
+    //A node set is read from every match of its path, so its element can hold nothing else
+    private Optional<Integer> nodeSet(Step step) {
+        for(int index : Iterables.concat(step.attributes.keySet(), step.texts)) {
+            final ValueProperty property = properties.get(index);
+            if(!property.isNodeSet()) {
+                continue;
+            }
+            if(step.parent == 0 || !step.children.isEmpty() || step.attributes.size() + step.texts.size() > 1) {
+                final String msg = String.format(
+                        "Node set '%s' for property '%s' needs an element of its own to be written",
+                        property.valueTagName(),
+                        property.humanName()
+                );
+                throw new IllegalArgumentException(msg);
+            }
+            return Optional.of(index);
+        }
+        return Optional.absent();
+    }
+
+    private void writeNodeSet(CodeBlock.Builder body, Step step, int index) {
+        final ValueProperty property = properties.get(index);
+        final String attribute = step.attributes.get(index);
+        final boolean mayBeNull = mayBeNull(property);
+        flush(body);
+        if(mayBeNull) {
+            body.beginControlFlow("if ($L.$N() != null)", VALUE_PARAMETER_NAME, property.methodName());
+        }
+        body.beginControlFlow("for ($T each : $L.$N())", property.component(), VALUE_PARAMETER_NAME, property.methodName());
+        markup.append('<').append(step.name).append(attribute == null ? ">" : " " + attribute + "=\"");
+        flush(body);
+        final String method = !property.component().equals(CN_STRING) ? "number" : attribute == null ? "text" : "attribute";
+        body.addStatement("out.$L(each)", method);
+        markup.append(attribute == null ? "" : "\">").append("</").append(step.name).append('>');
+        flush(body);
+        body.endControlFlow();
+        if(mayBeNull) {
+            body.endControlFlow();
+        }
+    }
+
+    //A null value leaves out its attribute, or the text of its element
+    private void writeValue(CodeBlock.Builder body, ValueProperty property, boolean attribute, String before, String after) {
+        final boolean mayBeNull = mayBeNull(property);
+        if(mayBeNull) {
+            flush(body);
+            body.beginControlFlow("if ($L.$N() != null)", VALUE_PARAMETER_NAME, property.methodName());
+        }
+        markup.append(before);
+        flush(body);
+        body.addStatement("out.$L", write(property, CodeBlock.of("$L.$N()", VALUE_PARAMETER_NAME, property.methodName()), attribute));
+        markup.append(after);
+        if(mayBeNull) {
+            flush(body);
+            body.endControlFlow();
+        }
+    }
+
+    //Boxed numbers are unboxed into the matching overload, so no value is written through a String but decimals
+    private static CodeBlock write(ValueProperty property, CodeBlock value, boolean attribute) {
+        final String text = attribute ? "attribute" : "text";
+        if(property.codec().isPresent()) {
+            return CodeBlock.of("$L($L)", text, property.codec().get().encode(value.toString()));
+        }
+        final TypeName type = property.type();
+        if(type.equals(CN_STRING)) {
+            return CodeBlock.of("$L($L)", text, value);
+        } else if(type.equals(TypeName.BOOLEAN) || type.equals(TypeName.BOOLEAN.box())) {
+            return CodeBlock.of("bool($L)", value);
+        }
+        return CodeBlock.of("number($L)", value);
+    }
+
+    private static boolean mayBeNull(ValueProperty property) {
+        return property.nullable() && !property.type().isPrimitive();
+    }
+
+    private void flush(CodeBlock.Builder body) {
+        if(markup.length() == 0) {
+            return;
+        }
+        final String text = markup.toString();
+        markup.setLength(0);
+        String field = fragments.get(text);
+        if(field == null) {
+            field = FRAGMENT_FIELD_NAME + fragments.size();
+            fragments.put(text, field);
+        }
+        body.addStatement("out.write($L)", field);
+    }
+
+}
@@ -2,119 +2,601 @@ package com.hihi.processor;
 
 import com.google.auto.service.AutoService;
 import com.google.auto.value.extension.AutoValueExtension;
-import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
-import com.squareup.javapoet.ArrayTypeName;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+import com.hihi.xml.XmlBuffers;
+import com.hihi.xml.XmlParser;
 import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.FieldSpec;
 import com.squareup.javapoet.JavaFile;
 import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
+import com.squareup.javapoet.TypeName;
 import com.squareup.javapoet.TypeSpec;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.Charset;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.annotation.processing.ProcessingEnvironment;
-import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 
 import static com.gabrielittner.auto.value.util.AutoValueUtil.getFinalClassClassName;
-import static com.gabrielittner.auto.value.util.AutoValueUtil.newFinalClassConstructorCall;
 import static com.gabrielittner.auto.value.util.AutoValueUtil.newTypeSpecBuilder;
-import static com.gabrielittner.auto.value.util.ElementUtil.getMatchingStaticMethod;
+import static javax.lang.model.element.Modifier.FINAL;
 import static javax.lang.model.element.Modifier.PRIVATE;
+import static javax.lang.model.element.Modifier.PROTECTED;
+import static javax.lang.model.element.Modifier.PUBLIC;
 import static javax.lang.model.element.Modifier.STATIC;
+import static javax.lang.model.element.Modifier.VOLATILE;
 
 @AutoService(AutoValueExtension.class)
 public class XmlFactoryAutoValueExtension extends AutoValueExtension {
 
     private static final ClassName CN_STRING = ClassName.get(String.class);
     private static final ClassName CN_NODE = ClassName.get(Node.class);
+    private static final ClassName CN_NODE_LIST = ClassName.get(NodeList.class);
     private static final ClassName CN_XPATH = ClassName.get(XPath.class);
     private static final ClassName CN_DOCUMENT = ClassName.get(Document.class);
+    private static final ClassName CN_XPATH_EXPRESSION = ClassName.get(XPathExpression.class);
     private static final ClassName CN_XPATH_EXPRESSION_EXCEPTION = ClassName.get(XPathExpressionException.class);
     private static final ClassName CN_RUNTIME_EXCEPTION = ClassName.get(RuntimeException.class);
-    private static final ClassName CN_CHARSET = ClassName.get(Charset.class);
-    private static final ClassName CN_INPUT_STREAM = ClassName.get(InputStream.class);
-    private static final ClassName CN_BYTE_ARRAY_INPUT_STREAM = ClassName.get(ByteArrayInputStream.class);
+    private static final ClassName CN_INPUT_SOURCE = ClassName.get(InputSource.class);
+    private static final ClassName CN_STRING_READER = ClassName.get(StringReader.class);
+    private static final ClassName CN_XML_BUFFERS = ClassName.get(XmlBuffers.class);
     private static final ClassName CN_DOCUMENT_BUILDER_FACTORY = ClassName.get(DocumentBuilderFactory.class);
     private static final ClassName CN_DOCUMENT_BUILDER = ClassName.get(DocumentBuilder.class);
     private static final ClassName CN_XPATH_FACTORY = ClassName.get(XPathFactory.class);
+    private static final ClassName CN_PARSER_CONFIGURATION_EXCEPTION = ClassName.get(ParserConfigurationException.class);
+    private static final ClassName CN_THREAD_LOCAL = ClassName.get(ThreadLocal.class);
+    private static final ClassName CN_QUEUE = ClassName.get(Queue.class);
+    private static final ClassName CN_REENTRANT_LOCK = ClassName.get(ReentrantLock.class);
+    private static final ClassName CN_CONCURRENT_LINKED_QUEUE = ClassName.get(ConcurrentLinkedQueue.class);
 
-    private static final ArrayTypeName CN_BYTE_ARRAY = ArrayTypeName.of(byte.class);
-
-    private static final String FROM_XML_METHOD_NAME = "fromXml";
-    private static final String FROM_XML_METHOD_NAME_GENERATED = "createFromXml";
-    private static final String FROM_XML_PARAMETER_NAME = "xml";
+    private static final String FROM_XML_METHOD_NAME_GENERATED = XmlInput.FROM_XML_METHOD_NAME_GENERATED;
+    private static final String FROM_XML_PARAMETER_NAME = XmlInput.FROM_XML_PARAMETER_NAME;
 
     private static final String GET_NODE_FOR_XPATH_METHOD_NAME = "getNodeForXPath";
+    private static final String GET_NODES_FOR_XPATH_METHOD_NAME = "getNodesForXPath";
     private static final String GET_NODE_FOR_XPATH_PARAM_PATH = "path";
     private static final String GET_NODE_FOR_XPATH_PARAM_EXPRESSION = "expression";
-    private static final String GET_NODE_FOR_XPATH_PARAM_DOCUMENT = "document";
+    private static final String GET_NODE_FOR_XPATH_PARAM_NODE = "node";
+
+    private static final String DOCUMENT_BUILDER_FACTORY_FIELD_NAME = "DOCUMENT_BUILDER_FACTORY";
+    private static final String XPATH_FACTORY_FIELD_NAME = "XPATH_FACTORY";
+    private static final String FACTORY_LOCK_FIELD_NAME = "FACTORY_LOCK";
+    private static final String XML_STATE_FIELD_NAME = "XML_STATE";
+    private static final String XML_STATE_POOL_FIELD_NAME = "XML_STATE_POOL";
+    private static final String XML_STATE_CLASS_NAME = "XmlState";
+    private static final String XML_STATE_BUILDER = "builder";
+    private static final String XML_STATE_EXPRESSION = "expression";
+    private static final String XML_STATE_RELATIVE = "relative";
+    private static final String XML_STATE_CONTEXT = "context";
+    private static final String COMPILE_XPATH_METHOD_NAME = "compileXPath";
+    private static final String ACQUIRE_XML_STATE_METHOD_NAME = "acquireXmlState";
+    private static final String RELEASE_XML_STATE_METHOD_NAME = "releaseXmlState";
+    private static final String LAZY_CLASS_NAME = "Lazy";
+    private static final String LAZY_NODE_FIELD_NAME = "xmlNode";
+    private static final String LAZY_LOCK_FIELD_NAME = "lock";
+    private static final String LAZY_READ_SUFFIX = "Read";
+    private static final String LAZY_FORCE_METHOD_NAME = "force";
+
+    //Writes a "<Class>.xpath-report.txt" next to each generated class, listing how each path is read and what that is
+    //estimated to cost, when passed as "-Aautovalue.xml.report=true"
+    static final String REPORT_OPTION = "autovalue.xml.report";
+
+    private XPath xpath;
 
     @Override
     public IncrementalExtensionType incrementalType(ProcessingEnvironment processingEnvironment) {
-        //todo Explore possibility of different incremental types to improve performance
+        //Each class is generated only from itself and the types of its properties, so Gradle recompiles just the
+        //classes that changed. Isolating processors may not write resources, so reports make the build non-incremental
         //See "https://docs.gradle.org/current/userguide/java_plugin.html#sec:incremental_annotation_processing"
-        return IncrementalExtensionType.ISOLATING;
+        return isReporting(processingEnvironment)
+                ? IncrementalExtensionType.UNKNOWN
+                : IncrementalExtensionType.ISOLATING;
     }
 
-    //Only do anything if a static method exists that: (1) takes in a String argument, and (2) has the name "fromXml(String s)"
+    //Only do anything if a static method named "fromXml" exists that takes in one of the XmlInput types, and returns
+    //either the value class, an Iterator or a CompletableFuture of it, or that converts a List or an array of Strings,
+    //or a "fromXmlLazy" or "fromXmlCached" one returning the value class, or a "tryFromXml" one returning an XmlResult
+    //of it, or if a "writeXml" method takes the value class and an OutputStream or a Writer
     @Override
     public boolean applicable(Context context) {
-        final TypeElement valueClass = context.autoValueClass();
-        final Optional<ExecutableElement> element =
-                getMatchingStaticMethod(valueClass, ClassName.get(valueClass), CN_STRING);
-        if(!element.isPresent()) {
-            return false;
-        }
-        return element.get().getSimpleName().contentEquals(FROM_XML_METHOD_NAME);
+        final StaticFactories factories = StaticFactories.of(context.autoValueClass());
+        return !XmlInput.declaredBy(factories).isEmpty()
+                || !XmlInput.iteratedBy(factories).isEmpty()
+                || !XmlInput.lazilyReadBy(factories).isEmpty()
+                || !BatchFactory.declaredBy(factories).isEmpty()
+                || !AsyncFactory.declaredBy(factories).isEmpty()
+                || !CachedFactory.declaredBy(factories).isEmpty()
+                || !TryFactory.declaredBy(factories).isEmpty()
+                || !WriterGenerator.declaredBy(factories).isEmpty();
     }
 
     @Override
     public String generateClass(Context context, String className, String classtoExtend, boolean isFinal) {
 
         final ImmutableList<ValueProperty> properties = ValueProperty.from(context);
-        final TypeSpec.Builder subclass =
-                newTypeSpecBuilder(context, className, classtoExtend, isFinal)
-                        .addMethod(createFromXmlMethod(context, properties))
-                        .addMethod(getNodeValueForXPath());
+        final StaticFactories factories = StaticFactories.of(context.autoValueClass());
+        final ImmutableSet<BatchFactory> batches = BatchFactory.declaredBy(factories);
+        final ImmutableSet<XmlInput> async = AsyncFactory.declaredBy(factories);
+        final ParserConfig config = ParserConfig.from(context, !async.isEmpty());
+        final ParserFeatures features = ParserFeatures.from(context);
+        final ImmutableSet<XmlInput> tried = TryFactory.declaredBy(factories);
+        final ImmutableSet<XmlInput> cached = CachedFactory.declaredBy(factories);
+        final ImmutableSet<TypeName> outputs = WriterGenerator.declaredBy(factories);
+        //Batches, asynchronous, try and cached factories call the createFromXml overload for their input, so it is
+        //generated even when not declared
+        final ImmutableSet<XmlInput> inputs = Sets.immutableEnumSet(Iterables.concat(
+                XmlInput.declaredBy(factories),
+                async,
+                tried,
+                cached,
+                batches.isEmpty() ? ImmutableSet.<XmlInput>of() : ImmutableSet.of(XmlInput.STRING)
+        ));
+        final ImmutableSet<XmlInput> iterated = XmlInput.iteratedBy(factories);
+        final ImmutableSet<XmlInput> lazy = XmlInput.lazilyReadBy(factories);
+        checkProperties(properties);
+        final PathAnalysis analysis = PathAnalysis.from(properties, config.record(), Sets.immutableEnumSet(Iterables.concat(inputs, iterated)), !lazy.isEmpty(), features.isPresent());
+        final XmlParser.Engine engine = config.engine() == XmlParser.Engine.AUTO ? analysis.engine() : config.engine();
+        checkRecord(config, engine, iterated);
+        checkNodes(engine, properties, Sets.union(inputs, iterated));
+        checkNodePaths(properties, Sets.union(inputs, lazy));
+        checkLazy(context, engine, lazy);
+        checkBatches(config, batches);
+        checkCached(config, cached);
+        checkFeatures(engine, features);
+        checkAsync(context, config, engine, async);
+        final ListenerCalls listener = ListenerCalls.from(context, config);
+        final TryFactory checks = TryFactory.from(tried);
+        if(isReporting(context.processingEnvironment())) {
+            writeReport(context, analysis.report(context.autoValueClass().getQualifiedName().toString(), config.engine(), engine));
+        }
+
+        final TypeSpec.Builder subclass = newTypeSpecBuilder(context, className, classtoExtend, isFinal);
+        final Class<?> staticImports;
+        final String[] staticImportNames;
+
+        if(engine == XmlParser.Engine.STAX) {
+            PathTree.checkPaths(properties, config.record(), "STAX");
+            new StaxGenerator(context, className, properties, config.record(), listener, checks, features).addTo(subclass, inputs, iterated);
+            staticImports = StaxGenerator.STATIC_IMPORTS;
+            staticImportNames = StaxGenerator.STATIC_IMPORT_NAMES;
+        } else if(engine == XmlParser.Engine.BYTES) {
+            PathTree.checkPaths(properties, config.record(), "BYTES");
+            new BytesGenerator(context, className, properties, config.record(), listener, checks).addTo(subclass, inputs, iterated);
+            staticImports = BytesGenerator.STATIC_IMPORTS;
+            staticImportNames = BytesGenerator.STATIC_IMPORT_NAMES;
+        } else {
+            final ClassName xmlState = ClassName.get(context.packageName(), className).nestedClass(XML_STATE_CLASS_NAME);
+            final PathPrefixes prefixes = PathPrefixes.from(properties);
+            subclass.addField(documentBuilderFactoryField(features))
+                    .addField(xpathFactoryField())
+                    .addField(factoryLockField())
+                    .addField(xmlStateField(config, xmlState));
+            for(XmlInput input : inputs) {
+                if(input != XmlInput.INPUT_SOURCE && !input.needsDom()
+                        || input == XmlInput.INPUT_SOURCE && listener.isPresent()) {
+                    subclass.addMethod(createFromXmlMethod(context, input, listener));
+                }
+            }
+            subclass.addMethod(createFromInputSourceMethod(context, properties, prefixes, listener, checks, features, xmlState));
+            if(inputs.contains(XmlInput.NODE) || inputs.contains(XmlInput.DOCUMENT)) {
+                subclass.addMethod(createFromNodeMethod(context, properties, prefixes, listener, checks, xmlState));
+            }
+            if(inputs.contains(XmlInput.DOCUMENT)) {
+                subclass.addMethod(createFromDocumentMethod(context));
+            }
+            if(!lazy.isEmpty()) {
+                final ClassName lazyValue = ClassName.get(context.packageName(), className).nestedClass(LAZY_CLASS_NAME);
+                for(XmlInput input : lazyInputs(lazy)) {
+                    subclass.addMethod(createFromXmlLazyMethod(context, input, features, xmlState, lazyValue));
+                }
+                subclass.addType(lazyType(context, properties, prefixes, checks, xmlState));
+            }
+            features.addTo(subclass);
+            subclass.addMethod(getNodeValueForXPath());
+            if(!prefixes.contexts().isEmpty()) {
+                subclass.addMethod(getNodeValueForRelativeXPath());
+            }
+            final boolean readsNodeSets = readsNodeSets(properties);
+            if(readsNodeSets) {
+                subclass.addMethod(getNodesForXPath());
+            }
+            subclass
+                    .addMethod(compileXPathMethod())
+                    .addMethod(acquireXmlStateMethod(config, xmlState))
+                    .addMethod(releaseXmlStateMethod(config, xmlState))
+                    .addType(xmlStateType(properties, prefixes));
+            staticImports = XPathConstants.class;
+            staticImportNames = readsNodeSets ? new String[] {"NODE", "NODESET"} : new String[] {"NODE"};
+        }
+
+        listener.addTo(subclass);
+        ValueCodec.addTo(subclass, properties);
+        if(!batches.isEmpty()) {
+            subclass.addField(BatchFactory.converterField(context));
+            for(BatchFactory batch : batches) {
+                subclass.addMethod(batch.createFromXml(context, config.batchThreshold()));
+            }
+        }
+        for(XmlInput input : async) {
+            subclass.addMethod(AsyncFactory.createFromXmlAsync(context, input))
+                    .addMethod(AsyncFactory.createFromXmlAsyncOnExecutor(context, input));
+        }
+        for(XmlInput input : tried) {
+            subclass.addMethod(TryFactory.tryCreateFromXml(context, input));
+        }
+        if(!cached.isEmpty()) {
+            subclass.addField(CachedFactory.cacheField(context, config.cacheSize()))
+                    .addMethod(CachedFactory.cacheMethod(context));
+            for(XmlInput input : cached) {
+                subclass.addMethod(CachedFactory.createFromXmlCached(context, input));
+            }
+        }
+        if(!outputs.isEmpty()) {
+            new WriterGenerator(context, properties, config.record()).addTo(subclass, outputs);
+        }
 
         return JavaFile.builder(context.packageName(), subclass.build())
+                .addStaticImport(staticImports, staticImportNames)
                 .indent("\t")
-                .addStaticImport(XPathConstants.class, "NODE")
                 .build()
                 .toString();
     }
 
+    //Compile every path once up front, so a typo fails the build rather than the first request
+    private void checkProperties(ImmutableList<ValueProperty> properties) {
+        final XPath path = xpath();
+        for(ValueProperty property : properties) {
+            if(!property.isSupportedType()) {
+                final String msg = String.format(
+                        "Can not read type '%s' for property '%s'",
+                        property.type(),
+                        property.humanName()
+                );
+                throw new UnsupportedOperationException(msg);
+            }
+            try {
+                path.compile(property.valueTagName());
+            } catch (XPathExpressionException e) {
+                final String msg = String.format(
+                        "Invalid path '%s' for property '%s'",
+                        property.valueTagName(),
+                        property.humanName()
+                );
+                throw new IllegalArgumentException(msg, e);
+            }
+        }
+    }
+
+    //Records are streamed, so they need an engine that does not build the whole document first. The BYTES engine reads
+    //a stream or Reader into one buffer before the first record, so iterating over one would not keep memory constant
+    private void checkRecord(ParserConfig config, XmlParser.Engine engine, ImmutableSet<XmlInput> iterated) {
+        if(config.record().isPresent() && engine == XmlParser.Engine.DOM) {
+            final String msg = String.format(
+                    "Record path '%s' needs the STAX or BYTES engine",
+                    config.record().get()
+            );
+            throw new IllegalArgumentException(msg);
+        }
+        if(engine == XmlParser.Engine.BYTES) {
+            for(XmlInput input : iterated) {
+                if(XmlInput.STREAMED.contains(input)) {
+                    final String msg = String.format(
+                            "Factories returning an Iterator cannot take %s with the BYTES engine, which reads all of it first",
+                            input.type.simpleName()
+                    );
+                    throw new IllegalArgumentException(msg);
+                }
+            }
+        }
+        if(!config.record().isPresent() && !iterated.isEmpty()) {
+            throw new IllegalArgumentException("Factories returning an Iterator need an @XmlRecord path");
+        }
+    }
+
+    //Nodes only exist once a document has been built, which the streaming engines never do
+    private void checkNodes(XmlParser.Engine engine, ImmutableList<ValueProperty> properties, Set<XmlInput> inputs) {
+        if(engine == XmlParser.Engine.DOM) {
+            return;
+        }
+        for(XmlInput input : inputs) {
+            if(input.needsDom()) {
+                final String msg = String.format("Factories taking a %s need the DOM engine", input.type.simpleName());
+                throw new IllegalArgumentException(msg);
+            }
+        }
+        for(ValueProperty property : properties) {
+            if(property.isNested()) {
+                final String msg = String.format(
+                        "Nested value '%s' for property '%s' needs the DOM engine",
+                        property.type(),
+                        property.humanName()
+                );
+                throw new IllegalArgumentException(msg);
+            }
+            if(property.isNodeSet()) {
+                final String msg = String.format(
+                        "Node set '%s' for property '%s' needs the DOM engine",
+                        property.type(),
+                        property.humanName()
+                );
+                throw new IllegalArgumentException(msg);
+            }
+        }
+    }
+
+    //XPath evaluates an absolute path from the root of the node's document, whatever node it is given, so a class read
+    //from a Node may only declare paths relative to it. A Document factory reads absolute paths from its root
+    private void checkNodePaths(ImmutableList<ValueProperty> properties, Set<XmlInput> inputs) {
+        if(!inputs.contains(XmlInput.NODE)) {
+            return;
+        }
+        for(ValueProperty property : properties) {
+            if(property.valueTagName().startsWith("/")) {
+                final String msg = String.format(
+                        "Path '%s' for property '%s' is absolute, but factories taking a Node read relative to it",
+                        property.valueTagName(),
+                        property.humanName()
+                );
+                throw new IllegalArgumentException(msg);
+            }
+        }
+    }
+
+    //The lazy value extends the value class directly, and reads from the document it keeps
+    private void checkLazy(Context context, XmlParser.Engine engine, ImmutableSet<XmlInput> lazy) {
+        if(lazy.isEmpty()) {
+            return;
+        }
+        if(engine != XmlParser.Engine.DOM) {
+            throw new IllegalArgumentException("Factories named \"fromXmlLazy\" need the DOM engine");
+        }
+        if(!context.autoValueClass().getTypeParameters().isEmpty()) {
+            throw new IllegalArgumentException("Factories named \"fromXmlLazy\" need a value class without type parameters");
+        }
+    }
+
+    //The BYTES engine has no JAXP parser, and never reads a DTD or expands a declared entity to begin with
+    private void checkFeatures(XmlParser.Engine engine, ParserFeatures features) {
+        if(features.isPresent() && engine == XmlParser.Engine.BYTES) {
+            throw new IllegalArgumentException("@XmlFeatures needs the DOM or STAX engine");
+        }
+    }
+
+    private void checkBatches(ParserConfig config, ImmutableSet<BatchFactory> batches) {
+        if(!batches.isEmpty() && config.batchThreshold() < 1) {
+            final String msg = String.format("Batch threshold must be positive, was %d", config.batchThreshold());
+            throw new IllegalArgumentException(msg);
+        }
+    }
+
+    //Streams would have to be read to the end before their hash is known, so only documents already in memory are
+    //cached
+    private void checkCached(ParserConfig config, ImmutableSet<XmlInput> cached) {
+        for(XmlInput input : cached) {
+            if(!CachedFactory.INPUTS.contains(input)) {
+                final String msg = String.format("Factories named \"fromXmlCached\" cannot take %s", input.type.simpleName());
+                throw new IllegalArgumentException(msg);
+            }
+        }
+        if(!cached.isEmpty() && config.cacheSize() < 1) {
+            final String msg = String.format("Cache size must be positive, was %d", config.cacheSize());
+            throw new IllegalArgumentException(msg);
+        }
+    }
+
+    //Only the DOM engine keeps parser state, which a class can still ask to keep per thread
+    private void checkAsync(Context context, ParserConfig config, XmlParser.Engine engine, ImmutableSet<XmlInput> async) {
+        if(!async.isEmpty() && config.threadLocal() && engine == XmlParser.Engine.DOM) {
+            final String msg = "Parser state kept per thread with threadLocal = true is built again for each document "
+                    + "a \"fromXmlAsync\" factory reads on a new virtual thread, use threadLocal = false to share a pool";
+            context.processingEnvironment().getMessager().printMessage(Diagnostic.Kind.WARNING, msg, context.autoValueClass());
+        }
+    }
+
+    //Looking up an XPathFactory searches the classpath for providers, too slow to repeat for thousands of classes.
+    //Extensions are created once per compilation and only called from the processing thread, so one XPath is reused
+    private XPath xpath() {
+        if(xpath == null) {
+            xpath = XPathFactory.newInstance().newXPath();
+        }
+        return xpath;
+    }
+
+    private static boolean isReporting(ProcessingEnvironment processingEnvironment) {
+        return Boolean.parseBoolean(processingEnvironment.getOptions().get(REPORT_OPTION));
+    }
+
+    //A report that can not be written is not worth failing the build over
+    private void writeReport(Context context, String report) {
+        final TypeElement valueClass = context.autoValueClass();
+        final String name = valueClass.getSimpleName() + ".xpath-report.txt";
+        try {
+            final FileObject file = context.processingEnvironment().getFiler()
+                    .createResource(StandardLocation.SOURCE_OUTPUT, context.packageName(), name, valueClass);
+            try (Writer writer = file.openWriter()) {
+                writer.write(report);
+            }
+        } catch (IOException e) {
+            final String msg = String.format("Could not write report '%s': %s", name, e.getMessage());
+            context.processingEnvironment().getMessager().printMessage(Diagnostic.Kind.WARNING, msg, valueClass);
+        }
+    }
+
+    private FieldSpec documentBuilderFactoryField(ParserFeatures features) {
+        return FieldSpec.builder(CN_DOCUMENT_BUILDER_FACTORY, DOCUMENT_BUILDER_FACTORY_FIELD_NAME, PRIVATE, STATIC, FINAL)
+                .initializer(features.documentBuilderFactory())
+                .build();
+    }
+
+    private FieldSpec xpathFactoryField() {
+        return FieldSpec.builder(CN_XPATH_FACTORY, XPATH_FACTORY_FIELD_NAME, PRIVATE, STATIC, FINAL)
+                .initializer("$T.newInstance()", CN_XPATH_FACTORY)
+                .build();
+    }
+
+    //JAXP does not promise its factories are thread safe, and a state is created on whichever thread first needs one
+    private FieldSpec factoryLockField() {
+        return FieldSpec.builder(CN_REENTRANT_LOCK, FACTORY_LOCK_FIELD_NAME, PRIVATE, STATIC, FINAL)
+                .initializer("new $T()", CN_REENTRANT_LOCK)
+                .build();
+    }
+
+    //Parsers are not thread safe, so each thread either keeps its own or borrows one from a shared pool
+    private FieldSpec xmlStateField(ParserConfig config, ClassName xmlState) {
+        if(config.threadLocal()) {
+            final TypeName type = ParameterizedTypeName.get(CN_THREAD_LOCAL, xmlState);
+            final TypeSpec initializer = TypeSpec.anonymousClassBuilder("")
+                    .superclass(type)
+                    .addMethod(MethodSpec.methodBuilder("initialValue")
+                            .addAnnotation(Override.class)
+                            .addModifiers(PROTECTED)
+                            .returns(xmlState)
+                            .addStatement("return new $T()", xmlState)
+                            .build())
+                    .build();
+            return FieldSpec.builder(type, XML_STATE_FIELD_NAME, PRIVATE, STATIC, FINAL)
+                    .initializer("$L", initializer)
+                    .build();
+        } else {
+            final TypeName type = ParameterizedTypeName.get(CN_QUEUE, xmlState);
+            return FieldSpec.builder(type, XML_STATE_POOL_FIELD_NAME, PRIVATE, STATIC, FINAL)
+                    .initializer("new $T<>()", CN_CONCURRENT_LINKED_QUEUE)
+                    .build();
+        }
+    }
+
+    private MethodSpec acquireXmlStateMethod(ParserConfig config, ClassName xmlState) {
+        final MethodSpec.Builder acquire = MethodSpec.methodBuilder(ACQUIRE_XML_STATE_METHOD_NAME)
+                .addModifiers(PRIVATE, STATIC)
+                .returns(xmlState);
+
+        if(config.threadLocal()) {
+            acquire.addStatement("return $L.get()", XML_STATE_FIELD_NAME);
+        } else {
+            acquire.addStatement("final $T state = $L.poll()", xmlState, XML_STATE_POOL_FIELD_NAME);
+            acquire.addStatement("return state == null ? new $T() : state", xmlState);
+        }
+
+        return acquire.build();
+    }
+
+    private MethodSpec releaseXmlStateMethod(ParserConfig config, ClassName xmlState) {
+        final MethodSpec.Builder release = MethodSpec.methodBuilder(RELEASE_XML_STATE_METHOD_NAME)
+                .addModifiers(PRIVATE, STATIC)
+                .addParameter(xmlState, "state");
+
+        if(config.threadLocal()) {
+            release.addComment("Owned by the current thread, nothing to hand back");
+        } else {
+            release.addStatement("state.$L.reset()", XML_STATE_BUILDER);
+            release.addStatement("$L.offer(state)", XML_STATE_POOL_FIELD_NAME);
+        }
+
+        return release.build();
+    }
+
+    //XPathExpression is not thread safe either, so every state compiles its own copy of each path, once. The builder
+    //and XPath are made holding the factory lock, and the paths compiled after it is released
+    private TypeSpec xmlStateType(ImmutableList<ValueProperty> properties, PathPrefixes prefixes) {
+        final TypeSpec.Builder type = TypeSpec.classBuilder(XML_STATE_CLASS_NAME)
+                .addModifiers(PRIVATE, STATIC, FINAL)
+                .addField(CN_DOCUMENT_BUILDER, XML_STATE_BUILDER, FINAL);
+
+        final MethodSpec.Builder constructor = MethodSpec.constructorBuilder()
+                .addStatement("final $T path", CN_XPATH)
+                .addStatement("$L.lock()", FACTORY_LOCK_FIELD_NAME)
+                .beginControlFlow("try")
+                .addStatement("$L = $L.newDocumentBuilder()", XML_STATE_BUILDER, DOCUMENT_BUILDER_FACTORY_FIELD_NAME)
+                .addStatement("path = $L.newXPath()", XPATH_FACTORY_FIELD_NAME)
+                .nextControlFlow("catch ($T e)", CN_PARSER_CONFIGURATION_EXCEPTION)
+                .addStatement("throw new $T(e)", CN_RUNTIME_EXCEPTION)
+                .nextControlFlow("finally")
+                .addStatement("$L.unlock()", FACTORY_LOCK_FIELD_NAME)
+                .endControlFlow();
+
+        for(int i = 0; i < prefixes.contexts().size(); i++) {
+            addExpression(type, constructor, XML_STATE_CONTEXT + i, prefixes.contexts().get(i));
+        }
+
+        for(int i = 0; i < properties.size(); i++) {
+            if(prefixes.isDuplicate(i)) {
+                continue;
+            }
+            if(prefixes.contextIndex(i) != -1) {
+                addExpression(type, constructor, XML_STATE_RELATIVE + i, prefixes.relative(i));
+            }
+            addExpression(type, constructor, XML_STATE_EXPRESSION + i, properties.get(i).valueTagName());
+        }
+
+        return type.addMethod(constructor.build()).build();
+    }
+
+    private void addExpression(TypeSpec.Builder type, MethodSpec.Builder constructor, String name, String path) {
+        type.addField(CN_XPATH_EXPRESSION, name, FINAL);
+        constructor.addStatement("$L = $L(path, $S)", name, COMPILE_XPATH_METHOD_NAME, path);
+    }
+
+    private MethodSpec compileXPathMethod() {
+        return MethodSpec.methodBuilder(COMPILE_XPATH_METHOD_NAME)
+                .addModifiers(PRIVATE, STATIC)
+                .addParameter(CN_XPATH, GET_NODE_FOR_XPATH_PARAM_PATH)
+                .addParameter(CN_STRING, GET_NODE_FOR_XPATH_PARAM_EXPRESSION)
+                .returns(CN_XPATH_EXPRESSION)
+                .beginControlFlow("try")
+                .addStatement("return $L.compile($L)", GET_NODE_FOR_XPATH_PARAM_PATH, GET_NODE_FOR_XPATH_PARAM_EXPRESSION)
+                .nextControlFlow("catch ($T e)", CN_XPATH_EXPRESSION_EXCEPTION)
+                .addStatement("final $T msg = $T.format(\"Could not compile path '%s'\", $L)",
+                        CN_STRING,
+                        CN_STRING,
+                        GET_NODE_FOR_XPATH_PARAM_EXPRESSION)
+                .addStatement("throw new $T($L,$L)", CN_RUNTIME_EXCEPTION, "msg","e")
+                .endControlFlow()
+                .build();
+    }
+
     private MethodSpec getNodeValueForXPath() {
         final MethodSpec.Builder getNodeValueForXPath =
                 MethodSpec.methodBuilder(GET_NODE_FOR_XPATH_METHOD_NAME)
                         .addModifiers(PRIVATE, STATIC)
-                        .addParameter(CN_XPATH, GET_NODE_FOR_XPATH_PARAM_PATH)
-                        .addParameter(CN_STRING, GET_NODE_FOR_XPATH_PARAM_EXPRESSION)
-                        .addParameter(CN_DOCUMENT, GET_NODE_FOR_XPATH_PARAM_DOCUMENT)
+                        .addParameter(CN_XPATH_EXPRESSION, GET_NODE_FOR_XPATH_PARAM_EXPRESSION)
+                        .addParameter(CN_STRING, GET_NODE_FOR_XPATH_PARAM_PATH)
+                        .addParameter(CN_NODE, GET_NODE_FOR_XPATH_PARAM_NODE)
                         .returns(CN_NODE);
 
         getNodeValueForXPath.beginControlFlow("try");
         getNodeValueForXPath.addStatement(
-                "return ($T) $L.evaluate($L, $L, NODE)",
+                "return ($T) $L.evaluate($L, NODE)",
                 CN_NODE,
-                GET_NODE_FOR_XPATH_PARAM_PATH,
                 GET_NODE_FOR_XPATH_PARAM_EXPRESSION,
-                GET_NODE_FOR_XPATH_PARAM_DOCUMENT
+                GET_NODE_FOR_XPATH_PARAM_NODE
         );
 
         getNodeValueForXPath.nextControlFlow("catch ($T e)", CN_XPATH_EXPRESSION_EXCEPTION);
@@ -122,7 +604,7 @@ public class XmlFactoryAutoValueExtension extends AutoValueExtension {
         getNodeValueForXPath.addStatement("final $T msg = $T.format(\"Could not evaluate path '%s'\", $L)",
                 CN_STRING,
                 CN_STRING,
-                GET_NODE_FOR_XPATH_PARAM_EXPRESSION
+                GET_NODE_FOR_XPATH_PARAM_PATH
         );
 
         getNodeValueForXPath.addStatement("throw new $T($L,$L)", CN_RUNTIME_EXCEPTION, "msg","e");
@@ -131,85 +613,343 @@ public class XmlFactoryAutoValueExtension extends AutoValueExtension {
         return getNodeValueForXPath.build();
     }
 
-    private MethodSpec createFromXmlMethod(Context context, ImmutableList<ValueProperty> properties) {
-        final MethodSpec.Builder createFromXmlMethod = MethodSpec.methodBuilder(FROM_XML_METHOD_NAME_GENERATED)
-                .addModifiers(STATIC)
-                .returns(getFinalClassClassName(context))
-                .addParameter(CN_STRING, FROM_XML_PARAMETER_NAME);
+    private static boolean readsNodeSets(ImmutableList<ValueProperty> properties) {
+        for(ValueProperty property : properties) {
+            if(property.isNodeSet()) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        createFromXmlMethod.addStatement("final $T utf8 = $T.forName($S)", CN_CHARSET, CN_CHARSET, "UTF-8");
+    //Every match of the path, in document order
+    private MethodSpec getNodesForXPath() {
+        return MethodSpec.methodBuilder(GET_NODES_FOR_XPATH_METHOD_NAME)
+                .addModifiers(PRIVATE, STATIC)
+                .addParameter(CN_XPATH_EXPRESSION, GET_NODE_FOR_XPATH_PARAM_EXPRESSION)
+                .addParameter(CN_STRING, GET_NODE_FOR_XPATH_PARAM_PATH)
+                .addParameter(CN_NODE, GET_NODE_FOR_XPATH_PARAM_NODE)
+                .returns(CN_NODE_LIST)
+                .beginControlFlow("try")
+                .addStatement("return ($T) $L.evaluate($L, NODESET)",
+                        CN_NODE_LIST,
+                        GET_NODE_FOR_XPATH_PARAM_EXPRESSION,
+                        GET_NODE_FOR_XPATH_PARAM_NODE)
+                .nextControlFlow("catch ($T e)", CN_XPATH_EXPRESSION_EXCEPTION)
+                .addStatement("final $T msg = $T.format(\"Could not evaluate path '%s'\", $L)",
+                        CN_STRING,
+                        CN_STRING,
+                        GET_NODE_FOR_XPATH_PARAM_PATH)
+                .addStatement("throw new $T($L,$L)", CN_RUNTIME_EXCEPTION, "msg","e")
+                .endControlFlow()
+                .build();
+    }
 
-        createFromXmlMethod.addStatement("final $T bytes = $L.getBytes($L)", CN_BYTE_ARRAY, FROM_XML_PARAMETER_NAME, "utf8");
+    //XPath returns the first match in the document, which is under the first context node whenever that has one. Only
+    //when it does not is the whole path evaluated again, to find a match under a later one
+    private MethodSpec getNodeValueForRelativeXPath() {
+        return MethodSpec.methodBuilder(GET_NODE_FOR_XPATH_METHOD_NAME)
+                .addModifiers(PRIVATE, STATIC)
+                .addParameter(CN_XPATH_EXPRESSION, XML_STATE_RELATIVE)
+                .addParameter(CN_XPATH_EXPRESSION, GET_NODE_FOR_XPATH_PARAM_EXPRESSION)
+                .addParameter(CN_STRING, GET_NODE_FOR_XPATH_PARAM_PATH)
+                .addParameter(CN_NODE, XML_STATE_CONTEXT)
+                .addParameter(CN_NODE, GET_NODE_FOR_XPATH_PARAM_NODE)
+                .returns(CN_NODE)
+                .beginControlFlow("if ($L == null)", XML_STATE_CONTEXT)
+                .addStatement("return null")
+                .endControlFlow()
+                .addStatement("final $T found = $L($L, $L, $L)",
+                        CN_NODE,
+                        GET_NODE_FOR_XPATH_METHOD_NAME,
+                        XML_STATE_RELATIVE,
+                        GET_NODE_FOR_XPATH_PARAM_PATH,
+                        XML_STATE_CONTEXT)
+                .addStatement("return found != null ? found : $L($L, $L, $L)",
+                        GET_NODE_FOR_XPATH_METHOD_NAME,
+                        GET_NODE_FOR_XPATH_PARAM_EXPRESSION,
+                        GET_NODE_FOR_XPATH_PARAM_PATH,
+                        GET_NODE_FOR_XPATH_PARAM_NODE)
+                .build();
+    }
 
-        createFromXmlMethod.addCode("\n \n");
+    //Every input is handed to the parser as an InputSource, so nothing is copied or re-encoded on the way in
+    //With a listener the InputSource is read by an overload also taking the size of the document, where it is known
+    private MethodSpec createFromXmlMethod(Context context, XmlInput input, ListenerCalls listener) {
+        final MethodSpec.Builder createFromXmlMethod = input.createFromXml(context);
+        XmlInput.addReturn(createFromXmlMethod,
+                listener.isPresent()
+                        ? CodeBlock.of("$L($L, $L)", FROM_XML_METHOD_NAME_GENERATED, inputSource(input), listener.size(input))
+                        : CodeBlock.of("$L($L)", FROM_XML_METHOD_NAME_GENERATED, inputSource(input)),
+                input == XmlInput.PATH);
+        return createFromXmlMethod.build();
+    }
+
+    private CodeBlock inputSource(XmlInput input) {
+        switch(input) {
+            case INPUT_SOURCE:
+                return CodeBlock.of("$L", FROM_XML_PARAMETER_NAME);
+            case STRING:
+                return CodeBlock.of("new $T(new $T($L))", CN_INPUT_SOURCE, CN_STRING_READER, FROM_XML_PARAMETER_NAME);
+            case BYTE_BUFFER:
+            case PATH:
+                return CodeBlock.of("new $T($T.inputStream($L))", CN_INPUT_SOURCE, CN_XML_BUFFERS, input.buffer());
+            default:
+                return CodeBlock.of("new $T($L)", CN_INPUT_SOURCE, FROM_XML_PARAMETER_NAME);
+        }
+    }
+
+    private MethodSpec createFromInputSourceMethod(Context context, ImmutableList<ValueProperty> properties, PathPrefixes prefixes, ListenerCalls listener, TryFactory checks, ParserFeatures features, ClassName xmlState) {
+        final MethodSpec.Builder createFromXmlMethod = XmlInput.INPUT_SOURCE.createFromXml(context);
+        listener.addSizeParameter(createFromXmlMethod);
 
-        createFromXmlMethod.addStatement("$T is = null", CN_INPUT_STREAM);
+        createFromXmlMethod.addStatement("final $T state = $L()", xmlState, ACQUIRE_XML_STATE_METHOD_NAME);
 
         createFromXmlMethod.beginControlFlow("try");
 
-        createFromXmlMethod.addStatement("is = new $T($L)", CN_BYTE_ARRAY_INPUT_STREAM, "bytes");
+        listener.start(createFromXmlMethod);
+        createFromXmlMethod.addStatement("final $T document = state.$L.parse($L)", CN_DOCUMENT, XML_STATE_BUILDER, features.limit(FROM_XML_PARAMETER_NAME));
+        listener.documentRead(createFromXmlMethod, CodeBlock.of("size"));
 
         createFromXmlMethod.addCode("\n \n");
 
-        createFromXmlMethod.addStatement("final $1T factory = $1T.newInstance()", CN_DOCUMENT_BUILDER_FACTORY);
-        createFromXmlMethod.addStatement("final $T builder = factory.newDocumentBuilder()", CN_DOCUMENT_BUILDER);
-        createFromXmlMethod.addStatement("final $T document = builder.parse($L)", CN_DOCUMENT, "is");
+        addValues(createFromXmlMethod, context, properties, prefixes, listener, checks, "document");
 
-        createFromXmlMethod.addCode("\n \n");
+        createFromXmlMethod.nextControlFlow(
+                "catch ($T | $T e)",
+                IOException.class,
+                SAXException.class
+        );
+        createFromXmlMethod.addStatement("throw $L", listener.failed(checks.parseFailure("e")));
+        listener.catchFailures(createFromXmlMethod);
+        createFromXmlMethod.nextControlFlow("finally");
+        createFromXmlMethod.addStatement("$L(state)", RELEASE_XML_STATE_METHOD_NAME);
+        createFromXmlMethod.endControlFlow();
+
+        return createFromXmlMethod.build();
+    }
 
-        createFromXmlMethod.addStatement("final $T path = $T.newInstance().newXPath()", CN_XPATH, CN_XPATH_FACTORY);
+    //Paths are evaluated relative to the given node, so a value nested in another reads from the node its parent's
+    //path selected, without parsing anything again
+    private MethodSpec createFromNodeMethod(Context context, ImmutableList<ValueProperty> properties, PathPrefixes prefixes, ListenerCalls listener, TryFactory checks, ClassName xmlState) {
+        final MethodSpec.Builder createFromNodeMethod = XmlInput.NODE.createFromXml(context);
 
-        createFromXmlMethod.addCode("\n \n");
+        createFromNodeMethod.addStatement("final $T state = $L()", xmlState, ACQUIRE_XML_STATE_METHOD_NAME);
+
+        createFromNodeMethod.beginControlFlow("try");
+        listener.start(createFromNodeMethod);
+        addValues(createFromNodeMethod, context, properties, prefixes, listener, checks, FROM_XML_PARAMETER_NAME);
+        listener.catchFailures(createFromNodeMethod);
+        createFromNodeMethod.nextControlFlow("finally");
+        createFromNodeMethod.addStatement("$L(state)", RELEASE_XML_STATE_METHOD_NAME);
+        createFromNodeMethod.endControlFlow();
+
+        return createFromNodeMethod.build();
+    }
+
+    //A document is the root node, which every absolute path is evaluated from as it is after parsing. Nothing is parsed
+    //again, so one document can be read into any number of value classes
+    private MethodSpec createFromDocumentMethod(Context context) {
+        return XmlInput.DOCUMENT.createFromXml(context)
+                .addStatement("return $L(($T) $L)", FROM_XML_METHOD_NAME_GENERATED, CN_NODE, FROM_XML_PARAMETER_NAME)
+                .build();
+    }
+
+    //Lazy factories for other inputs hand an InputSource to the one that parses it
+    private static ImmutableSet<XmlInput> lazyInputs(ImmutableSet<XmlInput> lazy) {
+        for(XmlInput input : lazy) {
+            if(input != XmlInput.INPUT_SOURCE && !input.needsDom()) {
+                return Sets.immutableEnumSet(Iterables.concat(lazy, ImmutableSet.of(XmlInput.INPUT_SOURCE)));
+            }
+        }
+        return lazy;
+    }
+
+    //Only parses the document, leaving every path to be evaluated when its property is first asked for
+    private MethodSpec createFromXmlLazyMethod(Context context, XmlInput input, ParserFeatures features, ClassName xmlState, ClassName lazyValue) {
+        final MethodSpec.Builder createFromXmlLazyMethod = input.createFromXmlLazy(context);
+        if(input.needsDom()) {
+            return createFromXmlLazyMethod
+                    .addStatement("return new $T($L)", lazyValue, FROM_XML_PARAMETER_NAME)
+                    .build();
+        }
+        if(input != XmlInput.INPUT_SOURCE) {
+            XmlInput.addReturn(createFromXmlLazyMethod,
+                    CodeBlock.of("$L($L)", XmlInput.CREATE_LAZY_METHOD_NAME, inputSource(input)),
+                    input == XmlInput.PATH);
+            return createFromXmlLazyMethod.build();
+        }
+        return createFromXmlLazyMethod
+                .addStatement("final $T state = $L()", xmlState, ACQUIRE_XML_STATE_METHOD_NAME)
+                .beginControlFlow("try")
+                .addStatement("return new $T(state.$L.parse($L))", lazyValue, XML_STATE_BUILDER, features.limit(FROM_XML_PARAMETER_NAME))
+                .nextControlFlow("catch ($T | $T e)", IOException.class, SAXException.class)
+                .addStatement("throw new $T(e)", CN_RUNTIME_EXCEPTION)
+                .nextControlFlow("finally")
+                .addStatement("$L(state)", RELEASE_XML_STATE_METHOD_NAME)
+                .endControlFlow()
+                .build();
+    }
+
+    //Keeps the parsed document and evaluates each path the first time its property is asked for. A DOM document may not
+    //be read from several threads at once, so paths are evaluated holding a lock private to the lazy value, which owns
+    //its document, and a volatile flag per property publishes the value once read. A node passed to a "fromXmlLazy"
+    //factory must not be read elsewhere until every property has been. Comparing, hashing or printing a lazy value
+    //reads every property, so it behaves exactly like the value createFromXml would have read from the same document
+    private TypeSpec lazyType(Context context, ImmutableList<ValueProperty> properties, PathPrefixes prefixes, TryFactory checks, ClassName xmlState) {
+        final ClassName finalClass = getFinalClassClassName(context);
+        final TypeSpec.Builder type = TypeSpec.classBuilder(LAZY_CLASS_NAME)
+                .addModifiers(PRIVATE, STATIC, FINAL)
+                .superclass(ClassName.get(context.autoValueClass()))
+                .addField(CN_NODE, LAZY_NODE_FIELD_NAME, PRIVATE, FINAL)
+                .addField(FieldSpec.builder(CN_REENTRANT_LOCK, LAZY_LOCK_FIELD_NAME, PRIVATE, FINAL)
+                        .initializer("new $T()", CN_REENTRANT_LOCK)
+                        .build())
+                .addMethod(MethodSpec.constructorBuilder()
+                        .addParameter(CN_NODE, LAZY_NODE_FIELD_NAME)
+                        .addStatement("this.$L = $L", LAZY_NODE_FIELD_NAME, LAZY_NODE_FIELD_NAME)
+                        .build());
+
+        final CodeBlock.Builder values = CodeBlock.builder();
+        for(int i = 0; i < properties.size(); i++) {
+            final ValueProperty property = properties.get(i);
+            final String read = property.humanName() + LAZY_READ_SUFFIX;
+            final int index = prefixes.firstIndex(i);
+            type.addField(property.type(), property.humanName(), PRIVATE);
+            type.addField(FieldSpec.builder(boolean.class, read, PRIVATE, VOLATILE).build());
+            final MethodSpec.Builder accessor = MethodSpec.overriding(property.element())
+                    .beginControlFlow("if (!$L)", read)
+                    .addStatement("$L.lock()", LAZY_LOCK_FIELD_NAME)
+                    .beginControlFlow("try")
+                    .beginControlFlow("if (!$L)", read)
+                    .addStatement("final $T state = $L()", xmlState, ACQUIRE_XML_STATE_METHOD_NAME)
+                    .beginControlFlow("try");
+            if(property.isNodeSet()) {
+                accessor.addStatement("final $T nodes$L = $L($L, $S, $L)",
+                                CN_NODE_LIST,
+                                index,
+                                GET_NODES_FOR_XPATH_METHOD_NAME,
+                                "state." + XML_STATE_EXPRESSION + index,
+                                property.valueTagName(),
+                                LAZY_NODE_FIELD_NAME)
+                        .addCode(property.extractNodeSet(index, i, checks));
+            } else {
+                accessor.addStatement("final $T node$L = $L($L, $S, $L)",
+                                CN_NODE,
+                                index,
+                                GET_NODE_FOR_XPATH_METHOD_NAME,
+                                "state." + XML_STATE_EXPRESSION + index,
+                                property.valueTagName(),
+                                LAZY_NODE_FIELD_NAME)
+                        .addCode(checks.declare(property, property.tagValue(index)));
+            }
+            type.addMethod(accessor
+                    .addStatement("this.$N = $N", property.humanName(), property.humanName())
+                    .addStatement("$L = true", read)
+                    .nextControlFlow("finally")
+                    .addStatement("$L(state)", RELEASE_XML_STATE_METHOD_NAME)
+                    .endControlFlow()
+                    .endControlFlow()
+                    .nextControlFlow("finally")
+                    .addStatement("$L.unlock()", LAZY_LOCK_FIELD_NAME)
+                    .endControlFlow()
+                    .endControlFlow()
+                    .addStatement("return $N", property.humanName())
+                    .build());
+            values.add(i == 0 ? "$N()" : ", $N()", property.element().getSimpleName().toString());
+        }
+
+        return type
+                .addMethod(MethodSpec.methodBuilder(LAZY_FORCE_METHOD_NAME)
+                        .addModifiers(PRIVATE)
+                        .returns(finalClass)
+                        .addStatement("return new $T($L)", finalClass, values.build())
+                        .build())
+                .addMethod(MethodSpec.methodBuilder("equals")
+                        .addAnnotation(Override.class)
+                        .addModifiers(PUBLIC)
+                        .returns(boolean.class)
+                        .addParameter(Object.class, "o")
+                        .addStatement("return o == this || $L().equals(o)", LAZY_FORCE_METHOD_NAME)
+                        .build())
+                .addMethod(MethodSpec.methodBuilder("hashCode")
+                        .addAnnotation(Override.class)
+                        .addModifiers(PUBLIC)
+                        .returns(int.class)
+                        .addStatement("return $L().hashCode()", LAZY_FORCE_METHOD_NAME)
+                        .build())
+                .addMethod(MethodSpec.methodBuilder("toString")
+                        .addAnnotation(Override.class)
+                        .addModifiers(PUBLIC)
+                        .returns(String.class)
+                        .addStatement("return $L().toString()", LAZY_FORCE_METHOD_NAME)
+                        .build())
+                .build();
+    }
+
+    //Shared prefixes are found once, and a path declared by several properties is only evaluated for the first
+    private void addValues(MethodSpec.Builder createFromXmlMethod, Context context, ImmutableList<ValueProperty> properties, PathPrefixes prefixes, ListenerCalls listener, TryFactory checks, String node) {
+        for(int i = 0; i < prefixes.contexts().size(); i++) {
+            createFromXmlMethod.addStatement("final $T $L$L = $L($L, $S, $L)",
+                    CN_NODE,
+                    XML_STATE_CONTEXT,
+                    i,
+                    GET_NODE_FOR_XPATH_METHOD_NAME,
+                    "state." + XML_STATE_CONTEXT + i,
+                    prefixes.contexts().get(i),
+                    node);
+        }
+        if(!prefixes.contexts().isEmpty()) {
+            createFromXmlMethod.addCode("\n \n");
+        }
 
         final String[] names = new String[properties.size()];
         for(int i = 0; i < properties.size(); i++) {
             final ValueProperty property = properties.get(i);
             names[i] = property.humanName();
 
-            if(property.isSupportedType()) {
+            if(property.isNodeSet()) {
+                if(!prefixes.isDuplicate(i)) {
+                    createFromXmlMethod.addStatement("final $T nodes$L = $L($L, $S, $L)",
+                            CN_NODE_LIST,
+                            i,
+                            GET_NODES_FOR_XPATH_METHOD_NAME,
+                            "state." + XML_STATE_EXPRESSION + i,
+                            property.valueTagName(),
+                            node);
+                }
+            } else if(prefixes.contextIndex(i) != -1) {
+                createFromXmlMethod.addStatement("final $T node$L = $L($L, $L, $S, $L$L, $L)",
+                        CN_NODE,
+                        i,
+                        GET_NODE_FOR_XPATH_METHOD_NAME,
+                        "state." + XML_STATE_RELATIVE + i,
+                        "state." + XML_STATE_EXPRESSION + i,
+                        property.valueTagName(),
+                        XML_STATE_CONTEXT,
+                        prefixes.contextIndex(i),
+                        node);
+            } else if(!prefixes.isDuplicate(i)) {
                 createFromXmlMethod.addStatement("final $T node$L = $L($L, $S, $L)",
                         CN_NODE,
                         i,
                         GET_NODE_FOR_XPATH_METHOD_NAME,
-                        "path",
+                        "state." + XML_STATE_EXPRESSION + i,
                         property.valueTagName(),
-                        "document");
-                createFromXmlMethod.addStatement(property.extractTagValueMethod(i));
-
-                createFromXmlMethod.addCode("\n \n");
-
+                        node);
+            }
+            if(property.isNodeSet()) {
+                createFromXmlMethod.addCode(property.extractNodeSet(prefixes.firstIndex(i), i, checks));
             } else {
-                final String msg = String.format(
-                        "Can not read type '%s' for property '%s'",
-                        property.type(),
-                        property.humanName()
-                );
-                throw new UnsupportedOperationException(msg);
+                checks.checkNode(createFromXmlMethod, property, "node" + prefixes.firstIndex(i));
+                createFromXmlMethod.addCode(checks.declare(property, property.tagValue(prefixes.firstIndex(i))));
             }
-        }
-
-        createFromXmlMethod.addCode("return ").addCode(newFinalClassConstructorCall(context, names));
+            listener.propertyRead(createFromXmlMethod, property);
 
-        createFromXmlMethod.nextControlFlow(
-                "catch ($T | $T | $T e)",
-                IOException.class,
-                ParserConfigurationException.class,
-                SAXException.class
-        );
-        createFromXmlMethod.addStatement("throw new $T(e)", RuntimeException.class);
-        createFromXmlMethod.nextControlFlow("finally");
-        createFromXmlMethod.beginControlFlow("if (is != null)");
-        createFromXmlMethod.beginControlFlow("try");
-        createFromXmlMethod.addStatement("is.close()");
-        createFromXmlMethod.nextControlFlow("catch ($T e)", Exception.class);
-        createFromXmlMethod.addComment("Ignore");
-        createFromXmlMethod.endControlFlow();
-
-        createFromXmlMethod.endControlFlow();
-
-        createFromXmlMethod.endControlFlow();
+            createFromXmlMethod.addCode("\n \n");
+        }
 
-        return createFromXmlMethod.build();
+        listener.addReturn(createFromXmlMethod, names);
     }
 
 }
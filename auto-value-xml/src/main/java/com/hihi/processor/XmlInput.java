@@ -0,0 +1,127 @@
+package com.hihi.processor;
+
+import com.google.auto.value.extension.AutoValueExtension.Context;
+import com.google.common.collect.ImmutableSet;
+import com.hihi.xml.XmlBuffers;
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
+import com.squareup.javapoet.MethodSpec;
+import com.squareup.javapoet.ParameterizedTypeName;
+import com.squareup.javapoet.TypeName;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+import static com.gabrielittner.auto.value.util.AutoValueUtil.getFinalClassClassName;
+import static javax.lang.model.element.Modifier.STATIC;
+
+//The inputs a value class can declare a static "fromXml" factory for. Each declared one gets a createFromXml overload
+enum XmlInput {
+
+    STRING(String.class),
+    INPUT_STREAM(InputStream.class),
+    READER(Reader.class),
+    INPUT_SOURCE(InputSource.class),
+    BYTE_BUFFER(ByteBuffer.class),
+    PATH(Path.class),
+    NODE(Node.class),
+    //An already parsed document, so several value classes can be read from one parse
+    DOCUMENT(Document.class);
+
+    static final String FROM_XML_METHOD_NAME = "fromXml";
+    static final String FROM_XML_METHOD_NAME_GENERATED = "createFromXml";
+    static final String FROM_XML_PARAMETER_NAME = "xml";
+    static final String CREATE_ITERATOR_METHOD_NAME = "createIteratorFromXml";
+    static final String FROM_XML_LAZY_METHOD_NAME = "fromXmlLazy";
+    static final String CREATE_LAZY_METHOD_NAME = "createFromXmlLazy";
+
+    //Inputs read from a stream, which only the JAXP parsers read a piece at a time
+    static final ImmutableSet<XmlInput> STREAMED = ImmutableSet.of(INPUT_STREAM, READER, INPUT_SOURCE);
+
+    private static final ClassName CN_ITERATOR = ClassName.get(Iterator.class);
+
+    final ClassName type;
+
+    XmlInput(Class<?> type) {
+        this.type = ClassName.get(type);
+    }
+
+    static ImmutableSet<XmlInput> declaredBy(StaticFactories valueClass) {
+        return factories(valueClass, FROM_XML_METHOD_NAME, valueClass.type());
+    }
+
+    //Factories returning an Iterator of the value class, for classes with an @XmlRecord
+    static ImmutableSet<XmlInput> iteratedBy(StaticFactories valueClass) {
+        return factories(valueClass, FROM_XML_METHOD_NAME, ParameterizedTypeName.get(CN_ITERATOR, valueClass.type()));
+    }
+
+    //Factories named "fromXmlLazy", returning a value that only reads each property when it is first asked for
+    static ImmutableSet<XmlInput> lazilyReadBy(StaticFactories valueClass) {
+        return factories(valueClass, FROM_XML_LAZY_METHOD_NAME, valueClass.type());
+    }
+
+    private static ImmutableSet<XmlInput> factories(StaticFactories valueClass, String name, TypeName returnType) {
+        final ImmutableSet.Builder<XmlInput> inputs = ImmutableSet.builder();
+        for(XmlInput input : values()) {
+            if(valueClass.declares(name, returnType, input.type)) {
+                inputs.add(input);
+            }
+        }
+        return inputs.build();
+    }
+
+    MethodSpec.Builder createFromXml(Context context) {
+        return MethodSpec.methodBuilder(FROM_XML_METHOD_NAME_GENERATED)
+                .addModifiers(STATIC)
+                .returns(getFinalClassClassName(context))
+                .addParameter(type, FROM_XML_PARAMETER_NAME);
+    }
+
+    MethodSpec.Builder createFromXmlLazy(Context context) {
+        return MethodSpec.methodBuilder(CREATE_LAZY_METHOD_NAME)
+                .addModifiers(STATIC)
+                .returns(ClassName.get(context.autoValueClass()))
+                .addParameter(type, FROM_XML_PARAMETER_NAME);
+    }
+
+    MethodSpec.Builder createIteratorFromXml(Context context) {
+        return MethodSpec.methodBuilder(CREATE_ITERATOR_METHOD_NAME)
+                .addModifiers(STATIC)
+                .returns(ParameterizedTypeName.get(CN_ITERATOR, ClassName.get(context.autoValueClass())))
+                .addParameter(type, FROM_XML_PARAMETER_NAME);
+    }
+
+    //Nodes only exist once a document has been built, which the streaming engines never do
+    boolean needsDom() {
+        return this == NODE || this == DOCUMENT;
+    }
+
+    //The buffer a ByteBuffer or Path input is read from in place, with files memory mapped
+    CodeBlock buffer() {
+        return this == PATH
+                ? CodeBlock.of("$T.map($L)", XmlBuffers.class, FROM_XML_PARAMETER_NAME)
+                : CodeBlock.of("$L", FROM_XML_PARAMETER_NAME);
+    }
+
+    //Adds "return value", rethrowing an IOException from opening or reading the input as a RuntimeException
+    static void addReturn(MethodSpec.Builder method, CodeBlock value, boolean throwsIOException) {
+        if(!throwsIOException) {
+            method.addStatement("return $L", value);
+            return;
+        }
+        method.beginControlFlow("try");
+        method.addStatement("return $L", value);
+        method.nextControlFlow("catch ($T e)", IOException.class);
+        method.addStatement("throw new $T(e)", RuntimeException.class);
+        method.endControlFlow();
+    }
+
+}
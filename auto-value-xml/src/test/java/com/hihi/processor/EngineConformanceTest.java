@@ -0,0 +1,1441 @@
+package com.hihi.processor;
+
+import com.google.auto.value.processor.AutoValueProcessor;
+import com.google.testing.compile.Compilation;
+import com.google.testing.compile.JavaFileObjects;
+import com.hihi.xml.XmlFailure;
+import com.hihi.xml.XmlListener;
+import com.hihi.xml.XmlResult;
+
+import org.junit.Test;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.tools.JavaFileObject;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.tools.StandardLocation;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+import static com.google.testing.compile.CompilationSubject.assertThat;
+import static com.google.testing.compile.Compiler.javac;
+import static org.junit.Assert.fail;
+
+//Compiles the same value class with each engine and checks the streaming engines read exactly what DOM/XPath reads
+public class EngineConformanceTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String VALUE_CLASS = "" +
+            "package test;\n\n" +
+            "import com.google.auto.value.AutoValue;\n" +
+            "import com.hihi.xml.XmlParser;\n" +
+            "import com.hihi.xml.XmlPath;\n" +
+            "import java.io.InputStream;\n" +
+            "import java.io.Reader;\n" +
+            "import java.nio.ByteBuffer;\n" +
+            "import java.nio.file.Path;\n" +
+            "import javax.annotation.Nullable;\n" +
+            "import org.xml.sax.InputSource;\n" +
+            "\n" +
+            "@AutoValue\n" +
+            "@XmlParser(engine = XmlParser.Engine.%s)\n" +
+            "abstract class Pet {\n" +
+            "    static Pet fromXml(String xml) {\n" +
+            "        return AutoValue_Pet.createFromXml(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    static Pet fromXml(InputStream xml) {\n" +
+            "        return AutoValue_Pet.createFromXml(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    static Pet fromXml(Reader xml) {\n" +
+            "        return AutoValue_Pet.createFromXml(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    static Pet fromXml(InputSource xml) {\n" +
+            "        return AutoValue_Pet.createFromXml(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    static Pet fromXml(ByteBuffer xml) {\n" +
+            "        return AutoValue_Pet.createFromXml(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    static Pet fromXml(Path xml) {\n" +
+            "        return AutoValue_Pet.createFromXml(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/@id\")\n" +
+            "    abstract String id();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/name/text()\")\n" +
+            "    abstract String name();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/breed/text()\")\n" +
+            "    @Nullable\n" +
+            "    abstract String breed();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/age/years/text()\")\n" +
+            "    abstract int years();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/age/days/text()\")\n" +
+            "    @Nullable\n" +
+            "    abstract Integer days();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/weight/text()\")\n" +
+            "    abstract double weight();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/weight/@unit\")\n" +
+            "    @Nullable\n" +
+            "    abstract String unit();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/chip/text()\")\n" +
+            "    abstract long chip();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/favourite/text()\")\n" +
+            "    abstract boolean favourite();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/description/@color\")\n" +
+            "    abstract String color();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/description/text()\")\n" +
+            "    @Nullable\n" +
+            "    abstract String description();\n" +
+            "}";
+
+    private static final String RECORD_CLASS = "" +
+            "package test;\n\n" +
+            "import com.google.auto.value.AutoValue;\n" +
+            "import com.hihi.xml.XmlParser;\n" +
+            "import com.hihi.xml.XmlPath;\n" +
+            "import com.hihi.xml.XmlRecord;\n" +
+            "import java.io.InputStream;\n" +
+            "import java.util.Iterator;\n" +
+            "import javax.annotation.Nullable;\n" +
+            "\n" +
+            "@AutoValue\n" +
+            "@XmlParser(engine = XmlParser.Engine.%s)\n" +
+            "@XmlRecord(\"/pets/item\")\n" +
+            "abstract class Pet {\n" +
+            "    static Iterator<Pet> fromXml(InputStream xml) {\n" +
+            "        return AutoValue_Pet.createIteratorFromXml(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    static Pet fromXml(String xml) {\n" +
+            "        return AutoValue_Pet.createFromXml(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    @XmlPath(\"@id\")\n" +
+            "    abstract String id();\n" +
+            "\n" +
+            "    @XmlPath(\"name/text()\")\n" +
+            "    @Nullable\n" +
+            "    abstract String name();\n" +
+            "\n" +
+            "    @XmlPath(\"age/years/text()\")\n" +
+            "    @Nullable\n" +
+            "    abstract Integer years();\n" +
+            "}";
+
+    //Records with missing, reordered and nested values, and unknown siblings that reuse the record name
+    private static final String RECORDS = "" +
+            "<?xml version=\"1.0\"?>\n" +
+            "<pets>\n" +
+            "   <item id=\"a\"><name>Meatball</name><age><years>3</years></age></item>\n" +
+            "   <other><item id=\"wrong\"><name>Wrong</name></item></other>\n" +
+            "   <item id=\"b\"><age><years>1</years></age><name>Mittens</name><name>Again</name></item>\n" +
+            "   <item id=\"c\"><extra><name>Nested</name></extra></item>\n" +
+            "   <item id=\"d\"/>\n" +
+            "</pets>";
+
+    private static final String[] RECORD_VALUES = {
+            "Pet{id=a, name=Meatball, years=3}",
+            "Pet{id=b, name=Mittens, years=1}",
+            "Pet{id=c, name=null, years=null}",
+            "Pet{id=d, name=null, years=null}",
+    };
+
+    private static final String NESTED_CLASS = "" +
+            "package test;\n\n" +
+            "import com.google.auto.value.AutoValue;\n" +
+            "import com.hihi.xml.XmlPath;\n" +
+            "import javax.annotation.Nullable;\n" +
+            "import org.w3c.dom.Node;\n" +
+            "\n" +
+            "@AutoValue\n" +
+            "abstract class Pet {\n" +
+            "    static Pet fromXml(String xml) {\n" +
+            "        return AutoValue_Pet.createFromXml(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/@id\")\n" +
+            "    abstract String id();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/owner\")\n" +
+            "    abstract Owner owner();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/vet\")\n" +
+            "    @Nullable\n" +
+            "    abstract Owner vet();\n" +
+            "\n" +
+            "    @AutoValue\n" +
+            "    abstract static class Owner {\n" +
+            "        static Owner fromXml(Node xml) {\n" +
+            "            return AutoValue_Pet_Owner.createFromXml(xml);\n" +
+            "        }\n" +
+            "\n" +
+            "        @XmlPath(\"name/text()\")\n" +
+            "        abstract String name();\n" +
+            "\n" +
+            "        @XmlPath(\"address/@city\")\n" +
+            "        @Nullable\n" +
+            "        abstract String city();\n" +
+            "\n" +
+            "        @XmlPath(\"pet\")\n" +
+            "        @Nullable\n" +
+            "        abstract Owner pet();\n" +
+            "    }\n" +
+            "}";
+
+    private static final String BATCH_CLASS = "" +
+            "package test;\n\n" +
+            "import com.google.auto.value.AutoValue;\n" +
+            "import com.hihi.xml.XmlParser;\n" +
+            "import com.hihi.xml.XmlPath;\n" +
+            "import java.util.List;\n" +
+            "\n" +
+            "@AutoValue\n" +
+            "@XmlParser(engine = XmlParser.Engine.%s, batchThreshold = 4)\n" +
+            "abstract class Pet {\n" +
+            "    static List<Pet> fromXml(List<String> xml) {\n" +
+            "        return AutoValue_Pet.createFromXml(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    static Pet[] fromXml(String[] xml) {\n" +
+            "        return AutoValue_Pet.createFromXml(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/@id\")\n" +
+            "    abstract String id();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/age/years/text()\")\n" +
+            "    abstract int years();\n" +
+            "}";
+
+    private static final String ASYNC_CLASS = "" +
+            "package test;\n\n" +
+            "import com.google.auto.value.AutoValue;\n" +
+            "import com.hihi.xml.XmlParser;\n" +
+            "import com.hihi.xml.XmlPath;\n" +
+            "import java.io.InputStream;\n" +
+            "import java.util.concurrent.CompletableFuture;\n" +
+            "import java.util.concurrent.Executor;\n" +
+            "\n" +
+            "@AutoValue\n" +
+            "@XmlParser(engine = XmlParser.Engine.%s)\n" +
+            "abstract class Pet {\n" +
+            "    static CompletableFuture<Pet> fromXmlAsync(String xml) {\n" +
+            "        return AutoValue_Pet.createFromXmlAsync(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    static CompletableFuture<Pet> fromXmlAsync(InputStream xml, Executor executor) {\n" +
+            "        return AutoValue_Pet.createFromXmlAsync(xml, executor);\n" +
+            "    }\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/@id\")\n" +
+            "    abstract String id();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/age/years/text()\")\n" +
+            "    abstract int years();\n" +
+            "}";
+
+    private static final String LISTENER_CLASS = "" +
+            "package test;\n\n" +
+            "import com.google.auto.value.AutoValue;\n" +
+            "import com.hihi.processor.EngineConformanceTest;\n" +
+            "import com.hihi.xml.XmlParser;\n" +
+            "import com.hihi.xml.XmlPath;\n" +
+            "import java.nio.ByteBuffer;\n" +
+            "\n" +
+            "@AutoValue\n" +
+            "@XmlParser(engine = XmlParser.Engine.%s, listener = EngineConformanceTest.RecordingListener.class)\n" +
+            "abstract class Pet {\n" +
+            "    static Pet fromXml(ByteBuffer xml) {\n" +
+            "        return AutoValue_Pet.createFromXml(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    static Pet fromXml(String xml) {\n" +
+            "        return AutoValue_Pet.createFromXml(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/@id\")\n" +
+            "    abstract String id();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/age/years/text()\")\n" +
+            "    abstract int years();\n" +
+            "}";
+
+    private static final String DOCUMENT_CLASS = "" +
+            "package test;\n\n" +
+            "import com.google.auto.value.AutoValue;\n" +
+            "import com.hihi.xml.XmlPath;\n" +
+            "import org.w3c.dom.Document;\n" +
+            "\n" +
+            "@AutoValue\n" +
+            "abstract class Pet {\n" +
+            "    static Pet fromXml(Document xml) {\n" +
+            "        return AutoValue_Pet.createFromXml(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/@id\")\n" +
+            "    abstract String id();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/age/years/text()\")\n" +
+            "    abstract int years();\n" +
+            "\n" +
+            "    @AutoValue\n" +
+            "    abstract static class Header {\n" +
+            "        static Header fromXml(Document xml) {\n" +
+            "            return AutoValue_Pet_Header.createFromXml(xml);\n" +
+            "        }\n" +
+            "\n" +
+            "        @XmlPath(\"/pets/@count\")\n" +
+            "        abstract int count();\n" +
+            "    }\n" +
+            "}";
+
+    private static final String LAZY_CLASS = "" +
+            "package test;\n\n" +
+            "import com.google.auto.value.AutoValue;\n" +
+            "import com.hihi.xml.XmlParser;\n" +
+            "import com.hihi.xml.XmlPath;\n" +
+            "import javax.annotation.Nullable;\n" +
+            "\n" +
+            "@AutoValue\n" +
+            "@XmlParser(engine = XmlParser.Engine.%s)\n" +
+            "abstract class Pet {\n" +
+            "    static Pet fromXml(String xml) {\n" +
+            "        return AutoValue_Pet.createFromXml(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    static Pet fromXmlLazy(String xml) {\n" +
+            "        return AutoValue_Pet.createFromXmlLazy(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/@id\")\n" +
+            "    abstract String id();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/age/years/text()\")\n" +
+            "    abstract int years();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/breed/text()\")\n" +
+            "    @Nullable\n" +
+            "    abstract String breed();\n" +
+            "}";
+
+    private static final String CODEC_CLASS = "" +
+            "package test;\n\n" +
+            "import com.google.auto.value.AutoValue;\n" +
+            "import com.hihi.xml.XmlParser;\n" +
+            "import com.hihi.xml.XmlPath;\n" +
+            "import java.time.Instant;\n" +
+            "import java.time.LocalDate;\n" +
+            "import java.time.OffsetDateTime;\n" +
+            "import javax.annotation.Nullable;\n" +
+            "\n" +
+            "@AutoValue\n" +
+            "@XmlParser(engine = XmlParser.Engine.%s)\n" +
+            "abstract class Pet {\n" +
+            "    static Pet fromXml(String xml) {\n" +
+            "        return AutoValue_Pet.createFromXml(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    enum Kind {\n" +
+            "        CAT, DOG\n" +
+            "    }\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/@kind\")\n" +
+            "    abstract Kind kind();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/previous/text()\")\n" +
+            "    @Nullable\n" +
+            "    abstract Kind previous();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/born/text()\")\n" +
+            "    abstract LocalDate born();\n" +
+            "\n" +
+            "    @XmlPath(value = \"/pets/item/vaccinated/text()\", format = \"dd/MM/yyyy\")\n" +
+            "    abstract LocalDate vaccinated();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/seen/text()\")\n" +
+            "    abstract Instant seen();\n" +
+            "\n" +
+            "    @XmlPath(value = \"/pets/item/fed/text()\", format = \"yyyy-MM-dd HH:mm\")\n" +
+            "    @Nullable\n" +
+            "    abstract Instant fed();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/walked/text()\")\n" +
+            "    abstract OffsetDateTime walked();\n" +
+            "}";
+
+    private static final String FEATURES_CLASS = "" +
+            "package test;\n\n" +
+            "import com.google.auto.value.AutoValue;\n" +
+            "import com.hihi.xml.XmlFeatures;\n" +
+            "import com.hihi.xml.XmlParser;\n" +
+            "import com.hihi.xml.XmlPath;\n" +
+            "\n" +
+            "@AutoValue\n" +
+            "@XmlParser(engine = XmlParser.Engine.%s)\n" +
+            "@XmlFeatures(maxElementDepth = 3, maxDocumentSize = 200)\n" +
+            "abstract class Pet {\n" +
+            "    static Pet fromXml(String xml) {\n" +
+            "        return AutoValue_Pet.createFromXml(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/@id\")\n" +
+            "    abstract String id();\n" +
+            "}";
+
+    private static final String TRY_CLASS = "" +
+            "package test;\n\n" +
+            "import com.google.auto.value.AutoValue;\n" +
+            "import com.hihi.xml.XmlParser;\n" +
+            "import com.hihi.xml.XmlPath;\n" +
+            "import com.hihi.xml.XmlResult;\n" +
+            "import javax.annotation.Nullable;\n" +
+            "\n" +
+            "@AutoValue\n" +
+            "@XmlParser(engine = XmlParser.Engine.%s)\n" +
+            "abstract class Pet {\n" +
+            "    static Pet fromXml(String xml) {\n" +
+            "        return AutoValue_Pet.createFromXml(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    static XmlResult<Pet> tryFromXml(String xml) {\n" +
+            "        return AutoValue_Pet.tryCreateFromXml(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/@id\")\n" +
+            "    abstract String id();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/age/years/text()\")\n" +
+            "    abstract int years();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/breed/text()\")\n" +
+            "    @Nullable\n" +
+            "    abstract String breed();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/vaccinated/text()\")\n" +
+            "    abstract boolean vaccinated();\n" +
+            "}";
+
+    private static final String CACHED_CLASS = "" +
+            "package test;\n\n" +
+            "import com.google.auto.value.AutoValue;\n" +
+            "import com.hihi.xml.XmlParser;\n" +
+            "import com.hihi.xml.XmlPath;\n" +
+            "import java.nio.ByteBuffer;\n" +
+            "\n" +
+            "@AutoValue\n" +
+            "@XmlParser(engine = XmlParser.Engine.%s, cacheSize = 2)\n" +
+            "abstract class Pet {\n" +
+            "    static Pet fromXmlCached(String xml) {\n" +
+            "        return AutoValue_Pet.createFromXmlCached(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    static Pet fromXmlCached(ByteBuffer xml) {\n" +
+            "        return AutoValue_Pet.createFromXmlCached(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/@id\")\n" +
+            "    abstract String id();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/age/years/text()\")\n" +
+            "    abstract int years();\n" +
+            "}";
+
+    private static final String INTERN_CLASS = "" +
+            "package test;\n\n" +
+            "import com.google.auto.value.AutoValue;\n" +
+            "import com.hihi.xml.XmlParser;\n" +
+            "import com.hihi.xml.XmlPath;\n" +
+            "import javax.annotation.Nullable;\n" +
+            "\n" +
+            "@AutoValue\n" +
+            "@XmlParser(engine = XmlParser.Engine.%s)\n" +
+            "abstract class Pet {\n" +
+            "    static Pet fromXml(String xml) {\n" +
+            "        return AutoValue_Pet.createFromXml(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/@id\")\n" +
+            "    abstract String id();\n" +
+            "\n" +
+            "    @XmlPath(value = \"/pets/item/breed/text()\", intern = true)\n" +
+            "    @Nullable\n" +
+            "    abstract String breed();\n" +
+            "}";
+
+    private static final String WRITER_CLASS = "" +
+            "package test;\n\n" +
+            "import com.google.auto.value.AutoValue;\n" +
+            "import com.hihi.xml.XmlParser;\n" +
+            "import com.hihi.xml.XmlPath;\n" +
+            "import java.io.OutputStream;\n" +
+            "import java.io.Writer;\n" +
+            "import javax.annotation.Nullable;\n" +
+            "\n" +
+            "@AutoValue\n" +
+            "@XmlParser(engine = XmlParser.Engine.%s)\n" +
+            "abstract class Pet {\n" +
+            "    enum Size { SMALL, LARGE }\n" +
+            "\n" +
+            "    static Pet fromXml(String xml) {\n" +
+            "        return AutoValue_Pet.createFromXml(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    static void writeXml(Pet pet, OutputStream xml) {\n" +
+            "        AutoValue_Pet.writeToXml(pet, xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    static void writeXml(Pet pet, Writer xml) {\n" +
+            "        AutoValue_Pet.writeToXml(pet, xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/@id\")\n" +
+            "    abstract String id();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/name/text()\")\n" +
+            "    abstract String name();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/age/years/text()\")\n" +
+            "    abstract int years();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/age/days/text()\")\n" +
+            "    abstract long days();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/weight/@kg\")\n" +
+            "    @Nullable\n" +
+            "    abstract Double weight();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/favourite/text()\")\n" +
+            "    abstract boolean favourite();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/size/text()\")\n" +
+            "    abstract Size size();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/nickname/text()\")\n" +
+            "    @Nullable\n" +
+            "    abstract String nickname();\n" +
+            "}";
+
+    private static final String NODE_SET_CLASS = "" +
+            "package test;\n\n" +
+            "import com.google.auto.value.AutoValue;\n" +
+            "import com.google.common.collect.ImmutableList;\n" +
+            "import com.hihi.xml.XmlParser;\n" +
+            "import com.hihi.xml.XmlPath;\n" +
+            "import java.util.List;\n" +
+            "\n" +
+            "@AutoValue\n" +
+            "@XmlParser(engine = XmlParser.Engine.%s)\n" +
+            "abstract class Pet {\n" +
+            "    static Pet fromXml(String xml) {\n" +
+            "        return AutoValue_Pet.createFromXml(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    static Pet fromXmlLazy(String xml) {\n" +
+            "        return AutoValue_Pet.createFromXmlLazy(xml);\n" +
+            "    }\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/@id\")\n" +
+            "    abstract String id();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/@id\")\n" +
+            "    abstract List<String> ids();\n" +
+            "\n" +
+            "    @SuppressWarnings(\"mutable\")\n" +
+            "    @XmlPath(\"/pets/item/weights/weight/text()\")\n" +
+            "    abstract int[] weights();\n" +
+            "\n" +
+            "    @SuppressWarnings(\"mutable\")\n" +
+            "    @XmlPath(\"/pets/item/weights/weight/text()\")\n" +
+            "    abstract long[] longWeights();\n" +
+            "\n" +
+            "    @SuppressWarnings(\"mutable\")\n" +
+            "    @XmlPath(\"/pets/item/heights/height/text()\")\n" +
+            "    abstract double[] heights();\n" +
+            "\n" +
+            "    @XmlPath(\"/pets/item/tag/text()\")\n" +
+            "    abstract ImmutableList<String> tags();\n" +
+            "}";
+
+    private static final String[] DOCUMENTS = {
+            "<?xml version=\"1.0\"?>\n" +
+                    "<pets>\n" +
+                    "   <item id=\"PetRequestId\">\n" +
+                    "       <name>Meatball</name>\n" +
+                    "       <breed>Persian</breed>\n" +
+                    "       <age>\n" +
+                    "           <years>3</years>\n" +
+                    "           <months>4</months>\n" +
+                    "       </age>\n" +
+                    "       <weight unit=\"kg\">4.5</weight>\n" +
+                    "       <chip>7234987235016749342</chip>\n" +
+                    "       <favourite>true</favourite>\n" +
+                    "       <description color=\"white\"/>\n" +
+                    "   </item>\n" +
+                    "</pets>",
+
+            //Unknown subtrees that reuse known names, comments, processing instructions and a DOCTYPE
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                    "<!DOCTYPE pets [<!ELEMENT pets ANY>]>\n" +
+                    "<!-- before the root -->\n" +
+                    "<pets>" +
+                    "<other><item id=\"wrong\"><name>Wrong</name></item></other>" +
+                    "<item id='second'><?ignored instruction?>" +
+                    "<name><!-- leading comment -->Mittens</name>" +
+                    "<age><days>12</days><years>1</years></age>" +
+                    "<weight>0.75</weight>" +
+                    "<chip>-1</chip>" +
+                    "<favourite>FALSE</favourite>" +
+                    "<description color=\"a &gt; b\" other='x/>y'>Likes <b>naps</b> a lot</description>" +
+                    "</item>" +
+                    "<item id=\"third\"><name>Later</name><breed>Ignored</breed></item>" +
+                    "</pets>",
+
+            //Entities, character references, non-ASCII text and attribute whitespace normalisation
+            "<pets>\r\n" +
+                    "  <item id=\"caf\u00e9 &amp; co\">\r\n" +
+                    "    <name>Tom &amp; Jerry &#65;&#x42; \u00fcber \u732b</name>\r\n" +
+                    "    <breed>line one\r\nline two</breed>\r\n" +
+                    "    <age><years>10</years></age>\r\n" +
+                    "    <weight unit=\"k\tg\">1e3</weight>\r\n" +
+                    "    <chip>0</chip>\r\n" +
+                    "    <favourite>true</favourite>\r\n" +
+                    "    <description color=\"&quot;black&quot;\">&lt;none&gt;</description>\r\n" +
+                    "  </item>\r\n" +
+                    "</pets>",
+
+            //Attributes found on a later element than the first one matching the path
+            "<pets>" +
+                    "<item><name>NoId</name></item>" +
+                    "<item id=\"late\"><age><years>2</years></age></item>" +
+                    "<item><weight>3</weight><chip>5</chip><favourite>true</favourite>" +
+                    "<description/><description color=\"blue\">second</description></item>" +
+                    "</pets>",
+
+            //Numbers with surrounding whitespace, character references and CDATA, and forms only the JDK parsers read
+            "<pets><item id=\"n\"><name>Numbers</name>" +
+                    "<age><years>\n  7\t</years><days>&#49;2</days></age>" +
+                    "<weight unit=\"kg\"> 2.50 </weight>" +
+                    "<chip><![CDATA[+0012]]></chip>" +
+                    "<favourite> TRUE </favourite>" +
+                    "<description color=\"c\"/></item></pets>",
+            "<pets><item id=\"m\"><name>Limits</name>" +
+                    "<age><years>\u0661\u0662</years><days>-2147483648</days></age>" +
+                    "<weight>0x1p3</weight>" +
+                    "<chip>-9223372036854775808</chip>" +
+                    "<favourite>tRuE</favourite>" +
+                    "<description color=\"c\"/></item></pets>",
+    };
+
+    @Test
+    public void staxEngineMatchesDom() throws Exception {
+        assertSameValues("STAX");
+    }
+
+    @Test
+    public void bytesEngineMatchesDom() throws Exception {
+        assertSameValues("BYTES");
+    }
+
+    @Test
+    public void streamInputsMatchString() throws Exception {
+        for(String engine : new String[] {"DOM", "STAX", "BYTES"}) {
+            final Class<?> pet = compile(engine);
+            final Method fromString = fromXml(pet, String.class);
+            final Method fromStream = fromXml(pet, InputStream.class);
+            final Method fromReader = fromXml(pet, Reader.class);
+            final Method fromSource = fromXml(pet, InputSource.class);
+
+            //A name longer than any buffer the streams are read with, with characters of every UTF-8 length
+            final String name = new String(new char[5000]).replace("\0", "a\u00e9\u4e16\ud83d\udc31");
+            final List<String> documents = new ArrayList<>(Arrays.asList(DOCUMENTS));
+            documents.add(DOCUMENTS[0].replace("Meatball", name));
+            for(String document : documents) {
+                final String expected = fromString.invoke(null, document).toString();
+                final byte[] bytes = document.getBytes(UTF_8);
+                assertWithMessage(engine).that(fromStream.invoke(null, new ByteArrayInputStream(bytes)).toString())
+                        .isEqualTo(expected);
+                assertWithMessage(engine).that(fromReader.invoke(null, new StringReader(document)).toString())
+                        .isEqualTo(expected);
+                assertWithMessage(engine).that(fromSource.invoke(null, new InputSource(new ByteArrayInputStream(bytes))).toString())
+                        .isEqualTo(expected);
+                assertWithMessage(engine).that(fromSource.invoke(null, new InputSource(new StringReader(document))).toString())
+                        .isEqualTo(expected);
+            }
+        }
+    }
+
+    //Slices that start and end inside a larger buffer, direct buffers and mapped files are all read in place
+    @Test
+    public void bufferInputsMatchString() throws Exception {
+        final Path file = Files.createTempFile("pet", ".xml");
+        try {
+            for(String engine : new String[] {"DOM", "STAX", "BYTES"}) {
+                final Class<?> pet = compile(engine);
+                final Method fromString = fromXml(pet, String.class);
+                final Method fromBuffer = fromXml(pet, ByteBuffer.class);
+                final Method fromPath = fromXml(pet, Path.class);
+
+                for(String document : DOCUMENTS) {
+                    final String expected = fromString.invoke(null, document).toString();
+                    final byte[] bytes = document.getBytes(UTF_8);
+
+                    final ByteBuffer padded = ByteBuffer.allocate(bytes.length + 8);
+                    padded.put(new byte[] {'<', 'x', '>', 0}).put(bytes).put(new byte[] {0, '<', '/', '>'});
+                    padded.position(4);
+                    padded.limit(4 + bytes.length);
+                    assertWithMessage(engine).that(fromBuffer.invoke(null, padded).toString()).isEqualTo(expected);
+                    assertWithMessage(engine).that(padded.position()).isEqualTo(4);
+
+                    final ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+                    direct.put(bytes).flip();
+                    assertWithMessage(engine).that(fromBuffer.invoke(null, direct).toString()).isEqualTo(expected);
+
+                    Files.write(file, bytes);
+                    assertWithMessage(engine).that(fromPath.invoke(null, file).toString()).isEqualTo(expected);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    //An end tag that closes the wrong element fails every engine, whether or not anything is read from inside it
+    @Test
+    public void mismatchedEndTagsFailEveryEngine() throws Exception {
+        final String document = "<pets><item id=\"a\"><name>Rex</name><age><years>1</years></age><weight>2</weight>" +
+                "<chip>3</chip><favourite>true</favourite><description color=\"c\"/></item></pets>";
+        final String[] documents = {
+                document.replace("<name>Rex", "<name><b>Rex"),
+                document.replace("<pets>", "<pets><other><a>skipped</b></other>"),
+        };
+
+        for(String engine : new String[] {"DOM", "STAX", "BYTES"}) {
+            final Method fromString = fromXml(compile(engine), String.class);
+            assertWithMessage(engine).that(fromString.invoke(null, document)).isNotNull();
+            for(String malformed : documents) {
+                try {
+                    fromString.invoke(null, malformed);
+                    fail(engine + " read " + malformed);
+                } catch (InvocationTargetException e) {
+                    assertWithMessage(engine).that(e.getCause()).isInstanceOf(RuntimeException.class);
+                }
+            }
+        }
+    }
+
+    //Bytes are decoded as their XML declaration says, or rejected when the engine can not, but never read as the wrong
+    //text. Characters were decoded already, so what they declare does not matter
+    @Test
+    public void declaredEncodingIsHonoured() throws Exception {
+        final String document = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>" +
+                "<pets><item id=\"caf\u00e9\"><name>\u00fcber</name><age><years>1</years></age><weight>2</weight>" +
+                "<chip>3</chip><favourite>true</favourite><description color=\"c\"/></item></pets>";
+        final byte[] bytes = document.getBytes(Charset.forName("ISO-8859-1"));
+
+        for(String engine : new String[] {"DOM", "STAX", "BYTES"}) {
+            final Class<?> pet = compile(engine);
+            final String expected = fromXml(pet, String.class).invoke(null, document).toString();
+            assertWithMessage(engine).that(expected).contains("name=\u00fcber");
+            try {
+                final Object read = fromXml(pet, InputStream.class).invoke(null, new ByteArrayInputStream(bytes));
+                assertWithMessage(engine).that(read.toString()).isEqualTo(expected);
+                assertWithMessage(engine).that(engine).isNotEqualTo("BYTES");
+            } catch (InvocationTargetException e) {
+                assertWithMessage(engine).that(engine).isEqualTo("BYTES");
+                assertWithMessage(engine).that(e.getCause()).hasMessageThat().isEqualTo("Unsupported encoding 'ISO-8859-1'");
+            }
+        }
+    }
+
+    @Test
+    public void recordsAreReadOneAtATime() throws Exception {
+        for(String engine : new String[] {"STAX", "BYTES"}) {
+            //The BYTES engine only iterates over documents already in memory
+            final boolean buffer = engine.equals("BYTES");
+            final String source = buffer
+                    ? RECORD_CLASS.replace("java.io.InputStream", "java.nio.ByteBuffer").replace("InputStream xml", "ByteBuffer xml")
+                    : RECORD_CLASS;
+            final Class<?> pet = compile(source, engine);
+            final Iterator<?> records = (Iterator<?>) (buffer
+                    ? fromXml(pet, ByteBuffer.class).invoke(null, ByteBuffer.wrap(RECORDS.getBytes(UTF_8)))
+                    : fromXml(pet, InputStream.class).invoke(null, new ByteArrayInputStream(RECORDS.getBytes(UTF_8))));
+
+            for(String expected : RECORD_VALUES) {
+                assertWithMessage(engine).that(records.hasNext()).isTrue();
+                assertWithMessage(engine).that(records.next().toString()).isEqualTo(expected);
+            }
+            assertWithMessage(engine).that(records.hasNext()).isFalse();
+            try {
+                records.next();
+                fail(engine);
+            } catch (NoSuchElementException expected) {
+            }
+
+            //A factory returning the value itself reads the first record
+            assertWithMessage(engine).that(fromXml(pet, String.class).invoke(null, RECORDS).toString())
+                    .isEqualTo(RECORD_VALUES[0]);
+        }
+    }
+
+    //Nested values read relative to the node their parent's path selected, at any depth
+    @Test
+    public void nestedValuesReadFromTheirNode() throws Exception {
+        final Method fromString = fromXml(compile(NESTED_CLASS, "DOM"), String.class);
+        final String document = "" +
+                "<pets>" +
+                "<name>Root</name>" +
+                "<item id=\"a\">" +
+                "<owner><name>Jo</name><address city=\"Leeds\"/><pet><name>Rex</name></pet></owner>" +
+                "</item>" +
+                "</pets>";
+
+        assertWithMessage(document).that(fromString.invoke(null, document).toString()).isEqualTo("" +
+                "Pet{id=a, owner=Owner{name=Jo, city=Leeds, pet=Owner{name=Rex, city=null, pet=null}}, vet=null}");
+    }
+
+    //One parsed document is read into several value classes, as often as needed
+    @Test
+    public void documentFeedsSeveralValues() throws Exception {
+        final Class<?> pet = compile(DOCUMENT_CLASS, "DOM");
+        final Method petFromDocument = fromXml(pet, Document.class);
+        final Method headerFromDocument = fromXml(pet.getDeclaredClasses()[0], Document.class);
+        final Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(
+                new StringReader("<pets count=\"1\"><item id=\"a\"><age><years>3</years></age></item></pets>")));
+
+        assertWithMessage("pet").that(petFromDocument.invoke(null, document).toString()).isEqualTo("Pet{id=a, years=3}");
+        assertWithMessage("header").that(headerFromDocument.invoke(null, document).toString()).isEqualTo("Header{count=1}");
+        assertWithMessage("again").that(petFromDocument.invoke(null, document).toString()).isEqualTo("Pet{id=a, years=3}");
+    }
+
+    //Enums and java.time values read the same with every engine, and fail like valueOf and parse do
+    @Test
+    public void codecsMatchAcrossEngines() throws Exception {
+        final String[] documents = {
+                "<pets><item kind=\"CAT\"><previous>DOG</previous><born>2016-02-29</born>" +
+                        "<vaccinated>01/03/2017</vaccinated><seen>2024-01-31T12:30:00.250Z</seen>" +
+                        "<fed>2024-01-31 08:15</fed><walked>2024-01-31T09:00:00+01:00</walked></item></pets>",
+                "<pets><item kind=\"DOG\"><born>+12024-01-31</born><vaccinated>31/12/1969</vaccinated>" +
+                        "<seen>1969-12-31T23:59:59Z</seen><walked>2024-01-31T09:00Z</walked></item></pets>",
+        };
+        final String[] expected = {
+                "Pet{kind=CAT, previous=DOG, born=2016-02-29, vaccinated=2017-03-01, seen=2024-01-31T12:30:00.250Z, " +
+                        "fed=2024-01-31T08:15:00Z, walked=2024-01-31T09:00+01:00}",
+                "Pet{kind=DOG, previous=null, born=+12024-01-31, vaccinated=1969-12-31, seen=1969-12-31T23:59:59Z, " +
+                        "fed=null, walked=2024-01-31T09:00Z}",
+        };
+
+        for(String engine : new String[] {"DOM", "STAX", "BYTES"}) {
+            final Method fromString = fromXml(compile(CODEC_CLASS, engine), String.class);
+            for(int i = 0; i < documents.length; i++) {
+                assertWithMessage(engine).that(fromString.invoke(null, documents[i]).toString()).isEqualTo(expected[i]);
+            }
+            try {
+                fromString.invoke(null, documents[0].replace("kind=\"CAT\"", "kind=\"cat\""));
+                fail(engine + " read an unknown constant");
+            } catch (InvocationTargetException e) {
+                assertWithMessage(engine).that(e).hasCauseThat().hasMessageThat().isEqualTo("No enum constant test.Pet.Kind.cat");
+            }
+        }
+    }
+
+    //Documents with a DOCTYPE, or too deeply nested or too large before the values, fail instead of being read
+    @Test
+    public void featuresLimitWhatIsParsed() throws Exception {
+        final String document = "<pets><item id=\"a\"/></pets>";
+        final String[] rejected = {
+                "<!DOCTYPE pets [<!ENTITY id \"a\">]><pets><item id=\"&id;\"/></pets>",
+                "<pets><owner><address><city/></address></owner><item id=\"a\"/></pets>",
+                "<pets>" + new String(new char[200]).replace('\0', ' ') + "<item id=\"a\"/></pets>",
+        };
+
+        for(String engine : new String[] {"DOM", "STAX", "AUTO"}) {
+            final Method fromString = fromXml(compile(FEATURES_CLASS, engine), String.class);
+            assertWithMessage(engine).that(fromString.invoke(null, document).toString()).isEqualTo("Pet{id=a}");
+            for(String xml : rejected) {
+                try {
+                    fromString.invoke(null, xml);
+                    fail(engine + " read " + xml);
+                } catch (InvocationTargetException e) {
+                    assertWithMessage(engine).that(e).hasCauseThat().isInstanceOf(RuntimeException.class);
+                }
+            }
+        }
+    }
+
+    //Without the external DTD, entities the document declares outside itself are not fetched either. The file does not
+    //exist, so reading it would fail
+    @Test
+    public void externalEntitiesAreNotRead() throws Exception {
+        final Path missing = Files.createTempFile("secret", ".txt");
+        Files.delete(missing);
+        final String document = "<!DOCTYPE pets [<!ENTITY secret SYSTEM \"" + missing.toUri() + "\">]>" +
+                "<pets><item id=\"a\">&secret;</item></pets>";
+        final String valueClass = FEATURES_CLASS.replace("maxElementDepth = 3, maxDocumentSize = 200", "disallowDoctype = false");
+
+        for(String engine : new String[] {"DOM", "STAX"}) {
+            final Method fromString = fromXml(compile(valueClass, engine), String.class);
+            assertWithMessage(engine).that(fromString.invoke(null, document).toString()).isEqualTo("Pet{id=a}");
+        }
+    }
+
+    //Xerces features are only set where they differ from the JDK's defaults, so other factories can still be used. Not
+    //loading the external DTD also turns off external entities, which a DTD in the document could still declare
+    @Test
+    public void featuresOnlySetWhatDiffersFromTheDefaults() throws Exception {
+        final String[][] features = {
+                {"disallowDoctype = false, loadExternalDtd = true"},
+                {"disallowDoctype = false", "nonvalidating/load-external-dtd", "external-general-entities", "external-parameter-entities"},
+                {"maxElementDepth = 3", "disallow-doctype-decl"},
+        };
+        for(String[] feature : features) {
+            final String source = String.format(FEATURES_CLASS, "DOM")
+                    .replace("maxElementDepth = 3, maxDocumentSize = 200", feature[0]);
+            final Compilation compilation = javac()
+                    .withProcessors(new AutoValueProcessor())
+                    .compile(JavaFileObjects.forSourceString("test.Pet", source));
+            assertThat(compilation).succeeded();
+            final String generated = compilation.generatedSourceFile("test.AutoValue_Pet").get().getCharContent(false).toString();
+            final int set = generated.split("setFeature\\(", -1).length - 1;
+            assertWithMessage(feature[0]).that(set).isEqualTo(feature.length - 1);
+            for(int i = 1; i < feature.length; i++) {
+                assertWithMessage(feature[0]).that(generated).contains(feature[i] + "\", ");
+            }
+        }
+    }
+
+    //Missing values, booleans included, and values that do not convert are reported by name without a stack trace, and
+    //anything else that fails by its message. Documents the parsers fail on are thrown without a second stack trace on
+    //top of the parser's own, and XmlByteReader fills in none at all
+    @Test
+    public void tryFactoriesReturnFailures() throws Exception {
+        for(String engine : new String[] {"DOM", "STAX", "BYTES"}) {
+            final Class<?> pet = compile(TRY_CLASS, engine);
+            final Method fromString = fromXml(pet, String.class);
+            final Method tryFromString = pet.getDeclaredMethod("tryFromXml", String.class);
+            tryFromString.setAccessible(true);
+
+            final XmlResult<?> value = (XmlResult<?>) tryFromString.invoke(null,
+                    "<pets><item id=\"a\"><age><years>3</years></age><vaccinated>true</vaccinated></item></pets>");
+            assertWithMessage(engine).that(value.isValue()).isTrue();
+            assertWithMessage(engine).that(value.value().toString()).isEqualTo("Pet{id=a, years=3, breed=null, vaccinated=true}");
+
+            final XmlResult<?> missing = (XmlResult<?>) tryFromString.invoke(null, "<pets><item id=\"a\"/></pets>");
+            assertWithMessage(engine).that(missing.isValue()).isFalse();
+            assertWithMessage(engine).that(missing.property()).isEqualTo("years");
+            assertWithMessage(engine).that(missing.path()).isEqualTo("/pets/item/age/years/text()");
+            assertWithMessage(engine).that(missing.message()).isEqualTo("No value for property 'years' at '/pets/item/age/years/text()'");
+
+            final XmlResult<?> missingBoolean = (XmlResult<?>) tryFromString.invoke(null, "<pets><item id=\"a\"><age><years>3</years></age></item></pets>");
+            assertWithMessage(engine).that(missingBoolean.isValue()).isFalse();
+            assertWithMessage(engine).that(missingBoolean.property()).isEqualTo("vaccinated");
+
+            final XmlResult<?> invalid = (XmlResult<?>) tryFromString.invoke(null,
+                    "<pets><item id=\"a\"><age><years>three</years></age><vaccinated>true</vaccinated></item></pets>");
+            assertWithMessage(engine).that(invalid.isValue()).isFalse();
+            assertWithMessage(engine).that(invalid.property()).isEqualTo("years");
+            assertWithMessage(engine).that(invalid.path()).isEqualTo("/pets/item/age/years/text()");
+            assertWithMessage(engine).that(invalid.message()).isEqualTo("Invalid value for property 'years' at '/pets/item/age/years/text()': For input string: \"three\"");
+
+            final XmlResult<?> malformed = (XmlResult<?>) tryFromString.invoke(null, "<pets><item id=\"a\">");
+            assertWithMessage(engine).that(malformed.isValue()).isFalse();
+            assertWithMessage(engine).that(malformed.property()).isNull();
+            assertWithMessage(engine).that(malformed.message()).isNotEmpty();
+
+            final String[] failed = {
+                    "<pets/>",
+                    "<pets><item id=\"a\">",
+                    "<pets><item id=\"a\"><age><years>three</years></age><vaccinated>true</vaccinated></item></pets>",
+            };
+            for(String xml : failed) {
+                try {
+                    fromString.invoke(null, xml);
+                    fail(engine + " read " + xml);
+                } catch (InvocationTargetException e) {
+                    assertWithMessage(engine).that(e.getCause()).isInstanceOf(XmlFailure.class);
+                    assertWithMessage(engine).that(e.getCause().getStackTrace()).isEmpty();
+                }
+            }
+        }
+    }
+
+    //The same document, however it comes in, gives back the value first read from it until it is evicted
+    @Test
+    public void cachedFactoriesReuseValues() throws Exception {
+        final String[] documents = {
+                "<pets><item id=\"a\"><age><years>3</years></age></item></pets>",
+                "<pets><item id=\"b\"><age><years>4</years></age></item></pets>",
+                "<pets><item id=\"c\"><age><years>5</years></age></item></pets>",
+        };
+
+        for(String engine : new String[] {"DOM", "STAX", "BYTES"}) {
+            final Class<?> pet = compile(CACHED_CLASS, engine);
+            final Method fromString = pet.getDeclaredMethod("fromXmlCached", String.class);
+            final Method fromBuffer = pet.getDeclaredMethod("fromXmlCached", ByteBuffer.class);
+            fromString.setAccessible(true);
+            fromBuffer.setAccessible(true);
+
+            final Object first = fromString.invoke(null, documents[0]);
+            assertWithMessage(engine).that(first.toString()).isEqualTo("Pet{id=a, years=3}");
+            assertWithMessage(engine).that(fromString.invoke(null, new String(documents[0].toCharArray()))).isSameAs(first);
+            assertWithMessage(engine).that(fromString.invoke(null, documents[1]).toString()).isEqualTo("Pet{id=b, years=4}");
+
+            final Object buffered = fromBuffer.invoke(null, ByteBuffer.wrap(documents[0].getBytes(UTF_8)));
+            assertWithMessage(engine).that(buffered).isEqualTo(first);
+            assertWithMessage(engine).that(fromBuffer.invoke(null, ByteBuffer.wrap(documents[0].getBytes(UTF_8)))).isSameAs(buffered);
+
+            //Two documents fit, so the least recently used String document makes way
+            fromString.invoke(null, documents[2]);
+            assertWithMessage(engine).that(fromString.invoke(null, documents[0])).isNotSameAs(first);
+        }
+    }
+
+    //Interned values read from different documents are the same String, while the others are copies
+    @Test
+    public void internedStringsAreShared() throws Exception {
+        for(String engine : new String[] {"DOM", "STAX", "BYTES"}) {
+            final Class<?> pet = compile(INTERN_CLASS, engine);
+            final Method fromString = fromXml(pet, String.class);
+            final Method id = pet.getDeclaredMethod("id");
+            final Method breed = pet.getDeclaredMethod("breed");
+            id.setAccessible(true);
+            breed.setAccessible(true);
+
+            final Object first = fromString.invoke(null, "<pets><item id=\"collie\"><breed>collie</breed></item></pets>");
+            final Object second = fromString.invoke(null, "<pets><item id=\"collie\"><breed>collie</breed></item></pets>");
+            assertWithMessage(engine).that(breed.invoke(second)).isSameAs(breed.invoke(first));
+            assertWithMessage(engine).that(id.invoke(second)).isNotSameAs(id.invoke(first));
+            assertWithMessage(engine).that(breed.invoke(fromString.invoke(null, "<pets><item id=\"a\"/></pets>"))).isNull();
+        }
+    }
+
+    //Every match of a node set path is read, across all the elements it passes through, and none is read as empty
+    @Test
+    public void nodeSetsReadEveryMatch() throws Exception {
+        final String document = "" +
+                "<pets>" +
+                "<item id=\"a\"><weights><weight>3</weight><weight>-4</weight></weights><tag>old</tag><tag>grey</tag></item>" +
+                "<item id=\"b\"><weights><weight>5</weight></weights><heights><height>0.5</height></heights></item>" +
+                "</pets>";
+        final String expected = "Pet{id=a, ids=[a, b], weights=[3, -4, 5], longWeights=[3, -4, 5], heights=[0.5], tags=[old, grey]}";
+
+        for(String engine : new String[] {"DOM", "AUTO"}) {
+            final Class<?> pet = compile(NODE_SET_CLASS, engine);
+            final Method fromString = fromXml(pet, String.class);
+            final Method fromStringLazy = pet.getDeclaredMethod("fromXmlLazy", String.class);
+            fromStringLazy.setAccessible(true);
+
+            assertWithMessage(engine).that(fromString.invoke(null, document).toString()).isEqualTo(expected);
+            assertWithMessage(engine).that(fromStringLazy.invoke(null, document)).isEqualTo(fromString.invoke(null, document));
+            assertWithMessage(engine).that(fromString.invoke(null, "<pets><item id=\"a\"/></pets>").toString())
+                    .isEqualTo("Pet{id=a, ids=[a], weights=[], longWeights=[], heights=[], tags=[]}");
+        }
+    }
+
+    //Lazy values only read the properties asked for, and equal the value read eagerly from the same document
+    @Test
+    public void lazyValuesReadOnDemand() throws Exception {
+        for(String engine : new String[] {"DOM", "AUTO"}) {
+            final Class<?> pet = compile(LAZY_CLASS, engine);
+            final Method fromString = fromXml(pet, String.class);
+            final Method fromStringLazy = pet.getDeclaredMethod("fromXmlLazy", String.class);
+            final Method id = pet.getDeclaredMethod("id");
+            final Method years = pet.getDeclaredMethod("years");
+            fromStringLazy.setAccessible(true);
+            id.setAccessible(true);
+            years.setAccessible(true);
+
+            for(String document : DOCUMENTS) {
+                final Object eager = fromString.invoke(null, document);
+                final Object lazy = fromStringLazy.invoke(null, document);
+                assertWithMessage(engine).that(lazy.toString()).isEqualTo(eager.toString());
+                assertWithMessage(engine).that(lazy.equals(eager)).isTrue();
+                assertWithMessage(engine).that(eager.equals(lazy)).isTrue();
+                assertWithMessage(engine).that(lazy.hashCode()).isEqualTo(eager.hashCode());
+            }
+
+            //Years is missing, which only fails once it is asked for
+            final Object partial = fromStringLazy.invoke(null, "<pets><item id=\"a\"/></pets>");
+            assertWithMessage(engine).that(id.invoke(partial)).isEqualTo("a");
+            try {
+                years.invoke(partial);
+                fail(engine);
+            } catch (InvocationTargetException expected) {
+                assertWithMessage(engine).that(expected.getCause()).isInstanceOf(NullPointerException.class);
+            }
+        }
+    }
+
+    //Each property is read once, however many threads ask for it at the same time
+    @Test
+    public void lazyValuesAreSharedSafely() throws Exception {
+        final Method fromStringLazy = compile(LAZY_CLASS, "DOM").getDeclaredMethod("fromXmlLazy", String.class);
+        fromStringLazy.setAccessible(true);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for(int i = 0; i < 20; i++) {
+                final Object lazy = fromStringLazy.invoke(null, DOCUMENTS[0]);
+                final List<Future<String>> results = new ArrayList<>();
+                for(int thread = 0; thread < 8; thread++) {
+                    results.add(executor.submit(new Callable<String>() {
+                        @Override
+                        public String call() {
+                            return lazy.toString();
+                        }
+                    }));
+                }
+                for(Future<String> result : results) {
+                    assertWithMessage("lazy").that(result.get()).isEqualTo(lazy.toString());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    //Batches larger than the threshold are split across threads, but values keep the order of their documents
+    @Test
+    public void batchesKeepTheirOrder() throws Exception {
+        for(String engine : new String[] {"DOM", "STAX", "BYTES"}) {
+            final Class<?> pet = compile(BATCH_CLASS, engine);
+            final Method fromList = fromXml(pet, List.class);
+            final Method fromArray = fromXml(pet, String[].class);
+
+            for(int size : new int[] {0, 3, 4, 5, 257}) {
+                final String[] documents = new String[size];
+                final List<String> expected = new ArrayList<>();
+                for(int i = 0; i < size; i++) {
+                    documents[i] = "<pets><item id=\"" + i + "\"><age><years>" + i + "</years></age></item></pets>";
+                    expected.add("Pet{id=" + i + ", years=" + i + "}");
+                }
+
+                final List<?> list = (List<?>) fromList.invoke(null, Arrays.asList(documents));
+                final Object[] array = (Object[]) fromArray.invoke(null, (Object) documents);
+                final List<?> linked = (List<?>) fromList.invoke(null, new LinkedList<>(Arrays.asList(documents)));
+                assertWithMessage(engine).that(toStrings(list)).isEqualTo(expected);
+                assertWithMessage(engine).that(toStrings(Arrays.asList(array))).isEqualTo(expected);
+                assertWithMessage(engine).that(toStrings(linked)).isEqualTo(expected);
+            }
+        }
+    }
+
+    //Async factories share pooled parser state by default, and keeping it per thread anyway is warned about
+    @Test
+    public void asyncFactoriesPoolParserState() throws Exception {
+        final Compilation pooled = javac()
+                .withProcessors(new AutoValueProcessor())
+                .compile(JavaFileObjects.forSourceString("test.Pet", String.format(ASYNC_CLASS, "DOM")));
+        assertThat(pooled).succeeded();
+        assertThat(pooled).generatedSourceFile("test.AutoValue_Pet").contentsAsUtf8String().contains("ConcurrentLinkedQueue");
+        assertThat(pooled).generatedSourceFile("test.AutoValue_Pet").contentsAsUtf8String().doesNotContain("ThreadLocal");
+
+        final String perThread = ASYNC_CLASS.replace("Engine.%s)", "Engine.%s, threadLocal = true)");
+        final Compilation warned = javac()
+                .withProcessors(new AutoValueProcessor())
+                .compile(JavaFileObjects.forSourceString("test.Pet", String.format(perThread, "DOM")));
+        assertThat(warned).succeeded();
+        assertThat(warned).hadWarningContaining("threadLocal = false to share a pool");
+        assertThat(warned).generatedSourceFile("test.AutoValue_Pet").contentsAsUtf8String().contains("ThreadLocal");
+    }
+
+    //Asynchronous factories run on the given Executor, or on the default one, and fail their future on bad input
+    @Test
+    public void asyncFactoriesCompleteOnTheirExecutor() throws Exception {
+        final AtomicInteger tasks = new AtomicInteger();
+        final ExecutorService service = Executors.newFixedThreadPool(4);
+        final Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.incrementAndGet();
+                service.execute(command);
+            }
+        };
+        try {
+            for(String engine : new String[] {"DOM", "STAX", "BYTES"}) {
+                final Class<?> pet = compile(ASYNC_CLASS, engine);
+                final Method fromString = pet.getDeclaredMethod("fromXmlAsync", String.class);
+                final Method fromStream = pet.getDeclaredMethod("fromXmlAsync", InputStream.class, Executor.class);
+                fromString.setAccessible(true);
+                fromStream.setAccessible(true);
+
+                final List<Future<?>> futures = new ArrayList<>();
+                for(int i = 0; i < 64; i++) {
+                    final String document = "<pets><item id=\"" + i + "\"><age><years>" + i + "</years></age></item></pets>";
+                    futures.add((Future<?>) fromString.invoke(null, document));
+                    futures.add((Future<?>) fromStream.invoke(null, new ByteArrayInputStream(document.getBytes(UTF_8)), executor));
+                }
+                for(int i = 0; i < futures.size(); i++) {
+                    assertWithMessage(engine).that(futures.get(i).get(10, TimeUnit.SECONDS).toString())
+                            .isEqualTo("Pet{id=" + i / 2 + ", years=" + i / 2 + "}");
+                }
+
+                final Future<?> failed = (Future<?>) fromString.invoke(null, "<pets><item id=\"a\"/></pets>");
+                try {
+                    failed.get(10, TimeUnit.SECONDS);
+                    fail(engine);
+                } catch (ExecutionException expected) {
+                }
+            }
+            assertWithMessage("tasks").that(tasks.get()).isEqualTo(3 * 64);
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    //Each step is reported in order, with the size of the document, and a failure is reported before it is rethrown
+    @Test
+    public void listenerIsToldAboutEachStep() throws Exception {
+        for(String engine : new String[] {"DOM", "STAX", "BYTES"}) {
+            final Class<?> pet = compile(LISTENER_CLASS, engine);
+            final Method fromBuffer = fromXml(pet, ByteBuffer.class);
+            final String text = "<pets><item id=\"a\"><age><years>3</years></age></item></pets>";
+            final byte[] document = text.getBytes(UTF_8);
+
+            RecordingListener.EVENTS.clear();
+            fromXml(pet, String.class).invoke(null, text);
+            assertWithMessage(engine).that(RecordingListener.EVENTS.get(0)).isEqualTo("documentRead Pet " + text.length());
+
+            RecordingListener.EVENTS.clear();
+            assertWithMessage(engine).that(fromBuffer.invoke(null, ByteBuffer.wrap(document)).toString())
+                    .isEqualTo("Pet{id=a, years=3}");
+            assertWithMessage(engine).that(RecordingListener.EVENTS)
+                    .containsExactly("documentRead Pet " + document.length, "propertyRead Pet id", "propertyRead Pet years", "parsed Pet")
+                    .inOrder();
+
+            RecordingListener.EVENTS.clear();
+            try {
+                fromBuffer.invoke(null, ByteBuffer.wrap("<pets><item id=\"a\"/></pets>".getBytes(UTF_8)));
+                fail(engine);
+            } catch (InvocationTargetException expected) {
+                assertWithMessage(engine).that(RecordingListener.EVENTS.get(RecordingListener.EVENTS.size() - 1))
+                        .isEqualTo("failed Pet " + expected.getCause().getClass().getName());
+            }
+        }
+    }
+
+    //VALUE_CLASS has factories for bytes in any encoding, so the cheapest engine able to read it is STAX
+    @Test
+    public void autoEngineMatchesDom() throws Exception {
+        assertSameValues("AUTO");
+    }
+
+    @Test
+    public void autoEngineReportsItsChoice() throws Exception {
+        assertThat(compileWithReport(VALUE_CLASS, "AUTO"))
+                .generatedFile(StandardLocation.SOURCE_OUTPUT, "test", "Pet.xpath-report.txt")
+                .contentsAsUtf8String()
+                .contains("Engine: STAX (AUTO, the InputStream factory is read a piece at a time)\n");
+
+        final String predicate = VALUE_CLASS.replace("/pets/item/name/text()", "/pets/item[1]/name/text()");
+        final Compilation compilation = compileWithReport(predicate, "AUTO");
+        assertThat(compilation)
+                .generatedFile(StandardLocation.SOURCE_OUTPUT, "test", "Pet.xpath-report.txt")
+                .contentsAsUtf8String()
+                .contains("Engine: DOM (AUTO, path '/pets/item[1]/name/text()' for property 'name' (predicate) needs XPath)\n");
+        assertThat(compilation)
+                .generatedFile(StandardLocation.SOURCE_OUTPUT, "test", "Pet.xpath-report.txt")
+                .contentsAsUtf8String()
+                .contains("name                     PREDICATE     4    8  /pets/item[1]/name/text()\n");
+    }
+
+    //Without the option nothing but classes is generated
+    @Test
+    public void reportIsOptIn() throws Exception {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Pet", String.format(VALUE_CLASS, "AUTO"));
+        final Compilation compilation = javac().withProcessors(new AutoValueProcessor()).compile(source);
+        assertThat(compilation).succeeded();
+        for(JavaFileObject file : compilation.generatedFiles()) {
+            assertWithMessage(file.getName()).that(file.getName()).doesNotContain("xpath-report");
+        }
+    }
+
+    private static void assertSameValues(String engine) throws Exception {
+        final Method dom = fromXml(compile("DOM"), String.class);
+        final Method other = fromXml(compile(engine), String.class);
+
+        for(String document : DOCUMENTS) {
+            final Object expected = dom.invoke(null, document);
+            final Object actual = other.invoke(null, document);
+            assertWithMessage(document).that(actual.toString()).isEqualTo(expected.toString());
+        }
+    }
+
+    public static final class RecordingListener implements XmlListener {
+
+        static final List<String> EVENTS = new ArrayList<>();
+
+        @Override
+        public void documentRead(Class<?> type, long size, long nanos) {
+            assertWithMessage("nanos").that(nanos).isAtLeast(0L);
+            EVENTS.add("documentRead " + type.getSimpleName() + " " + size);
+        }
+
+        @Override
+        public void propertyRead(Class<?> type, String property, long nanos) {
+            assertWithMessage("nanos").that(nanos).isAtLeast(0L);
+            EVENTS.add("propertyRead " + type.getSimpleName() + " " + property);
+        }
+
+        @Override
+        public void parsed(Class<?> type, long nanos) {
+            assertWithMessage("nanos").that(nanos).isAtLeast(0L);
+            EVENTS.add("parsed " + type.getSimpleName());
+        }
+
+        @Override
+        public void failed(Class<?> type, RuntimeException cause) {
+            EVENTS.add("failed " + type.getSimpleName() + " " + cause.getClass().getName());
+        }
+
+    }
+
+    private static List<String> toStrings(List<?> values) {
+        final List<String> strings = new ArrayList<>();
+        for(Object value : values) {
+            strings.add(value.toString());
+        }
+        return strings;
+    }
+
+    //Parsing what writeXml wrote gives back an equal value, and a Writer gets the same document a stream does
+    @Test
+    public void writtenValuesReadBackEqual() throws Exception {
+        final String[] documents = {
+                "<pets><item id=\"a &amp; &quot;b&quot;\"><name>Tom &lt;&amp;&gt; Jerry \u00e9\u4e16\ud83d\udc31</name>" +
+                        "<age><years>-3</years><days>-9223372036854775808</days></age><weight kg=\"4.25\"/>" +
+                        "<favourite>true</favourite><size>LARGE</size><nickname>T</nickname></item></pets>",
+                "<pets><item id=\"c\"><name>Rex</name><age><years>7</years><days>9223372036854775807</days></age>" +
+                        "<favourite>false</favourite><size>SMALL</size></item></pets>",
+        };
+
+        for(String engine : new String[] {"DOM", "STAX", "BYTES"}) {
+            final Class<?> pet = compile(WRITER_CLASS, engine);
+            final Method fromString = fromXml(pet, String.class);
+            final Method toStream = pet.getDeclaredMethod("writeXml", pet, OutputStream.class);
+            final Method toWriter = pet.getDeclaredMethod("writeXml", pet, Writer.class);
+            toStream.setAccessible(true);
+            toWriter.setAccessible(true);
+
+            for(String document : documents) {
+                final Object value = fromString.invoke(null, document);
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                toStream.invoke(null, value, bytes);
+                final String written = new String(bytes.toByteArray(), UTF_8);
+                assertWithMessage(engine).that(fromString.invoke(null, written)).isEqualTo(value);
+
+                final StringWriter chars = new StringWriter();
+                toWriter.invoke(null, value, chars);
+                assertWithMessage(engine).that(chars.toString()).isEqualTo(written);
+            }
+        }
+    }
+
+    private static Method fromXml(Class<?> pet, Class<?> input) throws Exception {
+        final Method method = pet.getDeclaredMethod("fromXml", input);
+        method.setAccessible(true);
+        return method;
+    }
+
+    private static Class<?> compile(String engine) throws Exception {
+        return compile(VALUE_CLASS, engine);
+    }
+
+    private static Class<?> compile(String valueClass, String engine) throws Exception {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Pet", String.format(valueClass, engine));
+        final Compilation compilation = javac().withProcessors(new AutoValueProcessor()).compile(source);
+        assertThat(compilation).succeeded();
+
+        final Map<String, byte[]> classes = new HashMap<>();
+        for(JavaFileObject file : compilation.generatedFiles()) {
+            if(file.getKind() == JavaFileObject.Kind.CLASS) {
+                final String name = file.getName()
+                        .substring(file.getName().indexOf("test/"))
+                        .replace(".class", "")
+                        .replace('/', '.');
+                classes.put(name, read(file));
+            }
+        }
+
+        final ClassLoader loader = new ClassLoader(EngineConformanceTest.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                final byte[] bytes = classes.get(name);
+                if(bytes == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+        };
+
+        return loader.loadClass("test.Pet");
+    }
+
+    private static Compilation compileWithReport(String valueClass, String engine) {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Pet", String.format(valueClass, engine));
+        final Compilation compilation = javac()
+                .withProcessors(new AutoValueProcessor())
+                .withOptions("-A" + XmlFactoryAutoValueExtension.REPORT_OPTION + "=true")
+                .compile(source);
+        assertThat(compilation).succeeded();
+        return compilation;
+    }
+
+    private static byte[] read(JavaFileObject file) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        try(InputStream in = file.openInputStream()) {
+            int read;
+            while((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+
+}
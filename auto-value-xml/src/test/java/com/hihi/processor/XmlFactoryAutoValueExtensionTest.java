@@ -39,71 +39,129 @@ public class XmlFactoryAutoValueExtensionTest {
                         "\n" +
                         "import static javax.xml.xpath.XPathConstants.NODE;\n" +
                         "\n" +
-                        "import java.io.ByteArrayInputStream;\n" +
+                        "import com.hihi.xml.XmlNumbers;\n" +
                         "import java.io.IOException;\n" +
-                        "import java.io.InputStream;\n" +
-                        "import java.lang.Exception;\n" +
-                        "import java.lang.Integer;\n" +
+                        "import java.io.StringReader;\n" +
+                        "import java.lang.Override;\n" +
                         "import java.lang.RuntimeException;\n" +
                         "import java.lang.String;\n" +
-                        "import java.nio.charset.Charset;\n" +
+                        "import java.lang.ThreadLocal;\n" +
+                        "import java.util.concurrent.locks.ReentrantLock;\n" +
                         "import javax.xml.parsers.DocumentBuilder;\n" +
                         "import javax.xml.parsers.DocumentBuilderFactory;\n" +
                         "import javax.xml.parsers.ParserConfigurationException;\n" +
                         "import javax.xml.xpath.XPath;\n" +
+                        "import javax.xml.xpath.XPathExpression;\n" +
                         "import javax.xml.xpath.XPathExpressionException;\n" +
                         "import javax.xml.xpath.XPathFactory;\n" +
                         "import org.w3c.dom.Document;\n" +
                         "import org.w3c.dom.Node;\n" +
+                        "import org.xml.sax.InputSource;\n" +
                         "import org.xml.sax.SAXException;\n" +
                         "\n" +
                         "final class AutoValue_Test extends $AutoValue_Test {\n" +
+                        "   private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = DocumentBuilderFactory.newInstance();\n" +
+                        "\n" +
+                        "   private static final XPathFactory XPATH_FACTORY = XPathFactory.newInstance();\n" +
+                        "\n" +
+                        "   private static final ReentrantLock FACTORY_LOCK = new ReentrantLock();\n" +
+                        "\n" +
+                        "   private static final ThreadLocal<XmlState> XML_STATE = new ThreadLocal<XmlState>() {\n" +
+                        "      @Override\n" +
+                        "      protected XmlState initialValue() {\n" +
+                        "         return new XmlState();\n" +
+                        "      }\n" +
+                        "   };\n" +
+                        "\n" +
                         "   AutoValue_Test(String content, int code) {\n" +
                         "       super(content, code);\n" +
                         "   }\n" +
                         "\n" +
                         "   static AutoValue_Test createFromXml(String xml) {\n" +
-                        "       final Charset utf8 = Charset.forName(\"UTF-8\");\n" +
-                        "       final byte[] bytes = xml.getBytes(utf8);\n" +
+                        "       return createFromXml(new InputSource(new StringReader(xml)));\n" +
+                        "   }\n" +
                         "\n" +
-                        "       InputStream is = null;\n" +
+                        "   static AutoValue_Test createFromXml(InputSource xml) {\n" +
+                        "       final XmlState state = acquireXmlState();\n" +
                         "       try {\n" +
-                        "           is = new ByteArrayInputStream(bytes);\n" +
-                        "\n" +
-                        "           final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();\n" +
-                        "           final DocumentBuilder builder = factory.newDocumentBuilder();\n" +
-                        "           final Document document = builder.parse(is);\n" +
+                        "           final Document document = state.builder.parse(xml);\n" +
                         "           \n" +
-                        "           final XPath path = XPathFactory.newInstance().newXPath();\n" +
+                        "           final Node context0 = getNodeForXPath(state.context0, \"/path/to\", document);\n" +
                         "           \n" +
-                        "           final Node node0 = getNodeForXPath(path, \"/path/to/string/text()\", document);\n" +
+                        "           final Node node0 = getNodeForXPath(state.relative0, state.expression0, \"/path/to/string/text()\", context0, document);\n" +
                         "           final String content = node0.getNodeValue();\n" +
                         "           \n" +
-                        "           final Node node1 = getNodeForXPath(path, \"/path/to/attribute/@code\", document);\n" +
-                        "           final int code = Integer.parseInt(node1.getNodeValue());\n" +
+                        "           final Node node1 = getNodeForXPath(state.relative1, state.expression1, \"/path/to/attribute/@code\", context0, document);\n" +
+                        "           final int code = XmlNumbers.parseInt(node1.getNodeValue());\n" +
                         "\n" +
                         "           return new AutoValue_Test(content, code);\n" +
-                        "       } catch (IOException | ParserConfigurationException | SAXException e) {\n" +
+                        "       } catch (IOException | SAXException e) {\n" +
                         "           throw new RuntimeException(e);\n" +
                         "       } finally {\n" +
-                        "           if (is != null) {\n" +
-                        "               try {\n" +
-                        "                   is.close();\n" +
-                        "               } catch (Exception e) {\n" +
-                        "                   // Ignore\n" +
-                        "               }\n" +
-                        "           }\n" +
+                        "           releaseXmlState(state);\n" +
                         "       }\n" +
                         "   }\n" +
                         "\n" +
-                        "   private static Node getNodeForXPath(XPath path, String expression, Document document) {\n" +
+                        "   private static Node getNodeForXPath(XPathExpression expression, String path, Node node) {\n" +
                         "       try {\n" +
-                        "           return (Node) path.evaluate(expression, document, NODE);\n" +
+                        "           return (Node) expression.evaluate(node, NODE);\n" +
                         "       } catch (XPathExpressionException e) {\n" +
-                        "           final String msg = String.format(\"Could not evaluate path '%s'\", expression);\n" +
+                        "           final String msg = String.format(\"Could not evaluate path '%s'\", path);\n" +
                         "           throw new RuntimeException(msg,e);\n" +
                         "       }\n" +
                         "   }\n" +
+                        "\n" +
+                        "   private static Node getNodeForXPath(XPathExpression relative, XPathExpression expression,\n" +
+                        "         String path, Node context, Node node) {\n" +
+                        "      if (context == null) {\n" +
+                        "         return null;\n" +
+                        "      }\n" +
+                        "      final Node found = getNodeForXPath(relative, path, context);\n" +
+                        "      return found != null ? found : getNodeForXPath(expression, path, node);\n" +
+                        "   }\n" +
+                        "\n" +
+                        "   private static XPathExpression compileXPath(XPath path, String expression) {\n" +
+                        "      try {\n" +
+                        "         return path.compile(expression);\n" +
+                        "      } catch (XPathExpressionException e) {\n" +
+                        "         final String msg = String.format(\"Could not compile path '%s'\", expression);\n" +
+                        "         throw new RuntimeException(msg,e);\n" +
+                        "      }\n" +
+                        "   }\n" +
+                        "\n" +
+                        "   private static XmlState acquireXmlState() {\n" +
+                        "      return XML_STATE.get();\n" +
+                        "   }\n" +
+                        "\n" +
+                        "   private static void releaseXmlState(XmlState state) {\n" +
+                        "      // Owned by the current thread, nothing to hand back\n" +
+                        "   }\n" +
+                        "\n" +
+                        "   private static final class XmlState {\n" +
+                        "      final DocumentBuilder builder;\n" +
+                        "      final XPathExpression context0;\n" +
+                        "      final XPathExpression relative0;\n" +
+                        "      final XPathExpression expression0;\n" +
+                        "      final XPathExpression relative1;\n" +
+                        "      final XPathExpression expression1;\n" +
+                        "      XmlState() {\n" +
+                        "         final XPath path;\n" +
+                        "         FACTORY_LOCK.lock();\n" +
+                        "         try {\n" +
+                        "            builder = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();\n" +
+                        "            path = XPATH_FACTORY.newXPath();\n" +
+                        "         } catch (ParserConfigurationException e) {\n" +
+                        "            throw new RuntimeException(e);\n" +
+                        "         } finally {\n" +
+                        "            FACTORY_LOCK.unlock();\n" +
+                        "         }\n" +
+                        "         context0 = compileXPath(path, \"/path/to\");\n" +
+                        "         relative0 = compileXPath(path, \"string/text()\");\n" +
+                        "         expression0 = compileXPath(path, \"/path/to/string/text()\");\n" +
+                        "         relative1 = compileXPath(path, \"attribute/@code\");\n" +
+                        "         expression1 = compileXPath(path, \"/path/to/attribute/@code\");\n" +
+                        "      }\n" +
+                        "   }\n" +
                         "}");
 
         assertAbout(javaSources())
@@ -145,6 +203,34 @@ public class XmlFactoryAutoValueExtensionTest {
         }
     }
 
+    @Test
+    public void invalidPath() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "abstract class Test {\n" +
+                "static Test fromXml(String xml) {\n" +
+                "       return null;\n" +
+                "   }\n" +
+                "\n" +
+                "   @XmlPath(\"/path/to/string[text()\")\n" +
+                "   abstract String content();\n" +
+                "}");
+
+        try {
+            assertAbout(javaSources())
+                    .that(singletonList(source))
+                    .processedWith(new AutoValueProcessor())
+                    .failsToCompile();
+        } catch (RuntimeException e) {
+            assertThat(e).hasCauseThat().isInstanceOf(IllegalArgumentException.class);
+            assertThat(e).hasCauseThat().hasMessage("Invalid path '/path/to/string[text()' for property 'content'");
+        }
+    }
+
     @Test
     public void allPrimitiveTypes() {
         final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
@@ -183,89 +269,158 @@ public class XmlFactoryAutoValueExtensionTest {
                 "package test;\n\n" +
                         "import static javax.xml.xpath.XPathConstants.NODE;\n" +
                         "\n" +
-                        "import java.io.ByteArrayInputStream;\n" +
+                        "import com.hihi.xml.XmlNumbers;\n" +
                         "import java.io.IOException;\n" +
-                        "import java.io.InputStream;\n" +
-                        "import java.lang.Boolean;\n" +
-                        "import java.lang.Double;\n" +
-                        "import java.lang.Exception;\n" +
-                        "import java.lang.Float;\n" +
-                        "import java.lang.Integer;\n" +
-                        "import java.lang.Long;\n" +
+                        "import java.io.StringReader;\n" +
+                        "import java.lang.Override;\n" +
                         "import java.lang.RuntimeException;\n" +
-                        "import java.lang.Short;\n" +
                         "import java.lang.String;\n" +
-                        "import java.nio.charset.Charset;\n" +
+                        "import java.lang.ThreadLocal;\n" +
+                        "import java.util.concurrent.locks.ReentrantLock;\n" +
                         "import javax.xml.parsers.DocumentBuilder;\n" +
                         "import javax.xml.parsers.DocumentBuilderFactory;\n" +
                         "import javax.xml.parsers.ParserConfigurationException;\n" +
                         "import javax.xml.xpath.XPath;\n" +
+                        "import javax.xml.xpath.XPathExpression;\n" +
                         "import javax.xml.xpath.XPathExpressionException;\n" +
                         "import javax.xml.xpath.XPathFactory;\n" +
                         "import org.w3c.dom.Document;\n" +
                         "import org.w3c.dom.Node;\n" +
+                        "import org.xml.sax.InputSource;\n" +
                         "import org.xml.sax.SAXException;\n" +
                         "\n" +
                         "final class AutoValue_Test extends $AutoValue_Test {\n" +
+                        "  private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = DocumentBuilderFactory.newInstance();\n" +
+                        "\n" +
+                        "  private static final XPathFactory XPATH_FACTORY = XPathFactory.newInstance();\n" +
+                        "\n" +
+                        "  private static final ReentrantLock FACTORY_LOCK = new ReentrantLock();\n" +
+                        "\n" +
+                        "  private static final ThreadLocal<XmlState> XML_STATE = new ThreadLocal<XmlState>() {\n" +
+                        "    @Override\n" +
+                        "    protected XmlState initialValue() {\n" +
+                        "      return new XmlState();\n" +
+                        "    }\n" +
+                        "  };\n" +
+                        "\n" +
                         "  AutoValue_Test(boolean aBoolean, double aDouble, float aFloat, int aInt, long aLong,\n" +
                         "      short aShort) {\n" +
                         "    super(aBoolean, aDouble, aFloat, aInt, aLong, aShort);\n" +
                         "  }\n" +
                         "\n" +
                         "  static AutoValue_Test createFromXml(String xml) {\n" +
-                        "    final Charset utf8 = Charset.forName(\"UTF-8\");\n" +
-                        "    final byte[] bytes = xml.getBytes(utf8);\n" +
-                        "    \n" +
-                        "    InputStream is = null;\n" +
+                        "    return createFromXml(new InputSource(new StringReader(xml)));\n" +
+                        "  }\n" +
+                        "\n" +
+                        "  static AutoValue_Test createFromXml(InputSource xml) {\n" +
+                        "    final XmlState state = acquireXmlState();\n" +
                         "    try {\n" +
-                        "      is = new ByteArrayInputStream(bytes);\n" +
+                        "      final Document document = state.builder.parse(xml);\n" +
                         "      \n" +
-                        "      final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();\n" +
-                        "      final DocumentBuilder builder = factory.newDocumentBuilder();\n" +
-                        "      final Document document = builder.parse(is);\n" +
+                        "      final Node context0 = getNodeForXPath(state.context0, \"/path/to\", document);\n" +
                         "      \n" +
-                        "      final XPath path = XPathFactory.newInstance().newXPath();\n" +
+                        "      final Node node0 = getNodeForXPath(state.relative0, state.expression0, \"/path/to/bool/text()\", context0, document);\n" +
+                        "      final boolean aBoolean = XmlNumbers.parseBoolean(node0.getNodeValue());\n" +
                         "      \n" +
-                        "      final Node node0 = getNodeForXPath(path, \"/path/to/bool/text()\", document);\n" +
-                        "      final boolean aBoolean = Boolean.parseBoolean(node0.getNodeValue());\n" +
+                        "      final Node node1 = getNodeForXPath(state.relative1, state.expression1, \"/path/to/double/text()\", context0, document);\n" +
+                        "      final double aDouble = XmlNumbers.parseDouble(node1.getNodeValue());\n" +
                         "      \n" +
-                        "      final Node node1 = getNodeForXPath(path, \"/path/to/double/text()\", document);\n" +
-                        "      final double aDouble = Double.parseDouble(node1.getNodeValue());\n" +
+                        "      final Node node2 = getNodeForXPath(state.relative2, state.expression2, \"/path/to/float/text()\", context0, document);\n" +
+                        "      final float aFloat = XmlNumbers.parseFloat(node2.getNodeValue());\n" +
                         "      \n" +
-                        "      final Node node2 = getNodeForXPath(path, \"/path/to/float/text()\", document);\n" +
-                        "      final float aFloat = Float.parseFloat(node2.getNodeValue());\n" +
+                        "      final Node node3 = getNodeForXPath(state.relative3, state.expression3, \"/path/to/int/text()\", context0, document);\n" +
+                        "      final int aInt = XmlNumbers.parseInt(node3.getNodeValue());\n" +
                         "      \n" +
-                        "      final Node node3 = getNodeForXPath(path, \"/path/to/int/text()\", document);\n" +
-                        "      final int aInt = Integer.parseInt(node3.getNodeValue());\n" +
+                        "      final Node node4 = getNodeForXPath(state.relative4, state.expression4, \"/path/to/long/text()\", context0, document);\n" +
+                        "      final long aLong = XmlNumbers.parseLong(node4.getNodeValue());\n" +
                         "      \n" +
-                        "      final Node node4 = getNodeForXPath(path, \"/path/to/long/text()\", document);\n" +
-                        "      final long aLong = Long.parseLong(node4.getNodeValue());\n" +
-                        "      \n" +
-                        "      final Node node5 = getNodeForXPath(path, \"/path/to/short/text()\", document);\n" +
-                        "      final short aShort = Short.parseShort(node5.getNodeValue());\n" +
+                        "      final Node node5 = getNodeForXPath(state.relative5, state.expression5, \"/path/to/short/text()\", context0, document);\n" +
+                        "      final short aShort = XmlNumbers.parseShort(node5.getNodeValue());\n" +
                         "      \n" +
                         "      return new AutoValue_Test(aBoolean, aDouble, aFloat, aInt, aLong, aShort);\n" +
-                        "    } catch (IOException | ParserConfigurationException | SAXException e) {\n" +
+                        "    } catch (IOException | SAXException e) {\n" +
                         "      throw new RuntimeException(e);\n" +
                         "    } finally {\n" +
-                        "      if (is != null) {\n" +
-                        "        try {\n" +
-                        "          is.close();\n" +
-                        "        } catch (Exception e) {\n" +
-                        "          // Ignore\n" +
-                        "        }\n" +
-                        "      }\n" +
+                        "      releaseXmlState(state);\n" +
+                        "    }\n" +
+                        "  }\n" +
+                        "\n" +
+                        "  private static Node getNodeForXPath(XPathExpression expression, String path, Node node) {\n" +
+                        "    try {\n" +
+                        "      return (Node) expression.evaluate(node, NODE);\n" +
+                        "    } catch (XPathExpressionException e) {\n" +
+                        "      final String msg = String.format(\"Could not evaluate path '%s'\", path);\n" +
+                        "      throw new RuntimeException(msg,e);\n" +
                         "    }\n" +
                         "  }\n" +
                         "\n" +
-                        "  private static Node getNodeForXPath(XPath path, String expression, Document document) {\n" +
+                        "  private static Node getNodeForXPath(XPathExpression relative, XPathExpression expression,\n" +
+                        "      String path, Node context, Node node) {\n" +
+                        "    if (context == null) {\n" +
+                        "      return null;\n" +
+                        "    }\n" +
+                        "    final Node found = getNodeForXPath(relative, path, context);\n" +
+                        "    return found != null ? found : getNodeForXPath(expression, path, node);\n" +
+                        "  }\n" +
+                        "\n" +
+                        "  private static XPathExpression compileXPath(XPath path, String expression) {\n" +
                         "    try {\n" +
-                        "      return (Node) path.evaluate(expression, document, NODE);\n" +
+                        "      return path.compile(expression);\n" +
                         "    } catch (XPathExpressionException e) {\n" +
-                        "      final String msg = String.format(\"Could not evaluate path '%s'\", expression);\n" +
+                        "      final String msg = String.format(\"Could not compile path '%s'\", expression);\n" +
                         "      throw new RuntimeException(msg,e);\n" +
                         "    }\n" +
                         "  }\n" +
+                        "\n" +
+                        "  private static XmlState acquireXmlState() {\n" +
+                        "    return XML_STATE.get();\n" +
+                        "  }\n" +
+                        "\n" +
+                        "  private static void releaseXmlState(XmlState state) {\n" +
+                        "    // Owned by the current thread, nothing to hand back\n" +
+                        "  }\n" +
+                        "\n" +
+                        "  private static final class XmlState {\n" +
+                        "    final DocumentBuilder builder;\n" +
+                        "    final XPathExpression context0;\n" +
+                        "    final XPathExpression relative0;\n" +
+                        "    final XPathExpression expression0;\n" +
+                        "    final XPathExpression relative1;\n" +
+                        "    final XPathExpression expression1;\n" +
+                        "    final XPathExpression relative2;\n" +
+                        "    final XPathExpression expression2;\n" +
+                        "    final XPathExpression relative3;\n" +
+                        "    final XPathExpression expression3;\n" +
+                        "    final XPathExpression relative4;\n" +
+                        "    final XPathExpression expression4;\n" +
+                        "    final XPathExpression relative5;\n" +
+                        "    final XPathExpression expression5;\n" +
+                        "    XmlState() {\n" +
+                        "      final XPath path;\n" +
+                        "      FACTORY_LOCK.lock();\n" +
+                        "      try {\n" +
+                        "        builder = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();\n" +
+                        "        path = XPATH_FACTORY.newXPath();\n" +
+                        "      } catch (ParserConfigurationException e) {\n" +
+                        "        throw new RuntimeException(e);\n" +
+                        "      } finally {\n" +
+                        "        FACTORY_LOCK.unlock();\n" +
+                        "      }\n" +
+                        "      context0 = compileXPath(path, \"/path/to\");\n" +
+                        "      relative0 = compileXPath(path, \"bool/text()\");\n" +
+                        "      expression0 = compileXPath(path, \"/path/to/bool/text()\");\n" +
+                        "      relative1 = compileXPath(path, \"double/text()\");\n" +
+                        "      expression1 = compileXPath(path, \"/path/to/double/text()\");\n" +
+                        "      relative2 = compileXPath(path, \"float/text()\");\n" +
+                        "      expression2 = compileXPath(path, \"/path/to/float/text()\");\n" +
+                        "      relative3 = compileXPath(path, \"int/text()\");\n" +
+                        "      expression3 = compileXPath(path, \"/path/to/int/text()\");\n" +
+                        "      relative4 = compileXPath(path, \"long/text()\");\n" +
+                        "      expression4 = compileXPath(path, \"/path/to/long/text()\");\n" +
+                        "      relative5 = compileXPath(path, \"short/text()\");\n" +
+                        "      expression5 = compileXPath(path, \"/path/to/short/text()\");\n" +
+                        "    }\n" +
+                        "  }\n" +
                         "}");
 
         assertAbout(javaSources())
@@ -314,89 +469,164 @@ public class XmlFactoryAutoValueExtensionTest {
                 "package test;\n\n" +
                         "import static javax.xml.xpath.XPathConstants.NODE;\n" +
                         "\n" +
-                        "import java.io.ByteArrayInputStream;\n" +
+                        "import com.hihi.xml.XmlNumbers;\n" +
                         "import java.io.IOException;\n" +
-                        "import java.io.InputStream;\n" +
+                        "import java.io.StringReader;\n" +
                         "import java.lang.Boolean;\n" +
                         "import java.lang.Double;\n" +
-                        "import java.lang.Exception;\n" +
                         "import java.lang.Float;\n" +
                         "import java.lang.Integer;\n" +
                         "import java.lang.Long;\n" +
+                        "import java.lang.Override;\n" +
                         "import java.lang.RuntimeException;\n" +
                         "import java.lang.Short;\n" +
                         "import java.lang.String;\n" +
-                        "import java.nio.charset.Charset;\n" +
+                        "import java.lang.ThreadLocal;\n" +
+                        "import java.util.concurrent.locks.ReentrantLock;\n" +
                         "import javax.xml.parsers.DocumentBuilder;\n" +
                         "import javax.xml.parsers.DocumentBuilderFactory;\n" +
                         "import javax.xml.parsers.ParserConfigurationException;\n" +
                         "import javax.xml.xpath.XPath;\n" +
+                        "import javax.xml.xpath.XPathExpression;\n" +
                         "import javax.xml.xpath.XPathExpressionException;\n" +
                         "import javax.xml.xpath.XPathFactory;\n" +
                         "import org.w3c.dom.Document;\n" +
                         "import org.w3c.dom.Node;\n" +
-                        "import org.xml.sax.SAXException;" +
-                        "\n\n" +
+                        "import org.xml.sax.InputSource;\n" +
+                        "import org.xml.sax.SAXException;\n" +
+                        "\n" +
                         "final class AutoValue_Test extends $AutoValue_Test {\n" +
+                        "  private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = DocumentBuilderFactory.newInstance();\n" +
+                        "\n" +
+                        "  private static final XPathFactory XPATH_FACTORY = XPathFactory.newInstance();\n" +
+                        "\n" +
+                        "  private static final ReentrantLock FACTORY_LOCK = new ReentrantLock();\n" +
+                        "\n" +
+                        "  private static final ThreadLocal<XmlState> XML_STATE = new ThreadLocal<XmlState>() {\n" +
+                        "    @Override\n" +
+                        "    protected XmlState initialValue() {\n" +
+                        "      return new XmlState();\n" +
+                        "    }\n" +
+                        "  };\n" +
+                        "\n" +
                         "  AutoValue_Test(Boolean aBoolean, Double aDouble, Float aFloat, Integer aInt, Long aLong,\n" +
                         "      Short aShort) {\n" +
                         "    super(aBoolean, aDouble, aFloat, aInt, aLong, aShort);\n" +
                         "  }\n" +
                         "\n" +
                         "  static AutoValue_Test createFromXml(String xml) {\n" +
-                        "    final Charset utf8 = Charset.forName(\"UTF-8\");\n" +
-                        "    final byte[] bytes = xml.getBytes(utf8);\n" +
-                        "    \n" +
-                        "    InputStream is = null;\n" +
+                        "    return createFromXml(new InputSource(new StringReader(xml)));\n" +
+                        "  }\n" +
+                        "\n" +
+                        "  static AutoValue_Test createFromXml(InputSource xml) {\n" +
+                        "    final XmlState state = acquireXmlState();\n" +
                         "    try {\n" +
-                        "      is = new ByteArrayInputStream(bytes);\n" +
+                        "      final Document document = state.builder.parse(xml);\n" +
                         "      \n" +
-                        "      final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();\n" +
-                        "      final DocumentBuilder builder = factory.newDocumentBuilder();\n" +
-                        "      final Document document = builder.parse(is);\n" +
+                        "      final Node context0 = getNodeForXPath(state.context0, \"/path/to\", document);\n" +
                         "      \n" +
-                        "      final XPath path = XPathFactory.newInstance().newXPath();\n" +
+                        "      final Node node0 = getNodeForXPath(state.relative0, state.expression0, \"/path/to/bool/text()\", context0, document);\n" +
+                        "      final Boolean aBoolean = XmlNumbers.parseBoolean(node0.getNodeValue());\n" +
                         "      \n" +
-                        "      final Node node0 = getNodeForXPath(path, \"/path/to/bool/text()\", document);\n" +
-                        "      final Boolean aBoolean = Boolean.parseBoolean(node0.getNodeValue());\n" +
+                        "      final Node node1 = getNodeForXPath(state.relative1, state.expression1, \"/path/to/double/text()\", context0, document);\n" +
+                        "      final Double aDouble = XmlNumbers.parseDouble(node1.getNodeValue());\n" +
                         "      \n" +
-                        "      final Node node1 = getNodeForXPath(path, \"/path/to/double/text()\", document);\n" +
-                        "      final Double aDouble = Double.parseDouble(node1.getNodeValue());\n" +
+                        "      final Node node2 = getNodeForXPath(state.relative2, state.expression2, \"/path/to/float/text()\", context0, document);\n" +
+                        "      final Float aFloat = XmlNumbers.parseFloat(node2.getNodeValue());\n" +
                         "      \n" +
-                        "      final Node node2 = getNodeForXPath(path, \"/path/to/float/text()\", document);\n" +
-                        "      final Float aFloat = Float.parseFloat(node2.getNodeValue());\n" +
+                        "      final Node node3 = getNodeForXPath(state.relative3, state.expression3, \"/path/to/int/text()\", context0, document);\n" +
+                        "      final Integer aInt = XmlNumbers.parseInt(node3.getNodeValue());\n" +
                         "      \n" +
-                        "      final Node node3 = getNodeForXPath(path, \"/path/to/int/text()\", document);\n" +
-                        "      final Integer aInt = Integer.parseInt(node3.getNodeValue());\n" +
+                        "      final Node node4 = getNodeForXPath(state.relative4, state.expression4, \"/path/to/long/text()\", context0, document);\n" +
+                        "      final Long aLong = XmlNumbers.parseLong(node4.getNodeValue());\n" +
                         "      \n" +
-                        "      final Node node4 = getNodeForXPath(path, \"/path/to/long/text()\", document);\n" +
-                        "      final Long aLong = Long.parseLong(node4.getNodeValue());\n" +
-                        "      \n" +
-                        "      final Node node5 = getNodeForXPath(path, \"/path/to/short/text()\", document);\n" +
-                        "      final Short aShort = Short.parseShort(node5.getNodeValue());\n" +
+                        "      final Node node5 = getNodeForXPath(state.relative5, state.expression5, \"/path/to/short/text()\", context0, document);\n" +
+                        "      final Short aShort = XmlNumbers.parseShort(node5.getNodeValue());\n" +
                         "      \n" +
                         "      return new AutoValue_Test(aBoolean, aDouble, aFloat, aInt, aLong, aShort);\n" +
-                        "    } catch (IOException | ParserConfigurationException | SAXException e) {\n" +
+                        "    } catch (IOException | SAXException e) {\n" +
                         "      throw new RuntimeException(e);\n" +
                         "    } finally {\n" +
-                        "      if (is != null) {\n" +
-                        "        try {\n" +
-                        "          is.close();\n" +
-                        "        } catch (Exception e) {\n" +
-                        "          // Ignore\n" +
-                        "        }\n" +
-                        "      }\n" +
+                        "      releaseXmlState(state);\n" +
+                        "    }\n" +
+                        "  }\n" +
+                        "\n" +
+                        "  private static Node getNodeForXPath(XPathExpression expression, String path, Node node) {\n" +
+                        "    try {\n" +
+                        "      return (Node) expression.evaluate(node, NODE);\n" +
+                        "    } catch (XPathExpressionException e) {\n" +
+                        "      final String msg = String.format(\"Could not evaluate path '%s'\", path);\n" +
+                        "      throw new RuntimeException(msg,e);\n" +
                         "    }\n" +
                         "  }\n" +
                         "\n" +
-                        "  private static Node getNodeForXPath(XPath path, String expression, Document document) {\n" +
+                        "  private static Node getNodeForXPath(XPathExpression relative, XPathExpression expression,\n" +
+                        "      String path, Node context, Node node) {\n" +
+                        "    if (context == null) {\n" +
+                        "      return null;\n" +
+                        "    }\n" +
+                        "    final Node found = getNodeForXPath(relative, path, context);\n" +
+                        "    return found != null ? found : getNodeForXPath(expression, path, node);\n" +
+                        "  }\n" +
+                        "\n" +
+                        "  private static XPathExpression compileXPath(XPath path, String expression) {\n" +
                         "    try {\n" +
-                        "      return (Node) path.evaluate(expression, document, NODE);\n" +
+                        "      return path.compile(expression);\n" +
                         "    } catch (XPathExpressionException e) {\n" +
-                        "      final String msg = String.format(\"Could not evaluate path '%s'\", expression);\n" +
+                        "      final String msg = String.format(\"Could not compile path '%s'\", expression);\n" +
                         "      throw new RuntimeException(msg,e);\n" +
                         "    }\n" +
                         "  }\n" +
+                        "\n" +
+                        "  private static XmlState acquireXmlState() {\n" +
+                        "    return XML_STATE.get();\n" +
+                        "  }\n" +
+                        "\n" +
+                        "  private static void releaseXmlState(XmlState state) {\n" +
+                        "    // Owned by the current thread, nothing to hand back\n" +
+                        "  }\n" +
+                        "\n" +
+                        "  private static final class XmlState {\n" +
+                        "    final DocumentBuilder builder;\n" +
+                        "    final XPathExpression context0;\n" +
+                        "    final XPathExpression relative0;\n" +
+                        "    final XPathExpression expression0;\n" +
+                        "    final XPathExpression relative1;\n" +
+                        "    final XPathExpression expression1;\n" +
+                        "    final XPathExpression relative2;\n" +
+                        "    final XPathExpression expression2;\n" +
+                        "    final XPathExpression relative3;\n" +
+                        "    final XPathExpression expression3;\n" +
+                        "    final XPathExpression relative4;\n" +
+                        "    final XPathExpression expression4;\n" +
+                        "    final XPathExpression relative5;\n" +
+                        "    final XPathExpression expression5;\n" +
+                        "    XmlState() {\n" +
+                        "      final XPath path;\n" +
+                        "      FACTORY_LOCK.lock();\n" +
+                        "      try {\n" +
+                        "        builder = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();\n" +
+                        "        path = XPATH_FACTORY.newXPath();\n" +
+                        "      } catch (ParserConfigurationException e) {\n" +
+                        "        throw new RuntimeException(e);\n" +
+                        "      } finally {\n" +
+                        "        FACTORY_LOCK.unlock();\n" +
+                        "      }\n" +
+                        "      context0 = compileXPath(path, \"/path/to\");\n" +
+                        "      relative0 = compileXPath(path, \"bool/text()\");\n" +
+                        "      expression0 = compileXPath(path, \"/path/to/bool/text()\");\n" +
+                        "      relative1 = compileXPath(path, \"double/text()\");\n" +
+                        "      expression1 = compileXPath(path, \"/path/to/double/text()\");\n" +
+                        "      relative2 = compileXPath(path, \"float/text()\");\n" +
+                        "      expression2 = compileXPath(path, \"/path/to/float/text()\");\n" +
+                        "      relative3 = compileXPath(path, \"int/text()\");\n" +
+                        "      expression3 = compileXPath(path, \"/path/to/int/text()\");\n" +
+                        "      relative4 = compileXPath(path, \"long/text()\");\n" +
+                        "      expression4 = compileXPath(path, \"/path/to/long/text()\");\n" +
+                        "      relative5 = compileXPath(path, \"short/text()\");\n" +
+                        "      expression5 = compileXPath(path, \"/path/to/short/text()\");\n" +
+                        "    }\n" +
+                        "  }\n" +
                         "}");
 
         assertAbout(javaSources())
@@ -431,67 +661,4303 @@ public class XmlFactoryAutoValueExtensionTest {
                         "\n" +
                         "import static javax.xml.xpath.XPathConstants.NODE;\n" +
                         "\n" +
-                        "import java.io.ByteArrayInputStream;\n" +
                         "import java.io.IOException;\n" +
-                        "import java.io.InputStream;\n" +
-                        "import java.lang.Exception;\n" +
+                        "import java.io.StringReader;\n" +
+                        "import java.lang.Override;\n" +
                         "import java.lang.RuntimeException;\n" +
                         "import java.lang.String;\n" +
-                        "import java.nio.charset.Charset;\n" +
+                        "import java.lang.ThreadLocal;\n" +
+                        "import java.util.concurrent.locks.ReentrantLock;\n" +
                         "import javax.xml.parsers.DocumentBuilder;\n" +
                         "import javax.xml.parsers.DocumentBuilderFactory;\n" +
                         "import javax.xml.parsers.ParserConfigurationException;\n" +
                         "import javax.xml.xpath.XPath;\n" +
+                        "import javax.xml.xpath.XPathExpression;\n" +
                         "import javax.xml.xpath.XPathExpressionException;\n" +
                         "import javax.xml.xpath.XPathFactory;\n" +
                         "import org.w3c.dom.Document;\n" +
                         "import org.w3c.dom.Node;\n" +
+                        "import org.xml.sax.InputSource;\n" +
                         "import org.xml.sax.SAXException;\n" +
                         "\n" +
                         "final class AutoValue_Test extends $AutoValue_Test {\n" +
+                        "   private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = DocumentBuilderFactory.newInstance();\n" +
+                        "\n" +
+                        "   private static final XPathFactory XPATH_FACTORY = XPathFactory.newInstance();\n" +
+                        "\n" +
+                        "   private static final ReentrantLock FACTORY_LOCK = new ReentrantLock();\n" +
+                        "\n" +
+                        "   private static final ThreadLocal<XmlState> XML_STATE = new ThreadLocal<XmlState>() {\n" +
+                        "      @Override\n" +
+                        "      protected XmlState initialValue() {\n" +
+                        "         return new XmlState();\n" +
+                        "      }\n" +
+                        "   };\n" +
+                        "\n" +
                         "   AutoValue_Test(String content) {\n" +
                         "       super(content);\n" +
                         "   }\n" +
                         "\n" +
                         "   static AutoValue_Test createFromXml(String xml) {\n" +
-                        "       final Charset utf8 = Charset.forName(\"UTF-8\");\n" +
-                        "       final byte[] bytes = xml.getBytes(utf8);\n" +
+                        "       return createFromXml(new InputSource(new StringReader(xml)));\n" +
+                        "   }\n" +
                         "\n" +
-                        "       InputStream is = null;\n" +
+                        "   static AutoValue_Test createFromXml(InputSource xml) {\n" +
+                        "       final XmlState state = acquireXmlState();\n" +
                         "       try {\n" +
-                        "           is = new ByteArrayInputStream(bytes);\n" +
-                        "\n" +
-                        "           final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();\n" +
-                        "           final DocumentBuilder builder = factory.newDocumentBuilder();\n" +
-                        "           final Document document = builder.parse(is);\n" +
+                        "           final Document document = state.builder.parse(xml);\n" +
                         "           \n" +
-                        "           final XPath path = XPathFactory.newInstance().newXPath();\n" +
-                        "           \n" +
-                        "           final Node node0 = getNodeForXPath(path, \"/path/to/string/text()\", document);\n" +
+                        "           final Node node0 = getNodeForXPath(state.expression0, \"/path/to/string/text()\", document);\n" +
                         "           final String content = node0 == null ? null : node0.getNodeValue();\n" +
                         "\n" +
                         "           return new AutoValue_Test(content);\n" +
-                        "       } catch (IOException | ParserConfigurationException | SAXException e) {\n" +
+                        "       } catch (IOException | SAXException e) {\n" +
                         "           throw new RuntimeException(e);\n" +
                         "       } finally {\n" +
-                        "           if (is != null) {\n" +
-                        "               try {\n" +
-                        "                   is.close();\n" +
-                        "               } catch (Exception e) {\n" +
-                        "                   // Ignore\n" +
-                        "               }\n" +
-                        "           }\n" +
+                        "           releaseXmlState(state);\n" +
                         "       }\n" +
                         "   }\n" +
                         "\n" +
-                        "   private static Node getNodeForXPath(XPath path, String expression, Document document) {\n" +
+                        "   private static Node getNodeForXPath(XPathExpression expression, String path, Node node) {\n" +
                         "       try {\n" +
-                        "           return (Node) path.evaluate(expression, document, NODE);\n" +
+                        "           return (Node) expression.evaluate(node, NODE);\n" +
                         "       } catch (XPathExpressionException e) {\n" +
-                        "           final String msg = String.format(\"Could not evaluate path '%s'\", expression);\n" +
+                        "           final String msg = String.format(\"Could not evaluate path '%s'\", path);\n" +
                         "           throw new RuntimeException(msg,e);\n" +
                         "       }\n" +
                         "   }\n" +
+                        "\n" +
+                        "   private static XPathExpression compileXPath(XPath path, String expression) {\n" +
+                        "      try {\n" +
+                        "         return path.compile(expression);\n" +
+                        "      } catch (XPathExpressionException e) {\n" +
+                        "         final String msg = String.format(\"Could not compile path '%s'\", expression);\n" +
+                        "         throw new RuntimeException(msg,e);\n" +
+                        "      }\n" +
+                        "   }\n" +
+                        "\n" +
+                        "   private static XmlState acquireXmlState() {\n" +
+                        "      return XML_STATE.get();\n" +
+                        "   }\n" +
+                        "\n" +
+                        "   private static void releaseXmlState(XmlState state) {\n" +
+                        "      // Owned by the current thread, nothing to hand back\n" +
+                        "   }\n" +
+                        "\n" +
+                        "   private static final class XmlState {\n" +
+                        "      final DocumentBuilder builder;\n" +
+                        "      final XPathExpression expression0;\n" +
+                        "      XmlState() {\n" +
+                        "         final XPath path;\n" +
+                        "         FACTORY_LOCK.lock();\n" +
+                        "         try {\n" +
+                        "            builder = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();\n" +
+                        "            path = XPATH_FACTORY.newXPath();\n" +
+                        "         } catch (ParserConfigurationException e) {\n" +
+                        "            throw new RuntimeException(e);\n" +
+                        "         } finally {\n" +
+                        "            FACTORY_LOCK.unlock();\n" +
+                        "         }\n" +
+                        "         expression0 = compileXPath(path, \"/path/to/string/text()\");\n" +
+                        "      }\n" +
+                        "   }\n" +
+                        "}");
+
+        assertAbout(javaSources())
+                .that(singletonList(source))
+                .processedWith(new AutoValueProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expected);
+    }
+
+    @Test
+    public void pooledParsers() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n" +
+                "\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlParser;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "@XmlParser(threadLocal = false)\n" +
+                "abstract class Test {\n" +
+                "    static Test fromXml(String xml) {\n" +
+                "        return null;\n" +
+                "    }\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/string/text()\")\n" +
+                "    abstract String content();\n" +
+                "}");
+
+        final JavaFileObject expected = JavaFileObjects.forSourceString("test.AutoValue_Test",
+                "package test;\n" +
+                        "\n" +
+                        "import static javax.xml.xpath.XPathConstants.NODE;\n" +
+                        "\n" +
+                        "import java.io.IOException;\n" +
+                        "import java.io.StringReader;\n" +
+                        "import java.lang.RuntimeException;\n" +
+                        "import java.lang.String;\n" +
+                        "import java.util.Queue;\n" +
+                        "import java.util.concurrent.ConcurrentLinkedQueue;\n" +
+                        "import java.util.concurrent.locks.ReentrantLock;\n" +
+                        "import javax.xml.parsers.DocumentBuilder;\n" +
+                        "import javax.xml.parsers.DocumentBuilderFactory;\n" +
+                        "import javax.xml.parsers.ParserConfigurationException;\n" +
+                        "import javax.xml.xpath.XPath;\n" +
+                        "import javax.xml.xpath.XPathExpression;\n" +
+                        "import javax.xml.xpath.XPathExpressionException;\n" +
+                        "import javax.xml.xpath.XPathFactory;\n" +
+                        "import org.w3c.dom.Document;\n" +
+                        "import org.w3c.dom.Node;\n" +
+                        "import org.xml.sax.InputSource;\n" +
+                        "import org.xml.sax.SAXException;\n" +
+                        "\n" +
+                        "final class AutoValue_Test extends $AutoValue_Test {\n" +
+                        "    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = DocumentBuilderFactory.newInstance();\n" +
+                        "\n" +
+                        "    private static final XPathFactory XPATH_FACTORY = XPathFactory.newInstance();\n" +
+                        "\n" +
+                        "    private static final ReentrantLock FACTORY_LOCK = new ReentrantLock();\n" +
+                        "\n" +
+                        "    private static final Queue<XmlState> XML_STATE_POOL = new ConcurrentLinkedQueue<>();\n" +
+                        "\n" +
+                        "    AutoValue_Test(String content) {\n" +
+                        "        super(content);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(String xml) {\n" +
+                        "        return createFromXml(new InputSource(new StringReader(xml)));\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(InputSource xml) {\n" +
+                        "        final XmlState state = acquireXmlState();\n" +
+                        "        try {\n" +
+                        "            final Document document = state.builder.parse(xml);\n" +
+                        "            \n" +
+                        "            final Node node0 = getNodeForXPath(state.expression0, \"/path/to/string/text()\", document);\n" +
+                        "            final String content = node0.getNodeValue();\n" +
+                        "            \n" +
+                        "            return new AutoValue_Test(content);\n" +
+                        "        } catch (IOException | SAXException e) {\n" +
+                        "            throw new RuntimeException(e);\n" +
+                        "        } finally {\n" +
+                        "            releaseXmlState(state);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static Node getNodeForXPath(XPathExpression expression, String path, Node node) {\n" +
+                        "        try {\n" +
+                        "            return (Node) expression.evaluate(node, NODE);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not evaluate path '%s'\", path);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XPathExpression compileXPath(XPath path, String expression) {\n" +
+                        "        try {\n" +
+                        "            return path.compile(expression);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not compile path '%s'\", expression);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XmlState acquireXmlState() {\n" +
+                        "        final XmlState state = XML_STATE_POOL.poll();\n" +
+                        "        return state == null ? new XmlState() : state;\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static void releaseXmlState(XmlState state) {\n" +
+                        "        state.builder.reset();\n" +
+                        "        XML_STATE_POOL.offer(state);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static final class XmlState {\n" +
+                        "        final DocumentBuilder builder;\n" +
+                        "        final XPathExpression expression0;\n" +
+                        "        XmlState() {\n" +
+                        "            final XPath path;\n" +
+                        "            FACTORY_LOCK.lock();\n" +
+                        "            try {\n" +
+                        "                builder = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();\n" +
+                        "                path = XPATH_FACTORY.newXPath();\n" +
+                        "            } catch (ParserConfigurationException e) {\n" +
+                        "                throw new RuntimeException(e);\n" +
+                        "            } finally {\n" +
+                        "                FACTORY_LOCK.unlock();\n" +
+                        "            }\n" +
+                        "            expression0 = compileXPath(path, \"/path/to/string/text()\");\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "}");
+
+        assertAbout(javaSources())
+                .that(singletonList(source))
+                .processedWith(new AutoValueProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expected);
+    }
+
+    @Test
+    public void staxEngine() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n" +
+                "\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlParser;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "import javax.annotation.Nullable;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "@XmlParser(engine = XmlParser.Engine.STAX)\n" +
+                "abstract class Test {\n" +
+                "    static Test fromXml(String xml) {\n" +
+                "        return null;\n" +
+                "    }\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/string/text()\")\n" +
+                "    abstract String content();\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/attribute/@code\")\n" +
+                "    abstract int code();\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/attribute/text()\")\n" +
+                "    @Nullable\n" +
+                "    abstract Integer count();\n" +
+                "}");
+
+        final JavaFileObject expected = JavaFileObjects.forSourceString("test.AutoValue_Test",
+                "package test;\n" +
+                        "\n" +
+                        "import static javax.xml.stream.XMLStreamConstants.CDATA;\n" +
+                        "import static javax.xml.stream.XMLStreamConstants.CHARACTERS;\n" +
+                        "import static javax.xml.stream.XMLStreamConstants.END_ELEMENT;\n" +
+                        "import static javax.xml.stream.XMLStreamConstants.SPACE;\n" +
+                        "import static javax.xml.stream.XMLStreamConstants.START_ELEMENT;\n" +
+                        "\n" +
+                        "import com.hihi.xml.XmlChars;\n" +
+                        "import com.hihi.xml.XmlNumbers;\n" +
+                        "import java.io.StringReader;\n" +
+                        "import java.lang.Exception;\n" +
+                        "import java.lang.Integer;\n" +
+                        "import java.lang.RuntimeException;\n" +
+                        "import java.lang.String;\n" +
+                        "import javax.xml.stream.XMLInputFactory;\n" +
+                        "import javax.xml.stream.XMLStreamException;\n" +
+                        "import javax.xml.stream.XMLStreamReader;\n" +
+                        "import javax.xml.transform.stream.StreamSource;\n" +
+                        "\n" +
+                        "final class AutoValue_Test extends $AutoValue_Test {\n" +
+                        "    private static final XMLInputFactory XML_INPUT_FACTORY = newXmlInputFactory();\n" +
+                        "\n" +
+                        "    private static final int[] PARENT_STEPS = {-1, 0, 1, 2, 2};\n" +
+                        "\n" +
+                        "    AutoValue_Test(String content, int code, Integer count) {\n" +
+                        "        super(content, code, count);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(String xml) {\n" +
+                        "        return createFromSource(new StreamSource(new StringReader(xml)));\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static AutoValue_Test createFromSource(StreamSource source) {\n" +
+                        "        XMLStreamReader reader = null;\n" +
+                        "        try {\n" +
+                        "            reader = XML_INPUT_FACTORY.createXMLStreamReader(source);\n" +
+                        "            final long[] numbers = new long[3];\n" +
+                        "            final String[] values = readValues(reader, numbers);\n" +
+                        "            \n" +
+                        "            final String content = values[0];\n" +
+                        "            final int code = XmlNumbers.parseInt(values[1]);\n" +
+                        "            final Integer count = values[2] == null ? null : (int) numbers[2];\n" +
+                        "            \n" +
+                        "            return new AutoValue_Test(content, code, count);\n" +
+                        "        } catch (XMLStreamException e) {\n" +
+                        "            throw new RuntimeException(e);\n" +
+                        "        } finally {\n" +
+                        "            if (reader != null) {\n" +
+                        "                try {\n" +
+                        "                    reader.close();\n" +
+                        "                } catch (Exception e) {\n" +
+                        "                    // Ignore\n" +
+                        "                }\n" +
+                        "            }\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static String[] readValues(XMLStreamReader reader, long[] numbers) throws\n" +
+                        "            XMLStreamException {\n" +
+                        "        final XmlChars chars = new XmlChars();\n" +
+                        "        final String[] values = new String[3];\n" +
+                        "        int remaining = 3;\n" +
+                        "        int step = 0;\n" +
+                        "        int skip = 0;\n" +
+                        "        while (remaining > 0 && reader.hasNext()) {\n" +
+                        "            switch (reader.next()) {\n" +
+                        "                case START_ELEMENT:\n" +
+                        "                    if (skip > 0) {\n" +
+                        "                        skip++;\n" +
+                        "                        break;\n" +
+                        "                    }\n" +
+                        "                    switch (step) {\n" +
+                        "                        case 0:\n" +
+                        "                            if (\"path\".equals(reader.getLocalName())) {\n" +
+                        "                                step = 1;\n" +
+                        "                            } else {\n" +
+                        "                                skip = 1;\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                        case 1:\n" +
+                        "                            if (\"to\".equals(reader.getLocalName())) {\n" +
+                        "                                step = 2;\n" +
+                        "                            } else {\n" +
+                        "                                skip = 1;\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                        case 2:\n" +
+                        "                            if (\"string\".equals(reader.getLocalName())) {\n" +
+                        "                                step = 3;\n" +
+                        "                            } else if (\"attribute\".equals(reader.getLocalName())) {\n" +
+                        "                                step = 4;\n" +
+                        "                                if (values[1] == null && (values[1] = reader.getAttributeValue(null, \"code\")) != null) {\n" +
+                        "                                    remaining--;\n" +
+                        "                                }\n" +
+                        "                            } else {\n" +
+                        "                                skip = 1;\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                        default:\n" +
+                        "                            skip = 1;\n" +
+                        "                    }\n" +
+                        "                    break;\n" +
+                        "                case CHARACTERS:\n" +
+                        "                case CDATA:\n" +
+                        "                case SPACE:\n" +
+                        "                    if (skip > 0) {\n" +
+                        "                        break;\n" +
+                        "                    }\n" +
+                        "                    switch (step) {\n" +
+                        "                        case 3:\n" +
+                        "                            if (values[0] == null) {\n" +
+                        "                                values[0] = reader.getText();\n" +
+                        "                                remaining--;\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                        case 4:\n" +
+                        "                            if (values[2] == null) {\n" +
+                        "                                numbers[2] = XmlNumbers.parseInt(chars.set(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength()));\n" +
+                        "                                values[2] = XmlNumbers.DECODED;\n" +
+                        "                                remaining--;\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                    }\n" +
+                        "                    break;\n" +
+                        "                case END_ELEMENT:\n" +
+                        "                    if (skip > 0) {\n" +
+                        "                        skip--;\n" +
+                        "                    } else {\n" +
+                        "                        step = PARENT_STEPS[step];\n" +
+                        "                    }\n" +
+                        "                    break;\n" +
+                        "            }\n" +
+                        "        }\n" +
+                        "        return values;\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XMLInputFactory newXmlInputFactory() {\n" +
+                        "        final XMLInputFactory factory = XMLInputFactory.newInstance();\n" +
+                        "        factory.setProperty(XMLInputFactory.IS_COALESCING, true);\n" +
+                        "        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);\n" +
+                        "        return factory;\n" +
+                        "    }\n" +
+                        "}");
+
+        assertAbout(javaSources())
+                .that(singletonList(source))
+                .processedWith(new AutoValueProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expected);
+    }
+
+    @Test
+    public void staxEngineUnsupportedPath() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlParser;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "@XmlParser(engine = XmlParser.Engine.STAX)\n" +
+                "abstract class Test {\n" +
+                "static Test fromXml(String xml) {\n" +
+                "       return null;\n" +
+                "   }\n" +
+                "\n" +
+                "   @XmlPath(\"//string[@lang='en']/text()\")\n" +
+                "   abstract String content();\n" +
+                "}");
+
+        try {
+            assertAbout(javaSources())
+                    .that(singletonList(source))
+                    .processedWith(new AutoValueProcessor())
+                    .failsToCompile();
+        } catch (RuntimeException e) {
+            assertThat(e).hasCauseThat().isInstanceOf(IllegalArgumentException.class);
+            assertThat(e).hasCauseThat().hasMessage("Path '//string[@lang='en']/text()' for property 'content' can not be read by the STAX engine");
+        }
+    }
+
+    @Test
+    public void bytesEngine() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n" +
+                "\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlParser;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "import javax.annotation.Nullable;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "@XmlParser(engine = XmlParser.Engine.BYTES)\n" +
+                "abstract class Test {\n" +
+                "    static Test fromXml(String xml) {\n" +
+                "        return null;\n" +
+                "    }\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/string/text()\")\n" +
+                "    abstract String content();\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/attribute/@code\")\n" +
+                "    abstract int code();\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/attribute/text()\")\n" +
+                "    @Nullable\n" +
+                "    abstract Integer count();\n" +
+                "}");
+
+        final JavaFileObject expected = JavaFileObjects.forSourceString("test.AutoValue_Test",
+                "package test;\n" +
+                        "\n" +
+                        "import static com.hihi.xml.XmlByteReader.END_DOCUMENT;\n" +
+                        "import static com.hihi.xml.XmlByteReader.END_ELEMENT;\n" +
+                        "import static com.hihi.xml.XmlByteReader.START_ELEMENT;\n" +
+                        "import static com.hihi.xml.XmlByteReader.TEXT;\n" +
+                        "\n" +
+                        "import com.hihi.xml.XmlByteReader;\n" +
+                        "import com.hihi.xml.XmlNumbers;\n" +
+                        "import java.lang.Integer;\n" +
+                        "import java.lang.String;\n" +
+                        "\n" +
+                        "final class AutoValue_Test extends $AutoValue_Test {\n" +
+                        "    private static final int[] PARENT_STEPS = {-1, 0, 1, 2, 2};\n" +
+                        "\n" +
+                        "    private static final byte[] STEP_1 = XmlByteReader.bytes(\"path\");\n" +
+                        "\n" +
+                        "    private static final byte[] STEP_2 = XmlByteReader.bytes(\"to\");\n" +
+                        "\n" +
+                        "    private static final byte[] STEP_3 = XmlByteReader.bytes(\"string\");\n" +
+                        "\n" +
+                        "    private static final byte[] STEP_4 = XmlByteReader.bytes(\"attribute\");\n" +
+                        "\n" +
+                        "    private static final byte[] ATTRIBUTE_1 = XmlByteReader.bytes(\"code\");\n" +
+                        "\n" +
+                        "    AutoValue_Test(String content, int code, Integer count) {\n" +
+                        "        super(content, code, count);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(String xml) {\n" +
+                        "        return createFromByteReader(XmlByteReader.of(xml));\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static AutoValue_Test createFromByteReader(XmlByteReader reader) {\n" +
+                        "        final long[] numbers = new long[3];\n" +
+                        "        final String[] values = readValues(reader, numbers);\n" +
+                        "        \n" +
+                        "        final String content = values[0];\n" +
+                        "        final int code = XmlNumbers.parseInt(values[1]);\n" +
+                        "        final Integer count = values[2] == null ? null : (int) numbers[2];\n" +
+                        "        \n" +
+                        "        return new AutoValue_Test(content, code, count);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static String[] readValues(XmlByteReader reader, long[] numbers) {\n" +
+                        "        final String[] values = new String[3];\n" +
+                        "        int remaining = 3;\n" +
+                        "        int step = 0;\n" +
+                        "        while (remaining > 0) {\n" +
+                        "            switch (reader.next()) {\n" +
+                        "                case START_ELEMENT:\n" +
+                        "                    switch (step) {\n" +
+                        "                        case 0:\n" +
+                        "                            if (reader.nameEquals(STEP_1)) {\n" +
+                        "                                step = 1;\n" +
+                        "                            } else {\n" +
+                        "                                reader.skipElement();\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                        case 1:\n" +
+                        "                            if (reader.nameEquals(STEP_2)) {\n" +
+                        "                                step = 2;\n" +
+                        "                            } else {\n" +
+                        "                                reader.skipElement();\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                        case 2:\n" +
+                        "                            if (reader.nameEquals(STEP_3)) {\n" +
+                        "                                step = 3;\n" +
+                        "                            } else if (reader.nameEquals(STEP_4)) {\n" +
+                        "                                step = 4;\n" +
+                        "                                if (values[1] == null && (values[1] = reader.attribute(ATTRIBUTE_1)) != null) {\n" +
+                        "                                    remaining--;\n" +
+                        "                                }\n" +
+                        "                            } else {\n" +
+                        "                                reader.skipElement();\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                        default:\n" +
+                        "                            reader.skipElement();\n" +
+                        "                    }\n" +
+                        "                    break;\n" +
+                        "                case TEXT:\n" +
+                        "                    switch (step) {\n" +
+                        "                        case 3:\n" +
+                        "                            if (values[0] == null) {\n" +
+                        "                                values[0] = reader.text();\n" +
+                        "                                remaining--;\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                        case 4:\n" +
+                        "                            if (values[2] == null) {\n" +
+                        "                                numbers[2] = XmlNumbers.parseInt(reader.textChars());\n" +
+                        "                                values[2] = XmlNumbers.DECODED;\n" +
+                        "                                remaining--;\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                    }\n" +
+                        "                    break;\n" +
+                        "                case END_ELEMENT:\n" +
+                        "                    step = PARENT_STEPS[step];\n" +
+                        "                    break;\n" +
+                        "                case END_DOCUMENT:\n" +
+                        "                    return values;\n" +
+                        "            }\n" +
+                        "        }\n" +
+                        "        return values;\n" +
+                        "    }\n" +
+                        "}");
+
+        assertAbout(javaSources())
+                .that(singletonList(source))
+                .processedWith(new AutoValueProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expected);
+    }
+
+    @Test
+    public void streamInputs() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n" +
+                "\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "import java.io.InputStream;\n" +
+                "import java.io.Reader;\n" +
+                "import org.xml.sax.InputSource;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "abstract class Test {\n" +
+                "    static Test fromXml(InputStream xml) {\n" +
+                "        return AutoValue_Test.createFromXml(xml);\n" +
+                "    }\n" +
+                "\n" +
+                "    static Test fromXml(Reader xml) {\n" +
+                "        return AutoValue_Test.createFromXml(xml);\n" +
+                "    }\n" +
+                "\n" +
+                "    static Test fromXml(InputSource xml) {\n" +
+                "        return AutoValue_Test.createFromXml(xml);\n" +
+                "    }\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/string/text()\")\n" +
+                "    abstract String content();\n" +
+                "}");
+
+        final JavaFileObject expected = JavaFileObjects.forSourceString("test.AutoValue_Test",
+                "package test;\n" +
+                        "\n" +
+                        "import static javax.xml.xpath.XPathConstants.NODE;\n" +
+                        "\n" +
+                        "import java.io.IOException;\n" +
+                        "import java.io.InputStream;\n" +
+                        "import java.io.Reader;\n" +
+                        "import java.lang.Override;\n" +
+                        "import java.lang.RuntimeException;\n" +
+                        "import java.lang.String;\n" +
+                        "import java.lang.ThreadLocal;\n" +
+                        "import java.util.concurrent.locks.ReentrantLock;\n" +
+                        "import javax.xml.parsers.DocumentBuilder;\n" +
+                        "import javax.xml.parsers.DocumentBuilderFactory;\n" +
+                        "import javax.xml.parsers.ParserConfigurationException;\n" +
+                        "import javax.xml.xpath.XPath;\n" +
+                        "import javax.xml.xpath.XPathExpression;\n" +
+                        "import javax.xml.xpath.XPathExpressionException;\n" +
+                        "import javax.xml.xpath.XPathFactory;\n" +
+                        "import org.w3c.dom.Document;\n" +
+                        "import org.w3c.dom.Node;\n" +
+                        "import org.xml.sax.InputSource;\n" +
+                        "import org.xml.sax.SAXException;\n" +
+                        "\n" +
+                        "final class AutoValue_Test extends $AutoValue_Test {\n" +
+                        "    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = DocumentBuilderFactory.newInstance();\n" +
+                        "\n" +
+                        "    private static final XPathFactory XPATH_FACTORY = XPathFactory.newInstance();\n" +
+                        "\n" +
+                        "    private static final ReentrantLock FACTORY_LOCK = new ReentrantLock();\n" +
+                        "\n" +
+                        "    private static final ThreadLocal<XmlState> XML_STATE = new ThreadLocal<XmlState>() {\n" +
+                        "        @Override\n" +
+                        "        protected XmlState initialValue() {\n" +
+                        "            return new XmlState();\n" +
+                        "        }\n" +
+                        "    };\n" +
+                        "\n" +
+                        "    AutoValue_Test(String content) {\n" +
+                        "        super(content);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(InputStream xml) {\n" +
+                        "        return createFromXml(new InputSource(xml));\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(Reader xml) {\n" +
+                        "        return createFromXml(new InputSource(xml));\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(InputSource xml) {\n" +
+                        "        final XmlState state = acquireXmlState();\n" +
+                        "        try {\n" +
+                        "            final Document document = state.builder.parse(xml);\n" +
+                        "            \n" +
+                        "            final Node node0 = getNodeForXPath(state.expression0, \"/path/to/string/text()\", document);\n" +
+                        "            final String content = node0.getNodeValue();\n" +
+                        "            \n" +
+                        "            return new AutoValue_Test(content);\n" +
+                        "        } catch (IOException | SAXException e) {\n" +
+                        "            throw new RuntimeException(e);\n" +
+                        "        } finally {\n" +
+                        "            releaseXmlState(state);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static Node getNodeForXPath(XPathExpression expression, String path, Node node) {\n" +
+                        "        try {\n" +
+                        "            return (Node) expression.evaluate(node, NODE);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not evaluate path '%s'\", path);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XPathExpression compileXPath(XPath path, String expression) {\n" +
+                        "        try {\n" +
+                        "            return path.compile(expression);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not compile path '%s'\", expression);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XmlState acquireXmlState() {\n" +
+                        "        return XML_STATE.get();\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static void releaseXmlState(XmlState state) {\n" +
+                        "        // Owned by the current thread, nothing to hand back\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static final class XmlState {\n" +
+                        "        final DocumentBuilder builder;\n" +
+                        "        final XPathExpression expression0;\n" +
+                        "        XmlState() {\n" +
+                        "            final XPath path;\n" +
+                        "            FACTORY_LOCK.lock();\n" +
+                        "            try {\n" +
+                        "                builder = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();\n" +
+                        "                path = XPATH_FACTORY.newXPath();\n" +
+                        "            } catch (ParserConfigurationException e) {\n" +
+                        "                throw new RuntimeException(e);\n" +
+                        "            } finally {\n" +
+                        "                FACTORY_LOCK.unlock();\n" +
+                        "            }\n" +
+                        "            expression0 = compileXPath(path, \"/path/to/string/text()\");\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "}");
+
+        assertAbout(javaSources())
+                .that(singletonList(source))
+                .processedWith(new AutoValueProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expected);
+    }
+
+    @Test
+    public void bufferInputs() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n" +
+                "\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlParser;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "import java.nio.ByteBuffer;\n" +
+                "import java.nio.file.Path;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "@XmlParser(engine = XmlParser.Engine.BYTES)\n" +
+                "abstract class Test {\n" +
+                "    static Test fromXml(ByteBuffer xml) {\n" +
+                "        return AutoValue_Test.createFromXml(xml);\n" +
+                "    }\n" +
+                "\n" +
+                "    static Test fromXml(Path xml) {\n" +
+                "        return AutoValue_Test.createFromXml(xml);\n" +
+                "    }\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/string/text()\")\n" +
+                "    abstract String content();\n" +
+                "}");
+
+        final JavaFileObject expected = JavaFileObjects.forSourceString("test.AutoValue_Test",
+                "package test;\n" +
+                        "\n" +
+                        "import static com.hihi.xml.XmlByteReader.END_DOCUMENT;\n" +
+                        "import static com.hihi.xml.XmlByteReader.END_ELEMENT;\n" +
+                        "import static com.hihi.xml.XmlByteReader.START_ELEMENT;\n" +
+                        "import static com.hihi.xml.XmlByteReader.TEXT;\n" +
+                        "\n" +
+                        "import com.hihi.xml.XmlBuffers;\n" +
+                        "import com.hihi.xml.XmlByteReader;\n" +
+                        "import java.io.IOException;\n" +
+                        "import java.lang.RuntimeException;\n" +
+                        "import java.lang.String;\n" +
+                        "import java.nio.ByteBuffer;\n" +
+                        "import java.nio.file.Path;\n" +
+                        "\n" +
+                        "final class AutoValue_Test extends $AutoValue_Test {\n" +
+                        "    private static final int[] PARENT_STEPS = {-1, 0, 1, 2};\n" +
+                        "\n" +
+                        "    private static final byte[] STEP_1 = XmlByteReader.bytes(\"path\");\n" +
+                        "\n" +
+                        "    private static final byte[] STEP_2 = XmlByteReader.bytes(\"to\");\n" +
+                        "\n" +
+                        "    private static final byte[] STEP_3 = XmlByteReader.bytes(\"string\");\n" +
+                        "\n" +
+                        "    AutoValue_Test(String content) {\n" +
+                        "        super(content);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(ByteBuffer xml) {\n" +
+                        "        return createFromByteReader(new XmlByteReader(xml));\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(Path xml) {\n" +
+                        "        try {\n" +
+                        "            return createFromByteReader(new XmlByteReader(XmlBuffers.map(xml)));\n" +
+                        "        } catch (IOException e) {\n" +
+                        "            throw new RuntimeException(e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static AutoValue_Test createFromByteReader(XmlByteReader reader) {\n" +
+                        "        final String[] values = readValues(reader);\n" +
+                        "        \n" +
+                        "        final String content = values[0];\n" +
+                        "        \n" +
+                        "        return new AutoValue_Test(content);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static String[] readValues(XmlByteReader reader) {\n" +
+                        "        final String[] values = new String[1];\n" +
+                        "        int remaining = 1;\n" +
+                        "        int step = 0;\n" +
+                        "        while (remaining > 0) {\n" +
+                        "            switch (reader.next()) {\n" +
+                        "                case START_ELEMENT:\n" +
+                        "                    switch (step) {\n" +
+                        "                        case 0:\n" +
+                        "                            if (reader.nameEquals(STEP_1)) {\n" +
+                        "                                step = 1;\n" +
+                        "                            } else {\n" +
+                        "                                reader.skipElement();\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                        case 1:\n" +
+                        "                            if (reader.nameEquals(STEP_2)) {\n" +
+                        "                                step = 2;\n" +
+                        "                            } else {\n" +
+                        "                                reader.skipElement();\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                        case 2:\n" +
+                        "                            if (reader.nameEquals(STEP_3)) {\n" +
+                        "                                step = 3;\n" +
+                        "                            } else {\n" +
+                        "                                reader.skipElement();\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                        default:\n" +
+                        "                            reader.skipElement();\n" +
+                        "                    }\n" +
+                        "                    break;\n" +
+                        "                case TEXT:\n" +
+                        "                    switch (step) {\n" +
+                        "                        case 3:\n" +
+                        "                            if (values[0] == null) {\n" +
+                        "                                values[0] = reader.text();\n" +
+                        "                                remaining--;\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                    }\n" +
+                        "                    break;\n" +
+                        "                case END_ELEMENT:\n" +
+                        "                    step = PARENT_STEPS[step];\n" +
+                        "                    break;\n" +
+                        "                case END_DOCUMENT:\n" +
+                        "                    return values;\n" +
+                        "            }\n" +
+                        "        }\n" +
+                        "        return values;\n" +
+                        "    }\n" +
+                        "}");
+
+        assertAbout(javaSources())
+                .that(singletonList(source))
+                .processedWith(new AutoValueProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expected);
+    }
+
+    @Test
+    public void staxRecords() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n" +
+                "\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlParser;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "import com.hihi.xml.XmlRecord;\n" +
+                "import java.io.InputStream;\n" +
+                "import java.util.Iterator;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "@XmlParser(engine = XmlParser.Engine.STAX)\n" +
+                "@XmlRecord(\"/pets/item\")\n" +
+                "abstract class Test {\n" +
+                "    static Iterator<Test> fromXml(InputStream xml) {\n" +
+                "        return AutoValue_Test.createIteratorFromXml(xml);\n" +
+                "    }\n" +
+                "\n" +
+                "    @XmlPath(\"@id\")\n" +
+                "    abstract String id();\n" +
+                "\n" +
+                "    @XmlPath(\"age/years/text()\")\n" +
+                "    abstract int years();\n" +
+                "}");
+
+        final JavaFileObject expected = JavaFileObjects.forSourceString("test.AutoValue_Test",
+                "package test;\n" +
+                        "\n" +
+                        "import static javax.xml.stream.XMLStreamConstants.CDATA;\n" +
+                        "import static javax.xml.stream.XMLStreamConstants.CHARACTERS;\n" +
+                        "import static javax.xml.stream.XMLStreamConstants.END_ELEMENT;\n" +
+                        "import static javax.xml.stream.XMLStreamConstants.SPACE;\n" +
+                        "import static javax.xml.stream.XMLStreamConstants.START_ELEMENT;\n" +
+                        "\n" +
+                        "import com.hihi.xml.XmlChars;\n" +
+                        "import com.hihi.xml.XmlNumbers;\n" +
+                        "import java.io.InputStream;\n" +
+                        "import java.lang.Override;\n" +
+                        "import java.lang.RuntimeException;\n" +
+                        "import java.lang.String;\n" +
+                        "import java.lang.UnsupportedOperationException;\n" +
+                        "import java.util.Iterator;\n" +
+                        "import java.util.NoSuchElementException;\n" +
+                        "import javax.xml.stream.XMLInputFactory;\n" +
+                        "import javax.xml.stream.XMLStreamException;\n" +
+                        "import javax.xml.stream.XMLStreamReader;\n" +
+                        "import javax.xml.transform.stream.StreamSource;\n" +
+                        "\n" +
+                        "final class AutoValue_Test extends $AutoValue_Test {\n" +
+                        "    private static final XMLInputFactory XML_INPUT_FACTORY = newXmlInputFactory();\n" +
+                        "\n" +
+                        "    private static final int[] PARENT_STEPS = {-1, 0, 1, 2, 3};\n" +
+                        "\n" +
+                        "    AutoValue_Test(String id, int years) {\n" +
+                        "        super(id, years);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static Iterator<Test> createIteratorFromXml(InputStream xml) {\n" +
+                        "        return new RecordIterator(new StreamSource(xml));\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XMLInputFactory newXmlInputFactory() {\n" +
+                        "        final XMLInputFactory factory = XMLInputFactory.newInstance();\n" +
+                        "        factory.setProperty(XMLInputFactory.IS_COALESCING, true);\n" +
+                        "        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);\n" +
+                        "        return factory;\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static final class RecordIterator implements Iterator<Test> {\n" +
+                        "        private final XMLStreamReader reader;\n" +
+                        "        private int step;\n" +
+                        "        private int skip;\n" +
+                        "        private final long[] numbers = new long[2];\n" +
+                        "        private final XmlChars chars = new XmlChars();\n" +
+                        "        private boolean done;\n" +
+                        "        private AutoValue_Test next;\n" +
+                        "        RecordIterator(StreamSource source) {\n" +
+                        "            try {\n" +
+                        "                reader = XML_INPUT_FACTORY.createXMLStreamReader(source);\n" +
+                        "            } catch (XMLStreamException e) {\n" +
+                        "                throw new RuntimeException(e);\n" +
+                        "            }\n" +
+                        "        }\n" +
+                        "        @Override\n" +
+                        "        public boolean hasNext() {\n" +
+                        "            if (next == null && !done) {\n" +
+                        "                next = readRecord();\n" +
+                        "                done = next == null;\n" +
+                        "            }\n" +
+                        "            return next != null;\n" +
+                        "        }\n" +
+                        "        @Override\n" +
+                        "        public AutoValue_Test next() {\n" +
+                        "            if (!hasNext()) {\n" +
+                        "                throw new NoSuchElementException();\n" +
+                        "            }\n" +
+                        "            final AutoValue_Test record = next;\n" +
+                        "            next = null;\n" +
+                        "            return record;\n" +
+                        "        }\n" +
+                        "        @Override\n" +
+                        "        public void remove() {\n" +
+                        "            throw new UnsupportedOperationException();\n" +
+                        "        }\n" +
+                        "        private AutoValue_Test readRecord() {\n" +
+                        "            try {\n" +
+                        "                final String[] values = readValues();\n" +
+                        "                if (values == null) {\n" +
+                        "                    reader.close();\n" +
+                        "                    return null;\n" +
+                        "                }\n" +
+                        "                \n" +
+                        "                final String id = values[0];\n" +
+                        "                final int years = (int) XmlNumbers.decoded(values[1], numbers[1]);\n" +
+                        "                \n" +
+                        "                return new AutoValue_Test(id, years);\n" +
+                        "            } catch (XMLStreamException e) {\n" +
+                        "                throw new RuntimeException(e);\n" +
+                        "            }\n" +
+                        "        }\n" +
+                        "        private String[] readValues() throws XMLStreamException {\n" +
+                        "            String[] values = null;\n" +
+                        "            int remaining = 0;\n" +
+                        "            while (reader.hasNext()) {\n" +
+                        "                switch (reader.next()) {\n" +
+                        "                    case START_ELEMENT:\n" +
+                        "                        if (skip > 0) {\n" +
+                        "                            skip++;\n" +
+                        "                            break;\n" +
+                        "                        }\n" +
+                        "                        if (remaining == 0 && step >= 2) {\n" +
+                        "                            skip = 1;\n" +
+                        "                            break;\n" +
+                        "                        }\n" +
+                        "                        switch (step) {\n" +
+                        "                            case 0:\n" +
+                        "                                if (\"pets\".equals(reader.getLocalName())) {\n" +
+                        "                                    step = 1;\n" +
+                        "                                } else {\n" +
+                        "                                    skip = 1;\n" +
+                        "                                }\n" +
+                        "                                break;\n" +
+                        "                            case 1:\n" +
+                        "                                if (\"item\".equals(reader.getLocalName())) {\n" +
+                        "                                    step = 2;\n" +
+                        "                                    values = new String[2];\n" +
+                        "                                    remaining = 2;\n" +
+                        "                                    if (values[0] == null && (values[0] = reader.getAttributeValue(null, \"id\")) != null) {\n" +
+                        "                                        remaining--;\n" +
+                        "                                    }\n" +
+                        "                                } else {\n" +
+                        "                                    skip = 1;\n" +
+                        "                                }\n" +
+                        "                                break;\n" +
+                        "                            case 2:\n" +
+                        "                                if (\"age\".equals(reader.getLocalName())) {\n" +
+                        "                                    step = 3;\n" +
+                        "                                } else {\n" +
+                        "                                    skip = 1;\n" +
+                        "                                }\n" +
+                        "                                break;\n" +
+                        "                            case 3:\n" +
+                        "                                if (\"years\".equals(reader.getLocalName())) {\n" +
+                        "                                    step = 4;\n" +
+                        "                                } else {\n" +
+                        "                                    skip = 1;\n" +
+                        "                                }\n" +
+                        "                                break;\n" +
+                        "                            default:\n" +
+                        "                                skip = 1;\n" +
+                        "                        }\n" +
+                        "                        break;\n" +
+                        "                    case CHARACTERS:\n" +
+                        "                    case CDATA:\n" +
+                        "                    case SPACE:\n" +
+                        "                        if (skip > 0) {\n" +
+                        "                            break;\n" +
+                        "                        }\n" +
+                        "                        switch (step) {\n" +
+                        "                            case 4:\n" +
+                        "                                if (values[1] == null) {\n" +
+                        "                                    numbers[1] = XmlNumbers.parseInt(chars.set(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength()));\n" +
+                        "                                    values[1] = XmlNumbers.DECODED;\n" +
+                        "                                    remaining--;\n" +
+                        "                                }\n" +
+                        "                                break;\n" +
+                        "                        }\n" +
+                        "                        break;\n" +
+                        "                    case END_ELEMENT:\n" +
+                        "                        if (skip > 0) {\n" +
+                        "                            skip--;\n" +
+                        "                        } else if (step == 2) {\n" +
+                        "                            step = PARENT_STEPS[step];\n" +
+                        "                            return values;\n" +
+                        "                        } else {\n" +
+                        "                            step = PARENT_STEPS[step];\n" +
+                        "                        }\n" +
+                        "                        break;\n" +
+                        "                }\n" +
+                        "            }\n" +
+                        "            return null;\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "}");
+
+        assertAbout(javaSources())
+                .that(singletonList(source))
+                .processedWith(new AutoValueProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expected);
+    }
+
+    @Test
+    public void domEngineRecord() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "import com.hihi.xml.XmlRecord;\n" +
+                "import java.util.Iterator;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "@XmlRecord(\"/pets/item\")\n" +
+                "abstract class Test {\n" +
+                "   static Iterator<Test> fromXml(String xml) {\n" +
+                "       return null;\n" +
+                "   }\n" +
+                "\n" +
+                "   @XmlPath(\"name/text()\")\n" +
+                "   abstract String content();\n" +
+                "}");
+
+        try {
+            assertAbout(javaSources())
+                    .that(singletonList(source))
+                    .processedWith(new AutoValueProcessor())
+                    .failsToCompile();
+        } catch (RuntimeException e) {
+            assertThat(e).hasCauseThat().isInstanceOf(IllegalArgumentException.class);
+            assertThat(e).hasCauseThat().hasMessage("Record path '/pets/item' needs the STAX or BYTES engine");
+        }
+    }
+
+    @Test
+    public void nodeFactoryAbsolutePath() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "import org.w3c.dom.Node;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "abstract class Test {\n" +
+                "   static Test fromXml(Node xml) {\n" +
+                "       return null;\n" +
+                "   }\n" +
+                "\n" +
+                "   @XmlPath(\"/pets/item/name/text()\")\n" +
+                "   abstract String content();\n" +
+                "}");
+
+        try {
+            assertAbout(javaSources())
+                    .that(singletonList(source))
+                    .processedWith(new AutoValueProcessor())
+                    .failsToCompile();
+        } catch (RuntimeException e) {
+            assertThat(e).hasCauseThat().isInstanceOf(IllegalArgumentException.class);
+            assertThat(e).hasCauseThat().hasMessage("Path '/pets/item/name/text()' for property 'content' is absolute, but factories taking a Node read relative to it");
+        }
+    }
+
+    @Test
+    public void bytesEngineStreamedRecords() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlParser;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "import com.hihi.xml.XmlRecord;\n" +
+                "import java.io.Reader;\n" +
+                "import java.util.Iterator;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "@XmlParser(engine = XmlParser.Engine.BYTES)\n" +
+                "@XmlRecord(\"/pets/item\")\n" +
+                "abstract class Test {\n" +
+                "   static Iterator<Test> fromXml(Reader xml) {\n" +
+                "       return null;\n" +
+                "   }\n" +
+                "\n" +
+                "   @XmlPath(\"name/text()\")\n" +
+                "   abstract String content();\n" +
+                "}");
+
+        try {
+            assertAbout(javaSources())
+                    .that(singletonList(source))
+                    .processedWith(new AutoValueProcessor())
+                    .failsToCompile();
+        } catch (RuntimeException e) {
+            assertThat(e).hasCauseThat().isInstanceOf(IllegalArgumentException.class);
+            assertThat(e).hasCauseThat().hasMessage("Factories returning an Iterator cannot take Reader with the BYTES engine, which reads all of it first");
+        }
+    }
+
+    @Test
+    public void nestedValues() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n" +
+                "\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "import javax.annotation.Nullable;\n" +
+                "import org.w3c.dom.Node;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "abstract class Test {\n" +
+                "   static Test fromXml(String xml) {\n" +
+                "       return AutoValue_Test.createFromXml(xml);\n" +
+                "   }\n" +
+                "\n" +
+                "   static Test fromXml(Node xml) {\n" +
+                "       return AutoValue_Test.createFromXml(xml);\n" +
+                "   }\n" +
+                "\n" +
+                "   @XmlPath(\"name/text()\")\n" +
+                "   abstract String name();\n" +
+                "\n" +
+                "   @XmlPath(\"owner\")\n" +
+                "   @Nullable\n" +
+                "   abstract Test owner();\n" +
+                "}");
+
+        final JavaFileObject expected = JavaFileObjects.forSourceString("test.AutoValue_Test",
+                "package test;\n" +
+                        "\n" +
+                        "import static javax.xml.xpath.XPathConstants.NODE;\n" +
+                        "\n" +
+                        "import java.io.IOException;\n" +
+                        "import java.io.StringReader;\n" +
+                        "import java.lang.Override;\n" +
+                        "import java.lang.RuntimeException;\n" +
+                        "import java.lang.String;\n" +
+                        "import java.lang.ThreadLocal;\n" +
+                        "import java.util.concurrent.locks.ReentrantLock;\n" +
+                        "import javax.xml.parsers.DocumentBuilder;\n" +
+                        "import javax.xml.parsers.DocumentBuilderFactory;\n" +
+                        "import javax.xml.parsers.ParserConfigurationException;\n" +
+                        "import javax.xml.xpath.XPath;\n" +
+                        "import javax.xml.xpath.XPathExpression;\n" +
+                        "import javax.xml.xpath.XPathExpressionException;\n" +
+                        "import javax.xml.xpath.XPathFactory;\n" +
+                        "import org.w3c.dom.Document;\n" +
+                        "import org.w3c.dom.Node;\n" +
+                        "import org.xml.sax.InputSource;\n" +
+                        "import org.xml.sax.SAXException;\n" +
+                        "\n" +
+                        "final class AutoValue_Test extends $AutoValue_Test {\n" +
+                        "    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = DocumentBuilderFactory.newInstance();\n" +
+                        "\n" +
+                        "    private static final XPathFactory XPATH_FACTORY = XPathFactory.newInstance();\n" +
+                        "\n" +
+                        "    private static final ReentrantLock FACTORY_LOCK = new ReentrantLock();\n" +
+                        "\n" +
+                        "    private static final ThreadLocal<XmlState> XML_STATE = new ThreadLocal<XmlState>() {\n" +
+                        "        @Override\n" +
+                        "        protected XmlState initialValue() {\n" +
+                        "            return new XmlState();\n" +
+                        "        }\n" +
+                        "    };\n" +
+                        "\n" +
+                        "    AutoValue_Test(String name, Test owner) {\n" +
+                        "        super(name, owner);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(String xml) {\n" +
+                        "        return createFromXml(new InputSource(new StringReader(xml)));\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(InputSource xml) {\n" +
+                        "        final XmlState state = acquireXmlState();\n" +
+                        "        try {\n" +
+                        "            final Document document = state.builder.parse(xml);\n" +
+                        "            \n" +
+                        "            final Node node0 = getNodeForXPath(state.expression0, \"name/text()\", document);\n" +
+                        "            final String name = node0.getNodeValue();\n" +
+                        "            \n" +
+                        "            final Node node1 = getNodeForXPath(state.expression1, \"owner\", document);\n" +
+                        "            final Test owner = node1 == null ? null : Test.fromXml(node1);\n" +
+                        "            \n" +
+                        "            return new AutoValue_Test(name, owner);\n" +
+                        "        } catch (IOException | SAXException e) {\n" +
+                        "            throw new RuntimeException(e);\n" +
+                        "        } finally {\n" +
+                        "            releaseXmlState(state);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(Node xml) {\n" +
+                        "        final XmlState state = acquireXmlState();\n" +
+                        "        try {\n" +
+                        "            final Node node0 = getNodeForXPath(state.expression0, \"name/text()\", xml);\n" +
+                        "            final String name = node0.getNodeValue();\n" +
+                        "            \n" +
+                        "            final Node node1 = getNodeForXPath(state.expression1, \"owner\", xml);\n" +
+                        "            final Test owner = node1 == null ? null : Test.fromXml(node1);\n" +
+                        "            \n" +
+                        "            return new AutoValue_Test(name, owner);\n" +
+                        "        } finally {\n" +
+                        "            releaseXmlState(state);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static Node getNodeForXPath(XPathExpression expression, String path, Node node) {\n" +
+                        "        try {\n" +
+                        "            return (Node) expression.evaluate(node, NODE);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not evaluate path '%s'\", path);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XPathExpression compileXPath(XPath path, String expression) {\n" +
+                        "        try {\n" +
+                        "            return path.compile(expression);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not compile path '%s'\", expression);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XmlState acquireXmlState() {\n" +
+                        "        return XML_STATE.get();\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static void releaseXmlState(XmlState state) {\n" +
+                        "        // Owned by the current thread, nothing to hand back\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static final class XmlState {\n" +
+                        "        final DocumentBuilder builder;\n" +
+                        "        final XPathExpression expression0;\n" +
+                        "        final XPathExpression expression1;\n" +
+                        "        XmlState() {\n" +
+                        "            final XPath path;\n" +
+                        "            FACTORY_LOCK.lock();\n" +
+                        "            try {\n" +
+                        "                builder = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();\n" +
+                        "                path = XPATH_FACTORY.newXPath();\n" +
+                        "            } catch (ParserConfigurationException e) {\n" +
+                        "                throw new RuntimeException(e);\n" +
+                        "            } finally {\n" +
+                        "                FACTORY_LOCK.unlock();\n" +
+                        "            }\n" +
+                        "            expression0 = compileXPath(path, \"name/text()\");\n" +
+                        "            expression1 = compileXPath(path, \"owner\");\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "}");
+
+        assertAbout(javaSources())
+                .that(singletonList(source))
+                .processedWith(new AutoValueProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expected);
+    }
+
+    @Test
+    public void staxEngineNestedValue() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlParser;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "import org.w3c.dom.Node;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "@XmlParser(engine = XmlParser.Engine.STAX)\n" +
+                "abstract class Test {\n" +
+                "   static Test fromXml(String xml) {\n" +
+                "       return null;\n" +
+                "   }\n" +
+                "\n" +
+                "   @XmlPath(\"/path/to/owner\")\n" +
+                "   abstract Owner owner();\n" +
+                "\n" +
+                "   @AutoValue\n" +
+                "   abstract static class Owner {\n" +
+                "       static Owner fromXml(Node xml) {\n" +
+                "           return null;\n" +
+                "       }\n" +
+                "\n" +
+                "       @XmlPath(\"name/text()\")\n" +
+                "       abstract String name();\n" +
+                "   }\n" +
+                "}");
+
+        try {
+            assertAbout(javaSources())
+                    .that(singletonList(source))
+                    .processedWith(new AutoValueProcessor())
+                    .failsToCompile();
+        } catch (RuntimeException e) {
+            assertThat(e).hasCauseThat().isInstanceOf(IllegalArgumentException.class);
+            assertThat(e).hasCauseThat().hasMessage("Nested value 'test.Test.Owner' for property 'owner' needs the DOM engine");
+        }
+    }
+
+    @Test
+    public void sharedPrefixes() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n" +
+                "\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "import javax.annotation.Nullable;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "abstract class Test {\n" +
+                "   static Test fromXml(String xml) {\n" +
+                "       return AutoValue_Test.createFromXml(xml);\n" +
+                "   }\n" +
+                "\n" +
+                "   @XmlPath(\"/pets/item/@id\")\n" +
+                "   abstract String id();\n" +
+                "\n" +
+                "   @XmlPath(\"/pets/item/age/years/text()\")\n" +
+                "   abstract int years();\n" +
+                "\n" +
+                "   @XmlPath(\"/pets/item/@id\")\n" +
+                "   abstract String key();\n" +
+                "\n" +
+                "   @XmlPath(\"//breed/text()\")\n" +
+                "   @Nullable\n" +
+                "   abstract String breed();\n" +
+                "}");
+
+        final JavaFileObject expected = JavaFileObjects.forSourceString("test.AutoValue_Test",
+                "package test;\n" +
+                        "\n" +
+                        "import static javax.xml.xpath.XPathConstants.NODE;\n" +
+                        "\n" +
+                        "import com.hihi.xml.XmlNumbers;\n" +
+                        "import java.io.IOException;\n" +
+                        "import java.io.StringReader;\n" +
+                        "import java.lang.Override;\n" +
+                        "import java.lang.RuntimeException;\n" +
+                        "import java.lang.String;\n" +
+                        "import java.lang.ThreadLocal;\n" +
+                        "import java.util.concurrent.locks.ReentrantLock;\n" +
+                        "import javax.xml.parsers.DocumentBuilder;\n" +
+                        "import javax.xml.parsers.DocumentBuilderFactory;\n" +
+                        "import javax.xml.parsers.ParserConfigurationException;\n" +
+                        "import javax.xml.xpath.XPath;\n" +
+                        "import javax.xml.xpath.XPathExpression;\n" +
+                        "import javax.xml.xpath.XPathExpressionException;\n" +
+                        "import javax.xml.xpath.XPathFactory;\n" +
+                        "import org.w3c.dom.Document;\n" +
+                        "import org.w3c.dom.Node;\n" +
+                        "import org.xml.sax.InputSource;\n" +
+                        "import org.xml.sax.SAXException;\n" +
+                        "\n" +
+                        "final class AutoValue_Test extends $AutoValue_Test {\n" +
+                        "    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = DocumentBuilderFactory.newInstance();\n" +
+                        "\n" +
+                        "    private static final XPathFactory XPATH_FACTORY = XPathFactory.newInstance();\n" +
+                        "\n" +
+                        "    private static final ReentrantLock FACTORY_LOCK = new ReentrantLock();\n" +
+                        "\n" +
+                        "    private static final ThreadLocal<XmlState> XML_STATE = new ThreadLocal<XmlState>() {\n" +
+                        "        @Override\n" +
+                        "        protected XmlState initialValue() {\n" +
+                        "            return new XmlState();\n" +
+                        "        }\n" +
+                        "    };\n" +
+                        "\n" +
+                        "    AutoValue_Test(String id, int years, String key, String breed) {\n" +
+                        "        super(id, years, key, breed);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(String xml) {\n" +
+                        "        return createFromXml(new InputSource(new StringReader(xml)));\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(InputSource xml) {\n" +
+                        "        final XmlState state = acquireXmlState();\n" +
+                        "        try {\n" +
+                        "            final Document document = state.builder.parse(xml);\n" +
+                        "            \n" +
+                        "            final Node context0 = getNodeForXPath(state.context0, \"/pets/item\", document);\n" +
+                        "            \n" +
+                        "            final Node node0 = getNodeForXPath(state.relative0, state.expression0, \"/pets/item/@id\", context0, document);\n" +
+                        "            final String id = node0.getNodeValue();\n" +
+                        "            \n" +
+                        "            final Node node1 = getNodeForXPath(state.relative1, state.expression1, \"/pets/item/age/years/text()\", context0, document);\n" +
+                        "            final int years = XmlNumbers.parseInt(node1.getNodeValue());\n" +
+                        "            \n" +
+                        "            final String key = node0.getNodeValue();\n" +
+                        "            \n" +
+                        "            final Node node3 = getNodeForXPath(state.expression3, \"//breed/text()\", document);\n" +
+                        "            final String breed = node3 == null ? null : node3.getNodeValue();\n" +
+                        "            \n" +
+                        "            return new AutoValue_Test(id, years, key, breed);\n" +
+                        "        } catch (IOException | SAXException e) {\n" +
+                        "            throw new RuntimeException(e);\n" +
+                        "        } finally {\n" +
+                        "            releaseXmlState(state);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static Node getNodeForXPath(XPathExpression expression, String path, Node node) {\n" +
+                        "        try {\n" +
+                        "            return (Node) expression.evaluate(node, NODE);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not evaluate path '%s'\", path);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static Node getNodeForXPath(XPathExpression relative, XPathExpression expression,\n" +
+                        "            String path, Node context, Node node) {\n" +
+                        "        if (context == null) {\n" +
+                        "            return null;\n" +
+                        "        }\n" +
+                        "        final Node found = getNodeForXPath(relative, path, context);\n" +
+                        "        return found != null ? found : getNodeForXPath(expression, path, node);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XPathExpression compileXPath(XPath path, String expression) {\n" +
+                        "        try {\n" +
+                        "            return path.compile(expression);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not compile path '%s'\", expression);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XmlState acquireXmlState() {\n" +
+                        "        return XML_STATE.get();\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static void releaseXmlState(XmlState state) {\n" +
+                        "        // Owned by the current thread, nothing to hand back\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static final class XmlState {\n" +
+                        "        final DocumentBuilder builder;\n" +
+                        "        final XPathExpression context0;\n" +
+                        "        final XPathExpression relative0;\n" +
+                        "        final XPathExpression expression0;\n" +
+                        "        final XPathExpression relative1;\n" +
+                        "        final XPathExpression expression1;\n" +
+                        "        final XPathExpression expression3;\n" +
+                        "        XmlState() {\n" +
+                        "            final XPath path;\n" +
+                        "            FACTORY_LOCK.lock();\n" +
+                        "            try {\n" +
+                        "                builder = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();\n" +
+                        "                path = XPATH_FACTORY.newXPath();\n" +
+                        "            } catch (ParserConfigurationException e) {\n" +
+                        "                throw new RuntimeException(e);\n" +
+                        "            } finally {\n" +
+                        "                FACTORY_LOCK.unlock();\n" +
+                        "            }\n" +
+                        "            context0 = compileXPath(path, \"/pets/item\");\n" +
+                        "            relative0 = compileXPath(path, \"@id\");\n" +
+                        "            expression0 = compileXPath(path, \"/pets/item/@id\");\n" +
+                        "            relative1 = compileXPath(path, \"age/years/text()\");\n" +
+                        "            expression1 = compileXPath(path, \"/pets/item/age/years/text()\");\n" +
+                        "            expression3 = compileXPath(path, \"//breed/text()\");\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "}");
+
+        assertAbout(javaSources())
+                .that(singletonList(source))
+                .processedWith(new AutoValueProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expected);
+    }
+
+    @Test
+    public void batchFactories() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n" +
+                "\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlParser;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "import java.util.List;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "@XmlParser(engine = XmlParser.Engine.STAX, batchThreshold = 16)\n" +
+                "abstract class Test {\n" +
+                "   static List<Test> fromXml(List<String> xml) {\n" +
+                "       return AutoValue_Test.createFromXml(xml);\n" +
+                "   }\n" +
+                "\n" +
+                "   static Test[] fromXml(String[] xml) {\n" +
+                "       return AutoValue_Test.createFromXml(xml);\n" +
+                "   }\n" +
+                "\n" +
+                "   @XmlPath(\"/pets/item/@id\")\n" +
+                "   abstract String id();\n" +
+                "}");
+
+        final JavaFileObject expected = JavaFileObjects.forSourceString("test.AutoValue_Test",
+                "package test;\n" +
+                        "\n" +
+                        "import static javax.xml.stream.XMLStreamConstants.CDATA;\n" +
+                        "import static javax.xml.stream.XMLStreamConstants.CHARACTERS;\n" +
+                        "import static javax.xml.stream.XMLStreamConstants.END_ELEMENT;\n" +
+                        "import static javax.xml.stream.XMLStreamConstants.SPACE;\n" +
+                        "import static javax.xml.stream.XMLStreamConstants.START_ELEMENT;\n" +
+                        "\n" +
+                        "import com.hihi.xml.XmlBatch;\n" +
+                        "import java.io.StringReader;\n" +
+                        "import java.lang.Exception;\n" +
+                        "import java.lang.Override;\n" +
+                        "import java.lang.RuntimeException;\n" +
+                        "import java.lang.String;\n" +
+                        "import java.util.List;\n" +
+                        "import javax.xml.stream.XMLInputFactory;\n" +
+                        "import javax.xml.stream.XMLStreamException;\n" +
+                        "import javax.xml.stream.XMLStreamReader;\n" +
+                        "import javax.xml.transform.stream.StreamSource;\n" +
+                        "\n" +
+                        "final class AutoValue_Test extends $AutoValue_Test {\n" +
+                        "    private static final XMLInputFactory XML_INPUT_FACTORY = newXmlInputFactory();\n" +
+                        "\n" +
+                        "    private static final int[] PARENT_STEPS = {-1, 0, 1};\n" +
+                        "\n" +
+                        "    private static final XmlBatch.Converter<String, Test> BATCH_CONVERTER = new XmlBatch.Converter<String, Test>() {\n" +
+                        "        @Override\n" +
+                        "        public Test convert(String xml) {\n" +
+                        "            return createFromXml(xml);\n" +
+                        "        }\n" +
+                        "    };\n" +
+                        "\n" +
+                        "    AutoValue_Test(String id) {\n" +
+                        "        super(id);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(String xml) {\n" +
+                        "        return createFromSource(new StreamSource(new StringReader(xml)));\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static AutoValue_Test createFromSource(StreamSource source) {\n" +
+                        "        XMLStreamReader reader = null;\n" +
+                        "        try {\n" +
+                        "            reader = XML_INPUT_FACTORY.createXMLStreamReader(source);\n" +
+                        "            final String[] values = readValues(reader);\n" +
+                        "            \n" +
+                        "            final String id = values[0];\n" +
+                        "            \n" +
+                        "            return new AutoValue_Test(id);\n" +
+                        "        } catch (XMLStreamException e) {\n" +
+                        "            throw new RuntimeException(e);\n" +
+                        "        } finally {\n" +
+                        "            if (reader != null) {\n" +
+                        "                try {\n" +
+                        "                    reader.close();\n" +
+                        "                } catch (Exception e) {\n" +
+                        "                    // Ignore\n" +
+                        "                }\n" +
+                        "            }\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static String[] readValues(XMLStreamReader reader) throws XMLStreamException {\n" +
+                        "        final String[] values = new String[1];\n" +
+                        "        int remaining = 1;\n" +
+                        "        int step = 0;\n" +
+                        "        int skip = 0;\n" +
+                        "        while (remaining > 0 && reader.hasNext()) {\n" +
+                        "            switch (reader.next()) {\n" +
+                        "                case START_ELEMENT:\n" +
+                        "                    if (skip > 0) {\n" +
+                        "                        skip++;\n" +
+                        "                        break;\n" +
+                        "                    }\n" +
+                        "                    switch (step) {\n" +
+                        "                        case 0:\n" +
+                        "                            if (\"pets\".equals(reader.getLocalName())) {\n" +
+                        "                                step = 1;\n" +
+                        "                            } else {\n" +
+                        "                                skip = 1;\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                        case 1:\n" +
+                        "                            if (\"item\".equals(reader.getLocalName())) {\n" +
+                        "                                step = 2;\n" +
+                        "                                if (values[0] == null && (values[0] = reader.getAttributeValue(null, \"id\")) != null) {\n" +
+                        "                                    remaining--;\n" +
+                        "                                }\n" +
+                        "                            } else {\n" +
+                        "                                skip = 1;\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                        default:\n" +
+                        "                            skip = 1;\n" +
+                        "                    }\n" +
+                        "                    break;\n" +
+                        "                case END_ELEMENT:\n" +
+                        "                    if (skip > 0) {\n" +
+                        "                        skip--;\n" +
+                        "                    } else {\n" +
+                        "                        step = PARENT_STEPS[step];\n" +
+                        "                    }\n" +
+                        "                    break;\n" +
+                        "            }\n" +
+                        "        }\n" +
+                        "        return values;\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XMLInputFactory newXmlInputFactory() {\n" +
+                        "        final XMLInputFactory factory = XMLInputFactory.newInstance();\n" +
+                        "        factory.setProperty(XMLInputFactory.IS_COALESCING, true);\n" +
+                        "        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);\n" +
+                        "        return factory;\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static List<Test> createFromXml(List<String> xml) {\n" +
+                        "        return XmlBatch.convert(xml, 16, BATCH_CONVERTER);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static Test[] createFromXml(String[] xml) {\n" +
+                        "        return XmlBatch.convert(xml, new Test[xml.length], 16, BATCH_CONVERTER);\n" +
+                        "    }\n" +
+                        "}");
+
+        assertAbout(javaSources())
+                .that(singletonList(source))
+                .processedWith(new AutoValueProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expected);
+    }
+
+    @Test
+    public void asyncFactories() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n" +
+                "\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlParser;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "import java.io.InputStream;\n" +
+                "import java.util.concurrent.CompletableFuture;\n" +
+                "import java.util.concurrent.Executor;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "@XmlParser(engine = XmlParser.Engine.BYTES)\n" +
+                "abstract class Test {\n" +
+                "   static CompletableFuture<Test> fromXmlAsync(String xml) {\n" +
+                "       return AutoValue_Test.createFromXmlAsync(xml);\n" +
+                "   }\n" +
+                "\n" +
+                "   static CompletableFuture<Test> fromXmlAsync(InputStream xml, Executor executor) {\n" +
+                "       return AutoValue_Test.createFromXmlAsync(xml, executor);\n" +
+                "   }\n" +
+                "\n" +
+                "   @XmlPath(\"/pets/item/@id\")\n" +
+                "   abstract String id();\n" +
+                "}");
+
+        final JavaFileObject expected = JavaFileObjects.forSourceString("test.AutoValue_Test",
+                "package test;\n" +
+                        "\n" +
+                        "import static com.hihi.xml.XmlByteReader.END_DOCUMENT;\n" +
+                        "import static com.hihi.xml.XmlByteReader.END_ELEMENT;\n" +
+                        "import static com.hihi.xml.XmlByteReader.START_ELEMENT;\n" +
+                        "import static com.hihi.xml.XmlByteReader.TEXT;\n" +
+                        "\n" +
+                        "import com.hihi.xml.XmlByteReader;\n" +
+                        "import com.hihi.xml.XmlExecutors;\n" +
+                        "import java.io.IOException;\n" +
+                        "import java.io.InputStream;\n" +
+                        "import java.lang.Override;\n" +
+                        "import java.lang.RuntimeException;\n" +
+                        "import java.lang.String;\n" +
+                        "import java.util.concurrent.CompletableFuture;\n" +
+                        "import java.util.concurrent.Executor;\n" +
+                        "import java.util.function.Supplier;\n" +
+                        "\n" +
+                        "final class AutoValue_Test extends $AutoValue_Test {\n" +
+                        "    private static final int[] PARENT_STEPS = {-1, 0, 1};\n" +
+                        "\n" +
+                        "    private static final byte[] STEP_1 = XmlByteReader.bytes(\"pets\");\n" +
+                        "\n" +
+                        "    private static final byte[] STEP_2 = XmlByteReader.bytes(\"item\");\n" +
+                        "\n" +
+                        "    private static final byte[] ATTRIBUTE_0 = XmlByteReader.bytes(\"id\");\n" +
+                        "\n" +
+                        "    AutoValue_Test(String id) {\n" +
+                        "        super(id);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(String xml) {\n" +
+                        "        return createFromByteReader(XmlByteReader.of(xml));\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(InputStream xml) {\n" +
+                        "        try {\n" +
+                        "            return createFromByteReader(XmlByteReader.of(xml));\n" +
+                        "        } catch (IOException e) {\n" +
+                        "            throw new RuntimeException(e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static AutoValue_Test createFromByteReader(XmlByteReader reader) {\n" +
+                        "        final String[] values = readValues(reader);\n" +
+                        "        \n" +
+                        "        final String id = values[0];\n" +
+                        "        \n" +
+                        "        return new AutoValue_Test(id);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static String[] readValues(XmlByteReader reader) {\n" +
+                        "        final String[] values = new String[1];\n" +
+                        "        int remaining = 1;\n" +
+                        "        int step = 0;\n" +
+                        "        while (remaining > 0) {\n" +
+                        "            switch (reader.next()) {\n" +
+                        "                case START_ELEMENT:\n" +
+                        "                    switch (step) {\n" +
+                        "                        case 0:\n" +
+                        "                            if (reader.nameEquals(STEP_1)) {\n" +
+                        "                                step = 1;\n" +
+                        "                            } else {\n" +
+                        "                                reader.skipElement();\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                        case 1:\n" +
+                        "                            if (reader.nameEquals(STEP_2)) {\n" +
+                        "                                step = 2;\n" +
+                        "                                if (values[0] == null && (values[0] = reader.attribute(ATTRIBUTE_0)) != null) {\n" +
+                        "                                    remaining--;\n" +
+                        "                                }\n" +
+                        "                            } else {\n" +
+                        "                                reader.skipElement();\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                        default:\n" +
+                        "                            reader.skipElement();\n" +
+                        "                    }\n" +
+                        "                    break;\n" +
+                        "                case END_ELEMENT:\n" +
+                        "                    step = PARENT_STEPS[step];\n" +
+                        "                    break;\n" +
+                        "                case END_DOCUMENT:\n" +
+                        "                    return values;\n" +
+                        "            }\n" +
+                        "        }\n" +
+                        "        return values;\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static CompletableFuture<Test> createFromXmlAsync(String xml) {\n" +
+                        "        return createFromXmlAsync(xml, XmlExecutors.defaultExecutor());\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static CompletableFuture<Test> createFromXmlAsync(final String xml, Executor executor) {\n" +
+                        "        return CompletableFuture.supplyAsync(new Supplier<Test>() {\n" +
+                        "            @Override\n" +
+                        "            public Test get() {\n" +
+                        "                return createFromXml(xml);\n" +
+                        "            }\n" +
+                        "        }, executor);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static CompletableFuture<Test> createFromXmlAsync(InputStream xml) {\n" +
+                        "        return createFromXmlAsync(xml, XmlExecutors.defaultExecutor());\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static CompletableFuture<Test> createFromXmlAsync(final InputStream xml, Executor executor) {\n" +
+                        "        return CompletableFuture.supplyAsync(new Supplier<Test>() {\n" +
+                        "            @Override\n" +
+                        "            public Test get() {\n" +
+                        "                return createFromXml(xml);\n" +
+                        "            }\n" +
+                        "        }, executor);\n" +
+                        "    }\n" +
+                        "}");
+
+        assertAbout(javaSources())
+                .that(singletonList(source))
+                .processedWith(new AutoValueProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expected);
+    }
+
+    @Test
+    public void listener() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n" +
+                "\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlListener;\n" +
+                "import com.hihi.xml.XmlParser;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "@XmlParser(listener = Test.Timings.class)\n" +
+                "abstract class Test {\n" +
+                "   static Test fromXml(String xml) {\n" +
+                "       return AutoValue_Test.createFromXml(xml);\n" +
+                "   }\n" +
+                "\n" +
+                "   @XmlPath(\"/pets/item/@id\")\n" +
+                "   abstract String id();\n" +
+                "\n" +
+                "   @XmlPath(\"/pets/item/age/years/text()\")\n" +
+                "   abstract int years();\n" +
+                "\n" +
+                "   static final class Timings implements XmlListener {\n" +
+                "       @Override\n" +
+                "       public void documentRead(Class<?> type, long size, long nanos) {\n" +
+                "       }\n" +
+                "\n" +
+                "       @Override\n" +
+                "       public void propertyRead(Class<?> type, String property, long nanos) {\n" +
+                "       }\n" +
+                "\n" +
+                "       @Override\n" +
+                "       public void parsed(Class<?> type, long nanos) {\n" +
+                "       }\n" +
+                "\n" +
+                "       @Override\n" +
+                "       public void failed(Class<?> type, RuntimeException cause) {\n" +
+                "       }\n" +
+                "   }\n" +
+                "}");
+
+        final JavaFileObject expected = JavaFileObjects.forSourceString("test.AutoValue_Test",
+                "package test;\n" +
+                        "\n" +
+                        "import static javax.xml.xpath.XPathConstants.NODE;\n" +
+                        "\n" +
+                        "import com.hihi.xml.XmlListener;\n" +
+                        "import com.hihi.xml.XmlNumbers;\n" +
+                        "import java.io.IOException;\n" +
+                        "import java.io.StringReader;\n" +
+                        "import java.lang.Override;\n" +
+                        "import java.lang.RuntimeException;\n" +
+                        "import java.lang.String;\n" +
+                        "import java.lang.System;\n" +
+                        "import java.lang.ThreadLocal;\n" +
+                        "import java.util.concurrent.locks.ReentrantLock;\n" +
+                        "import javax.xml.parsers.DocumentBuilder;\n" +
+                        "import javax.xml.parsers.DocumentBuilderFactory;\n" +
+                        "import javax.xml.parsers.ParserConfigurationException;\n" +
+                        "import javax.xml.xpath.XPath;\n" +
+                        "import javax.xml.xpath.XPathExpression;\n" +
+                        "import javax.xml.xpath.XPathExpressionException;\n" +
+                        "import javax.xml.xpath.XPathFactory;\n" +
+                        "import org.w3c.dom.Document;\n" +
+                        "import org.w3c.dom.Node;\n" +
+                        "import org.xml.sax.InputSource;\n" +
+                        "import org.xml.sax.SAXException;\n" +
+                        "\n" +
+                        "final class AutoValue_Test extends $AutoValue_Test {\n" +
+                        "    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = DocumentBuilderFactory.newInstance();\n" +
+                        "\n" +
+                        "    private static final XPathFactory XPATH_FACTORY = XPathFactory.newInstance();\n" +
+                        "\n" +
+                        "    private static final ReentrantLock FACTORY_LOCK = new ReentrantLock();\n" +
+                        "\n" +
+                        "    private static final ThreadLocal<XmlState> XML_STATE = new ThreadLocal<XmlState>() {\n" +
+                        "        @Override\n" +
+                        "        protected XmlState initialValue() {\n" +
+                        "            return new XmlState();\n" +
+                        "        }\n" +
+                        "    };\n" +
+                        "\n" +
+                        "    private static final XmlListener LISTENER = new Test.Timings();\n" +
+                        "\n" +
+                        "    AutoValue_Test(String id, int years) {\n" +
+                        "        super(id, years);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(String xml) {\n" +
+                        "        return createFromXml(new InputSource(new StringReader(xml)), xml.length());\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(InputSource xml, long size) {\n" +
+                        "        final XmlState state = acquireXmlState();\n" +
+                        "        try {\n" +
+                        "            final long start = System.nanoTime();\n" +
+                        "            long time = start;\n" +
+                        "            final Document document = state.builder.parse(xml);\n" +
+                        "            time = documentRead(size, time);\n" +
+                        "            \n" +
+                        "            final Node context0 = getNodeForXPath(state.context0, \"/pets/item\", document);\n" +
+                        "            \n" +
+                        "            final Node node0 = getNodeForXPath(state.relative0, state.expression0, \"/pets/item/@id\", context0, document);\n" +
+                        "            final String id = node0.getNodeValue();\n" +
+                        "            time = propertyRead(\"id\", time);\n" +
+                        "            \n" +
+                        "            final Node node1 = getNodeForXPath(state.relative1, state.expression1, \"/pets/item/age/years/text()\", context0, document);\n" +
+                        "            final int years = XmlNumbers.parseInt(node1.getNodeValue());\n" +
+                        "            time = propertyRead(\"years\", time);\n" +
+                        "            \n" +
+                        "            return parsed(new AutoValue_Test(id, years), start);\n" +
+                        "        } catch (IOException | SAXException e) {\n" +
+                        "            throw failed(new RuntimeException(e));\n" +
+                        "        } catch (RuntimeException e) {\n" +
+                        "            throw failed(e);\n" +
+                        "        } finally {\n" +
+                        "            releaseXmlState(state);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static Node getNodeForXPath(XPathExpression expression, String path, Node node) {\n" +
+                        "        try {\n" +
+                        "            return (Node) expression.evaluate(node, NODE);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not evaluate path '%s'\", path);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static Node getNodeForXPath(XPathExpression relative, XPathExpression expression,\n" +
+                        "            String path, Node context, Node node) {\n" +
+                        "        if (context == null) {\n" +
+                        "            return null;\n" +
+                        "        }\n" +
+                        "        final Node found = getNodeForXPath(relative, path, context);\n" +
+                        "        return found != null ? found : getNodeForXPath(expression, path, node);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XPathExpression compileXPath(XPath path, String expression) {\n" +
+                        "        try {\n" +
+                        "            return path.compile(expression);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not compile path '%s'\", expression);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XmlState acquireXmlState() {\n" +
+                        "        return XML_STATE.get();\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static void releaseXmlState(XmlState state) {\n" +
+                        "        // Owned by the current thread, nothing to hand back\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static long documentRead(long size, long start) {\n" +
+                        "        final long now = System.nanoTime();\n" +
+                        "        LISTENER.documentRead(Test.class, size, now - start);\n" +
+                        "        return now;\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static long propertyRead(String property, long start) {\n" +
+                        "        final long now = System.nanoTime();\n" +
+                        "        LISTENER.propertyRead(Test.class, property, now - start);\n" +
+                        "        return now;\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static <T> T parsed(T value, long start) {\n" +
+                        "        LISTENER.parsed(Test.class, System.nanoTime() - start);\n" +
+                        "        return value;\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static RuntimeException failed(RuntimeException cause) {\n" +
+                        "        LISTENER.failed(Test.class, cause);\n" +
+                        "        return cause;\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static final class XmlState {\n" +
+                        "        final DocumentBuilder builder;\n" +
+                        "        final XPathExpression context0;\n" +
+                        "        final XPathExpression relative0;\n" +
+                        "        final XPathExpression expression0;\n" +
+                        "        final XPathExpression relative1;\n" +
+                        "        final XPathExpression expression1;\n" +
+                        "        XmlState() {\n" +
+                        "            final XPath path;\n" +
+                        "            FACTORY_LOCK.lock();\n" +
+                        "            try {\n" +
+                        "                builder = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();\n" +
+                        "                path = XPATH_FACTORY.newXPath();\n" +
+                        "            } catch (ParserConfigurationException e) {\n" +
+                        "                throw new RuntimeException(e);\n" +
+                        "            } finally {\n" +
+                        "                FACTORY_LOCK.unlock();\n" +
+                        "            }\n" +
+                        "            context0 = compileXPath(path, \"/pets/item\");\n" +
+                        "            relative0 = compileXPath(path, \"@id\");\n" +
+                        "            expression0 = compileXPath(path, \"/pets/item/@id\");\n" +
+                        "            relative1 = compileXPath(path, \"age/years/text()\");\n" +
+                        "            expression1 = compileXPath(path, \"/pets/item/age/years/text()\");\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "}");
+
+        assertAbout(javaSources())
+                .that(singletonList(source))
+                .processedWith(new AutoValueProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expected);
+    }
+
+    @Test
+    public void autoEngine() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n" +
+                "\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlParser;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "import javax.annotation.Nullable;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "@XmlParser(engine = XmlParser.Engine.AUTO)\n" +
+                "abstract class Test {\n" +
+                "    static Test fromXml(String xml) {\n" +
+                "        return null;\n" +
+                "    }\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/string/text()\")\n" +
+                "    abstract String content();\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/attribute/@code\")\n" +
+                "    abstract int code();\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/attribute/text()\")\n" +
+                "    @Nullable\n" +
+                "    abstract Integer count();\n" +
+                "}");
+
+        final JavaFileObject expected = JavaFileObjects.forSourceString("test.AutoValue_Test",
+                "package test;\n" +
+                        "\n" +
+                        "import static com.hihi.xml.XmlByteReader.END_DOCUMENT;\n" +
+                        "import static com.hihi.xml.XmlByteReader.END_ELEMENT;\n" +
+                        "import static com.hihi.xml.XmlByteReader.START_ELEMENT;\n" +
+                        "import static com.hihi.xml.XmlByteReader.TEXT;\n" +
+                        "\n" +
+                        "import com.hihi.xml.XmlByteReader;\n" +
+                        "import com.hihi.xml.XmlNumbers;\n" +
+                        "import java.lang.Integer;\n" +
+                        "import java.lang.String;\n" +
+                        "\n" +
+                        "final class AutoValue_Test extends $AutoValue_Test {\n" +
+                        "    private static final int[] PARENT_STEPS = {-1, 0, 1, 2, 2};\n" +
+                        "\n" +
+                        "    private static final byte[] STEP_1 = XmlByteReader.bytes(\"path\");\n" +
+                        "\n" +
+                        "    private static final byte[] STEP_2 = XmlByteReader.bytes(\"to\");\n" +
+                        "\n" +
+                        "    private static final byte[] STEP_3 = XmlByteReader.bytes(\"string\");\n" +
+                        "\n" +
+                        "    private static final byte[] STEP_4 = XmlByteReader.bytes(\"attribute\");\n" +
+                        "\n" +
+                        "    private static final byte[] ATTRIBUTE_1 = XmlByteReader.bytes(\"code\");\n" +
+                        "\n" +
+                        "    AutoValue_Test(String content, int code, Integer count) {\n" +
+                        "        super(content, code, count);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(String xml) {\n" +
+                        "        return createFromByteReader(XmlByteReader.of(xml));\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static AutoValue_Test createFromByteReader(XmlByteReader reader) {\n" +
+                        "        final long[] numbers = new long[3];\n" +
+                        "        final String[] values = readValues(reader, numbers);\n" +
+                        "        \n" +
+                        "        final String content = values[0];\n" +
+                        "        final int code = XmlNumbers.parseInt(values[1]);\n" +
+                        "        final Integer count = values[2] == null ? null : (int) numbers[2];\n" +
+                        "        \n" +
+                        "        return new AutoValue_Test(content, code, count);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static String[] readValues(XmlByteReader reader, long[] numbers) {\n" +
+                        "        final String[] values = new String[3];\n" +
+                        "        int remaining = 3;\n" +
+                        "        int step = 0;\n" +
+                        "        while (remaining > 0) {\n" +
+                        "            switch (reader.next()) {\n" +
+                        "                case START_ELEMENT:\n" +
+                        "                    switch (step) {\n" +
+                        "                        case 0:\n" +
+                        "                            if (reader.nameEquals(STEP_1)) {\n" +
+                        "                                step = 1;\n" +
+                        "                            } else {\n" +
+                        "                                reader.skipElement();\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                        case 1:\n" +
+                        "                            if (reader.nameEquals(STEP_2)) {\n" +
+                        "                                step = 2;\n" +
+                        "                            } else {\n" +
+                        "                                reader.skipElement();\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                        case 2:\n" +
+                        "                            if (reader.nameEquals(STEP_3)) {\n" +
+                        "                                step = 3;\n" +
+                        "                            } else if (reader.nameEquals(STEP_4)) {\n" +
+                        "                                step = 4;\n" +
+                        "                                if (values[1] == null && (values[1] = reader.attribute(ATTRIBUTE_1)) != null) {\n" +
+                        "                                    remaining--;\n" +
+                        "                                }\n" +
+                        "                            } else {\n" +
+                        "                                reader.skipElement();\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                        default:\n" +
+                        "                            reader.skipElement();\n" +
+                        "                    }\n" +
+                        "                    break;\n" +
+                        "                case TEXT:\n" +
+                        "                    switch (step) {\n" +
+                        "                        case 3:\n" +
+                        "                            if (values[0] == null) {\n" +
+                        "                                values[0] = reader.text();\n" +
+                        "                                remaining--;\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                        case 4:\n" +
+                        "                            if (values[2] == null) {\n" +
+                        "                                numbers[2] = XmlNumbers.parseInt(reader.textChars());\n" +
+                        "                                values[2] = XmlNumbers.DECODED;\n" +
+                        "                                remaining--;\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                    }\n" +
+                        "                    break;\n" +
+                        "                case END_ELEMENT:\n" +
+                        "                    step = PARENT_STEPS[step];\n" +
+                        "                    break;\n" +
+                        "                case END_DOCUMENT:\n" +
+                        "                    return values;\n" +
+                        "            }\n" +
+                        "        }\n" +
+                        "        return values;\n" +
+                        "    }\n" +
+                        "}");
+
+        assertAbout(javaSources())
+                .that(singletonList(source))
+                .processedWith(new AutoValueProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expected);
+    }
+
+    @Test
+    public void documentFactory() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n" +
+                "\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "import org.w3c.dom.Document;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "abstract class Test {\n" +
+                "    static Test fromXml(Document xml) {\n" +
+                "        return null;\n" +
+                "    }\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/string/text()\")\n" +
+                "    abstract String content();\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/attribute/@code\")\n" +
+                "    abstract int code();\n" +
+                "}");
+
+        final JavaFileObject expected = JavaFileObjects.forSourceString("test.AutoValue_Test",
+                "package test;\n" +
+                        "\n" +
+                        "import static javax.xml.xpath.XPathConstants.NODE;\n" +
+                        "\n" +
+                        "import com.hihi.xml.XmlNumbers;\n" +
+                        "import java.io.IOException;\n" +
+                        "import java.lang.Override;\n" +
+                        "import java.lang.RuntimeException;\n" +
+                        "import java.lang.String;\n" +
+                        "import java.lang.ThreadLocal;\n" +
+                        "import java.util.concurrent.locks.ReentrantLock;\n" +
+                        "import javax.xml.parsers.DocumentBuilder;\n" +
+                        "import javax.xml.parsers.DocumentBuilderFactory;\n" +
+                        "import javax.xml.parsers.ParserConfigurationException;\n" +
+                        "import javax.xml.xpath.XPath;\n" +
+                        "import javax.xml.xpath.XPathExpression;\n" +
+                        "import javax.xml.xpath.XPathExpressionException;\n" +
+                        "import javax.xml.xpath.XPathFactory;\n" +
+                        "import org.w3c.dom.Document;\n" +
+                        "import org.w3c.dom.Node;\n" +
+                        "import org.xml.sax.InputSource;\n" +
+                        "import org.xml.sax.SAXException;\n" +
+                        "\n" +
+                        "final class AutoValue_Test extends $AutoValue_Test {\n" +
+                        "    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = DocumentBuilderFactory.newInstance();\n" +
+                        "\n" +
+                        "    private static final XPathFactory XPATH_FACTORY = XPathFactory.newInstance();\n" +
+                        "\n" +
+                        "    private static final ReentrantLock FACTORY_LOCK = new ReentrantLock();\n" +
+                        "\n" +
+                        "    private static final ThreadLocal<XmlState> XML_STATE = new ThreadLocal<XmlState>() {\n" +
+                        "        @Override\n" +
+                        "        protected XmlState initialValue() {\n" +
+                        "            return new XmlState();\n" +
+                        "        }\n" +
+                        "    };\n" +
+                        "\n" +
+                        "    AutoValue_Test(String content, int code) {\n" +
+                        "        super(content, code);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(InputSource xml) {\n" +
+                        "        final XmlState state = acquireXmlState();\n" +
+                        "        try {\n" +
+                        "            final Document document = state.builder.parse(xml);\n" +
+                        "            \n" +
+                        "            final Node context0 = getNodeForXPath(state.context0, \"/path/to\", document);\n" +
+                        "            \n" +
+                        "            final Node node0 = getNodeForXPath(state.relative0, state.expression0, \"/path/to/string/text()\", context0, document);\n" +
+                        "            final String content = node0.getNodeValue();\n" +
+                        "            \n" +
+                        "            final Node node1 = getNodeForXPath(state.relative1, state.expression1, \"/path/to/attribute/@code\", context0, document);\n" +
+                        "            final int code = XmlNumbers.parseInt(node1.getNodeValue());\n" +
+                        "            \n" +
+                        "            return new AutoValue_Test(content, code);\n" +
+                        "        } catch (IOException | SAXException e) {\n" +
+                        "            throw new RuntimeException(e);\n" +
+                        "        } finally {\n" +
+                        "            releaseXmlState(state);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(Node xml) {\n" +
+                        "        final XmlState state = acquireXmlState();\n" +
+                        "        try {\n" +
+                        "            final Node context0 = getNodeForXPath(state.context0, \"/path/to\", xml);\n" +
+                        "            \n" +
+                        "            final Node node0 = getNodeForXPath(state.relative0, state.expression0, \"/path/to/string/text()\", context0, xml);\n" +
+                        "            final String content = node0.getNodeValue();\n" +
+                        "            \n" +
+                        "            final Node node1 = getNodeForXPath(state.relative1, state.expression1, \"/path/to/attribute/@code\", context0, xml);\n" +
+                        "            final int code = XmlNumbers.parseInt(node1.getNodeValue());\n" +
+                        "            \n" +
+                        "            return new AutoValue_Test(content, code);\n" +
+                        "        } finally {\n" +
+                        "            releaseXmlState(state);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(Document xml) {\n" +
+                        "        return createFromXml((Node) xml);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static Node getNodeForXPath(XPathExpression expression, String path, Node node) {\n" +
+                        "        try {\n" +
+                        "            return (Node) expression.evaluate(node, NODE);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not evaluate path '%s'\", path);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static Node getNodeForXPath(XPathExpression relative, XPathExpression expression,\n" +
+                        "            String path, Node context, Node node) {\n" +
+                        "        if (context == null) {\n" +
+                        "            return null;\n" +
+                        "        }\n" +
+                        "        final Node found = getNodeForXPath(relative, path, context);\n" +
+                        "        return found != null ? found : getNodeForXPath(expression, path, node);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XPathExpression compileXPath(XPath path, String expression) {\n" +
+                        "        try {\n" +
+                        "            return path.compile(expression);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not compile path '%s'\", expression);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XmlState acquireXmlState() {\n" +
+                        "        return XML_STATE.get();\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static void releaseXmlState(XmlState state) {\n" +
+                        "        // Owned by the current thread, nothing to hand back\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static final class XmlState {\n" +
+                        "        final DocumentBuilder builder;\n" +
+                        "        final XPathExpression context0;\n" +
+                        "        final XPathExpression relative0;\n" +
+                        "        final XPathExpression expression0;\n" +
+                        "        final XPathExpression relative1;\n" +
+                        "        final XPathExpression expression1;\n" +
+                        "        XmlState() {\n" +
+                        "            final XPath path;\n" +
+                        "            FACTORY_LOCK.lock();\n" +
+                        "            try {\n" +
+                        "                builder = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();\n" +
+                        "                path = XPATH_FACTORY.newXPath();\n" +
+                        "            } catch (ParserConfigurationException e) {\n" +
+                        "                throw new RuntimeException(e);\n" +
+                        "            } finally {\n" +
+                        "                FACTORY_LOCK.unlock();\n" +
+                        "            }\n" +
+                        "            context0 = compileXPath(path, \"/path/to\");\n" +
+                        "            relative0 = compileXPath(path, \"string/text()\");\n" +
+                        "            expression0 = compileXPath(path, \"/path/to/string/text()\");\n" +
+                        "            relative1 = compileXPath(path, \"attribute/@code\");\n" +
+                        "            expression1 = compileXPath(path, \"/path/to/attribute/@code\");\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "}");
+
+        assertAbout(javaSources())
+                .that(singletonList(source))
+                .processedWith(new AutoValueProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expected);
+    }
+
+    @Test
+    public void lazyFactories() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n" +
+                "\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "import javax.annotation.Nullable;\n" +
+                "import org.w3c.dom.Document;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "abstract class Test {\n" +
+                "    static Test fromXmlLazy(String xml) {\n" +
+                "        return null;\n" +
+                "    }\n" +
+                "\n" +
+                "    static Test fromXmlLazy(Document xml) {\n" +
+                "        return null;\n" +
+                "    }\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/string/text()\")\n" +
+                "    abstract String content();\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/attribute/@code\")\n" +
+                "    abstract int code();\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/other/text()\")\n" +
+                "    @Nullable\n" +
+                "    public abstract Integer count();\n" +
+                "}");
+
+        final JavaFileObject expected = JavaFileObjects.forSourceString("test.AutoValue_Test",
+                "package test;\n" +
+                        "\n" +
+                        "import static javax.xml.xpath.XPathConstants.NODE;\n" +
+                        "\n" +
+                        "import com.hihi.xml.XmlNumbers;\n" +
+                        "import java.io.IOException;\n" +
+                        "import java.io.StringReader;\n" +
+                        "import java.lang.Integer;\n" +
+                        "import java.lang.Object;\n" +
+                        "import java.lang.Override;\n" +
+                        "import java.lang.RuntimeException;\n" +
+                        "import java.lang.String;\n" +
+                        "import java.lang.ThreadLocal;\n" +
+                        "import java.util.concurrent.locks.ReentrantLock;\n" +
+                        "import javax.xml.parsers.DocumentBuilder;\n" +
+                        "import javax.xml.parsers.DocumentBuilderFactory;\n" +
+                        "import javax.xml.parsers.ParserConfigurationException;\n" +
+                        "import javax.xml.xpath.XPath;\n" +
+                        "import javax.xml.xpath.XPathExpression;\n" +
+                        "import javax.xml.xpath.XPathExpressionException;\n" +
+                        "import javax.xml.xpath.XPathFactory;\n" +
+                        "import org.w3c.dom.Document;\n" +
+                        "import org.w3c.dom.Node;\n" +
+                        "import org.xml.sax.InputSource;\n" +
+                        "import org.xml.sax.SAXException;\n" +
+                        "\n" +
+                        "final class AutoValue_Test extends $AutoValue_Test {\n" +
+                        "    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = DocumentBuilderFactory.newInstance();\n" +
+                        "\n" +
+                        "    private static final XPathFactory XPATH_FACTORY = XPathFactory.newInstance();\n" +
+                        "\n" +
+                        "    private static final ReentrantLock FACTORY_LOCK = new ReentrantLock();\n" +
+                        "\n" +
+                        "    private static final ThreadLocal<XmlState> XML_STATE = new ThreadLocal<XmlState>() {\n" +
+                        "        @Override\n" +
+                        "        protected XmlState initialValue() {\n" +
+                        "            return new XmlState();\n" +
+                        "        }\n" +
+                        "    };\n" +
+                        "\n" +
+                        "    AutoValue_Test(String content, int code, Integer count) {\n" +
+                        "        super(content, code, count);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(InputSource xml) {\n" +
+                        "        final XmlState state = acquireXmlState();\n" +
+                        "        try {\n" +
+                        "            final Document document = state.builder.parse(xml);\n" +
+                        "            \n" +
+                        "            final Node context0 = getNodeForXPath(state.context0, \"/path/to\", document);\n" +
+                        "            \n" +
+                        "            final Node node0 = getNodeForXPath(state.relative0, state.expression0, \"/path/to/string/text()\", context0, document);\n" +
+                        "            final String content = node0.getNodeValue();\n" +
+                        "            \n" +
+                        "            final Node node1 = getNodeForXPath(state.relative1, state.expression1, \"/path/to/attribute/@code\", context0, document);\n" +
+                        "            final int code = XmlNumbers.parseInt(node1.getNodeValue());\n" +
+                        "            \n" +
+                        "            final Node node2 = getNodeForXPath(state.relative2, state.expression2, \"/path/to/other/text()\", context0, document);\n" +
+                        "            final Integer count = node2 == null ? null : XmlNumbers.parseInt(node2.getNodeValue());\n" +
+                        "            \n" +
+                        "            return new AutoValue_Test(content, code, count);\n" +
+                        "        } catch (IOException | SAXException e) {\n" +
+                        "            throw new RuntimeException(e);\n" +
+                        "        } finally {\n" +
+                        "            releaseXmlState(state);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static Test createFromXmlLazy(String xml) {\n" +
+                        "        return createFromXmlLazy(new InputSource(new StringReader(xml)));\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static Test createFromXmlLazy(InputSource xml) {\n" +
+                        "        final XmlState state = acquireXmlState();\n" +
+                        "        try {\n" +
+                        "            return new Lazy(state.builder.parse(xml));\n" +
+                        "        } catch (IOException | SAXException e) {\n" +
+                        "            throw new RuntimeException(e);\n" +
+                        "        } finally {\n" +
+                        "            releaseXmlState(state);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static Test createFromXmlLazy(Document xml) {\n" +
+                        "        return new Lazy(xml);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static Node getNodeForXPath(XPathExpression expression, String path, Node node) {\n" +
+                        "        try {\n" +
+                        "            return (Node) expression.evaluate(node, NODE);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not evaluate path '%s'\", path);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static Node getNodeForXPath(XPathExpression relative, XPathExpression expression,\n" +
+                        "            String path, Node context, Node node) {\n" +
+                        "        if (context == null) {\n" +
+                        "            return null;\n" +
+                        "        }\n" +
+                        "        final Node found = getNodeForXPath(relative, path, context);\n" +
+                        "        return found != null ? found : getNodeForXPath(expression, path, node);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XPathExpression compileXPath(XPath path, String expression) {\n" +
+                        "        try {\n" +
+                        "            return path.compile(expression);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not compile path '%s'\", expression);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XmlState acquireXmlState() {\n" +
+                        "        return XML_STATE.get();\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static void releaseXmlState(XmlState state) {\n" +
+                        "        // Owned by the current thread, nothing to hand back\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static final class Lazy extends Test {\n" +
+                        "        private final Node xmlNode;\n" +
+                        "        private final ReentrantLock lock = new ReentrantLock();\n" +
+                        "        private String content;\n" +
+                        "        private volatile boolean contentRead;\n" +
+                        "        private int code;\n" +
+                        "        private volatile boolean codeRead;\n" +
+                        "        private Integer count;\n" +
+                        "        private volatile boolean countRead;\n" +
+                        "        Lazy(Node xmlNode) {\n" +
+                        "            this.xmlNode = xmlNode;\n" +
+                        "        }\n" +
+                        "        @Override\n" +
+                        "        String content() {\n" +
+                        "            if (!contentRead) {\n" +
+                        "                lock.lock();\n" +
+                        "                try {\n" +
+                        "                    if (!contentRead) {\n" +
+                        "                        final XmlState state = acquireXmlState();\n" +
+                        "                        try {\n" +
+                        "                            final Node node0 = getNodeForXPath(state.expression0, \"/path/to/string/text()\", xmlNode);\n" +
+                        "                            final String content = node0.getNodeValue();\n" +
+                        "                            this.content = content;\n" +
+                        "                            contentRead = true;\n" +
+                        "                        } finally {\n" +
+                        "                            releaseXmlState(state);\n" +
+                        "                        }\n" +
+                        "                    }\n" +
+                        "                } finally {\n" +
+                        "                    lock.unlock();\n" +
+                        "                }\n" +
+                        "            }\n" +
+                        "            return content;\n" +
+                        "        }\n" +
+                        "        @Override\n" +
+                        "        int code() {\n" +
+                        "            if (!codeRead) {\n" +
+                        "                lock.lock();\n" +
+                        "                try {\n" +
+                        "                    if (!codeRead) {\n" +
+                        "                        final XmlState state = acquireXmlState();\n" +
+                        "                        try {\n" +
+                        "                            final Node node1 = getNodeForXPath(state.expression1, \"/path/to/attribute/@code\", xmlNode);\n" +
+                        "                            final int code = XmlNumbers.parseInt(node1.getNodeValue());\n" +
+                        "                            this.code = code;\n" +
+                        "                            codeRead = true;\n" +
+                        "                        } finally {\n" +
+                        "                            releaseXmlState(state);\n" +
+                        "                        }\n" +
+                        "                    }\n" +
+                        "                } finally {\n" +
+                        "                    lock.unlock();\n" +
+                        "                }\n" +
+                        "            }\n" +
+                        "            return code;\n" +
+                        "        }\n" +
+                        "        @Override\n" +
+                        "        public Integer count() {\n" +
+                        "            if (!countRead) {\n" +
+                        "                lock.lock();\n" +
+                        "                try {\n" +
+                        "                    if (!countRead) {\n" +
+                        "                        final XmlState state = acquireXmlState();\n" +
+                        "                        try {\n" +
+                        "                            final Node node2 = getNodeForXPath(state.expression2, \"/path/to/other/text()\", xmlNode);\n" +
+                        "                            final Integer count = node2 == null ? null : XmlNumbers.parseInt(node2.getNodeValue());\n" +
+                        "                            this.count = count;\n" +
+                        "                            countRead = true;\n" +
+                        "                        } finally {\n" +
+                        "                            releaseXmlState(state);\n" +
+                        "                        }\n" +
+                        "                    }\n" +
+                        "                } finally {\n" +
+                        "                    lock.unlock();\n" +
+                        "                }\n" +
+                        "            }\n" +
+                        "            return count;\n" +
+                        "        }\n" +
+                        "        private AutoValue_Test force() {\n" +
+                        "            return new AutoValue_Test(content(), code(), count());\n" +
+                        "        }\n" +
+                        "        @Override\n" +
+                        "        public boolean equals(Object o) {\n" +
+                        "            return o == this || force().equals(o);\n" +
+                        "        }\n" +
+                        "        @Override\n" +
+                        "        public int hashCode() {\n" +
+                        "            return force().hashCode();\n" +
+                        "        }\n" +
+                        "        @Override\n" +
+                        "        public String toString() {\n" +
+                        "            return force().toString();\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static final class XmlState {\n" +
+                        "        final DocumentBuilder builder;\n" +
+                        "        final XPathExpression context0;\n" +
+                        "        final XPathExpression relative0;\n" +
+                        "        final XPathExpression expression0;\n" +
+                        "        final XPathExpression relative1;\n" +
+                        "        final XPathExpression expression1;\n" +
+                        "        final XPathExpression relative2;\n" +
+                        "        final XPathExpression expression2;\n" +
+                        "        XmlState() {\n" +
+                        "            final XPath path;\n" +
+                        "            FACTORY_LOCK.lock();\n" +
+                        "            try {\n" +
+                        "                builder = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();\n" +
+                        "                path = XPATH_FACTORY.newXPath();\n" +
+                        "            } catch (ParserConfigurationException e) {\n" +
+                        "                throw new RuntimeException(e);\n" +
+                        "            } finally {\n" +
+                        "                FACTORY_LOCK.unlock();\n" +
+                        "            }\n" +
+                        "            context0 = compileXPath(path, \"/path/to\");\n" +
+                        "            relative0 = compileXPath(path, \"string/text()\");\n" +
+                        "            expression0 = compileXPath(path, \"/path/to/string/text()\");\n" +
+                        "            relative1 = compileXPath(path, \"attribute/@code\");\n" +
+                        "            expression1 = compileXPath(path, \"/path/to/attribute/@code\");\n" +
+                        "            relative2 = compileXPath(path, \"other/text()\");\n" +
+                        "            expression2 = compileXPath(path, \"/path/to/other/text()\");\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "}");
+
+        assertAbout(javaSources())
+                .that(singletonList(source))
+                .processedWith(new AutoValueProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expected);
+    }
+
+    @Test
+    public void codecs() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n" +
+                "\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "import java.time.Instant;\n" +
+                "import java.time.LocalDate;\n" +
+                "import java.time.OffsetDateTime;\n" +
+                "import javax.annotation.Nullable;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "abstract class Test {\n" +
+                "    static Test fromXml(String xml) {\n" +
+                "        return null;\n" +
+                "    }\n" +
+                "\n" +
+                "    enum Color {\n" +
+                "        RED, GREEN\n" +
+                "    }\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/color/text()\")\n" +
+                "    abstract Color color();\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/shade/@color\")\n" +
+                "    @Nullable\n" +
+                "    abstract Color shade();\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/born/text()\")\n" +
+                "    abstract LocalDate born();\n" +
+                "\n" +
+                "    @XmlPath(value = \"/path/to/seen/text()\", format = \"dd/MM/yyyy HH:mm\")\n" +
+                "    abstract Instant seen();\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/updated/text()\")\n" +
+                "    abstract Instant updated();\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/offset/text()\")\n" +
+                "    abstract OffsetDateTime offset();\n" +
+                "}");
+
+        final JavaFileObject expected = JavaFileObjects.forSourceString("test.AutoValue_Test",
+                "package test;\n" +
+                        "\n" +
+                        "import static javax.xml.xpath.XPathConstants.NODE;\n" +
+                        "\n" +
+                        "import com.hihi.xml.XmlTimes;\n" +
+                        "import java.io.IOException;\n" +
+                        "import java.io.StringReader;\n" +
+                        "import java.lang.IllegalArgumentException;\n" +
+                        "import java.lang.Override;\n" +
+                        "import java.lang.RuntimeException;\n" +
+                        "import java.lang.String;\n" +
+                        "import java.lang.ThreadLocal;\n" +
+                        "import java.time.Instant;\n" +
+                        "import java.time.LocalDate;\n" +
+                        "import java.time.OffsetDateTime;\n" +
+                        "import java.time.ZoneOffset;\n" +
+                        "import java.time.format.DateTimeFormatter;\n" +
+                        "import java.util.concurrent.locks.ReentrantLock;\n" +
+                        "import javax.xml.parsers.DocumentBuilder;\n" +
+                        "import javax.xml.parsers.DocumentBuilderFactory;\n" +
+                        "import javax.xml.parsers.ParserConfigurationException;\n" +
+                        "import javax.xml.xpath.XPath;\n" +
+                        "import javax.xml.xpath.XPathExpression;\n" +
+                        "import javax.xml.xpath.XPathExpressionException;\n" +
+                        "import javax.xml.xpath.XPathFactory;\n" +
+                        "import org.w3c.dom.Document;\n" +
+                        "import org.w3c.dom.Node;\n" +
+                        "import org.xml.sax.InputSource;\n" +
+                        "import org.xml.sax.SAXException;\n" +
+                        "\n" +
+                        "final class AutoValue_Test extends $AutoValue_Test {\n" +
+                        "    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = DocumentBuilderFactory.newInstance();\n" +
+                        "\n" +
+                        "    private static final XPathFactory XPATH_FACTORY = XPathFactory.newInstance();\n" +
+                        "\n" +
+                        "    private static final ReentrantLock FACTORY_LOCK = new ReentrantLock();\n" +
+                        "\n" +
+                        "    private static final ThreadLocal<XmlState> XML_STATE = new ThreadLocal<XmlState>() {\n" +
+                        "        @Override\n" +
+                        "        protected XmlState initialValue() {\n" +
+                        "            return new XmlState();\n" +
+                        "        }\n" +
+                        "    };\n" +
+                        "\n" +
+                        "    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern(\"dd/MM/yyyy HH:mm\").withZone(ZoneOffset.UTC);\n" +
+                        "\n" +
+                        "    AutoValue_Test(Test.Color color, Test.Color shade, LocalDate born, Instant seen, Instant updated,\n" +
+                        "            OffsetDateTime offset) {\n" +
+                        "        super(color, shade, born, seen, updated, offset);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(String xml) {\n" +
+                        "        return createFromXml(new InputSource(new StringReader(xml)));\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(InputSource xml) {\n" +
+                        "        final XmlState state = acquireXmlState();\n" +
+                        "        try {\n" +
+                        "            final Document document = state.builder.parse(xml);\n" +
+                        "            \n" +
+                        "            final Node context0 = getNodeForXPath(state.context0, \"/path/to\", document);\n" +
+                        "            \n" +
+                        "            final Node node0 = getNodeForXPath(state.relative0, state.expression0, \"/path/to/color/text()\", context0, document);\n" +
+                        "            final Test.Color color = parseColor(node0.getNodeValue());\n" +
+                        "            \n" +
+                        "            final Node node1 = getNodeForXPath(state.relative1, state.expression1, \"/path/to/shade/@color\", context0, document);\n" +
+                        "            final Test.Color shade = node1 == null ? null : parseColor(node1.getNodeValue());\n" +
+                        "            \n" +
+                        "            final Node node2 = getNodeForXPath(state.relative2, state.expression2, \"/path/to/born/text()\", context0, document);\n" +
+                        "            final LocalDate born = parseLocalDate(node2.getNodeValue());\n" +
+                        "            \n" +
+                        "            final Node node3 = getNodeForXPath(state.relative3, state.expression3, \"/path/to/seen/text()\", context0, document);\n" +
+                        "            final Instant seen = Instant.from(FORMATTER.parse(node3.getNodeValue()));\n" +
+                        "            \n" +
+                        "            final Node node4 = getNodeForXPath(state.relative4, state.expression4, \"/path/to/updated/text()\", context0, document);\n" +
+                        "            final Instant updated = parseInstant(node4.getNodeValue());\n" +
+                        "            \n" +
+                        "            final Node node5 = getNodeForXPath(state.relative5, state.expression5, \"/path/to/offset/text()\", context0, document);\n" +
+                        "            final OffsetDateTime offset = OffsetDateTime.parse(node5.getNodeValue());\n" +
+                        "            \n" +
+                        "            return new AutoValue_Test(color, shade, born, seen, updated, offset);\n" +
+                        "        } catch (IOException | SAXException e) {\n" +
+                        "            throw new RuntimeException(e);\n" +
+                        "        } finally {\n" +
+                        "            releaseXmlState(state);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static Node getNodeForXPath(XPathExpression expression, String path, Node node) {\n" +
+                        "        try {\n" +
+                        "            return (Node) expression.evaluate(node, NODE);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not evaluate path '%s'\", path);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static Node getNodeForXPath(XPathExpression relative, XPathExpression expression,\n" +
+                        "            String path, Node context, Node node) {\n" +
+                        "        if (context == null) {\n" +
+                        "            return null;\n" +
+                        "        }\n" +
+                        "        final Node found = getNodeForXPath(relative, path, context);\n" +
+                        "        return found != null ? found : getNodeForXPath(expression, path, node);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XPathExpression compileXPath(XPath path, String expression) {\n" +
+                        "        try {\n" +
+                        "            return path.compile(expression);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not compile path '%s'\", expression);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XmlState acquireXmlState() {\n" +
+                        "        return XML_STATE.get();\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static void releaseXmlState(XmlState state) {\n" +
+                        "        // Owned by the current thread, nothing to hand back\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static Test.Color parseColor(String text) {\n" +
+                        "        switch (text) {\n" +
+                        "            case \"RED\":\n" +
+                        "                return Test.Color.RED;\n" +
+                        "            case \"GREEN\":\n" +
+                        "                return Test.Color.GREEN;\n" +
+                        "        }\n" +
+                        "        throw new IllegalArgumentException(\"No enum constant test.Test.Color.\" + text);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static LocalDate parseLocalDate(String text) {\n" +
+                        "        final long day = XmlTimes.isoDate(text);\n" +
+                        "        return day == XmlTimes.FALLBACK ? LocalDate.parse(text) : LocalDate.ofEpochDay(day);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static Instant parseInstant(String text) {\n" +
+                        "        final long seconds = XmlTimes.isoInstantSeconds(text);\n" +
+                        "        return seconds == XmlTimes.FALLBACK ? Instant.parse(text) : Instant.ofEpochSecond(seconds, XmlTimes.isoInstantNanos(text));\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static final class XmlState {\n" +
+                        "        final DocumentBuilder builder;\n" +
+                        "        final XPathExpression context0;\n" +
+                        "        final XPathExpression relative0;\n" +
+                        "        final XPathExpression expression0;\n" +
+                        "        final XPathExpression relative1;\n" +
+                        "        final XPathExpression expression1;\n" +
+                        "        final XPathExpression relative2;\n" +
+                        "        final XPathExpression expression2;\n" +
+                        "        final XPathExpression relative3;\n" +
+                        "        final XPathExpression expression3;\n" +
+                        "        final XPathExpression relative4;\n" +
+                        "        final XPathExpression expression4;\n" +
+                        "        final XPathExpression relative5;\n" +
+                        "        final XPathExpression expression5;\n" +
+                        "        XmlState() {\n" +
+                        "            final XPath path;\n" +
+                        "            FACTORY_LOCK.lock();\n" +
+                        "            try {\n" +
+                        "                builder = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();\n" +
+                        "                path = XPATH_FACTORY.newXPath();\n" +
+                        "            } catch (ParserConfigurationException e) {\n" +
+                        "                throw new RuntimeException(e);\n" +
+                        "            } finally {\n" +
+                        "                FACTORY_LOCK.unlock();\n" +
+                        "            }\n" +
+                        "            context0 = compileXPath(path, \"/path/to\");\n" +
+                        "            relative0 = compileXPath(path, \"color/text()\");\n" +
+                        "            expression0 = compileXPath(path, \"/path/to/color/text()\");\n" +
+                        "            relative1 = compileXPath(path, \"shade/@color\");\n" +
+                        "            expression1 = compileXPath(path, \"/path/to/shade/@color\");\n" +
+                        "            relative2 = compileXPath(path, \"born/text()\");\n" +
+                        "            expression2 = compileXPath(path, \"/path/to/born/text()\");\n" +
+                        "            relative3 = compileXPath(path, \"seen/text()\");\n" +
+                        "            expression3 = compileXPath(path, \"/path/to/seen/text()\");\n" +
+                        "            relative4 = compileXPath(path, \"updated/text()\");\n" +
+                        "            expression4 = compileXPath(path, \"/path/to/updated/text()\");\n" +
+                        "            relative5 = compileXPath(path, \"offset/text()\");\n" +
+                        "            expression5 = compileXPath(path, \"/path/to/offset/text()\");\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "}");
+
+        assertAbout(javaSources())
+                .that(singletonList(source))
+                .processedWith(new AutoValueProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expected);
+    }
+
+    @Test
+    public void invalidFormat() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "import java.time.LocalDate;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "abstract class Test {\n" +
+                "static Test fromXml(String xml) {\n" +
+                "       return null;\n" +
+                "   }\n" +
+                "\n" +
+                "   @XmlPath(value = \"/path/to/date/text()\", format = \"yyyy-MM-ddd{\")\n" +
+                "   abstract LocalDate date();\n" +
+                "}");
+
+        try {
+            assertAbout(javaSources())
+                    .that(singletonList(source))
+                    .processedWith(new AutoValueProcessor())
+                    .failsToCompile();
+        } catch (RuntimeException e) {
+            assertThat(e).hasCauseThat().isInstanceOf(IllegalArgumentException.class);
+            assertThat(e).hasCauseThat().hasMessage("Invalid format 'yyyy-MM-ddd{' for property 'date'");
+        }
+    }
+
+    @Test
+    public void parserFeatures() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n" +
+                "\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlFeatures;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "@XmlFeatures(ignoreComments = true, maxEntityExpansions = 100, maxElementDepth = 64, maxDocumentSize = 1048576)\n" +
+                "abstract class Test {\n" +
+                "    static Test fromXml(String xml) {\n" +
+                "        return null;\n" +
+                "    }\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/string/text()\")\n" +
+                "    abstract String content();\n" +
+                "}");
+
+        final JavaFileObject expected = JavaFileObjects.forSourceString("test.AutoValue_Test",
+                "package test;\n" +
+                        "\n" +
+                        "import static javax.xml.xpath.XPathConstants.NODE;\n" +
+                        "\n" +
+                        "import com.hihi.xml.XmlLimits;\n" +
+                        "import java.io.IOException;\n" +
+                        "import java.io.StringReader;\n" +
+                        "import java.lang.IllegalArgumentException;\n" +
+                        "import java.lang.Override;\n" +
+                        "import java.lang.RuntimeException;\n" +
+                        "import java.lang.String;\n" +
+                        "import java.lang.ThreadLocal;\n" +
+                        "import java.util.concurrent.locks.ReentrantLock;\n" +
+                        "import javax.xml.parsers.DocumentBuilder;\n" +
+                        "import javax.xml.parsers.DocumentBuilderFactory;\n" +
+                        "import javax.xml.parsers.ParserConfigurationException;\n" +
+                        "import javax.xml.xpath.XPath;\n" +
+                        "import javax.xml.xpath.XPathExpression;\n" +
+                        "import javax.xml.xpath.XPathExpressionException;\n" +
+                        "import javax.xml.xpath.XPathFactory;\n" +
+                        "import org.w3c.dom.Document;\n" +
+                        "import org.w3c.dom.Node;\n" +
+                        "import org.xml.sax.InputSource;\n" +
+                        "import org.xml.sax.SAXException;\n" +
+                        "\n" +
+                        "final class AutoValue_Test extends $AutoValue_Test {\n" +
+                        "    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = newDocumentBuilderFactory();\n" +
+                        "\n" +
+                        "    private static final XPathFactory XPATH_FACTORY = XPathFactory.newInstance();\n" +
+                        "\n" +
+                        "    private static final ReentrantLock FACTORY_LOCK = new ReentrantLock();\n" +
+                        "\n" +
+                        "    private static final ThreadLocal<XmlState> XML_STATE = new ThreadLocal<XmlState>() {\n" +
+                        "        @Override\n" +
+                        "        protected XmlState initialValue() {\n" +
+                        "            return new XmlState();\n" +
+                        "        }\n" +
+                        "    };\n" +
+                        "\n" +
+                        "    AutoValue_Test(String content) {\n" +
+                        "        super(content);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(String xml) {\n" +
+                        "        return createFromXml(new InputSource(new StringReader(xml)));\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(InputSource xml) {\n" +
+                        "        final XmlState state = acquireXmlState();\n" +
+                        "        try {\n" +
+                        "            final Document document = state.builder.parse(XmlLimits.limit(xml, 1048576L));\n" +
+                        "            \n" +
+                        "            final Node node0 = getNodeForXPath(state.expression0, \"/path/to/string/text()\", document);\n" +
+                        "            final String content = node0.getNodeValue();\n" +
+                        "            \n" +
+                        "            return new AutoValue_Test(content);\n" +
+                        "        } catch (IOException | SAXException e) {\n" +
+                        "            throw new RuntimeException(e);\n" +
+                        "        } finally {\n" +
+                        "            releaseXmlState(state);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static DocumentBuilderFactory newDocumentBuilderFactory() {\n" +
+                        "        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();\n" +
+                        "        try {\n" +
+                        "            factory.setFeature(\"http://apache.org/xml/features/disallow-doctype-decl\", true);\n" +
+                        "        } catch (ParserConfigurationException e) {\n" +
+                        "            final String msg = String.format(\"%s does not support feature 'http://apache.org/xml/features/disallow-doctype-decl', which @XmlFeatures(disallowDoctype = true) needs\", factory.getClass().getName());\n" +
+                        "            throw new RuntimeException(msg, e);\n" +
+                        "        }\n" +
+                        "        factory.setIgnoringComments(true);\n" +
+                        "        try {\n" +
+                        "            factory.setAttribute(\"http://www.oracle.com/xml/jaxp/properties/entityExpansionLimit\", \"100\");\n" +
+                        "        } catch (IllegalArgumentException e) {\n" +
+                        "            final String msg = String.format(\"%s does not support attribute 'http://www.oracle.com/xml/jaxp/properties/entityExpansionLimit', which @XmlFeatures(maxEntityExpansions = 100) needs\", factory.getClass().getName());\n" +
+                        "            throw new RuntimeException(msg, e);\n" +
+                        "        }\n" +
+                        "        try {\n" +
+                        "            factory.setAttribute(\"http://www.oracle.com/xml/jaxp/properties/maxElementDepth\", \"64\");\n" +
+                        "        } catch (IllegalArgumentException e) {\n" +
+                        "            final String msg = String.format(\"%s does not support attribute 'http://www.oracle.com/xml/jaxp/properties/maxElementDepth', which @XmlFeatures(maxElementDepth = 64) needs\", factory.getClass().getName());\n" +
+                        "            throw new RuntimeException(msg, e);\n" +
+                        "        }\n" +
+                        "        return factory;\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static Node getNodeForXPath(XPathExpression expression, String path, Node node) {\n" +
+                        "        try {\n" +
+                        "            return (Node) expression.evaluate(node, NODE);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not evaluate path '%s'\", path);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XPathExpression compileXPath(XPath path, String expression) {\n" +
+                        "        try {\n" +
+                        "            return path.compile(expression);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not compile path '%s'\", expression);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XmlState acquireXmlState() {\n" +
+                        "        return XML_STATE.get();\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static void releaseXmlState(XmlState state) {\n" +
+                        "        // Owned by the current thread, nothing to hand back\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static final class XmlState {\n" +
+                        "        final DocumentBuilder builder;\n" +
+                        "        final XPathExpression expression0;\n" +
+                        "        XmlState() {\n" +
+                        "            final XPath path;\n" +
+                        "            FACTORY_LOCK.lock();\n" +
+                        "            try {\n" +
+                        "                builder = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();\n" +
+                        "                path = XPATH_FACTORY.newXPath();\n" +
+                        "            } catch (ParserConfigurationException e) {\n" +
+                        "                throw new RuntimeException(e);\n" +
+                        "            } finally {\n" +
+                        "                FACTORY_LOCK.unlock();\n" +
+                        "            }\n" +
+                        "            expression0 = compileXPath(path, \"/path/to/string/text()\");\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "}");
+
+        assertAbout(javaSources())
+                .that(singletonList(source))
+                .processedWith(new AutoValueProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expected);
+    }
+
+    @Test
+    public void tryFactories() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n" +
+                "\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "import com.hihi.xml.XmlResult;\n" +
+                "import javax.annotation.Nullable;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "abstract class Test {\n" +
+                "    static XmlResult<Test> tryFromXml(String xml) {\n" +
+                "        return null;\n" +
+                "    }\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/string/text()\")\n" +
+                "    abstract String content();\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/attribute/@code\")\n" +
+                "    abstract int code();\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/note/text()\")\n" +
+                "    @Nullable\n" +
+                "    abstract String note();\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/flag/text()\")\n" +
+                "    abstract boolean flag();\n" +
+                "}");
+
+        final JavaFileObject expected = JavaFileObjects.forSourceString("test.AutoValue_Test",
+                "package test;\n" +
+                        "\n" +
+                        "import static javax.xml.xpath.XPathConstants.NODE;\n" +
+                        "\n" +
+                        "import com.hihi.xml.XmlFailure;\n" +
+                        "import com.hihi.xml.XmlNumbers;\n" +
+                        "import com.hihi.xml.XmlResult;\n" +
+                        "import java.io.IOException;\n" +
+                        "import java.io.StringReader;\n" +
+                        "import java.lang.Override;\n" +
+                        "import java.lang.RuntimeException;\n" +
+                        "import java.lang.String;\n" +
+                        "import java.lang.ThreadLocal;\n" +
+                        "import java.util.concurrent.locks.ReentrantLock;\n" +
+                        "import javax.xml.parsers.DocumentBuilder;\n" +
+                        "import javax.xml.parsers.DocumentBuilderFactory;\n" +
+                        "import javax.xml.parsers.ParserConfigurationException;\n" +
+                        "import javax.xml.xpath.XPath;\n" +
+                        "import javax.xml.xpath.XPathExpression;\n" +
+                        "import javax.xml.xpath.XPathExpressionException;\n" +
+                        "import javax.xml.xpath.XPathFactory;\n" +
+                        "import org.w3c.dom.Document;\n" +
+                        "import org.w3c.dom.Node;\n" +
+                        "import org.xml.sax.InputSource;\n" +
+                        "import org.xml.sax.SAXException;\n" +
+                        "\n" +
+                        "final class AutoValue_Test extends $AutoValue_Test {\n" +
+                        "    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = DocumentBuilderFactory.newInstance();\n" +
+                        "\n" +
+                        "    private static final XPathFactory XPATH_FACTORY = XPathFactory.newInstance();\n" +
+                        "\n" +
+                        "    private static final ReentrantLock FACTORY_LOCK = new ReentrantLock();\n" +
+                        "\n" +
+                        "    private static final ThreadLocal<XmlState> XML_STATE = new ThreadLocal<XmlState>() {\n" +
+                        "        @Override\n" +
+                        "        protected XmlState initialValue() {\n" +
+                        "            return new XmlState();\n" +
+                        "        }\n" +
+                        "    };\n" +
+                        "\n" +
+                        "    AutoValue_Test(String content, int code, String note, boolean flag) {\n" +
+                        "        super(content, code, note, flag);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(String xml) {\n" +
+                        "        return createFromXml(new InputSource(new StringReader(xml)));\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(InputSource xml) {\n" +
+                        "        final XmlState state = acquireXmlState();\n" +
+                        "        try {\n" +
+                        "            final Document document = state.builder.parse(xml);\n" +
+                        "            \n" +
+                        "            final Node context0 = getNodeForXPath(state.context0, \"/path/to\", document);\n" +
+                        "            \n" +
+                        "            final Node node0 = getNodeForXPath(state.relative0, state.expression0, \"/path/to/string/text()\", context0, document);\n" +
+                        "            if (node0 == null) {\n" +
+                        "                throw XmlFailure.missing(\"content\", \"/path/to/string/text()\");\n" +
+                        "            }\n" +
+                        "            final String content = node0.getNodeValue();\n" +
+                        "            \n" +
+                        "            final Node node1 = getNodeForXPath(state.relative1, state.expression1, \"/path/to/attribute/@code\", context0, document);\n" +
+                        "            if (node1 == null) {\n" +
+                        "                throw XmlFailure.missing(\"code\", \"/path/to/attribute/@code\");\n" +
+                        "            }\n" +
+                        "            final int code;\n" +
+                        "            try {\n" +
+                        "                code = XmlNumbers.parseInt(node1.getNodeValue());\n" +
+                        "            } catch (RuntimeException e) {\n" +
+                        "                throw XmlFailure.invalid(\"code\", \"/path/to/attribute/@code\", e);\n" +
+                        "            }\n" +
+                        "            \n" +
+                        "            final Node node2 = getNodeForXPath(state.relative2, state.expression2, \"/path/to/note/text()\", context0, document);\n" +
+                        "            final String note = node2 == null ? null : node2.getNodeValue();\n" +
+                        "            \n" +
+                        "            final Node node3 = getNodeForXPath(state.relative3, state.expression3, \"/path/to/flag/text()\", context0, document);\n" +
+                        "            if (node3 == null) {\n" +
+                        "                throw XmlFailure.missing(\"flag\", \"/path/to/flag/text()\");\n" +
+                        "            }\n" +
+                        "            final boolean flag = XmlNumbers.parseBoolean(node3.getNodeValue());\n" +
+                        "            \n" +
+                        "            return new AutoValue_Test(content, code, note, flag);\n" +
+                        "        } catch (IOException | SAXException e) {\n" +
+                        "            throw XmlFailure.malformed(e);\n" +
+                        "        } finally {\n" +
+                        "            releaseXmlState(state);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static Node getNodeForXPath(XPathExpression expression, String path, Node node) {\n" +
+                        "        try {\n" +
+                        "            return (Node) expression.evaluate(node, NODE);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not evaluate path '%s'\", path);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static Node getNodeForXPath(XPathExpression relative, XPathExpression expression,\n" +
+                        "            String path, Node context, Node node) {\n" +
+                        "        if (context == null) {\n" +
+                        "            return null;\n" +
+                        "        }\n" +
+                        "        final Node found = getNodeForXPath(relative, path, context);\n" +
+                        "        return found != null ? found : getNodeForXPath(expression, path, node);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XPathExpression compileXPath(XPath path, String expression) {\n" +
+                        "        try {\n" +
+                        "            return path.compile(expression);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not compile path '%s'\", expression);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XmlState acquireXmlState() {\n" +
+                        "        return XML_STATE.get();\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static void releaseXmlState(XmlState state) {\n" +
+                        "        // Owned by the current thread, nothing to hand back\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static XmlResult<Test> tryCreateFromXml(String xml) {\n" +
+                        "        try {\n" +
+                        "            return XmlResult.<Test>of(createFromXml(xml));\n" +
+                        "        } catch (RuntimeException e) {\n" +
+                        "            return XmlResult.failure(e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static final class XmlState {\n" +
+                        "        final DocumentBuilder builder;\n" +
+                        "        final XPathExpression context0;\n" +
+                        "        final XPathExpression relative0;\n" +
+                        "        final XPathExpression expression0;\n" +
+                        "        final XPathExpression relative1;\n" +
+                        "        final XPathExpression expression1;\n" +
+                        "        final XPathExpression relative2;\n" +
+                        "        final XPathExpression expression2;\n" +
+                        "        final XPathExpression relative3;\n" +
+                        "        final XPathExpression expression3;\n" +
+                        "        XmlState() {\n" +
+                        "            final XPath path;\n" +
+                        "            FACTORY_LOCK.lock();\n" +
+                        "            try {\n" +
+                        "                builder = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();\n" +
+                        "                path = XPATH_FACTORY.newXPath();\n" +
+                        "            } catch (ParserConfigurationException e) {\n" +
+                        "                throw new RuntimeException(e);\n" +
+                        "            } finally {\n" +
+                        "                FACTORY_LOCK.unlock();\n" +
+                        "            }\n" +
+                        "            context0 = compileXPath(path, \"/path/to\");\n" +
+                        "            relative0 = compileXPath(path, \"string/text()\");\n" +
+                        "            expression0 = compileXPath(path, \"/path/to/string/text()\");\n" +
+                        "            relative1 = compileXPath(path, \"attribute/@code\");\n" +
+                        "            expression1 = compileXPath(path, \"/path/to/attribute/@code\");\n" +
+                        "            relative2 = compileXPath(path, \"note/text()\");\n" +
+                        "            expression2 = compileXPath(path, \"/path/to/note/text()\");\n" +
+                        "            relative3 = compileXPath(path, \"flag/text()\");\n" +
+                        "            expression3 = compileXPath(path, \"/path/to/flag/text()\");\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "}");
+
+        assertAbout(javaSources())
+                .that(singletonList(source))
+                .processedWith(new AutoValueProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expected);
+    }
+
+    @Test
+    public void nodeSets() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n" +
+                "\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.google.common.collect.ImmutableList;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "import java.util.List;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "abstract class Test {\n" +
+                "    static Test fromXml(String xml) {\n" +
+                "        return null;\n" +
+                "    }\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/name/text()\")\n" +
+                "    abstract String name();\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/count/text()\")\n" +
+                "    abstract int count();\n" +
+                "\n" +
+                "    @SuppressWarnings(\"mutable\")\n" +
+                "    @XmlPath(\"/path/to/samples/int/text()\")\n" +
+                "    abstract int[] ints();\n" +
+                "\n" +
+                "    @SuppressWarnings(\"mutable\")\n" +
+                "    @XmlPath(\"/path/to/samples/long/text()\")\n" +
+                "    abstract long[] longs();\n" +
+                "\n" +
+                "    @SuppressWarnings(\"mutable\")\n" +
+                "    @XmlPath(\"/path/to/samples/double/text()\")\n" +
+                "    abstract double[] doubles();\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/tag/@name\")\n" +
+                "    abstract List<String> tags();\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/tag/@name\")\n" +
+                "    abstract ImmutableList<String> immutableTags();\n" +
+                "}");
+
+        final JavaFileObject expected = JavaFileObjects.forSourceString("test.AutoValue_Test",
+                "package test;\n" +
+                        "\n" +
+                        "import static javax.xml.xpath.XPathConstants.NODE;\n" +
+                        "import static javax.xml.xpath.XPathConstants.NODESET;\n" +
+                        "\n" +
+                        "import com.google.common.collect.ImmutableList;\n" +
+                        "import com.hihi.xml.XmlNumbers;\n" +
+                        "import java.io.IOException;\n" +
+                        "import java.io.StringReader;\n" +
+                        "import java.lang.Override;\n" +
+                        "import java.lang.RuntimeException;\n" +
+                        "import java.lang.String;\n" +
+                        "import java.lang.ThreadLocal;\n" +
+                        "import java.util.Arrays;\n" +
+                        "import java.util.Collections;\n" +
+                        "import java.util.List;\n" +
+                        "import java.util.concurrent.locks.ReentrantLock;\n" +
+                        "import javax.xml.parsers.DocumentBuilder;\n" +
+                        "import javax.xml.parsers.DocumentBuilderFactory;\n" +
+                        "import javax.xml.parsers.ParserConfigurationException;\n" +
+                        "import javax.xml.xpath.XPath;\n" +
+                        "import javax.xml.xpath.XPathExpression;\n" +
+                        "import javax.xml.xpath.XPathExpressionException;\n" +
+                        "import javax.xml.xpath.XPathFactory;\n" +
+                        "import org.w3c.dom.Document;\n" +
+                        "import org.w3c.dom.Node;\n" +
+                        "import org.w3c.dom.NodeList;\n" +
+                        "import org.xml.sax.InputSource;\n" +
+                        "import org.xml.sax.SAXException;\n" +
+                        "\n" +
+                        "final class AutoValue_Test extends $AutoValue_Test {\n" +
+                        "    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = DocumentBuilderFactory.newInstance();\n" +
+                        "\n" +
+                        "    private static final XPathFactory XPATH_FACTORY = XPathFactory.newInstance();\n" +
+                        "\n" +
+                        "    private static final ReentrantLock FACTORY_LOCK = new ReentrantLock();\n" +
+                        "\n" +
+                        "    private static final ThreadLocal<XmlState> XML_STATE = new ThreadLocal<XmlState>() {\n" +
+                        "        @Override\n" +
+                        "        protected XmlState initialValue() {\n" +
+                        "            return new XmlState();\n" +
+                        "        }\n" +
+                        "    };\n" +
+                        "\n" +
+                        "    AutoValue_Test(String name, int count, int[] ints, long[] longs, double[] doubles,\n" +
+                        "            List<String> tags, ImmutableList<String> immutableTags) {\n" +
+                        "        super(name, count, ints, longs, doubles, tags, immutableTags);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(String xml) {\n" +
+                        "        return createFromXml(new InputSource(new StringReader(xml)));\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(InputSource xml) {\n" +
+                        "        final XmlState state = acquireXmlState();\n" +
+                        "        try {\n" +
+                        "            final Document document = state.builder.parse(xml);\n" +
+                        "            \n" +
+                        "            final Node context0 = getNodeForXPath(state.context0, \"/path/to\", document);\n" +
+                        "            \n" +
+                        "            final Node node0 = getNodeForXPath(state.relative0, state.expression0, \"/path/to/name/text()\", context0, document);\n" +
+                        "            final String name = node0.getNodeValue();\n" +
+                        "            \n" +
+                        "            final Node node1 = getNodeForXPath(state.relative1, state.expression1, \"/path/to/count/text()\", context0, document);\n" +
+                        "            final int count = XmlNumbers.parseInt(node1.getNodeValue());\n" +
+                        "            \n" +
+                        "            final NodeList nodes2 = getNodesForXPath(state.expression2, \"/path/to/samples/int/text()\", document);\n" +
+                        "            final int[] ints = new int[nodes2.getLength()];\n" +
+                        "            for (int item2 = 0; item2 < ints.length; item2++) {\n" +
+                        "                ints[item2] = XmlNumbers.parseInt(nodes2.item(item2).getNodeValue());\n" +
+                        "            }\n" +
+                        "            \n" +
+                        "            final NodeList nodes3 = getNodesForXPath(state.expression3, \"/path/to/samples/long/text()\", document);\n" +
+                        "            final long[] longs = new long[nodes3.getLength()];\n" +
+                        "            for (int item3 = 0; item3 < longs.length; item3++) {\n" +
+                        "                longs[item3] = XmlNumbers.parseLong(nodes3.item(item3).getNodeValue());\n" +
+                        "            }\n" +
+                        "            \n" +
+                        "            final NodeList nodes4 = getNodesForXPath(state.expression4, \"/path/to/samples/double/text()\", document);\n" +
+                        "            final double[] doubles = new double[nodes4.getLength()];\n" +
+                        "            for (int item4 = 0; item4 < doubles.length; item4++) {\n" +
+                        "                doubles[item4] = XmlNumbers.parseDouble(nodes4.item(item4).getNodeValue());\n" +
+                        "            }\n" +
+                        "            \n" +
+                        "            final NodeList nodes5 = getNodesForXPath(state.expression5, \"/path/to/tag/@name\", document);\n" +
+                        "            final String[] texts5 = new String[nodes5.getLength()];\n" +
+                        "            for (int item5 = 0; item5 < texts5.length; item5++) {\n" +
+                        "                texts5[item5] = nodes5.item(item5).getNodeValue();\n" +
+                        "            }\n" +
+                        "            final List<String> tags = Collections.unmodifiableList(Arrays.asList(texts5));\n" +
+                        "            \n" +
+                        "            final String[] texts6 = new String[nodes5.getLength()];\n" +
+                        "            for (int item6 = 0; item6 < texts6.length; item6++) {\n" +
+                        "                texts6[item6] = nodes5.item(item6).getNodeValue();\n" +
+                        "            }\n" +
+                        "            final ImmutableList<String> immutableTags = ImmutableList.copyOf(texts6);\n" +
+                        "            \n" +
+                        "            return new AutoValue_Test(name, count, ints, longs, doubles, tags, immutableTags);\n" +
+                        "        } catch (IOException | SAXException e) {\n" +
+                        "            throw new RuntimeException(e);\n" +
+                        "        } finally {\n" +
+                        "            releaseXmlState(state);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static Node getNodeForXPath(XPathExpression expression, String path, Node node) {\n" +
+                        "        try {\n" +
+                        "            return (Node) expression.evaluate(node, NODE);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not evaluate path '%s'\", path);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static Node getNodeForXPath(XPathExpression relative, XPathExpression expression,\n" +
+                        "            String path, Node context, Node node) {\n" +
+                        "        if (context == null) {\n" +
+                        "            return null;\n" +
+                        "        }\n" +
+                        "        final Node found = getNodeForXPath(relative, path, context);\n" +
+                        "        return found != null ? found : getNodeForXPath(expression, path, node);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static NodeList getNodesForXPath(XPathExpression expression, String path, Node node) {\n" +
+                        "        try {\n" +
+                        "            return (NodeList) expression.evaluate(node, NODESET);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not evaluate path '%s'\", path);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XPathExpression compileXPath(XPath path, String expression) {\n" +
+                        "        try {\n" +
+                        "            return path.compile(expression);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not compile path '%s'\", expression);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XmlState acquireXmlState() {\n" +
+                        "        return XML_STATE.get();\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static void releaseXmlState(XmlState state) {\n" +
+                        "        // Owned by the current thread, nothing to hand back\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static final class XmlState {\n" +
+                        "        final DocumentBuilder builder;\n" +
+                        "        final XPathExpression context0;\n" +
+                        "        final XPathExpression relative0;\n" +
+                        "        final XPathExpression expression0;\n" +
+                        "        final XPathExpression relative1;\n" +
+                        "        final XPathExpression expression1;\n" +
+                        "        final XPathExpression expression2;\n" +
+                        "        final XPathExpression expression3;\n" +
+                        "        final XPathExpression expression4;\n" +
+                        "        final XPathExpression expression5;\n" +
+                        "        XmlState() {\n" +
+                        "            final XPath path;\n" +
+                        "            FACTORY_LOCK.lock();\n" +
+                        "            try {\n" +
+                        "                builder = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();\n" +
+                        "                path = XPATH_FACTORY.newXPath();\n" +
+                        "            } catch (ParserConfigurationException e) {\n" +
+                        "                throw new RuntimeException(e);\n" +
+                        "            } finally {\n" +
+                        "                FACTORY_LOCK.unlock();\n" +
+                        "            }\n" +
+                        "            context0 = compileXPath(path, \"/path/to\");\n" +
+                        "            relative0 = compileXPath(path, \"name/text()\");\n" +
+                        "            expression0 = compileXPath(path, \"/path/to/name/text()\");\n" +
+                        "            relative1 = compileXPath(path, \"count/text()\");\n" +
+                        "            expression1 = compileXPath(path, \"/path/to/count/text()\");\n" +
+                        "            expression2 = compileXPath(path, \"/path/to/samples/int/text()\");\n" +
+                        "            expression3 = compileXPath(path, \"/path/to/samples/long/text()\");\n" +
+                        "            expression4 = compileXPath(path, \"/path/to/samples/double/text()\");\n" +
+                        "            expression5 = compileXPath(path, \"/path/to/tag/@name\");\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "}");
+
+        assertAbout(javaSources())
+                .that(singletonList(source))
+                .processedWith(new AutoValueProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expected);
+    }
+
+    @Test
+    public void streamingEngineNodeSet() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n\n" +
+                "import com.hihi.xml.XmlParser;\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "@XmlParser(engine = XmlParser.Engine.BYTES)\n" +
+                "abstract class Test {\n" +
+                "   static Test fromXml(String xml) {\n" +
+                "       return null;\n" +
+                "   }\n" +
+                "\n" +
+                "   @SuppressWarnings(\"mutable\")\n" +
+                "   @XmlPath(\"/path/to/samples/sample/text()\")\n" +
+                "   abstract int[] samples();\n" +
+                "}");
+
+        try {
+            assertAbout(javaSources())
+                    .that(singletonList(source))
+                    .processedWith(new AutoValueProcessor())
+                    .failsToCompile();
+        } catch (RuntimeException e) {
+            assertThat(e).hasCauseThat().isInstanceOf(IllegalArgumentException.class);
+            assertThat(e).hasCauseThat().hasMessage("Node set 'int[]' for property 'samples' needs the DOM engine");
+        }
+    }
+
+    @Test
+    public void cachedFactories() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n" +
+                "\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlParser;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "import java.nio.ByteBuffer;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "@XmlParser(engine = XmlParser.Engine.BYTES, cacheSize = 1024)\n" +
+                "abstract class Test {\n" +
+                "    static Test fromXmlCached(String xml) {\n" +
+                "        return null;\n" +
+                "    }\n" +
+                "\n" +
+                "    static Test fromXmlCached(ByteBuffer xml) {\n" +
+                "        return null;\n" +
+                "    }\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/name/text()\")\n" +
+                "    abstract String name();\n" +
+                "}");
+
+        final JavaFileObject expected = JavaFileObjects.forSourceString("test.AutoValue_Test",
+                "package test;\n" +
+                        "\n" +
+                        "import static com.hihi.xml.XmlByteReader.END_DOCUMENT;\n" +
+                        "import static com.hihi.xml.XmlByteReader.END_ELEMENT;\n" +
+                        "import static com.hihi.xml.XmlByteReader.START_ELEMENT;\n" +
+                        "import static com.hihi.xml.XmlByteReader.TEXT;\n" +
+                        "\n" +
+                        "import com.hihi.xml.XmlByteReader;\n" +
+                        "import com.hihi.xml.XmlCache;\n" +
+                        "import java.lang.String;\n" +
+                        "import java.nio.ByteBuffer;\n" +
+                        "\n" +
+                        "final class AutoValue_Test extends $AutoValue_Test {\n" +
+                        "    private static final int[] PARENT_STEPS = {-1, 0, 1, 2};\n" +
+                        "\n" +
+                        "    private static final byte[] STEP_1 = XmlByteReader.bytes(\"path\");\n" +
+                        "\n" +
+                        "    private static final byte[] STEP_2 = XmlByteReader.bytes(\"to\");\n" +
+                        "\n" +
+                        "    private static final byte[] STEP_3 = XmlByteReader.bytes(\"name\");\n" +
+                        "\n" +
+                        "    private static final XmlCache<Test> XML_CACHE = new XmlCache<>(1024);\n" +
+                        "\n" +
+                        "    AutoValue_Test(String name) {\n" +
+                        "        super(name);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(String xml) {\n" +
+                        "        return createFromByteReader(XmlByteReader.of(xml));\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(ByteBuffer xml) {\n" +
+                        "        return createFromByteReader(new XmlByteReader(xml));\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static AutoValue_Test createFromByteReader(XmlByteReader reader) {\n" +
+                        "        final String[] values = readValues(reader);\n" +
+                        "        \n" +
+                        "        final String name = values[0];\n" +
+                        "        \n" +
+                        "        return new AutoValue_Test(name);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static String[] readValues(XmlByteReader reader) {\n" +
+                        "        final String[] values = new String[1];\n" +
+                        "        int remaining = 1;\n" +
+                        "        int step = 0;\n" +
+                        "        while (remaining > 0) {\n" +
+                        "            switch (reader.next()) {\n" +
+                        "                case START_ELEMENT:\n" +
+                        "                    switch (step) {\n" +
+                        "                        case 0:\n" +
+                        "                            if (reader.nameEquals(STEP_1)) {\n" +
+                        "                                step = 1;\n" +
+                        "                            } else {\n" +
+                        "                                reader.skipElement();\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                        case 1:\n" +
+                        "                            if (reader.nameEquals(STEP_2)) {\n" +
+                        "                                step = 2;\n" +
+                        "                            } else {\n" +
+                        "                                reader.skipElement();\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                        case 2:\n" +
+                        "                            if (reader.nameEquals(STEP_3)) {\n" +
+                        "                                step = 3;\n" +
+                        "                            } else {\n" +
+                        "                                reader.skipElement();\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                        default:\n" +
+                        "                            reader.skipElement();\n" +
+                        "                    }\n" +
+                        "                    break;\n" +
+                        "                case TEXT:\n" +
+                        "                    switch (step) {\n" +
+                        "                        case 3:\n" +
+                        "                            if (values[0] == null) {\n" +
+                        "                                values[0] = reader.text();\n" +
+                        "                                remaining--;\n" +
+                        "                            }\n" +
+                        "                            break;\n" +
+                        "                    }\n" +
+                        "                    break;\n" +
+                        "                case END_ELEMENT:\n" +
+                        "                    step = PARENT_STEPS[step];\n" +
+                        "                    break;\n" +
+                        "                case END_DOCUMENT:\n" +
+                        "                    return values;\n" +
+                        "            }\n" +
+                        "        }\n" +
+                        "        return values;\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static XmlCache<Test> xmlCache() {\n" +
+                        "        return XML_CACHE;\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static Test createFromXmlCached(String xml) {\n" +
+                        "        final long hash = XmlCache.hash(xml);\n" +
+                        "        final Test cached = XML_CACHE.get(hash, xml);\n" +
+                        "        if (cached != null) {\n" +
+                        "            return cached;\n" +
+                        "        }\n" +
+                        "        final Test read = createFromXml(xml);\n" +
+                        "        XML_CACHE.put(hash, xml, read);\n" +
+                        "        return read;\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static Test createFromXmlCached(ByteBuffer xml) {\n" +
+                        "        final long hash = XmlCache.hash(xml);\n" +
+                        "        final Test cached = XML_CACHE.get(hash, xml);\n" +
+                        "        if (cached != null) {\n" +
+                        "            return cached;\n" +
+                        "        }\n" +
+                        "        final Test read = createFromXml(xml);\n" +
+                        "        XML_CACHE.put(hash, xml, read);\n" +
+                        "        return read;\n" +
+                        "    }\n" +
+                        "}");
+
+        assertAbout(javaSources())
+                .that(singletonList(source))
+                .processedWith(new AutoValueProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expected);
+    }
+
+    @Test
+    public void cachedFactoryForStream() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "import java.io.InputStream;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "abstract class Test {\n" +
+                "   static Test fromXmlCached(InputStream xml) {\n" +
+                "       return null;\n" +
+                "   }\n" +
+                "\n" +
+                "   @XmlPath(\"/path/to/name/text()\")\n" +
+                "   abstract String name();\n" +
+                "}");
+
+        try {
+            assertAbout(javaSources())
+                    .that(singletonList(source))
+                    .processedWith(new AutoValueProcessor())
+                    .failsToCompile();
+        } catch (RuntimeException e) {
+            assertThat(e).hasCauseThat().isInstanceOf(IllegalArgumentException.class);
+            assertThat(e).hasCauseThat().hasMessage("Factories named \"fromXmlCached\" cannot take InputStream");
+        }
+    }
+
+    @Test
+    public void internedStrings() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n" +
+                "\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "import java.util.List;\n" +
+                "import javax.annotation.Nullable;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "abstract class Test {\n" +
+                "    static Test fromXml(String xml) {\n" +
+                "        return null;\n" +
+                "    }\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/name/text()\")\n" +
+                "    abstract String name();\n" +
+                "\n" +
+                "    @XmlPath(value = \"/path/to/breed/text()\", intern = true)\n" +
+                "    abstract String breed();\n" +
+                "\n" +
+                "    @XmlPath(value = \"/path/to/color/@name\", intern = true)\n" +
+                "    @Nullable\n" +
+                "    abstract String color();\n" +
+                "\n" +
+                "    @XmlPath(value = \"/path/to/tag/text()\", intern = true)\n" +
+                "    abstract List<String> tags();\n" +
+                "}");
+
+        final JavaFileObject expected = JavaFileObjects.forSourceString("test.AutoValue_Test",
+                "package test;\n" +
+                        "\n" +
+                        "import static javax.xml.xpath.XPathConstants.NODE;\n" +
+                        "import static javax.xml.xpath.XPathConstants.NODESET;\n" +
+                        "\n" +
+                        "import com.hihi.xml.XmlStrings;\n" +
+                        "import java.io.IOException;\n" +
+                        "import java.io.StringReader;\n" +
+                        "import java.lang.Override;\n" +
+                        "import java.lang.RuntimeException;\n" +
+                        "import java.lang.String;\n" +
+                        "import java.lang.ThreadLocal;\n" +
+                        "import java.util.Arrays;\n" +
+                        "import java.util.Collections;\n" +
+                        "import java.util.List;\n" +
+                        "import java.util.concurrent.locks.ReentrantLock;\n" +
+                        "import javax.xml.parsers.DocumentBuilder;\n" +
+                        "import javax.xml.parsers.DocumentBuilderFactory;\n" +
+                        "import javax.xml.parsers.ParserConfigurationException;\n" +
+                        "import javax.xml.xpath.XPath;\n" +
+                        "import javax.xml.xpath.XPathExpression;\n" +
+                        "import javax.xml.xpath.XPathExpressionException;\n" +
+                        "import javax.xml.xpath.XPathFactory;\n" +
+                        "import org.w3c.dom.Document;\n" +
+                        "import org.w3c.dom.Node;\n" +
+                        "import org.w3c.dom.NodeList;\n" +
+                        "import org.xml.sax.InputSource;\n" +
+                        "import org.xml.sax.SAXException;\n" +
+                        "\n" +
+                        "final class AutoValue_Test extends $AutoValue_Test {\n" +
+                        "    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = DocumentBuilderFactory.newInstance();\n" +
+                        "\n" +
+                        "    private static final XPathFactory XPATH_FACTORY = XPathFactory.newInstance();\n" +
+                        "\n" +
+                        "    private static final ReentrantLock FACTORY_LOCK = new ReentrantLock();\n" +
+                        "\n" +
+                        "    private static final ThreadLocal<XmlState> XML_STATE = new ThreadLocal<XmlState>() {\n" +
+                        "        @Override\n" +
+                        "        protected XmlState initialValue() {\n" +
+                        "            return new XmlState();\n" +
+                        "        }\n" +
+                        "    };\n" +
+                        "\n" +
+                        "    AutoValue_Test(String name, String breed, String color, List<String> tags) {\n" +
+                        "        super(name, breed, color, tags);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(String xml) {\n" +
+                        "        return createFromXml(new InputSource(new StringReader(xml)));\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(InputSource xml) {\n" +
+                        "        final XmlState state = acquireXmlState();\n" +
+                        "        try {\n" +
+                        "            final Document document = state.builder.parse(xml);\n" +
+                        "            \n" +
+                        "            final Node context0 = getNodeForXPath(state.context0, \"/path/to\", document);\n" +
+                        "            \n" +
+                        "            final Node node0 = getNodeForXPath(state.relative0, state.expression0, \"/path/to/name/text()\", context0, document);\n" +
+                        "            final String name = node0.getNodeValue();\n" +
+                        "            \n" +
+                        "            final Node node1 = getNodeForXPath(state.relative1, state.expression1, \"/path/to/breed/text()\", context0, document);\n" +
+                        "            final String breed = XmlStrings.intern(node1.getNodeValue());\n" +
+                        "            \n" +
+                        "            final Node node2 = getNodeForXPath(state.relative2, state.expression2, \"/path/to/color/@name\", context0, document);\n" +
+                        "            final String color = node2 == null ? null : XmlStrings.intern(node2.getNodeValue());\n" +
+                        "            \n" +
+                        "            final NodeList nodes3 = getNodesForXPath(state.expression3, \"/path/to/tag/text()\", document);\n" +
+                        "            final String[] texts3 = new String[nodes3.getLength()];\n" +
+                        "            for (int item3 = 0; item3 < texts3.length; item3++) {\n" +
+                        "                texts3[item3] = XmlStrings.intern(nodes3.item(item3).getNodeValue());\n" +
+                        "            }\n" +
+                        "            final List<String> tags = Collections.unmodifiableList(Arrays.asList(texts3));\n" +
+                        "            \n" +
+                        "            return new AutoValue_Test(name, breed, color, tags);\n" +
+                        "        } catch (IOException | SAXException e) {\n" +
+                        "            throw new RuntimeException(e);\n" +
+                        "        } finally {\n" +
+                        "            releaseXmlState(state);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static Node getNodeForXPath(XPathExpression expression, String path, Node node) {\n" +
+                        "        try {\n" +
+                        "            return (Node) expression.evaluate(node, NODE);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not evaluate path '%s'\", path);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static Node getNodeForXPath(XPathExpression relative, XPathExpression expression,\n" +
+                        "            String path, Node context, Node node) {\n" +
+                        "        if (context == null) {\n" +
+                        "            return null;\n" +
+                        "        }\n" +
+                        "        final Node found = getNodeForXPath(relative, path, context);\n" +
+                        "        return found != null ? found : getNodeForXPath(expression, path, node);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static NodeList getNodesForXPath(XPathExpression expression, String path, Node node) {\n" +
+                        "        try {\n" +
+                        "            return (NodeList) expression.evaluate(node, NODESET);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not evaluate path '%s'\", path);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XPathExpression compileXPath(XPath path, String expression) {\n" +
+                        "        try {\n" +
+                        "            return path.compile(expression);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not compile path '%s'\", expression);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XmlState acquireXmlState() {\n" +
+                        "        return XML_STATE.get();\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static void releaseXmlState(XmlState state) {\n" +
+                        "        // Owned by the current thread, nothing to hand back\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static final class XmlState {\n" +
+                        "        final DocumentBuilder builder;\n" +
+                        "        final XPathExpression context0;\n" +
+                        "        final XPathExpression relative0;\n" +
+                        "        final XPathExpression expression0;\n" +
+                        "        final XPathExpression relative1;\n" +
+                        "        final XPathExpression expression1;\n" +
+                        "        final XPathExpression relative2;\n" +
+                        "        final XPathExpression expression2;\n" +
+                        "        final XPathExpression expression3;\n" +
+                        "        XmlState() {\n" +
+                        "            final XPath path;\n" +
+                        "            FACTORY_LOCK.lock();\n" +
+                        "            try {\n" +
+                        "                builder = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();\n" +
+                        "                path = XPATH_FACTORY.newXPath();\n" +
+                        "            } catch (ParserConfigurationException e) {\n" +
+                        "                throw new RuntimeException(e);\n" +
+                        "            } finally {\n" +
+                        "                FACTORY_LOCK.unlock();\n" +
+                        "            }\n" +
+                        "            context0 = compileXPath(path, \"/path/to\");\n" +
+                        "            relative0 = compileXPath(path, \"name/text()\");\n" +
+                        "            expression0 = compileXPath(path, \"/path/to/name/text()\");\n" +
+                        "            relative1 = compileXPath(path, \"breed/text()\");\n" +
+                        "            expression1 = compileXPath(path, \"/path/to/breed/text()\");\n" +
+                        "            relative2 = compileXPath(path, \"color/@name\");\n" +
+                        "            expression2 = compileXPath(path, \"/path/to/color/@name\");\n" +
+                        "            expression3 = compileXPath(path, \"/path/to/tag/text()\");\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "}");
+
+        assertAbout(javaSources())
+                .that(singletonList(source))
+                .processedWith(new AutoValueProcessor())
+                .compilesWithoutError()
+                .and()
+                .generatesSources(expected);
+    }
+
+    @Test
+    public void internedNumber() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "abstract class Test {\n" +
+                "   static Test fromXml(String xml) {\n" +
+                "       return null;\n" +
+                "   }\n" +
+                "\n" +
+                "   @XmlPath(value = \"/path/to/count/text()\", intern = true)\n" +
+                "   abstract int count();\n" +
+                "}");
+
+        try {
+            assertAbout(javaSources())
+                    .that(singletonList(source))
+                    .processedWith(new AutoValueProcessor())
+                    .failsToCompile();
+        } catch (RuntimeException e) {
+            assertThat(e).hasCauseThat().isInstanceOf(IllegalArgumentException.class);
+            assertThat(e).hasCauseThat().hasMessage("Interned property 'count' needs a String or a list of them, was 'int'");
+        }
+    }
+
+    @Test
+    public void writeXml() {
+        final JavaFileObject source = JavaFileObjects.forSourceString("test.Test", "" +
+                "package test;\n" +
+                "\n" +
+                "import com.google.auto.value.AutoValue;\n" +
+                "import com.hihi.xml.XmlPath;\n" +
+                "import java.io.OutputStream;\n" +
+                "import java.io.Writer;\n" +
+                "import javax.annotation.Nullable;\n" +
+                "\n" +
+                "@AutoValue\n" +
+                "abstract class Test {\n" +
+                "    static Test fromXml(String xml) {\n" +
+                "        return null;\n" +
+                "    }\n" +
+                "\n" +
+                "    static void writeXml(Test value, OutputStream xml) {\n" +
+                "    }\n" +
+                "\n" +
+                "    static void writeXml(Test value, Writer xml) {\n" +
+                "    }\n" +
+                "\n" +
+                "    @XmlPath(\"/path/@id\")\n" +
+                "    abstract String id();\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/name/text()\")\n" +
+                "    abstract String name();\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/age/text()\")\n" +
+                "    abstract int age();\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/weight/@kg\")\n" +
+                "    @Nullable\n" +
+                "    abstract Double weight();\n" +
+                "\n" +
+                "    @XmlPath(\"/path/to/good/text()\")\n" +
+                "    abstract boolean good();\n" +
+                "\n" +
+                "    @XmlPath(\"/path/scores/score/text()\")\n" +
+                "    abstract long[] scores();\n" +
+                "}");
+
+        final JavaFileObject expected = JavaFileObjects.forSourceString("test.AutoValue_Test",
+                "package test;\n" +
+                        "\n" +
+                        "import static javax.xml.xpath.XPathConstants.NODE;\n" +
+                        "import static javax.xml.xpath.XPathConstants.NODESET;\n" +
+                        "\n" +
+                        "import com.hihi.xml.XmlNumbers;\n" +
+                        "import com.hihi.xml.XmlOutput;\n" +
+                        "import java.io.IOException;\n" +
+                        "import java.io.OutputStream;\n" +
+                        "import java.io.StringReader;\n" +
+                        "import java.io.Writer;\n" +
+                        "import java.lang.Double;\n" +
+                        "import java.lang.Override;\n" +
+                        "import java.lang.RuntimeException;\n" +
+                        "import java.lang.String;\n" +
+                        "import java.lang.ThreadLocal;\n" +
+                        "import java.util.concurrent.locks.ReentrantLock;\n" +
+                        "import javax.xml.parsers.DocumentBuilder;\n" +
+                        "import javax.xml.parsers.DocumentBuilderFactory;\n" +
+                        "import javax.xml.parsers.ParserConfigurationException;\n" +
+                        "import javax.xml.xpath.XPath;\n" +
+                        "import javax.xml.xpath.XPathExpression;\n" +
+                        "import javax.xml.xpath.XPathExpressionException;\n" +
+                        "import javax.xml.xpath.XPathFactory;\n" +
+                        "import org.w3c.dom.Document;\n" +
+                        "import org.w3c.dom.Node;\n" +
+                        "import org.w3c.dom.NodeList;\n" +
+                        "import org.xml.sax.InputSource;\n" +
+                        "import org.xml.sax.SAXException;\n" +
+                        "\n" +
+                        "final class AutoValue_Test extends $AutoValue_Test {\n" +
+                        "    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = DocumentBuilderFactory.newInstance();\n" +
+                        "\n" +
+                        "    private static final XPathFactory XPATH_FACTORY = XPathFactory.newInstance();\n" +
+                        "\n" +
+                        "    private static final ReentrantLock FACTORY_LOCK = new ReentrantLock();\n" +
+                        "\n" +
+                        "    private static final ThreadLocal<XmlState> XML_STATE = new ThreadLocal<XmlState>() {\n" +
+                        "        @Override\n" +
+                        "        protected XmlState initialValue() {\n" +
+                        "            return new XmlState();\n" +
+                        "        }\n" +
+                        "    };\n" +
+                        "\n" +
+                        "    private static final XmlOutput.Fragment FRAGMENT0 = XmlOutput.fragment(\"<path id=\\\"\");\n" +
+                        "\n" +
+                        "    private static final XmlOutput.Fragment FRAGMENT1 = XmlOutput.fragment(\"\\\"><to><name>\");\n" +
+                        "\n" +
+                        "    private static final XmlOutput.Fragment FRAGMENT2 = XmlOutput.fragment(\"</name><age>\");\n" +
+                        "\n" +
+                        "    private static final XmlOutput.Fragment FRAGMENT3 = XmlOutput.fragment(\"</age><weight\");\n" +
+                        "\n" +
+                        "    private static final XmlOutput.Fragment FRAGMENT4 = XmlOutput.fragment(\" kg=\\\"\");\n" +
+                        "\n" +
+                        "    private static final XmlOutput.Fragment FRAGMENT5 = XmlOutput.fragment(\"\\\"\");\n" +
+                        "\n" +
+                        "    private static final XmlOutput.Fragment FRAGMENT6 = XmlOutput.fragment(\"></weight><good>\");\n" +
+                        "\n" +
+                        "    private static final XmlOutput.Fragment FRAGMENT7 = XmlOutput.fragment(\"</good></to><scores>\");\n" +
+                        "\n" +
+                        "    private static final XmlOutput.Fragment FRAGMENT8 = XmlOutput.fragment(\"<score>\");\n" +
+                        "\n" +
+                        "    private static final XmlOutput.Fragment FRAGMENT9 = XmlOutput.fragment(\"</score>\");\n" +
+                        "\n" +
+                        "    private static final XmlOutput.Fragment FRAGMENT10 = XmlOutput.fragment(\"</scores></path>\");\n" +
+                        "\n" +
+                        "    AutoValue_Test(String id, String name, int age, Double weight, boolean good, long[] scores) {\n" +
+                        "        super(id, name, age, weight, good, scores);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(String xml) {\n" +
+                        "        return createFromXml(new InputSource(new StringReader(xml)));\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static AutoValue_Test createFromXml(InputSource xml) {\n" +
+                        "        final XmlState state = acquireXmlState();\n" +
+                        "        try {\n" +
+                        "            final Document document = state.builder.parse(xml);\n" +
+                        "            \n" +
+                        "            final Node context0 = getNodeForXPath(state.context0, \"/path\", document);\n" +
+                        "            \n" +
+                        "            final Node node0 = getNodeForXPath(state.relative0, state.expression0, \"/path/@id\", context0, document);\n" +
+                        "            final String id = node0.getNodeValue();\n" +
+                        "            \n" +
+                        "            final Node node1 = getNodeForXPath(state.relative1, state.expression1, \"/path/to/name/text()\", context0, document);\n" +
+                        "            final String name = node1.getNodeValue();\n" +
+                        "            \n" +
+                        "            final Node node2 = getNodeForXPath(state.relative2, state.expression2, \"/path/to/age/text()\", context0, document);\n" +
+                        "            final int age = XmlNumbers.parseInt(node2.getNodeValue());\n" +
+                        "            \n" +
+                        "            final Node node3 = getNodeForXPath(state.relative3, state.expression3, \"/path/to/weight/@kg\", context0, document);\n" +
+                        "            final Double weight = node3 == null ? null : XmlNumbers.parseDouble(node3.getNodeValue());\n" +
+                        "            \n" +
+                        "            final Node node4 = getNodeForXPath(state.relative4, state.expression4, \"/path/to/good/text()\", context0, document);\n" +
+                        "            final boolean good = XmlNumbers.parseBoolean(node4.getNodeValue());\n" +
+                        "            \n" +
+                        "            final NodeList nodes5 = getNodesForXPath(state.expression5, \"/path/scores/score/text()\", document);\n" +
+                        "            final long[] scores = new long[nodes5.getLength()];\n" +
+                        "            for (int item5 = 0; item5 < scores.length; item5++) {\n" +
+                        "                scores[item5] = XmlNumbers.parseLong(nodes5.item(item5).getNodeValue());\n" +
+                        "            }\n" +
+                        "            \n" +
+                        "            return new AutoValue_Test(id, name, age, weight, good, scores);\n" +
+                        "        } catch (IOException | SAXException e) {\n" +
+                        "            throw new RuntimeException(e);\n" +
+                        "        } finally {\n" +
+                        "            releaseXmlState(state);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static Node getNodeForXPath(XPathExpression expression, String path, Node node) {\n" +
+                        "        try {\n" +
+                        "            return (Node) expression.evaluate(node, NODE);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not evaluate path '%s'\", path);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static Node getNodeForXPath(XPathExpression relative, XPathExpression expression,\n" +
+                        "            String path, Node context, Node node) {\n" +
+                        "        if (context == null) {\n" +
+                        "            return null;\n" +
+                        "        }\n" +
+                        "        final Node found = getNodeForXPath(relative, path, context);\n" +
+                        "        return found != null ? found : getNodeForXPath(expression, path, node);\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static NodeList getNodesForXPath(XPathExpression expression, String path, Node node) {\n" +
+                        "        try {\n" +
+                        "            return (NodeList) expression.evaluate(node, NODESET);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not evaluate path '%s'\", path);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XPathExpression compileXPath(XPath path, String expression) {\n" +
+                        "        try {\n" +
+                        "            return path.compile(expression);\n" +
+                        "        } catch (XPathExpressionException e) {\n" +
+                        "            final String msg = String.format(\"Could not compile path '%s'\", expression);\n" +
+                        "            throw new RuntimeException(msg,e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static XmlState acquireXmlState() {\n" +
+                        "        return XML_STATE.get();\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static void releaseXmlState(XmlState state) {\n" +
+                        "        // Owned by the current thread, nothing to hand back\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static void writeToXml(Test value, OutputStream xml) {\n" +
+                        "        try {\n" +
+                        "            writeToXml(value, XmlOutput.of(xml));\n" +
+                        "        } catch (IOException e) {\n" +
+                        "            throw new RuntimeException(e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    static void writeToXml(Test value, Writer xml) {\n" +
+                        "        try {\n" +
+                        "            writeToXml(value, XmlOutput.of(xml));\n" +
+                        "        } catch (IOException e) {\n" +
+                        "            throw new RuntimeException(e);\n" +
+                        "        }\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static void writeToXml(Test value, XmlOutput out) throws IOException {\n" +
+                        "        out.write(FRAGMENT0);\n" +
+                        "        out.attribute(value.id());\n" +
+                        "        out.write(FRAGMENT1);\n" +
+                        "        out.text(value.name());\n" +
+                        "        out.write(FRAGMENT2);\n" +
+                        "        out.number(value.age());\n" +
+                        "        out.write(FRAGMENT3);\n" +
+                        "        if (value.weight() != null) {\n" +
+                        "            out.write(FRAGMENT4);\n" +
+                        "            out.number(value.weight());\n" +
+                        "            out.write(FRAGMENT5);\n" +
+                        "        }\n" +
+                        "        out.write(FRAGMENT6);\n" +
+                        "        out.bool(value.good());\n" +
+                        "        out.write(FRAGMENT7);\n" +
+                        "        for (long each : value.scores()) {\n" +
+                        "            out.write(FRAGMENT8);\n" +
+                        "            out.number(each);\n" +
+                        "            out.write(FRAGMENT9);\n" +
+                        "        }\n" +
+                        "        out.write(FRAGMENT10);\n" +
+                        "        out.flush();\n" +
+                        "    }\n" +
+                        "\n" +
+                        "    private static final class XmlState {\n" +
+                        "        final DocumentBuilder builder;\n" +
+                        "        final XPathExpression context0;\n" +
+                        "        final XPathExpression relative0;\n" +
+                        "        final XPathExpression expression0;\n" +
+                        "        final XPathExpression relative1;\n" +
+                        "        final XPathExpression expression1;\n" +
+                        "        final XPathExpression relative2;\n" +
+                        "        final XPathExpression expression2;\n" +
+                        "        final XPathExpression relative3;\n" +
+                        "        final XPathExpression expression3;\n" +
+                        "        final XPathExpression relative4;\n" +
+                        "        final XPathExpression expression4;\n" +
+                        "        final XPathExpression expression5;\n" +
+                        "        XmlState() {\n" +
+                        "            final XPath path;\n" +
+                        "            FACTORY_LOCK.lock();\n" +
+                        "            try {\n" +
+                        "                builder = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();\n" +
+                        "                path = XPATH_FACTORY.newXPath();\n" +
+                        "            } catch (ParserConfigurationException e) {\n" +
+                        "                throw new RuntimeException(e);\n" +
+                        "            } finally {\n" +
+                        "                FACTORY_LOCK.unlock();\n" +
+                        "            }\n" +
+                        "            context0 = compileXPath(path, \"/path\");\n" +
+                        "            relative0 = compileXPath(path, \"@id\");\n" +
+                        "            expression0 = compileXPath(path, \"/path/@id\");\n" +
+                        "            relative1 = compileXPath(path, \"to/name/text()\");\n" +
+                        "            expression1 = compileXPath(path, \"/path/to/name/text()\");\n" +
+                        "            relative2 = compileXPath(path, \"to/age/text()\");\n" +
+                        "            expression2 = compileXPath(path, \"/path/to/age/text()\");\n" +
+                        "            relative3 = compileXPath(path, \"to/weight/@kg\");\n" +
+                        "            expression3 = compileXPath(path, \"/path/to/weight/@kg\");\n" +
+                        "            relative4 = compileXPath(path, \"to/good/text()\");\n" +
+                        "            expression4 = compileXPath(path, \"/path/to/good/text()\");\n" +
+                        "            expression5 = compileXPath(path, \"/path/scores/score/text()\");\n" +
+                        "        }\n" +
+                        "    }\n" +
                         "}");
 
         assertAbout(javaSources())
@@ -0,0 +1,83 @@
+package com.hihi.xml;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+
+//A cached value is only ever returned for exactly the document it was read from
+public class XmlCacheTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void returnsValueForSameDocument() {
+        final XmlCache<String> cache = new XmlCache<>(4);
+        final String xml = "<pet id=\"a\"/>";
+        assertWithMessage("empty").that(cache.get(XmlCache.hash(xml), xml)).isNull();
+        cache.put(XmlCache.hash(xml), xml, "a");
+
+        final String copy = new String(xml.toCharArray());
+        assertWithMessage("hit").that(cache.get(XmlCache.hash(copy), copy)).isEqualTo("a");
+        assertWithMessage("hits").that(cache.hits()).isEqualTo(1);
+        assertWithMessage("misses").that(cache.misses()).isEqualTo(1);
+    }
+
+    @Test
+    public void collisionsAreMisses() {
+        final XmlCache<String> cache = new XmlCache<>(4);
+        cache.put(42, "<pet id=\"a\"/>", "a");
+        assertWithMessage("string").that(cache.get(42, "<pet id=\"b\"/>")).isNull();
+        assertWithMessage("buffer").that(cache.get(42, ByteBuffer.wrap("<pet id=\"a\"/>".getBytes(UTF_8)))).isNull();
+        assertWithMessage("collisions").that(cache.collisions()).isEqualTo(2);
+
+        cache.put(42, "<pet id=\"b\"/>", "b");
+        assertWithMessage("replaced").that(cache.get(42, "<pet id=\"b\"/>")).isEqualTo("b");
+        assertWithMessage("size").that(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        final XmlCache<String> cache = new XmlCache<>(2);
+        cache.put(1, "a", "a");
+        cache.put(2, "b", "b");
+        cache.get(1, "a");
+        cache.put(3, "c", "c");
+
+        assertWithMessage("used").that(cache.get(1, "a")).isEqualTo("a");
+        assertWithMessage("evicted").that(cache.get(2, "b")).isNull();
+        assertWithMessage("added").that(cache.get(3, "c")).isEqualTo("c");
+        assertWithMessage("evictions").that(cache.evictions()).isEqualTo(1);
+    }
+
+    //Only the bytes between position and limit count, wherever the buffer keeps them, and neither is moved
+    @Test
+    public void buffersMatchByContent() {
+        final byte[] xml = "<pets><item id=\"a\"/><item id=\"b\"/></pets>".getBytes(UTF_8);
+        final byte[] padded = new byte[xml.length + 11];
+        System.arraycopy(xml, 0, padded, 5, xml.length);
+        final ByteBuffer heap = ByteBuffer.wrap(padded, 5, xml.length);
+        final ByteBuffer direct = ByteBuffer.allocateDirect(xml.length);
+        direct.put(xml).flip();
+
+        assertWithMessage("hash").that(XmlCache.hash(direct)).isEqualTo(XmlCache.hash(heap));
+
+        final XmlCache<String> cache = new XmlCache<>(4);
+        cache.put(XmlCache.hash(heap), heap, "pets");
+        //The cache keeps its own copy, so reusing the buffer does not change what it matches
+        padded[10] = 'x';
+
+        assertWithMessage("direct").that(cache.get(XmlCache.hash(direct), direct)).isEqualTo("pets");
+        assertWithMessage("position").that(heap.position()).isEqualTo(5);
+        assertWithMessage("remaining").that(heap.remaining()).isEqualTo(xml.length);
+        assertWithMessage("changed").that(cache.get(XmlCache.hash(heap), heap)).isNull();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sizeMustBePositive() {
+        new XmlCache<String>(0);
+    }
+
+}
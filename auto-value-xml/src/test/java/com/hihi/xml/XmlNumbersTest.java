@@ -0,0 +1,192 @@
+package com.hihi.xml;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+
+//XmlNumbers has to give the same result, or throw the same exception, as the JDK method it stands in for
+public class XmlNumbersTest {
+
+    private static final String[] INTEGERS = {
+            "0", "-0", "+0", "7", "-7", "+7", "0012", "123456789", "-123456789", "2147483647", "-2147483648",
+            "2147483648", "-2147483649", "32767", "-32768", "32768", "-32769", "9223372036854775807",
+            "-9223372036854775808", "9223372036854775808", "999999999999999999", "1000000000000000000",
+            "", "-", "+", "1-", "1.0", "1e3", " ", "0x10", "\u0661\u0662", "\u000b1", "1\u000b",
+    };
+
+    private static final String[] DECIMALS = {
+            "0", "-0", "+0", "0.0", "-0.0", ".5", "5.", ".", "-.5", "1.5", "4.5", "0.75", "1e3", "1E3", "1e+3",
+            "1e-3", "2.5e-5", "123456789012345", "1234567890123456", "12345678901234567890", "0.1", "0.2",
+            "0.3", "1.1", "3.14159", "9007199254740993", "1e22", "1e23", "1e-22", "1e-23", "1e400", "1e-400",
+            "4.9e-324", "1.7976931348623157e308", "0.000000000000000000000000001", "123.456e-2", "0e99999",
+            "NaN", "-Infinity", "Infinity", "0x1p3", "1d", "1f", "1.0F", "1e", "e3", "1.2.3", "", " ", "--1",
+            "16777217", "3.4028235e38", "1.17549435E-38", "1234567", "12345678", "0.1234567", "1e10", "1e11",
+    };
+
+    private static final String[] BOOLEANS = {
+            "true", "TRUE", "True", "tRuE", "false", "", "1", "yes", "truee", "tru", "t rue",
+    };
+
+    private static final String[] PADDING = {"", " ", "\t\n", "\r\n  "};
+
+    @Test
+    public void integersMatchJdk() {
+        for(String integer : INTEGERS) {
+            for(String padding : PADDING) {
+                final String text = padding + integer + padding;
+                assertSame(text, intValue(integer), new Parse() {
+                    @Override
+                    public Object parse() {
+                        return XmlNumbers.parseInt(text);
+                    }
+                });
+                assertSame(text, longValue(integer), new Parse() {
+                    @Override
+                    public Object parse() {
+                        return XmlNumbers.parseLong(chars(text));
+                    }
+                });
+                assertSame(text, shortValue(integer), new Parse() {
+                    @Override
+                    public Object parse() {
+                        return XmlNumbers.parseShort(text);
+                    }
+                });
+            }
+        }
+    }
+
+    @Test
+    public void decimalsMatchJdk() {
+        for(String decimal : DECIMALS) {
+            for(String padding : PADDING) {
+                checkDecimal(padding + decimal + padding, decimal);
+            }
+        }
+    }
+
+    //Shortest representations and truncated ones, which land between doubles, must round the same way
+    @Test
+    public void randomDecimalsMatchJdk() {
+        final Random random = new Random(42);
+        for(int i = 0; i < 20000; i++) {
+            final double value = Double.longBitsToDouble(random.nextLong());
+            if(Double.isNaN(value)) continue;
+            checkDecimal(Double.toString(value), Double.toString(value));
+            checkDecimal(Float.toString((float) value), Float.toString((float) value));
+
+            final String digits = Long.toString(Math.abs(random.nextLong()) % 1000000000000000L);
+            final int point = random.nextInt(digits.length() + 1);
+            final String decimal = digits.substring(0, point) + "." + digits.substring(point) + "e" + (random.nextInt(40) - 20);
+            checkDecimal(decimal, decimal);
+        }
+    }
+
+    @Test
+    public void booleansMatchJdk() {
+        for(String bool : BOOLEANS) {
+            for(String padding : PADDING) {
+                final String text = padding + bool + padding;
+                assertWithMessage(text).that(XmlNumbers.parseBoolean(text)).isEqualTo(Boolean.parseBoolean(bool));
+                assertWithMessage(text).that(XmlNumbers.parseBoolean(chars(text))).isEqualTo(Boolean.parseBoolean(bool));
+            }
+        }
+        assertWithMessage("null").that(XmlNumbers.parseBoolean(null)).isFalse();
+    }
+
+    @Test
+    public void decodedFailsWhenNothingMatched() {
+        assertWithMessage("decoded").that(XmlNumbers.decoded(XmlNumbers.DECODED, 3L)).isEqualTo(3L);
+        try {
+            XmlNumbers.decoded(null, 3L);
+            throw new AssertionError("Expected NumberFormatException");
+        } catch (NumberFormatException expected) {
+            assertWithMessage("message").that(expected).hasMessageThat().isEqualTo("null");
+            assertWithMessage("stack trace").that(expected.getStackTrace()).isEmpty();
+        }
+    }
+
+    private static void checkDecimal(final String text, String trimmed) {
+        assertSame(text, doubleValue(trimmed), new Parse() {
+            @Override
+            public Object parse() {
+                return XmlNumbers.parseDouble(text);
+            }
+        });
+        assertSame(text, floatValue(trimmed), new Parse() {
+            @Override
+            public Object parse() {
+                return XmlNumbers.parseFloat(chars(text));
+            }
+        });
+    }
+
+    private static CharSequence chars(String text) {
+        final char[] padded = ("<>" + text + "<>").toCharArray();
+        return new XmlChars().set(padded, 2, text.length());
+    }
+
+    private interface Parse {
+        Object parse();
+    }
+
+    private static void assertSame(String text, Object expected, Parse parse) {
+        Object actual;
+        try {
+            actual = parse.parse();
+        } catch (NumberFormatException e) {
+            actual = NumberFormatException.class;
+        }
+        if(actual instanceof Double) {
+            actual = Double.doubleToRawLongBits((Double) actual);
+            expected = expected instanceof Double ? Double.doubleToRawLongBits((Double) expected) : expected;
+        } else if(actual instanceof Float) {
+            actual = Float.floatToRawIntBits((Float) actual);
+            expected = expected instanceof Float ? Float.floatToRawIntBits((Float) expected) : expected;
+        }
+        assertWithMessage("'%s'", text).that(actual).isEqualTo(expected);
+    }
+
+    private static Object intValue(String text) {
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            return NumberFormatException.class;
+        }
+    }
+
+    private static Object longValue(String text) {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            return NumberFormatException.class;
+        }
+    }
+
+    private static Object shortValue(String text) {
+        try {
+            return Short.parseShort(text);
+        } catch (NumberFormatException e) {
+            return NumberFormatException.class;
+        }
+    }
+
+    private static Object doubleValue(String text) {
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            return NumberFormatException.class;
+        }
+    }
+
+    private static Object floatValue(String text) {
+        try {
+            return Float.parseFloat(text);
+        } catch (NumberFormatException e) {
+            return NumberFormatException.class;
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+package com.hihi.xml;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+
+//A stream gets the UTF-8 encoding of exactly what a writer gets
+public class XmlOutputTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private interface Writes {
+        void to(XmlOutput out) throws IOException;
+    }
+
+    private static String written(Writes writes) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final XmlOutput stream = XmlOutput.of(bytes);
+        writes.to(stream);
+        stream.flush();
+
+        final StringWriter chars = new StringWriter();
+        final XmlOutput writer = XmlOutput.of(chars);
+        writes.to(writer);
+        writer.flush();
+
+        final String text = new String(bytes.toByteArray(), UTF_8);
+        assertWithMessage("stream").that(text).isEqualTo(chars.toString());
+        return text;
+    }
+
+    @Test
+    public void escapesText() throws IOException {
+        final String text = written(new Writes() {
+            @Override
+            public void to(XmlOutput out) throws IOException {
+                out.text("a<b>&\"c\"\n\t\r");
+                out.write(XmlOutput.fragment(" "));
+                out.attribute("a<b>&\"c\"\n\t\r");
+            }
+        });
+        assertWithMessage("escaped").that(text).isEqualTo("a&lt;b&gt;&amp;\"c\"\n\t&#13; a&lt;b&gt;&amp;&quot;c&quot;&#10;&#9;&#13;");
+    }
+
+    @Test
+    public void encodesEveryPlane() throws IOException {
+        final String value = "\u00e9\u4e16\ud83d\udc31";
+        final String text = written(new Writes() {
+            @Override
+            public void to(XmlOutput out) throws IOException {
+                out.text(value);
+            }
+        });
+        assertWithMessage("encoded").that(text).isEqualTo(value);
+    }
+
+    @Test
+    public void writesNumbers() throws IOException {
+        final String text = written(new Writes() {
+            @Override
+            public void to(XmlOutput out) throws IOException {
+                out.number(0);
+                out.write(XmlOutput.fragment(" "));
+                out.number(-42);
+                out.write(XmlOutput.fragment(" "));
+                out.number(Integer.MIN_VALUE);
+                out.write(XmlOutput.fragment(" "));
+                out.number(Long.MIN_VALUE);
+                out.write(XmlOutput.fragment(" "));
+                out.number(Long.MAX_VALUE);
+                out.write(XmlOutput.fragment(" "));
+                out.number(0.1);
+                out.write(XmlOutput.fragment(" "));
+                out.number(1.5f);
+                out.write(XmlOutput.fragment(" "));
+                out.bool(true);
+            }
+        });
+        assertWithMessage("numbers").that(text)
+                .isEqualTo("0 -42 -2147483648 -9223372036854775808 9223372036854775807 0.1 1.5 true");
+    }
+
+    //Values and fragments longer than the buffer are written whole, wherever the buffer happens to be filled to
+    @Test
+    public void writesPastTheBuffer() throws IOException {
+        final char[] filler = new char[20000];
+        Arrays.fill(filler, 'x');
+        final String value = "\u4e16" + new String(filler) + "&";
+        final XmlOutput.Fragment fragment = XmlOutput.fragment(new String(filler));
+        final String text = written(new Writes() {
+            @Override
+            public void to(XmlOutput out) throws IOException {
+                out.number(7);
+                out.text(value);
+                out.write(fragment);
+            }
+        });
+        assertWithMessage("length").that(text.length()).isEqualTo(1 + value.length() + 4 + filler.length);
+        assertWithMessage("end").that(text.substring(text.length() - filler.length - 5, text.length() - filler.length))
+                .isEqualTo("&amp;");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsControlCharacters() throws IOException {
+        XmlOutput.of(new StringWriter()).text("a\u0000");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnpairedSurrogates() throws IOException {
+        XmlOutput.of(new ByteArrayOutputStream()).text("a\ud83d");
+    }
+
+}
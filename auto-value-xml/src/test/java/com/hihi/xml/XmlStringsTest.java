@@ -0,0 +1,35 @@
+package com.hihi.xml;
+
+import org.junit.Test;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+
+//Interning never changes a value, only which copy of it is returned
+public class XmlStringsTest {
+
+    @Test
+    public void returnsFirstCopy() {
+        final String first = new String("XmlStringsTest.returnsFirstCopy".toCharArray());
+        final String second = new String("XmlStringsTest.returnsFirstCopy".toCharArray());
+        assertWithMessage("first").that(XmlStrings.intern(first)).isSameAs(first);
+        assertWithMessage("second").that(XmlStrings.intern(second)).isSameAs(first);
+    }
+
+    @Test
+    public void replacesOnCollision() {
+        //"Aa" and "BB" have the same hash, and so do Strings that only differ by them, so they share a slot. The table
+        //is shared with everything else running, so the values are ones nothing else reads
+        final String aa = new String("XmlStringsTest.Aa".toCharArray());
+        final String bb = new String("XmlStringsTest.BB".toCharArray());
+        assertWithMessage("Aa").that(XmlStrings.intern(aa)).isSameAs(aa);
+        assertWithMessage("BB").that(XmlStrings.intern(bb)).isSameAs(bb);
+        assertWithMessage("BB again").that(XmlStrings.intern(new String("XmlStringsTest.BB".toCharArray()))).isSameAs(bb);
+        assertWithMessage("Aa again").that(XmlStrings.intern(new String("XmlStringsTest.Aa".toCharArray()))).isEqualTo("XmlStringsTest.Aa");
+    }
+
+    @Test
+    public void keepsNull() {
+        assertWithMessage("null").that(XmlStrings.intern(null)).isNull();
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.hihi.xml;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Random;
+
+import static com.google.common.truth.Truth.assertWithMessage;
+
+//Generated code reads a date or instant through XmlTimes and falls back to the JDK when it returns FALLBACK, which has
+//to give the same result, or throw the same exception, as LocalDate.parse and Instant.parse alone
+public class XmlTimesTest {
+
+    private static final String[] DATES = {
+            "1970-01-01", "1969-12-31", "2000-02-29", "1900-02-29", "2016-02-29", "2017-02-29", "0000-01-01",
+            "9999-12-31", "2024-04-31", "2024-13-01", "2024-00-10", "2024-01-00", "2024-01-32", "+12024-01-31",
+            "-0001-01-01", "2024-1-31", "2024/01/31", "2024-01-3a", "2024-01-31Z", " 2024-01-31", "", "\u06622024-01-31",
+    };
+
+    private static final String[] INSTANTS = {
+            "1970-01-01T00:00:00Z", "1969-12-31T23:59:59Z", "2024-01-31T12:30:00Z", "2024-01-31T12:30:00.5Z",
+            "2024-01-31T12:30:00.250Z", "2024-01-31T12:30:00.123456789Z", "2024-01-31T12:30:00.1234567891Z",
+            "2024-01-31T12:30:00.Z", "2024-01-31T23:59:60Z", "2024-01-31T24:00:00Z", "2024-01-31T12:60:00Z",
+            "2024-01-31t12:30:00Z", "2024-01-31T12:30:00z", "2024-01-31T12:30Z", "2024-01-31T12:30:00+01:00",
+            "2024-02-30T12:30:00Z", "0000-01-01T00:00:00Z", "9999-12-31T23:59:59.999999999Z", "2024-01-31 12:30:00Z",
+            "+12024-01-31T12:30:00Z", "2024-01-31T12:30:0aZ", "",
+    };
+
+    @Test
+    public void datesMatchJdk() {
+        for(String date : DATES) {
+            assertWithMessage("'%s'", date).that(date(date)).isEqualTo(jdkDate(date));
+        }
+    }
+
+    @Test
+    public void randomDatesMatchJdk() {
+        final Random random = new Random(42);
+        for(int i = 0; i < 20000; i++) {
+            final String date = LocalDate.ofEpochDay(random.nextInt(3652059) - 719528).toString();
+            assertWithMessage("'%s'", date).that(XmlTimes.isoDate(date)).isEqualTo(LocalDate.parse(date).toEpochDay());
+        }
+    }
+
+    @Test
+    public void instantsMatchJdk() {
+        for(String instant : INSTANTS) {
+            assertWithMessage("'%s'", instant).that(instant(instant)).isEqualTo(jdkInstant(instant));
+        }
+    }
+
+    @Test
+    public void randomInstantsMatchJdk() {
+        final Random random = new Random(42);
+        for(int i = 0; i < 20000; i++) {
+            final Instant value = Instant.ofEpochSecond(random.nextLong() % 253402300799L, random.nextInt(1000000000));
+            if(value.getEpochSecond() < -62167219200L) continue;
+            final String instant = value.toString();
+            assertWithMessage("'%s'", instant).that(instant(instant)).isEqualTo(value);
+        }
+    }
+
+    @Test
+    public void nullFallsBack() {
+        assertWithMessage("date").that(XmlTimes.isoDate(null)).isEqualTo(XmlTimes.FALLBACK);
+        assertWithMessage("instant").that(XmlTimes.isoInstantSeconds(null)).isEqualTo(XmlTimes.FALLBACK);
+    }
+
+    private static Object date(String text) {
+        final long day = XmlTimes.isoDate(text);
+        return day == XmlTimes.FALLBACK ? jdkDate(text) : LocalDate.ofEpochDay(day);
+    }
+
+    private static Object instant(String text) {
+        final long seconds = XmlTimes.isoInstantSeconds(text);
+        return seconds == XmlTimes.FALLBACK
+                ? jdkInstant(text)
+                : Instant.ofEpochSecond(seconds, XmlTimes.isoInstantNanos(text));
+    }
+
+    private static Object jdkDate(String text) {
+        try {
+            return LocalDate.parse(text);
+        } catch (DateTimeParseException e) {
+            return DateTimeParseException.class;
+        }
+    }
+
+    private static Object jdkInstant(String text) {
+        try {
+            return Instant.parse(text);
+        } catch (DateTimeParseException e) {
+            return DateTimeParseException.class;
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.hihi.benchmark;
+
+import java.nio.charset.Charset;
+
+//Documents padded to a given size with elements no path matches. The padding comes before the values, so the
+//streaming engines have to read as much of the document as the DOM engine does before they can stop
+final class Documents {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String PADDING = "<other id=\"padding\"><name>Padding</name><age><years>1</years></age></other>";
+
+    private Documents() {
+    }
+
+    static byte[] pets(int size) {
+        final String item = "" +
+                "<item id=\"PetRequestId\">" +
+                "<name>Meatball</name>" +
+                "<breed>Persian</breed>" +
+                "<age><years>3</years><months>4</months></age>" +
+                "<favourite>true</favourite>" +
+                "<description color=\"white\"/>" +
+                "</item>";
+        return padded("pets", item, size);
+    }
+
+    static byte[] wide(int fields, int size) {
+        final StringBuilder item = new StringBuilder("<item>");
+        for(int i = 0; i < fields; i++) {
+            item.append("<f").append(i).append('>')
+                    .append(i % 2 == 0 ? "value" + i : String.valueOf(i))
+                    .append("</f").append(i).append('>');
+        }
+        return padded("values", item.append("</item>").toString(), size);
+    }
+
+    private static byte[] padded(String root, String item, int size) {
+        final String start = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><" + root + ">";
+        final String end = "</" + root + ">";
+        final int padding = Math.max(0, size - start.length() - item.length() - end.length());
+
+        final StringBuilder document = new StringBuilder(size).append(start);
+        for(int i = 0; i < padding / PADDING.length(); i++) {
+            document.append(PADDING);
+        }
+        for(int i = 0; i < padding % PADDING.length(); i++) {
+            document.append(' ');
+        }
+        return document.append(item).append(end).toString().getBytes(UTF_8);
+    }
+
+}
@@ -0,0 +1,8 @@
+package com.hihi.benchmark;
+
+import java.nio.ByteBuffer;
+
+//Picks a generated class once during setup, so the benchmark itself only measures parsing
+interface Parser {
+    Object parse(ByteBuffer xml);
+}
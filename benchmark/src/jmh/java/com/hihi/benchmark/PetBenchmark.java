@@ -0,0 +1,47 @@
+package com.hihi.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class PetBenchmark {
+
+    @Param({"DOM", "STAX", "BYTES"})
+    public String engine;
+
+    //1 KB, 1 MB and 100 MB
+    @Param({"1024", "1048576", "104857600"})
+    public int size;
+
+    private Parser parser;
+    private ByteBuffer xml;
+
+    @Setup
+    public void setUp() {
+        parser = Pets.parser(engine);
+        xml = ByteBuffer.wrap(Documents.pets(size));
+    }
+
+    @Benchmark
+    public Object fromXml() {
+        return parser.parse(xml);
+    }
+
+}
@@ -0,0 +1,160 @@
+package com.hihi.benchmark;
+
+import com.google.auto.value.AutoValue;
+import com.hihi.xml.XmlParser;
+import com.hihi.xml.XmlPath;
+
+import java.nio.ByteBuffer;
+
+import javax.annotation.Nullable;
+
+//The example app's Pet, once for each engine
+final class Pets {
+
+    private Pets() {
+    }
+
+    static Parser parser(String engine) {
+        switch(XmlParser.Engine.valueOf(engine)) {
+            case DOM:
+                return new Parser() {
+                    @Override
+                    public Object parse(ByteBuffer xml) {
+                        return DomPet.fromXml(xml);
+                    }
+                };
+            case STAX:
+                return new Parser() {
+                    @Override
+                    public Object parse(ByteBuffer xml) {
+                        return StaxPet.fromXml(xml);
+                    }
+                };
+            default:
+                return new Parser() {
+                    @Override
+                    public Object parse(ByteBuffer xml) {
+                        return BytesPet.fromXml(xml);
+                    }
+                };
+        }
+    }
+
+    @AutoValue
+    @XmlParser(engine = XmlParser.Engine.DOM)
+    abstract static class DomPet {
+
+        static DomPet fromXml(ByteBuffer xml) {
+            return AutoValue_Pets_DomPet.createFromXml(xml);
+        }
+
+        @XmlPath("/pets/item/@id")
+        abstract String id();
+
+        @XmlPath("/pets/item/name/text()")
+        abstract String name();
+
+        @XmlPath("/pets/item/breed/text()")
+        abstract String breed();
+
+        @XmlPath("/pets/item/age/years/text()")
+        abstract int years();
+
+        @XmlPath("/pets/item/age/months/text()")
+        abstract int months();
+
+        @XmlPath("/pets/item/age/days/text()")
+        @Nullable
+        abstract Integer days();
+
+        @XmlPath("/pets/item/favourite/text()")
+        abstract boolean favourite();
+
+        @XmlPath("/pets/item/description/@color")
+        abstract String color();
+
+        @XmlPath("/pets/item/description/text()")
+        @Nullable
+        abstract String description();
+
+    }
+
+    @AutoValue
+    @XmlParser(engine = XmlParser.Engine.STAX)
+    abstract static class StaxPet {
+
+        static StaxPet fromXml(ByteBuffer xml) {
+            return AutoValue_Pets_StaxPet.createFromXml(xml);
+        }
+
+        @XmlPath("/pets/item/@id")
+        abstract String id();
+
+        @XmlPath("/pets/item/name/text()")
+        abstract String name();
+
+        @XmlPath("/pets/item/breed/text()")
+        abstract String breed();
+
+        @XmlPath("/pets/item/age/years/text()")
+        abstract int years();
+
+        @XmlPath("/pets/item/age/months/text()")
+        abstract int months();
+
+        @XmlPath("/pets/item/age/days/text()")
+        @Nullable
+        abstract Integer days();
+
+        @XmlPath("/pets/item/favourite/text()")
+        abstract boolean favourite();
+
+        @XmlPath("/pets/item/description/@color")
+        abstract String color();
+
+        @XmlPath("/pets/item/description/text()")
+        @Nullable
+        abstract String description();
+
+    }
+
+    @AutoValue
+    @XmlParser(engine = XmlParser.Engine.BYTES)
+    abstract static class BytesPet {
+
+        static BytesPet fromXml(ByteBuffer xml) {
+            return AutoValue_Pets_BytesPet.createFromXml(xml);
+        }
+
+        @XmlPath("/pets/item/@id")
+        abstract String id();
+
+        @XmlPath("/pets/item/name/text()")
+        abstract String name();
+
+        @XmlPath("/pets/item/breed/text()")
+        abstract String breed();
+
+        @XmlPath("/pets/item/age/years/text()")
+        abstract int years();
+
+        @XmlPath("/pets/item/age/months/text()")
+        abstract int months();
+
+        @XmlPath("/pets/item/age/days/text()")
+        @Nullable
+        abstract Integer days();
+
+        @XmlPath("/pets/item/favourite/text()")
+        abstract boolean favourite();
+
+        @XmlPath("/pets/item/description/@color")
+        abstract String color();
+
+        @XmlPath("/pets/item/description/text()")
+        @Nullable
+        abstract String description();
+
+    }
+
+}
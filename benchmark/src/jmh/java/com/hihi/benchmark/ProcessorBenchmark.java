@@ -0,0 +1,169 @@
+package com.hihi.benchmark;
+
+import com.google.auto.value.extension.AutoValueExtension;
+import com.google.auto.value.processor.AutoValueProcessor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.processing.Processor;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+//Runs annotation processing alone over many synthetic value classes, the way a large module is built. The NONE engine
+//is the AutoValue-only baseline: the same classes without factories or annotations, processed without any extension.
+//The processorReport task subtracts it from each engine, which leaves the time the extension adds. Each invocation
+//takes seconds, and javac needs many of them to warm up, so this runs far longer than the parsing benchmarks
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(5)
+@Warmup(iterations = 5, time = 10)
+@Measurement(iterations = 5, time = 10)
+public class ProcessorBenchmark {
+
+    static final String BASELINE = "NONE";
+
+    @Param({"1000"})
+    public int classes;
+
+    @Param({BASELINE, "DOM", "STAX", "BYTES", "AUTO"})
+    public String engine;
+
+    private JavaCompiler compiler;
+    private StandardJavaFileManager files;
+    private List<JavaFileObject> sources;
+    private Path output;
+
+    @Setup
+    public void setUp() throws IOException {
+        compiler = ToolProvider.getSystemJavaCompiler();
+        files = compiler.getStandardFileManager(null, null, null);
+        sources = new ArrayList<>();
+        for(int i = 0; i < classes; i++) {
+            sources.add(new Source("Value" + i, source("Value" + i)));
+        }
+        output = Files.createTempDirectory("processor-benchmark");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        files.close();
+        Files.walkFileTree(output, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    //Generated sources overwrite those of the previous invocation, so every one writes the same amount
+    @Benchmark
+    public boolean process() {
+        final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        final JavaCompiler.CompilationTask task = compiler.getTask(null, files, diagnostics, Arrays.asList(
+                "-proc:only",
+                "-classpath", System.getProperty("java.class.path"),
+                "-s", output.toString(),
+                "-d", output.toString()
+        ), null, sources);
+        task.setProcessors(Collections.<Processor>singletonList(engine.equals(BASELINE)
+                ? new AutoValueProcessor(Collections.<AutoValueExtension>emptyList())
+                : new AutoValueProcessor()));
+        if(!task.call()) {
+            throw new IllegalStateException(diagnostics.getDiagnostics().toString());
+        }
+        return true;
+    }
+
+    private String source(String name) {
+        final boolean xml = !engine.equals(BASELINE);
+        final StringBuilder source = new StringBuilder()
+                .append("package com.hihi.benchmark.processed;\n\n")
+                .append("import com.google.auto.value.AutoValue;\n")
+                .append(xml ? "import com.hihi.xml.XmlParser;\nimport com.hihi.xml.XmlPath;\n" : "")
+                .append("import javax.annotation.Nullable;\n\n")
+                .append("@AutoValue\n");
+        if(xml) {
+            source.append("@XmlParser(engine = XmlParser.Engine.").append(engine).append(")\n");
+        }
+        source.append("abstract class ").append(name).append(" {\n");
+        if(xml) {
+            source.append("    static ").append(name).append(" fromXml(String xml) {\n")
+                    .append("        return AutoValue_").append(name).append(".createFromXml(xml);\n")
+                    .append("    }\n");
+        }
+        property(source, xml, "/pets/item/@id", false, "String id");
+        property(source, xml, "/pets/item/name/text()", false, "String name");
+        property(source, xml, "/pets/item/breed/text()", true, "String breed");
+        property(source, xml, "/pets/item/age/years/text()", false, "int years");
+        property(source, xml, "/pets/item/age/days/text()", true, "Integer days");
+        property(source, xml, "/pets/item/weight/text()", false, "double weight");
+        property(source, xml, "/pets/item/favourite/text()", false, "boolean favourite");
+        property(source, xml, "/pets/item/description/@color", false, "String color");
+        return source.append("}\n").toString();
+    }
+
+    private static void property(StringBuilder source, boolean xml, String path, boolean nullable, String declaration) {
+        source.append('\n');
+        if(xml) {
+            source.append("    @XmlPath(\"").append(path).append("\")\n");
+        }
+        if(nullable) {
+            source.append("    @Nullable\n");
+        }
+        source.append("    abstract ").append(declaration).append("();\n");
+    }
+
+    private static final class Source extends SimpleJavaFileObject {
+
+        private final String content;
+
+        Source(String name, String content) {
+            super(URI.create("string:///com/hihi/benchmark/processed/" + name + ".java"), Kind.SOURCE);
+            this.content = content;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return content;
+        }
+
+    }
+
+}
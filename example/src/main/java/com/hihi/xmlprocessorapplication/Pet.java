@@ -29,7 +29,7 @@ abstract class Pet {
     @XmlPath("/pets/item/name/text()")
     abstract String name();
 
-    @XmlPath("/pets/item/breed/text()")
+    @XmlPath(value = "/pets/item/breed/text()", intern = true)
     abstract String breed();
 
     @XmlPath("/pets/item/age/years/text()")
@@ -45,7 +45,7 @@ abstract class Pet {
     @XmlPath("/pets/item/favourite/text()")
     abstract boolean favourite();
 
-    @XmlPath("/pets/item/description/@color")
+    @XmlPath(value = "/pets/item/description/@color", intern = true)
     abstract String color();
 
     @XmlPath("/pets/item/description/text()")